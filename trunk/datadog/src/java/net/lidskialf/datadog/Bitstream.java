@@ -18,10 +18,17 @@
 package net.lidskialf.datadog;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Abstract representation of a bitstream.
  *
+ * The seek() and read*() methods share a single cursor, so they must not be
+ * used by more than one thread at a time. readAt() does not touch the cursor
+ * and implementations must allow it to be called from any number of threads
+ * concurrently.
+ *
  * @author Andrew de Quincey
  */
 public interface Bitstream {
@@ -61,6 +68,44 @@ public interface Bitstream {
      */
     public int readBlock(byte[] dest, int destPos, int length) throws IOException;
 
+    /**
+     * Read a block of data from an absolute position in the bitstream, without
+     * using or altering the current position. Safe to call from multiple
+     * threads.
+     *
+     * @param position
+     *            Position in the bitstream to read from.
+     * @param dest
+     *            Destination for the data - bytes are written from its
+     *            position() up to its limit(), and its position is advanced
+     *            past them.
+     * @return The number of bytes actually read (less than requested only at
+     *         the end of the bitstream), or -1 if position is at or beyond the
+     *         end.
+     * @throws IOException
+     *             On error.
+     */
+    public int readAt(long position, ByteBuffer dest) throws IOException;
+
+    /**
+     * Copy a block of the bitstream to a channel, without using or altering
+     * the current position. File backed implementations leave the copy to the
+     * operating system where they can, so the data does not pass through the
+     * Java heap. Safe to call from multiple threads.
+     *
+     * @param position
+     *            Position in the bitstream to copy from.
+     * @param count
+     *            Number of bytes to copy.
+     * @param target
+     *            Channel to write them to.
+     * @return The number of bytes actually copied (less than requested only
+     *         at the end of the bitstream).
+     * @throws IOException
+     *             On error.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
     /**
      * Get the length of the bitstream.
      *
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * A Bitstream which caches aligned pages of another Bitstream.
+ *
+ * Pages are kept in a size bounded LRU. On a miss, pages are read ahead in
+ * the direction the calling thread has recently accessed the stream in, so
+ * scrolling through a region turns into a few large reads of the underlying
+ * Bitstream.
+ *
+ * @author Andrew de Quincey
+ */
+public class CachingBitstream implements Bitstream {
+
+    /**
+     * Default page size - 64Kb rounded down to a multiple of the 188 byte
+     * transport stream packet size, so packets never straddle pages.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 188 * 348;
+
+    /**
+     * Default maximum number of pages to cache.
+     */
+    public static final int DEFAULT_MAX_PAGES = 256;
+
+    /**
+     * Default number of pages to read ahead on a miss.
+     */
+    public static final int DEFAULT_READ_AHEAD = 4;
+
+    /**
+     * The bitstream being cached.
+     */
+    private Bitstream bitstream;
+
+    /**
+     * Size of each page in bytes.
+     */
+    private int pageSize;
+
+    /**
+     * Maximum number of pages to keep.
+     */
+    private int maxPages;
+
+    /**
+     * Number of extra pages to read on a miss.
+     */
+    private int readAhead;
+
+    /**
+     * Length of the underlying bitstream.
+     */
+    private long length;
+
+    /**
+     * Page index (Long) -> page data (byte[]), in least recently used order.
+     */
+    private LinkedHashMap pages;
+
+    /**
+     * Access pattern of each thread, as { index of the page accessed most
+     * recently, direction of recent accesses (1 forwards, -1 backwards) }.
+     * Kept per thread so the interleaved reads of parallel scan workers do
+     * not keep flipping each other's read ahead.
+     */
+    private ThreadLocal walks = new ThreadLocal() {
+        protected Object initialValue() {
+            return new long[] { -1, 1 };
+        }
+    };
+
+    /**
+     * Number of page lookups satisfied from the cache.
+     */
+    private long hits = 0;
+
+    /**
+     * Number of page lookups which had to go to the underlying bitstream.
+     */
+    private long misses = 0;
+
+    /**
+     * Current position within the bitstream.
+     */
+    private long position = 0;
+
+    /**
+     * Constructor using the default page size, cache size and read ahead.
+     *
+     * @param bitstream
+     *            The Bitstream to cache.
+     * @throws IOException
+     *             On error.
+     */
+    public CachingBitstream(Bitstream bitstream) throws IOException {
+        this(bitstream, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bitstream
+     *            The Bitstream to cache.
+     * @param pageSize
+     *            Size of each page in bytes.
+     * @param maxPages
+     *            Maximum number of pages to cache.
+     * @param readAhead
+     *            Number of extra pages to read on a miss.
+     * @throws IOException
+     *             On error.
+     */
+    public CachingBitstream(Bitstream bitstream, int pageSize, final int maxPages, int readAhead) throws IOException {
+        if ((pageSize <= 0) || (maxPages <= 0) || (readAhead < 0) || (readAhead >= maxPages)) {
+            throw new IllegalArgumentException("Invalid cache geometry");
+        }
+
+        this.bitstream = bitstream;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.readAhead = readAhead;
+        this.length = bitstream.length();
+
+        pages = new LinkedHashMap(maxPages + 1, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /**
+     * Get the Bitstream being cached.
+     *
+     * @return The Bitstream.
+     */
+    public Bitstream getBitstream() {
+        return bitstream;
+    }
+
+    /**
+     * Number of page lookups satisfied from the cache.
+     *
+     * @return The count.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of page lookups which had to read the underlying bitstream.
+     *
+     * @return The count.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Reset the hit/miss counters.
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readByte()
+     */
+    public int readByte() throws IOException {
+        if (position >= length)
+            return -1;
+
+        byte[] page = getPage(position / pageSize);
+        return page[(int) (position++ % pageSize)] & 0xff;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readBlock(byte[])
+     */
+    public int readBlock(byte[] dest) throws IOException {
+        return readBlock(dest, 0, dest.length);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readBlock(byte[], int, int)
+     */
+    public int readBlock(byte[] dest, int destPos, int length) throws IOException {
+        if (length == 0)
+            return 0;
+
+        int count = readAt(position, ByteBuffer.wrap(dest, destPos, length));
+        if (count > 0)
+            position += count;
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readAt(long, java.nio.ByteBuffer)
+     */
+    public int readAt(long position, ByteBuffer dest) throws IOException {
+        if (position >= length)
+            return -1;
+
+        int toRead = dest.remaining();
+        if (toRead > (length - position))
+            toRead = (int) (length - position);
+
+        // pages are never modified once loaded, so copying out of them does
+        // not need the lock
+        int done = 0;
+        while (done < toRead) {
+            byte[] page = getPage(position / pageSize);
+            int pageOffset = (int) (position % pageSize);
+            int count = Math.min(toRead - done, page.length - pageOffset);
+
+            dest.put(page, pageOffset, count);
+
+            done += count;
+            position += count;
+        }
+
+        return done;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#transferTo(long, long, java.nio.channels.WritableByteChannel)
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        // bulk copies bypass the cache rather than flushing it
+        return bitstream.transferTo(position, count, target);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#length()
+     */
+    public long length() throws IOException {
+        return length;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#seek(long)
+     */
+    public void seek(long position) throws IOException {
+        if (position < 0)
+            throw new IOException("Negative seek offset");
+        this.position = position;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#close()
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            pages.clear();
+        }
+        bitstream.close();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return bitstream.toString();
+    }
+
+    /**
+     * Retrieve a page, loading it (and any read ahead) if necessary.
+     *
+     * @param index
+     *            Index of the page.
+     * @return The page data.
+     * @throws IOException
+     *             On error.
+     */
+    private byte[] getPage(long index) throws IOException {
+        // track which way this thread is walking the stream
+        long[] walk = (long[]) walks.get();
+        if ((walk[0] != -1) && (index != walk[0])) {
+            walk[1] = (index > walk[0]) ? 1 : -1;
+        }
+        walk[0] = index;
+
+        return getPage(index, (int) walk[1]);
+    }
+
+    /**
+     * Retrieve a page, loading it (and any read ahead) if necessary. The
+     * underlying bitstream is read without holding the cache lock, so other
+     * threads are not held up by a miss; two threads missing the same page at
+     * once may both read it.
+     *
+     * @param index
+     *            Index of the page.
+     * @param direction
+     *            Direction to read ahead in: 1 for forwards, -1 for
+     *            backwards.
+     * @return The page data.
+     * @throws IOException
+     *             On error.
+     */
+    private byte[] getPage(long index, int direction) throws IOException {
+        long first = index;
+        long last = index;
+        synchronized (this) {
+            byte[] page = (byte[]) pages.get(new Long(index));
+            if (page != null) {
+                hits++;
+                return page;
+            }
+            misses++;
+
+            // extend the read in the direction of travel, stopping at pages we
+            // already have and at the ends of the stream
+            long lastIndex = (length - 1) / pageSize;
+            for (int i = 0; i < readAhead; i++) {
+                if (direction > 0) {
+                    if ((last + 1 > lastIndex) || pages.containsKey(new Long(last + 1)))
+                        break;
+                    last++;
+                } else {
+                    if ((first - 1 < 0) || pages.containsKey(new Long(first - 1)))
+                        break;
+                    first--;
+                }
+            }
+        }
+
+        // read the whole run in one go
+        long start = first * pageSize;
+        int runLength = (int) (Math.min(length, (last + 1) * pageSize) - start);
+        byte[] run = new byte[runLength];
+        ByteBuffer dest = ByteBuffer.wrap(run);
+        while (dest.hasRemaining()) {
+            if (bitstream.readAt(start + dest.position(), dest) <= 0) {
+                throw new EOFException("Unexpected end of bitstream at " + (start + dest.position()));
+            }
+        }
+
+        // split it into pages; the requested page goes in last so it is the
+        // most recently used
+        byte[] page = slice(run, (int) ((index - first) * pageSize));
+        synchronized (this) {
+            for (long i = first; i <= last; i++) {
+                if (i == index)
+                    continue;
+                pages.put(new Long(i), slice(run, (int) ((i - first) * pageSize)));
+            }
+            pages.put(new Long(index), page);
+        }
+
+        return page;
+    }
+
+    /**
+     * Copy a page out of a run of pages.
+     *
+     * @param run
+     *            The run.
+     * @param offset
+     *            Offset of the page within the run.
+     * @return The page data (shorter than pageSize at the end of the stream).
+     */
+    private byte[] slice(byte[] run, int offset) {
+        if ((offset == 0) && (run.length <= pageSize))
+            return run;
+
+        byte[] page = new byte[Math.min(pageSize, run.length - offset)];
+        System.arraycopy(run, offset, page, 0, page.length);
+        return page;
+    }
+}
@@ -18,6 +18,9 @@
 package net.lidskialf.datadog;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A Bitstream which acts directly on a file on disk.
@@ -31,6 +34,11 @@ public class FileBitstream implements Bitstream {
      */
     private RandomAccessFile dataFile;
 
+    /**
+     * The channel of dataFile, used for positional reads.
+     */
+    private FileChannel channel;
+
     /**
      * The filename of the file.
      */
@@ -46,6 +54,16 @@ public class FileBitstream implements Bitstream {
     public FileBitstream(String filename) throws IOException {
         this.filename = filename;
         dataFile = new RandomAccessFile(filename, "r");
+        channel = dataFile.getChannel();
+    }
+
+    /**
+     * Get the file backing this bitstream.
+     *
+     * @return The File.
+     */
+    public File getFile() {
+        return new File(filename);
     }
 
     /*
@@ -75,6 +93,45 @@ public class FileBitstream implements Bitstream {
         return dataFile.read(dest, destPos, length);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readAt(long, java.nio.ByteBuffer)
+     */
+    public int readAt(long position, ByteBuffer dest) throws IOException {
+        // FileChannel positional reads do not move the file pointer, and may
+        // run concurrently with each other
+        int done = 0;
+        while (dest.hasRemaining()) {
+            int count = channel.read(dest, position + done);
+            if (count < 0)
+                break;
+            done += count;
+        }
+
+        if ((done == 0) && (position >= channel.size()))
+            return -1;
+        return done;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#transferTo(long, long, java.nio.channels.WritableByteChannel)
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        // FileChannel.transferTo() may copy less than asked for, but only
+        // stops altogether at the end of the file
+        long done = 0;
+        while (done < count) {
+            long copied = channel.transferTo(position + done, count - done, target);
+            if (copied <= 0)
+                break;
+            done += copied;
+        }
+        return done;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -101,6 +158,7 @@ public class FileBitstream implements Bitstream {
     public void close() throws IOException {
         dataFile.close();
         dataFile = null;
+        channel = null;
     }
 
     /*
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A Bitstream which acts on a file on disk through memory mapped windows.
+ *
+ * The file is split into fixed size windows which are each mapped on first
+ * use, so files larger than 2Gb (the limit of a single MappedByteBuffer) are
+ * supported, and reads never enter the kernel once a page is resident.
+ *
+ * @author Andrew de Quincey
+ */
+public class MappedFileBitstream implements Bitstream {
+
+    /**
+     * Default size of each mapped window (256Mb).
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+    /**
+     * The file backing the bitstream.
+     */
+    private RandomAccessFile dataFile;
+
+    /**
+     * The channel of dataFile.
+     */
+    private FileChannel channel;
+
+    /**
+     * The file itself.
+     */
+    private File file;
+
+    /**
+     * Length of the file (fixed when opened).
+     */
+    private long length;
+
+    /**
+     * Size of each window in bytes.
+     */
+    private int windowSize;
+
+    /**
+     * The windows mapped so far (null entries are not mapped yet). Filled in
+     * without locking, so concurrent readAt() callers never wait on each
+     * other.
+     */
+    private AtomicReferenceArray windows;
+
+    /**
+     * Current position within the bitstream.
+     */
+    private long position = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param filename
+     *            The filename of the file to wrap.
+     * @throws IOException if <code>filename</code> could not be opened
+     */
+    public MappedFileBitstream(String filename) throws IOException {
+        this(filename, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param filename
+     *            The filename of the file to wrap.
+     * @param windowSize
+     *            Size of each mapped window in bytes.
+     * @throws IOException if <code>filename</code> could not be opened
+     */
+    public MappedFileBitstream(String filename, int windowSize) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
+
+        this.file = new File(filename);
+        this.windowSize = windowSize;
+        dataFile = new RandomAccessFile(file, "r");
+        channel = dataFile.getChannel();
+        length = channel.size();
+        windows = new AtomicReferenceArray((int) ((length + windowSize - 1) / windowSize));
+    }
+
+    /**
+     * Can memory mapped bitstreams be used on this platform? Mapping large
+     * files needs a 64 bit address space, so 32 bit VMs use FileBitstream
+     * instead.
+     *
+     * @return True if they can.
+     */
+    public static boolean isSupported() {
+        String dataModel = System.getProperty("sun.arch.data.model");
+        if (dataModel != null) {
+            return dataModel.equals("64");
+        }
+
+        String arch = System.getProperty("os.arch", "");
+        return arch.indexOf("64") != -1;
+    }
+
+    /**
+     * Get the file backing this bitstream.
+     *
+     * @return The File.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readByte()
+     */
+    public int readByte() throws IOException {
+        if (position >= length)
+            return -1;
+
+        int b = window(position).get((int) (position % windowSize)) & 0xff;
+        position++;
+        return b;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readBlock(byte[])
+     */
+    public int readBlock(byte[] dest) throws IOException {
+        return readBlock(dest, 0, dest.length);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readBlock(byte[], int, int)
+     */
+    public int readBlock(byte[] dest, int destPos, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        if (position >= this.length)
+            return -1;
+
+        // clip to the end of the file
+        if (length > (this.length - position))
+            length = (int) (this.length - position);
+
+        // copy out of each window the block touches
+        int done = 0;
+        while (done < length) {
+            int windowOffset = (int) (position % windowSize);
+            int count = Math.min(length - done, windowSize - windowOffset);
+
+            ByteBuffer src = window(position).duplicate();
+            src.position(windowOffset);
+            src.get(dest, destPos + done, count);
+
+            done += count;
+            position += count;
+        }
+
+        return done;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#readAt(long, java.nio.ByteBuffer)
+     */
+    public int readAt(long position, ByteBuffer dest) throws IOException {
+        if (position >= length)
+            return -1;
+
+        int toRead = dest.remaining();
+        if (toRead > (length - position))
+            toRead = (int) (length - position);
+
+        // each copy works on a private duplicate, so the windows themselves
+        // are never modified and concurrent callers do not interfere
+        int done = 0;
+        while (done < toRead) {
+            int windowOffset = (int) (position % windowSize);
+            int count = Math.min(toRead - done, windowSize - windowOffset);
+
+            ByteBuffer src = window(position).duplicate();
+            src.position(windowOffset);
+            src.limit(windowOffset + count);
+            dest.put(src);
+
+            done += count;
+            position += count;
+        }
+
+        return done;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#transferTo(long, long, java.nio.channels.WritableByteChannel)
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (count > (length - position))
+            count = length - position;
+
+        // write straight out of the mapped windows
+        long done = 0;
+        while (done < count) {
+            int windowOffset = (int) (position % windowSize);
+            int chunk = (int) Math.min(count - done, windowSize - windowOffset);
+
+            ByteBuffer src = window(position).duplicate();
+            src.position(windowOffset);
+            src.limit(windowOffset + chunk);
+            while (src.hasRemaining())
+                target.write(src);
+
+            done += chunk;
+            position += chunk;
+        }
+
+        return done;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#length()
+     */
+    public long length() throws IOException {
+        return length;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#seek(long)
+     */
+    public void seek(long position) throws IOException {
+        if (position < 0)
+            throw new IOException("Negative seek offset");
+        this.position = position;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.Bitstream#close()
+     */
+    public void close() throws IOException {
+        // the mappings themselves are released when they are garbage collected
+        windows = null;
+        channel = null;
+        dataFile.close();
+        dataFile = null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return file.getPath();
+    }
+
+    /**
+     * Get the window containing the given position, mapping it if necessary.
+     * Two threads may race to map the same window; the first mapping stored
+     * wins and the other is left to the garbage collector.
+     *
+     * @param position
+     *            The position concerned (must be within the file).
+     * @return The MappedByteBuffer for the window.
+     * @throws IOException
+     *             On error.
+     */
+    private MappedByteBuffer window(long position) throws IOException {
+        int index = (int) (position / windowSize);
+
+        MappedByteBuffer window = (MappedByteBuffer) windows.get(index);
+        if (window == null) {
+            long start = (long) index * windowSize;
+            long size = Math.min(windowSize, length - start);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            if (!windows.compareAndSet(index, null, window))
+                window = (MappedByteBuffer) windows.get(index);
+        }
+
+        return window;
+    }
+}
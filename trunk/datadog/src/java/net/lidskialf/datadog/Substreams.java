@@ -108,6 +108,17 @@ public class Substreams {
         regenerateLookupTable();
     }
 
+    /**
+     * Remove a substream from the list.
+     *
+     * @param index The index of the substream to remove.
+     */
+    public void remove(int index) {
+        substreams.remove(index);
+
+        regenerateLookupTable();
+    }
+
     /**
      * Move a substream.
      *
@@ -45,6 +45,66 @@ public class TransportStreamExplorerFactory implements StreamExplorerFactory {
      * @see net.lidskialf.datadog.StreamParser#OpenUI(java.lang.String)
      */
     public StreamExplorer open(Bitstream bitstream) throws IOException {
-        return new TransportStreamExplorer(bitstream);
+        File sourceFile = null;
+        if (bitstream instanceof FileBitstream)
+            sourceFile = ((FileBitstream) bitstream).getFile();
+
+        return new TransportStreamExplorer(cacheBitstream(mapBitstream(bitstream)), sourceFile);
+    }
+
+    /**
+     * Wrap a Bitstream which still reads through syscalls in a CachingBitstream,
+     * so repaints of the same region do not go back to disk.
+     *
+     * @param bitstream
+     *            The Bitstream to wrap.
+     * @return The Bitstream to use from now on.
+     * @throws IOException
+     *             On error.
+     */
+    private Bitstream cacheBitstream(Bitstream bitstream) throws IOException {
+        // mapped files are already served from the page cache
+        if (bitstream instanceof MappedFileBitstream)
+            return bitstream;
+
+        return new CachingBitstream(bitstream);
+    }
+
+    /**
+     * Swap a plain FileBitstream for a MappedFileBitstream on the same file if
+     * the platform supports it. Painting reads the stream a packet at a time,
+     * which costs a syscall per packet with FileBitstream.
+     *
+     * @param bitstream
+     *            The Bitstream originally opened.
+     * @return The Bitstream to use from now on.
+     */
+    private Bitstream mapBitstream(Bitstream bitstream) {
+        if (!(bitstream instanceof FileBitstream) || !MappedFileBitstream.isSupported())
+            return bitstream;
+
+        MappedFileBitstream mapped = null;
+        try {
+            mapped = new MappedFileBitstream(((FileBitstream) bitstream).getFile().getPath());
+
+            // make sure mapping actually works here before committing to it
+            mapped.seek(0);
+            mapped.readByte();
+            mapped.seek(0);
+        } catch (IOException e) {
+            if (mapped != null) {
+                try {
+                    mapped.close();
+                } catch (IOException e2) {
+                }
+            }
+            return bitstream;
+        }
+
+        try {
+            bitstream.close();
+        } catch (IOException e) {
+        }
+        return mapped;
     }
 }
@@ -0,0 +1,1183 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import java.io.IOException;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.pes.*;
+import net.lidskialf.datadog.util.IntArray;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Index of the frames in MPEG-1/2 audio, AC-3/E-AC-3 and ADTS AAC elementary
+ * streams, for audio bitrates, spotting dropped frames and lining audio up
+ * against video.
+ *
+ * The transport packet payloads are scanned directly (skipping the PES
+ * headers). Once a frame has been found, each header is read from where the
+ * previous frame's length says it is, so the frame data itself is never
+ * looked at; to find (or recover) sync, a header is only believed if another
+ * follows it at the right distance.
+ *
+ * Each frame with a PES packet's PTS gets that PTS (unwrapped, as
+ * TimestampIndex does); the rest are interpolated from the frame before.
+ * Frames whose PTS does not follow on from the frame before, and the first
+ * frame after sync was lost, are flagged.
+ *
+ * @author Andrew de Quincey
+ */
+public class AudioFrameIndex implements ChunkAnalyser {
+
+    /**
+     * MPEG-1/2 audio (layers I, II and III).
+     */
+    public static final int CODEC_MPEG_AUDIO = 1;
+
+    /**
+     * AC-3 or E-AC-3.
+     */
+    public static final int CODEC_AC3 = 2;
+
+    /**
+     * AAC in ADTS frames.
+     */
+    public static final int CODEC_ADTS = 3;
+
+    /**
+     * PTS of a frame before the first PTS seen.
+     */
+    public static final long NO_PTS = Long.MIN_VALUE;
+
+    /**
+     * Frame info flag: the frame has its own PTS.
+     */
+    private static final int FLAG_PTS = 1 << 30;
+
+    /**
+     * Frame info flag: the frame's PTS does not follow on from the previous
+     * frame.
+     */
+    private static final int FLAG_PTS_JUMP = 1 << 29;
+
+    /**
+     * Frame info flag: the frame is the first after sync was lost.
+     */
+    private static final int FLAG_RESYNC = 1 << 28;
+
+    /**
+     * Frame info mask for the frame length.
+     */
+    private static final int LENGTH_MASK = 0xffff;
+
+    /**
+     * Bytes needed to decode any frame header.
+     */
+    private static final int HEADER_BYTES = 7;
+
+    /**
+     * Largest frame length any header can give.
+     */
+    private static final int MAX_FRAME_LENGTH = 8191;
+
+    /**
+     * Elementary stream bytes kept from the start of each chunk, for carrying
+     * on the previous chunk's scan when merging.
+     */
+    private static final int HEAD_BYTES = 2 * (MAX_FRAME_LENGTH + HEADER_BYTES);
+
+    /**
+     * Size of the buffer holding bytes still to be scanned.
+     */
+    private static final int WINDOW_BYTES = HEAD_BYTES + TransportPacket.TS_PACKET_LEN;
+
+    /**
+     * MPEG-1 audio bitrates in kbit/s, by layer (I, II, III) and
+     * bitrate_index.
+     */
+    private static final int[][] MPEG1_BITRATES = {
+        { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+        { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 } };
+
+    /**
+     * MPEG-2 (and 2.5) audio bitrates in kbit/s, by layer (I, II, III) and
+     * bitrate_index.
+     */
+    private static final int[][] MPEG2_BITRATES = {
+        { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+        { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+        { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 } };
+
+    /**
+     * MPEG-1 audio sampling frequencies by sampling_frequency.
+     */
+    private static final int[] MPEG1_SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    /**
+     * AC-3 sample rates by fscod.
+     */
+    private static final int[] AC3_SAMPLE_RATES = { 48000, 44100, 32000 };
+
+    /**
+     * AC-3 frame sizes in 16 bit words, by frmsizecod / 2 and fscod (the
+     * 44.1kHz sizes are one word more when frmsizecod is odd).
+     */
+    private static final int[][] AC3_FRAME_SIZES = {
+        { 64, 69, 96 }, { 80, 87, 120 }, { 96, 104, 144 }, { 112, 121, 168 }, { 128, 139, 192 }, { 160, 174, 240 }, { 192, 208, 288 },
+        { 224, 243, 336 }, { 256, 278, 384 }, { 320, 348, 480 }, { 384, 417, 576 }, { 448, 487, 672 }, { 512, 557, 768 }, { 640, 696, 960 },
+        { 768, 835, 1152 }, { 896, 975, 1344 }, { 1024, 1114, 1536 }, { 1152, 1253, 1728 }, { 1280, 1393, 1920 } };
+
+    /**
+     * E-AC-3 audio blocks per frame by numblkscod.
+     */
+    private static final int[] EAC3_BLOCKS = { 1, 2, 3, 6 };
+
+    /**
+     * AAC sample rates by sampling_frequency_index.
+     */
+    private static final int[] AAC_SAMPLE_RATES = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+    /**
+     * The MPEG audio PIDs being indexed.
+     */
+    private int[] mpegPids;
+
+    /**
+     * The AC-3 PIDs being indexed.
+     */
+    private int[] ac3Pids;
+
+    /**
+     * The ADTS PIDs being indexed.
+     */
+    private int[] adtsPids;
+
+    /**
+     * Per-PID state (null if the PID is not being indexed).
+     */
+    private AudioStream[] streams = new AudioStream[Constants.PID_COUNT];
+
+    /**
+     * Constructor.
+     *
+     * @param mpegPids
+     *            The MPEG-1/2 audio PIDs to index.
+     * @param ac3Pids
+     *            The AC-3/E-AC-3 PIDs to index.
+     * @param adtsPids
+     *            The ADTS AAC PIDs to index.
+     */
+    public AudioFrameIndex(int[] mpegPids, int[] ac3Pids, int[] adtsPids) {
+        this.mpegPids = (int[]) mpegPids.clone();
+        this.ac3Pids = (int[]) ac3Pids.clone();
+        this.adtsPids = (int[]) adtsPids.clone();
+
+        for (int i = 0; i < mpegPids.length; i++)
+            streams[mpegPids[i]] = new AudioStream(CODEC_MPEG_AUDIO);
+        for (int i = 0; i < ac3Pids.length; i++)
+            streams[ac3Pids[i]] = new AudioStream(CODEC_AC3);
+        for (int i = 0; i < adtsPids.length; i++)
+            streams[adtsPids[i]] = new AudioStream(CODEC_ADTS);
+    }
+
+    /**
+     * Index some PIDs of a whole stream.
+     *
+     * @param stream
+     *            The stream.
+     * @param mpegPids
+     *            The MPEG-1/2 audio PIDs to index.
+     * @param ac3Pids
+     *            The AC-3/E-AC-3 PIDs to index.
+     * @param adtsPids
+     *            The ADTS AAC PIDs to index.
+     * @return The index.
+     * @throws IOException
+     *             On error.
+     */
+    public static AudioFrameIndex build(TransportStream stream, int[] mpegPids, int[] ac3Pids, int[] adtsPids) throws IOException {
+        AudioFrameIndex index = new AudioFrameIndex(mpegPids, ac3Pids, adtsPids);
+        TransportStreamScanner scanner = new TransportStreamScanner(stream);
+        scanner.setPidFilter(new PidFilter(index.getPids()));
+        return (AudioFrameIndex) scanner.scan(index);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new AudioFrameIndex(mpegPids, ac3Pids, adtsPids);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        AudioStream stream = streams[packet.pid()];
+        if (stream == null)
+            return true;
+
+        if (packet.transport_error_indicator()) {
+            stream.syncLost();
+            stream.lastCC = -1;
+            stream.header.reset();
+            stream.headerHasPts = false;
+            if (stream.firstCC == -2)
+                stream.firstCC = -1;
+            return true;
+        }
+        if (!packet.hasPayload())
+            return true;
+
+        int cc = packet.continuity_counter();
+        if (stream.firstCC == -2)
+            stream.firstCC = cc;
+        if (stream.lastCC != -1) {
+            if (cc == stream.lastCC)
+                return true;
+            if (cc != ((stream.lastCC + 1) & 0x0f)) {
+                stream.syncLost();
+                stream.header.reset();
+                stream.headerHasPts = false;
+            }
+        }
+        stream.lastCC = cc;
+
+        // step over the PES header, noting its PTS
+        int size = packet.payloadSize();
+        int start = stream.header.read(packet);
+        if (stream.header.isComplete()) {
+            stream.headerHasPts = stream.header.hasPTS();
+            stream.headerPts = stream.header.getPTS();
+        }
+        int count = size - start;
+        if (count <= 0)
+            return true;
+
+        // the PTS belongs to the first payload byte after the header
+        boolean hasPts = stream.headerHasPts;
+        long pts = stream.headerPts;
+        stream.headerHasPts = false;
+        if (hasPts)
+            stream.setPendingPTS(pts, stream.esLength);
+        stream.addHead(packet, start, count, hasPts, pts);
+        stream.append(packet, start, count);
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() {
+        // frames in the unscanned bytes are picked up by merge()
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public synchronized void merge(ChunkAnalyser following) {
+        AudioFrameIndex other = (AudioFrameIndex) following;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if ((streams[pid] != null) && (other.streams[pid] != null) && (other.streams[pid].firstCC != -2))
+                streams[pid].merge(other.streams[pid]);
+        }
+    }
+
+    /**
+     * Get the PIDs being indexed.
+     *
+     * @return The PIDs.
+     */
+    public int[] getPids() {
+        int[] tmp = new int[mpegPids.length + ac3Pids.length + adtsPids.length];
+        System.arraycopy(mpegPids, 0, tmp, 0, mpegPids.length);
+        System.arraycopy(ac3Pids, 0, tmp, mpegPids.length, ac3Pids.length);
+        System.arraycopy(adtsPids, 0, tmp, mpegPids.length + ac3Pids.length, adtsPids.length);
+        return tmp;
+    }
+
+    /**
+     * Get the codec of a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return One of the CODEC_* constants, or 0 if the PID is not indexed.
+     */
+    public int getCodec(int pid) {
+        return (streams[pid] == null) ? 0 : streams[pid].codec;
+    }
+
+    /**
+     * Number of frames indexed on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public synchronized int getCount(int pid) {
+        return (streams[pid] == null) ? 0 : streams[pid].positions.size();
+    }
+
+    /**
+     * Position of the transport packet a frame starts in.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return The position.
+     */
+    public synchronized long getPosition(int pid, int index) {
+        return streams[pid].positions.get(index);
+    }
+
+    /**
+     * Length of a frame.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return The length in bytes.
+     */
+    public synchronized int getSize(int pid, int index) {
+        return streams[pid].infos.get(index) & LENGTH_MASK;
+    }
+
+    /**
+     * Number of audio samples (per channel) in a frame.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return The count.
+     */
+    public synchronized int getSampleCount(int pid, int index) {
+        return streams[pid].formats.get(index) >>> 17;
+    }
+
+    /**
+     * Sample rate of a frame.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return The rate in Hz.
+     */
+    public synchronized int getSampleRate(int pid, int index) {
+        return streams[pid].formats.get(index) & 0x1ffff;
+    }
+
+    /**
+     * Unwrapped PTS of a frame, either its own or interpolated from the
+     * frames before.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return The PTS in 90kHz ticks, or NO_PTS if no PTS had been seen yet.
+     */
+    public synchronized long getPTS(int pid, int index) {
+        return streams[pid].ptss.get(index);
+    }
+
+    /**
+     * Does a frame have its own PTS (rather than an interpolated one)?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return True if it does.
+     */
+    public synchronized boolean hasOwnPTS(int pid, int index) {
+        return (streams[pid].infos.get(index) & FLAG_PTS) != 0;
+    }
+
+    /**
+     * Does a frame's PTS fail to follow on from the previous frame (by more
+     * than half a frame)?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return True if it does.
+     */
+    public synchronized boolean isPTSJump(int pid, int index) {
+        return (streams[pid].infos.get(index) & FLAG_PTS_JUMP) != 0;
+    }
+
+    /**
+     * Is a frame the first after sync was lost (through bad data or lost
+     * packets)?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the frame.
+     * @return True if it is.
+     */
+    public synchronized boolean isResync(int pid, int index) {
+        return (streams[pid].infos.get(index) & FLAG_RESYNC) != 0;
+    }
+
+    /**
+     * Count the frames after which frames were dropped: those flagged by
+     * isPTSJump() or isResync().
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public synchronized int getDiscontinuityCount(int pid) {
+        int count = 0;
+        for (int i = 0; i < getCount(pid); i++) {
+            if ((streams[pid].infos.get(i) & (FLAG_PTS_JUMP | FLAG_RESYNC)) != 0)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Work out the average bitrate of a PID from the frame lengths and the
+     * duration of the audio they hold.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The bitrate in bits per second, or 0 if there are no frames.
+     */
+    public synchronized long getBitrate(int pid) {
+        double bytes = 0;
+        double seconds = 0;
+        for (int i = 0; i < getCount(pid); i++) {
+            int format = streams[pid].formats.get(i);
+            bytes += streams[pid].infos.get(i) & LENGTH_MASK;
+            seconds += (double) (format >>> 17) / (format & 0x1ffff);
+        }
+        return (seconds == 0) ? 0 : Math.round((bytes * 8) / seconds);
+    }
+
+    /**
+     * Find the last frame starting at or before a position.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            The position.
+     * @return The index of the frame, or -1 if there is none.
+     */
+    public synchronized int getIndex(int pid, long position) {
+        return (streams[pid] == null) ? -1 : streams[pid].positions.floorIndex(position);
+    }
+
+    /**
+     * Find the frame playing at an (unwrapped) PTS, for lining the audio up
+     * against other streams.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param pts
+     *            The PTS in 90kHz ticks.
+     * @return The index of the last frame with a PTS at or before pts, or -1
+     *         if there is none.
+     */
+    public synchronized int getIndexForPTS(int pid, long pts) {
+        if (streams[pid] == null)
+            return -1;
+
+        int index = streams[pid].ptss.floorIndex(pts);
+        return ((index >= 0) && (streams[pid].ptss.get(index) == NO_PTS)) ? -1 : index;
+    }
+
+    /**
+     * Decode a frame header.
+     *
+     * @param codec
+     *            One of the CODEC_* constants.
+     * @param data
+     *            Buffer holding at least HEADER_BYTES bytes of header.
+     * @param pos
+     *            Offset of the header.
+     * @param format
+     *            Set to the number of samples and sample rate of the frame.
+     * @return The frame length in bytes, or -1 if this is not a valid header.
+     */
+    private static int decodeHeader(int codec, byte[] data, int pos, int[] format) {
+        int b0 = data[pos] & 0xff;
+        int b1 = data[pos + 1] & 0xff;
+        int b2 = data[pos + 2] & 0xff;
+
+        switch (codec) {
+        case CODEC_MPEG_AUDIO: {
+            if ((b0 != 0xff) || ((b1 & 0xe0) != 0xe0))
+                return -1;
+            int version = (b1 >> 3) & 0x03;
+            int layer = 4 - ((b1 >> 1) & 0x03);
+            int bitrateIndex = b2 >> 4;
+            int rateIndex = (b2 >> 2) & 0x03;
+            if ((version == 1) || (layer == 4) || (bitrateIndex == 0) || (bitrateIndex == 15) || (rateIndex == 3))
+                return -1;
+
+            boolean mpeg1 = version == 3;
+            int bitrate = (mpeg1 ? MPEG1_BITRATES : MPEG2_BITRATES)[layer - 1][bitrateIndex] * 1000;
+            int rate = MPEG1_SAMPLE_RATES[rateIndex] >> (mpeg1 ? 0 : ((version == 2) ? 1 : 2));
+            int padding = (b2 >> 1) & 0x01;
+            format[1] = rate;
+            if (layer == 1) {
+                format[0] = 384;
+                return ((12 * bitrate / rate) + padding) * 4;
+            }
+            format[0] = ((layer == 3) && !mpeg1) ? 576 : 1152;
+            return (format[0] / 8 * bitrate / rate) + padding;
+        }
+
+        case CODEC_AC3: {
+            if ((b0 != 0x0b) || (b1 != 0x77))
+                return -1;
+            int b4 = data[pos + 4] & 0xff;
+            int bsid = (data[pos + 5] & 0xff) >> 3;
+            if (bsid <= 10) {
+                int fscod = b4 >> 6;
+                int frmsizecod = b4 & 0x3f;
+                if ((fscod == 3) || (frmsizecod >= AC3_FRAME_SIZES.length * 2))
+                    return -1;
+                format[0] = 1536;
+                format[1] = AC3_SAMPLE_RATES[fscod];
+                int words = AC3_FRAME_SIZES[frmsizecod >> 1][fscod];
+                if (fscod == 1)
+                    words += frmsizecod & 1;
+                return words * 2;
+            }
+            if (bsid <= 16) {
+                // E-AC-3
+                int fscod = b4 >> 6;
+                int blocks = 6;
+                if (fscod == 3) {
+                    int fscod2 = (b4 >> 4) & 0x03;
+                    if (fscod2 == 3)
+                        return -1;
+                    format[1] = AC3_SAMPLE_RATES[fscod2] / 2;
+                } else {
+                    blocks = EAC3_BLOCKS[(b4 >> 4) & 0x03];
+                    format[1] = AC3_SAMPLE_RATES[fscod];
+                }
+                format[0] = 256 * blocks;
+                return ((((b2 & 0x07) << 8) | (data[pos + 3] & 0xff)) + 1) * 2;
+            }
+            return -1;
+        }
+
+        case CODEC_ADTS: {
+            if ((b0 != 0xff) || ((b1 & 0xf6) != 0xf0))
+                return -1;
+            int rateIndex = (b2 >> 2) & 0x0f;
+            int length = ((data[pos + 3] & 0x03) << 11) | ((data[pos + 4] & 0xff) << 3) | ((data[pos + 5] & 0xff) >> 5);
+            if ((rateIndex >= AAC_SAMPLE_RATES.length) || (length < HEADER_BYTES))
+                return -1;
+            format[0] = 1024 * ((data[pos + 6] & 0x03) + 1);
+            format[1] = AAC_SAMPLE_RATES[rateIndex];
+            return length;
+        }
+        }
+        return -1;
+    }
+
+    /**
+     * Scan state and frames for one PID.
+     */
+    private static class AudioStream {
+
+        /**
+         * One of the CODEC_* constants.
+         */
+        int codec;
+
+        /**
+         * Last continuity_counter seen (-1 for none).
+         */
+        int lastCC = -1;
+
+        /**
+         * continuity_counter of the first packet, -1 if it was errored, or -2
+         * if there has not been one.
+         */
+        int firstCC = -2;
+
+        /**
+         * Collects the PES header at the start of each PES packet.
+         */
+        PesHeaderReader header = new PesHeaderReader();
+
+        /**
+         * Does the last PES header have a PTS not yet given to any payload?
+         */
+        boolean headerHasPts;
+
+        /**
+         * That PTS.
+         */
+        long headerPts;
+
+        /**
+         * Elementary stream bytes seen.
+         */
+        long esLength;
+
+        /**
+         * Elementary stream offset of the next frame header, or -1 if not in
+         * sync.
+         */
+        long nextFrame = -1;
+
+        /**
+         * Elementary stream offset to carry on looking for sync from.
+         */
+        long huntFrom;
+
+        /**
+         * Has sync been lost since the last frame?
+         */
+        boolean lostSync;
+
+        /**
+         * Bytes which still need scanning.
+         */
+        byte[] window = new byte[WINDOW_BYTES];
+
+        /**
+         * Elementary stream offset of window[0].
+         */
+        long windowStart;
+
+        /**
+         * Number of bytes in the window.
+         */
+        int windowLength;
+
+        /**
+         * Elementary stream offsets at which each run of bytes in the window
+         * from a new packet starts.
+         */
+        LongArray segmentOffsets = new LongArray();
+
+        /**
+         * Positions of the packets each run of bytes in the window came from.
+         */
+        LongArray segmentPositions = new LongArray();
+
+        /**
+         * 33 bit PTS of the PES packets not yet taken by a frame (there may be
+         * several while looking for sync).
+         */
+        LongArray pendingPts = new LongArray();
+
+        /**
+         * Elementary stream offsets of the start of those PES packets' data.
+         */
+        LongArray pendingOffsets = new LongArray();
+
+        /**
+         * Interpolated PTS of the next frame, or NaN if no PTS has been seen.
+         */
+        double expectedPts = Double.NaN;
+
+        /**
+         * The first bytes of the data, for carrying on the previous chunk's
+         * scan.
+         */
+        byte[] head = new byte[HEAD_BYTES];
+
+        /**
+         * Number of head bytes.
+         */
+        int headLength;
+
+        /**
+         * Offsets within the head at which each run of bytes from a new packet
+         * starts.
+         */
+        LongArray headOffsets = new LongArray();
+
+        /**
+         * Positions of the packets each run of head bytes came from.
+         */
+        LongArray headPositions = new LongArray();
+
+        /**
+         * PES packet PTS at the start of each run of head bytes (NO_PTS if
+         * none).
+         */
+        LongArray headPts = new LongArray();
+
+        /**
+         * Offsets within the head at which packets were lost.
+         */
+        LongArray headLosses = new LongArray();
+
+        /**
+         * Positions of the frames.
+         */
+        LongArray positions = new LongArray();
+
+        /**
+         * Elementary stream offsets of the frames.
+         */
+        LongArray esOffsets = new LongArray();
+
+        /**
+         * Unwrapped PTS of the frames.
+         */
+        LongArray ptss = new LongArray();
+
+        /**
+         * Lengths of the frames, plus FLAG_* bits.
+         */
+        IntArray infos = new IntArray();
+
+        /**
+         * Sample counts (shifted up 17 bits) and sample rates of the frames.
+         */
+        IntArray formats = new IntArray();
+
+        /**
+         * Decoded header results.
+         */
+        int[] format = new int[2];
+
+        /**
+         * Decoded results of the header after a possible sync point.
+         */
+        int[] nextFormat = new int[2];
+
+        /**
+         * Constructor.
+         *
+         * @param codec
+         *            One of the CODEC_* constants.
+         */
+        AudioStream(int codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * Packets have been lost: look for sync again, and note where for
+         * whoever carries on from the previous chunk.
+         */
+        void syncLost() {
+            loseSync();
+            if ((headLength == esLength) && (headLength < HEAD_BYTES))
+                headLosses.add(headLength);
+        }
+
+        /**
+         * Drop any bytes not yet scanned and look for sync again.
+         */
+        void loseSync() {
+            if (windowLength > 0 || nextFrame != -1)
+                lostSync = true;
+            nextFrame = -1;
+            huntFrom = esLength;
+            windowLength = 0;
+            segmentOffsets.clear();
+            segmentPositions.clear();
+        }
+
+        /**
+         * Note the PTS of a new PES packet.
+         *
+         * @param pts
+         *            The 33 bit PTS.
+         * @param offset
+         *            Elementary stream offset of the PES packet's data.
+         */
+        void setPendingPTS(long pts, long offset) {
+            pendingPts.add(pts);
+            pendingOffsets.add(offset);
+        }
+
+        /**
+         * Forget the first few pending PES packet PTS.
+         *
+         * @param count
+         *            Number to forget.
+         */
+        private void dropPendingPTS(int count) {
+            pendingPts.removeHead(count);
+            pendingOffsets.removeHead(count);
+        }
+
+        /**
+         * Keep the first bytes of the data.
+         *
+         * @param packet
+         *            The packet the bytes are in.
+         * @param start
+         *            Offset of the bytes in the payload.
+         * @param count
+         *            Number of bytes.
+         * @param hasPts
+         *            Do the bytes start a PES packet with a PTS?
+         * @param pts
+         *            The PTS if so.
+         */
+        void addHead(TransportPacket packet, int start, int count, boolean hasPts, long pts) {
+            int length = Math.min(count, HEAD_BYTES - headLength);
+            if (length <= 0)
+                return;
+
+            headOffsets.add(headLength);
+            headPositions.add(packet.getStreamPosition());
+            headPts.add(hasPts ? pts : NO_PTS);
+            packet.getPayloadData(start, head, headLength, length);
+            headLength += length;
+        }
+
+        /**
+         * Add some payload bytes and scan them.
+         *
+         * @param packet
+         *            The packet the bytes are in.
+         * @param start
+         *            Offset of the bytes in the payload.
+         * @param count
+         *            Number of bytes.
+         */
+        void append(TransportPacket packet, int start, int count) {
+            long from = (nextFrame != -1) ? nextFrame : huntFrom;
+            long end = esLength + count;
+            if (from < end) {
+                int skip = (int) Math.max(from - esLength, 0);
+                openWindow(esLength + skip, packet.getStreamPosition());
+                packet.getPayloadData(start + skip, window, windowLength, count - skip);
+                windowLength += count - skip;
+            }
+            esLength = end;
+            scan();
+        }
+
+        /**
+         * Add some bytes from a buffer and scan them.
+         *
+         * @param data
+         *            The buffer.
+         * @param offset
+         *            Offset of the bytes.
+         * @param count
+         *            Number of bytes.
+         * @param position
+         *            Position of the packet they came from.
+         */
+        void append(byte[] data, int offset, int count, long position) {
+            long from = (nextFrame != -1) ? nextFrame : huntFrom;
+            long end = esLength + count;
+            if (from < end) {
+                int skip = (int) Math.max(from - esLength, 0);
+                openWindow(esLength + skip, position);
+                System.arraycopy(data, offset + skip, window, windowLength, count - skip);
+                windowLength += count - skip;
+            }
+            esLength = end;
+            scan();
+        }
+
+        /**
+         * Get ready to add bytes to the window.
+         *
+         * @param offset
+         *            Elementary stream offset of the bytes.
+         * @param position
+         *            Position of the packet they come from.
+         */
+        private void openWindow(long offset, long position) {
+            if (windowLength == 0) {
+                windowStart = offset;
+                segmentOffsets.clear();
+                segmentPositions.clear();
+            } else if (windowLength + TransportPacket.TS_PACKET_LEN > WINDOW_BYTES) {
+                // cannot happen with valid headers; start again rather than overflow
+                loseSync();
+                windowStart = offset;
+            }
+            segmentOffsets.add(offset);
+            segmentPositions.add(position);
+        }
+
+        /**
+         * Find the frames in the window, then drop the bytes no longer needed.
+         */
+        private void scan() {
+            while (true) {
+                if (nextFrame != -1) {
+                    int pos = (int) (nextFrame - windowStart);
+                    if (pos + HEADER_BYTES > windowLength)
+                        break;
+
+                    int length = decodeHeader(codec, window, pos, format);
+                    if (length < 0) {
+                        huntFrom = nextFrame + 1;
+                        nextFrame = -1;
+                        lostSync = true;
+                        continue;
+                    }
+
+                    addFrame(segmentPositions.get(segmentOffsets.floorIndex(nextFrame)), nextFrame, length, format);
+                    nextFrame += length;
+                } else {
+                    int pos = (int) (huntFrom - windowStart);
+                    boolean waiting = false;
+                    for (; pos + HEADER_BYTES <= windowLength; pos++) {
+                        int length = decodeHeader(codec, window, pos, format);
+                        if (length < 0)
+                            continue;
+                        if (pos + length + HEADER_BYTES > windowLength) {
+                            waiting = true;
+                            break;
+                        }
+
+                        // only believe it if another header follows
+                        if ((decodeHeader(codec, window, pos + length, nextFormat) >= 0) && (nextFormat[1] == format[1]))
+                            break;
+                    }
+                    huntFrom = windowStart + pos;
+                    if (waiting || (pos + HEADER_BYTES > windowLength))
+                        break;
+                    nextFrame = huntFrom;
+                }
+            }
+
+            // drop what has been scanned
+            long keep = (nextFrame != -1) ? nextFrame : huntFrom;
+            int drop = (int) Math.min(Math.max(keep - windowStart, 0), windowLength);
+            if (drop > 0) {
+                System.arraycopy(window, drop, window, 0, windowLength - drop);
+                windowLength -= drop;
+                windowStart += drop;
+
+                int first = Math.max(segmentOffsets.floorIndex(windowStart), 0);
+                if ((first > 0) && (windowLength > 0)) {
+                    segmentOffsets.removeHead(first);
+                    segmentPositions.removeHead(first);
+                } else if (windowLength == 0) {
+                    segmentOffsets.clear();
+                    segmentPositions.clear();
+                }
+            }
+        }
+
+        /**
+         * Record a frame.
+         *
+         * @param position
+         *            Position of the packet it starts in.
+         * @param offset
+         *            Its elementary stream offset.
+         * @param length
+         *            Its length.
+         * @param format
+         *            Its sample count and sample rate.
+         */
+        void addFrame(long position, long offset, int length, int[] format) {
+            double duration = (format[0] * (double) TimestampIndex.TIMESTAMP_FREQUENCY) / format[1];
+            int info = length;
+            long pts = NO_PTS;
+            int pending = pendingOffsets.floorIndex(offset);
+            if (pending >= 0) {
+                info |= FLAG_PTS;
+                if (Double.isNaN(expectedPts)) {
+                    pts = pendingPts.get(pending);
+                } else {
+                    pts = TimestampIndex.unwrap(Math.round(expectedPts), pendingPts.get(pending));
+                    if (Math.abs(pts - expectedPts) > duration / 2)
+                        info |= FLAG_PTS_JUMP;
+                }
+                expectedPts = pts;
+                dropPendingPTS(pending + 1);
+            } else if (!Double.isNaN(expectedPts)) {
+                pts = Math.round(expectedPts);
+            }
+            if (lostSync) {
+                info |= FLAG_RESYNC;
+                lostSync = false;
+            }
+            expectedPts += duration;
+
+            positions.add(position);
+            esOffsets.add(offset);
+            ptss.add(pts);
+            infos.add(info);
+            formats.add((format[0] << 17) | format[1]);
+        }
+
+        /**
+         * Fold in the following chunk's results.
+         *
+         * @param next
+         *            The following chunk's state.
+         */
+        void merge(AudioStream next) {
+            long shift = esLength;
+
+            // the following chunk could not tell if it started with lost packets
+            if ((next.firstCC == -1) || ((lastCC != -1) && (next.firstCC >= 0) && (next.firstCC != lastCC) && (next.firstCC != ((lastCC + 1) & 0x0f))))
+                syncLost();
+            if (firstCC == -2)
+                firstCC = next.firstCC;
+            lastCC = next.lastCC;
+
+            // carry on scanning into the following chunk until we reach a frame it found
+            int join = (nextFrame != -1) ? findFrame(next, nextFrame - shift) : -1;
+            int pos = 0;
+            int loss = 0;
+            for (int i = 0; (join < 0) && (i < next.headOffsets.size()); i++) {
+                int start = (int) next.headOffsets.get(i);
+                int end = (i + 1 < next.headOffsets.size()) ? (int) next.headOffsets.get(i + 1) : next.headLength;
+                for (; (loss < next.headLosses.size()) && (next.headLosses.get(loss) <= start); loss++)
+                    loseSync();
+                if (next.headPts.get(i) != NO_PTS)
+                    setPendingPTS(next.headPts.get(i), shift + start);
+                append(next.head, start, end - start, next.headPositions.get(i));
+                pos = end;
+                if (nextFrame != -1)
+                    join = findFrame(next, nextFrame - shift);
+            }
+            if ((join < 0) && (pos == next.esLength)) {
+                // the following chunk has been scanned completely
+                if (loss < next.headLosses.size())
+                    loseSync();
+                esLength = shift + next.esLength;
+                addHead(next, shift);
+                return;
+            }
+            if (join < 0) {
+                // no agreement: take the following chunk's frames from where we got to
+                join = next.esOffsets.floorIndex(esLength - shift - 1) + 1;
+                lostSync = true;
+            }
+
+            // take the following chunk's frames, filling in and unwrapping their PTS
+            long ptsOffset = 0;
+            boolean unwrapped = false;
+            int[] tmp = new int[2];
+            for (int i = join; i < next.positions.size(); i++) {
+                int info = next.infos.get(i);
+                int format = next.formats.get(i);
+                long pts = next.ptss.get(i);
+                if (pts == NO_PTS) {
+                    tmp[0] = format >>> 17;
+                    tmp[1] = format & 0x1ffff;
+                    lostSync |= (info & FLAG_RESYNC) != 0;
+                    addFrame(next.positions.get(i), shift + next.esOffsets.get(i), info & LENGTH_MASK, tmp);
+                    continue;
+                }
+
+                if (!unwrapped) {
+                    if (!Double.isNaN(expectedPts)) {
+                        ptsOffset = TimestampIndex.unwrap(Math.round(expectedPts), pts) - pts;
+                        double duration = ((format >>> 17) * (double) TimestampIndex.TIMESTAMP_FREQUENCY) / (format & 0x1ffff);
+                        if (((info & FLAG_PTS) != 0) && (Math.abs(pts + ptsOffset - expectedPts) > duration / 2))
+                            info |= FLAG_PTS_JUMP;
+                    }
+                    if (lostSync)
+                        info |= FLAG_RESYNC;
+                    lostSync = false;
+                    dropPendingPTS(pendingPts.size());
+                    unwrapped = true;
+                }
+                positions.add(next.positions.get(i));
+                esOffsets.add(shift + next.esOffsets.get(i));
+                ptss.add(pts + ptsOffset);
+                infos.add(info);
+                formats.add(format);
+            }
+
+            // and its state at the end
+            if (unwrapped)
+                expectedPts = next.expectedPts + ptsOffset;
+            for (int i = 0; i < next.pendingPts.size(); i++)
+                setPendingPTS(next.pendingPts.get(i), shift + next.pendingOffsets.get(i));
+            nextFrame = (next.nextFrame != -1) ? shift + next.nextFrame : -1;
+            huntFrom = shift + next.huntFrom;
+            lostSync |= next.lostSync;
+            System.arraycopy(next.window, 0, window, 0, next.windowLength);
+            windowLength = next.windowLength;
+            windowStart = shift + next.windowStart;
+            segmentOffsets.clear();
+            segmentPositions.clear();
+            for (int i = 0; i < next.segmentOffsets.size(); i++) {
+                segmentOffsets.add(shift + next.segmentOffsets.get(i));
+                segmentPositions.add(next.segmentPositions.get(i));
+            }
+            esLength = shift + next.esLength;
+            addHead(next, shift);
+        }
+
+        /**
+         * Append a following chunk's head to ours, if ours is short.
+         *
+         * @param next
+         *            The following chunk's state.
+         * @param shift
+         *            Our elementary stream length before merging.
+         */
+        private void addHead(AudioStream next, long shift) {
+            if (headLength < shift)
+                return;
+
+            for (int i = 0; (i < next.headLosses.size()) && (shift + next.headLosses.get(i) < HEAD_BYTES); i++)
+                headLosses.add(shift + next.headLosses.get(i));
+
+            for (int i = 0; (i < next.headOffsets.size()) && (headLength < HEAD_BYTES); i++) {
+                int start = (int) next.headOffsets.get(i);
+                int end = (i + 1 < next.headOffsets.size()) ? (int) next.headOffsets.get(i + 1) : next.headLength;
+                int length = Math.min(end - start, HEAD_BYTES - headLength);
+                headOffsets.add(headLength);
+                headPositions.add(next.headPositions.get(i));
+                headPts.add(next.headPts.get(i));
+                System.arraycopy(next.head, start, head, headLength, length);
+                headLength += length;
+            }
+        }
+
+        /**
+         * Find a frame at an elementary stream offset.
+         *
+         * @param stream
+         *            The stream state to look in.
+         * @param offset
+         *            The offset.
+         * @return Index of the frame, or -1 if there is none there.
+         */
+        private static int findFrame(AudioStream stream, long offset) {
+            int index = stream.esOffsets.floorIndex(offset);
+            return ((index >= 0) && (stream.esOffsets.get(index) == offset)) ? index : -1;
+        }
+    }
+}
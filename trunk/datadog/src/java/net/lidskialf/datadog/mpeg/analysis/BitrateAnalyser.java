@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.util.IntArray;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Works out per PID and total bitrates from the number of packets seen
+ * between the PCRs of a reference PID.
+ *
+ * While running, the only per PID state is a packet counter. Every
+ * sampleInterval of PCR time a sample is taken: the position and (unwrapped)
+ * time of the PCR packet, and the cumulative packet count of every PID seen
+ * so far. Bitrates over any window are then the difference between two
+ * samples, so range queries are a binary search and a subtraction. It can be
+ * used as a ChunkAnalyser, or fed a live stream directly as a PacketSink.
+ *
+ * @author Andrew de Quincey
+ */
+public class BitrateAnalyser implements ChunkAnalyser {
+
+    /**
+     * Pseudo PID to request the total bitrate of all PIDs.
+     */
+    public static final int ALL_PIDS = -1;
+
+    /**
+     * Default sample interval (100ms).
+     */
+    public static final long DEFAULT_SAMPLE_INTERVAL = PCRTimeline.PCR_FREQUENCY / 10;
+
+    /**
+     * Default sliding window for bitrate queries (1s).
+     */
+    public static final long DEFAULT_WINDOW = PCRTimeline.PCR_FREQUENCY;
+
+    /**
+     * Bits in a transport packet.
+     */
+    private static final long PACKET_BITS = Constants.TS_PACKET_LENGTH * 8;
+
+    /**
+     * The PID whose PCRs are used as the time reference.
+     */
+    private int pcrPid;
+
+    /**
+     * Minimum PCR time between samples.
+     */
+    private long sampleInterval;
+
+    /**
+     * Packets seen on each PID so far.
+     */
+    private int[] counts = new int[Constants.PID_COUNT];
+
+    /**
+     * Total packets seen so far.
+     */
+    private long totalCount;
+
+    /**
+     * PIDs with a non zero count, in the order they were first seen.
+     */
+    private IntArray seenPids = new IntArray();
+
+    /**
+     * Position of each sample's PCR packet.
+     */
+    private LongArray samplePositions = new LongArray();
+
+    /**
+     * Unwrapped time of each sample, in 27MHz ticks since the first.
+     */
+    private LongArray sampleTimes = new LongArray();
+
+    /**
+     * Total packets seen before each sample.
+     */
+    private LongArray sampleTotals = new LongArray();
+
+    /**
+     * Packets seen before each sample on each PID (null if none seen yet).
+     */
+    private IntArray[] sampleCounts = new IntArray[Constants.PID_COUNT];
+
+    /**
+     * First reference PCR (plus PCRTimeline.DISCONTINUITY_FLAG), or -1 if none
+     * seen.
+     */
+    private long firstPcr = -1;
+
+    /**
+     * Position of the first reference PCR.
+     */
+    private long firstPcrPos;
+
+    /**
+     * Last reference PCR (plus PCRTimeline.DISCONTINUITY_FLAG), or -1 if none
+     * seen.
+     */
+    private long lastPcr = -1;
+
+    /**
+     * Position of the last reference PCR.
+     */
+    private long lastPcrPos;
+
+    /**
+     * Unwrapped time of the last reference PCR.
+     */
+    private long lastTime;
+
+    /**
+     * PCR ticks per byte over the last good PCR interval, or -1 if unknown.
+     */
+    private double rate = -1;
+
+    /**
+     * Constructor using the default sample interval.
+     *
+     * @param pcrPid
+     *            The PID whose PCRs are used as the time reference.
+     */
+    public BitrateAnalyser(int pcrPid) {
+        this(pcrPid, DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param pcrPid
+     *            The PID whose PCRs are used as the time reference.
+     * @param sampleInterval
+     *            Minimum PCR time between samples, in 27MHz ticks.
+     */
+    public BitrateAnalyser(int pcrPid, long sampleInterval) {
+        if ((pcrPid < 0) || (pcrPid >= Constants.PID_COUNT))
+            throw new IllegalArgumentException("Invalid PCR PID " + pcrPid);
+        if (sampleInterval <= 0)
+            throw new IllegalArgumentException("Invalid sample interval " + sampleInterval);
+
+        this.pcrPid = pcrPid;
+        this.sampleInterval = sampleInterval;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new BitrateAnalyser(pcrPid, sampleInterval);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        int pid = packet.pid();
+
+        if ((pid == pcrPid) && ((packet.adaptation_flags() & TransportPacket.adapflag_PCR_flag) != 0)) {
+            long pcr = packet.PCR();
+            if ((packet.adaptation_flags() & TransportPacket.adapflag_discontinuity_indicator) != 0)
+                pcr |= PCRTimeline.DISCONTINUITY_FLAG;
+            referencePCR(packet.getStreamPosition(), pcr);
+        }
+
+        // counted after any sample, so a sample covers the packets before it
+        if (counts[pid]++ == 0)
+            seenPids.add(pid);
+        totalCount++;
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public synchronized void merge(ChunkAnalyser following) {
+        BitrateAnalyser other = (BitrateAnalyser) following;
+
+        // the following chunk's times start from zero at its first PCR
+        long timeOffset = 0;
+        if ((lastPcr != -1) && (other.firstPcr != -1)) {
+            timeOffset = lastTime + advance(lastPcr, other.firstPcr, other.firstPcrPos - lastPcrPos);
+        }
+
+        // its counts start from zero at the start of the chunk
+        int sampleCount = samplePositions.size();
+        int otherSampleCount = other.samplePositions.size();
+        for (int i = 0; i < otherSampleCount; i++) {
+            samplePositions.add(other.samplePositions.get(i));
+            sampleTimes.add(timeOffset + other.sampleTimes.get(i));
+            sampleTotals.add(totalCount + other.sampleTotals.get(i));
+        }
+        for (int i = 0; i < other.seenPids.size(); i++) {
+            int pid = other.seenPids.get(i);
+            if (counts[pid] == 0)
+                seenPids.add(pid);
+        }
+        for (int i = 0; i < seenPids.size(); i++) {
+            int pid = seenPids.get(i);
+            IntArray series = series(pid, sampleCount);
+            IntArray otherSeries = other.sampleCounts[pid];
+            for (int j = 0; j < otherSampleCount; j++) {
+                series.add(counts[pid] + ((otherSeries == null) ? 0 : otherSeries.get(j)));
+            }
+            counts[pid] += other.counts[pid];
+        }
+        totalCount += other.totalCount;
+
+        if (other.firstPcr != -1) {
+            if (firstPcr == -1) {
+                firstPcr = other.firstPcr;
+                firstPcrPos = other.firstPcrPos;
+            }
+            lastPcr = other.lastPcr;
+            lastPcrPos = other.lastPcrPos;
+            lastTime = timeOffset + other.lastTime;
+            if (other.rate >= 0)
+                rate = other.rate;
+        }
+    }
+
+    /**
+     * Get the PID used as the time reference.
+     *
+     * @return The PID.
+     */
+    public int getPcrPid() {
+        return pcrPid;
+    }
+
+    /**
+     * Get the PIDs seen so far.
+     *
+     * @return Ascending array of PIDs.
+     */
+    public synchronized int[] getPids() {
+        int[] pids = seenPids.toArray();
+        java.util.Arrays.sort(pids);
+        return pids;
+    }
+
+    /**
+     * Number of samples taken so far.
+     *
+     * @return The count.
+     */
+    public synchronized int getSampleCount() {
+        return samplePositions.size();
+    }
+
+    /**
+     * Position of a sample.
+     *
+     * @param index
+     *            Index of the sample.
+     * @return The position of its PCR packet.
+     */
+    public synchronized long getSamplePosition(int index) {
+        return samplePositions.get(index);
+    }
+
+    /**
+     * Time of a sample.
+     *
+     * @param index
+     *            Index of the sample.
+     * @return The time in 27MHz ticks since the first sample.
+     */
+    public synchronized long getSampleTime(int index) {
+        return sampleTimes.get(index);
+    }
+
+    /**
+     * Find the last sample at or before a position.
+     *
+     * @param position
+     *            The position.
+     * @return The sample index, or -1 if there is none.
+     */
+    public synchronized int getSampleIndex(long position) {
+        return samplePositions.floorIndex(position);
+    }
+
+    /**
+     * Average bitrate between two samples.
+     *
+     * @param pid
+     *            The PID concerned, or ALL_PIDS.
+     * @param startSample
+     *            Index of the first sample.
+     * @param endSample
+     *            Index of the last sample.
+     * @return The bitrate in bits/second, or -1 if no PCR time passed between
+     *         them.
+     */
+    public synchronized long getBitrate(int pid, int startSample, int endSample) {
+        long ticks = sampleTimes.get(endSample) - sampleTimes.get(startSample);
+        if (ticks <= 0)
+            return -1;
+
+        long packets = packetsBefore(pid, endSample) - packetsBefore(pid, startSample);
+        return (long) ((double) packets * PACKET_BITS * PCRTimeline.PCR_FREQUENCY / ticks);
+    }
+
+    /**
+     * Bitrate over a window of PCR time ending at a position.
+     *
+     * @param pid
+     *            The PID concerned, or ALL_PIDS.
+     * @param position
+     *            The position.
+     * @param window
+     *            Length of the window in 27MHz ticks.
+     * @return The bitrate in bits/second, or -1 if there are not enough
+     *         samples.
+     */
+    public synchronized long getBitrateAt(int pid, long position, long window) {
+        int count = samplePositions.size();
+        if (count < 2)
+            return -1;
+
+        // the window ends at the sample closing the interval containing position
+        int end = samplePositions.floorIndex(position) + 1;
+        if (end < 1)
+            end = 1;
+        if (end >= count)
+            end = count - 1;
+
+        int start = sampleTimes.floorIndex(sampleTimes.get(end) - window);
+        if (start < 0)
+            start = 0;
+        if (start >= end)
+            start = end - 1;
+
+        return getBitrate(pid, start, end);
+    }
+
+    /**
+     * Highest bitrate over any window ending at a sample between two
+     * positions.
+     *
+     * @param pid
+     *            The PID concerned, or ALL_PIDS.
+     * @param startPos
+     *            Start of the range.
+     * @param endPos
+     *            End of the range.
+     * @param window
+     *            Length of the window in 27MHz ticks.
+     * @return The bitrate in bits/second, or -1 if there are not enough
+     *         samples.
+     */
+    public synchronized long getMaxBitrate(int pid, long startPos, long endPos, long window) {
+        int count = samplePositions.size();
+        if (count < 2)
+            return -1;
+
+        int first = Math.max(samplePositions.floorIndex(startPos), 1);
+        int last = Math.min(samplePositions.floorIndex(endPos) + 1, count - 1);
+
+        long max = -1;
+        int start = 0;
+        for (int end = first; end <= last; end++) {
+            // the window start only ever moves forwards
+            long from = sampleTimes.get(end) - window;
+            while ((start + 1 < end) && (sampleTimes.get(start + 1) <= from)) {
+                start++;
+            }
+            max = Math.max(max, getBitrate(pid, start, end));
+        }
+        return max;
+    }
+
+    /**
+     * Process a PCR on the reference PID, taking a sample if it is due.
+     *
+     * @param position
+     *            Position of the PCR packet.
+     * @param pcr
+     *            The PCR (plus PCRTimeline.DISCONTINUITY_FLAG if set).
+     */
+    private void referencePCR(long position, long pcr) {
+        boolean due;
+        if (lastPcr == -1) {
+            firstPcr = pcr;
+            firstPcrPos = position;
+            due = true;
+        } else {
+            lastTime += advance(lastPcr, pcr, position - lastPcrPos);
+            due = (lastTime - sampleTimes.get(sampleTimes.size() - 1)) >= sampleInterval;
+        }
+        lastPcr = pcr;
+        lastPcrPos = position;
+
+        if (due) {
+            synchronized (this) {
+                int sampleCount = samplePositions.size();
+                samplePositions.add(position);
+                sampleTimes.add(lastTime);
+                sampleTotals.add(totalCount);
+                for (int i = 0; i < seenPids.size(); i++) {
+                    int pid = seenPids.get(i);
+                    series(pid, sampleCount).add(counts[pid]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Work out how far time moved between two reference PCRs, carrying on at
+     * the last known rate across discontinuities.
+     *
+     * @param previous
+     *            The earlier PCR.
+     * @param current
+     *            The later PCR.
+     * @param bytes
+     *            Number of bytes between them.
+     * @return The time in 27MHz ticks.
+     */
+    private long advance(long previous, long current, long bytes) {
+        long delta = PCRTimeline.pcrDelta(previous, current);
+        if (delta < 0)
+            return (rate < 0) ? 0 : (long) (bytes * rate);
+
+        if (bytes > 0)
+            rate = (double) delta / bytes;
+        return delta;
+    }
+
+    /**
+     * Get the per sample counts of a PID, creating them (zero for the samples
+     * taken before it was seen) if necessary.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param sampleCount
+     *            Number of samples taken before this one.
+     * @return The counts.
+     */
+    private IntArray series(int pid, int sampleCount) {
+        if (sampleCounts[pid] == null) {
+            sampleCounts[pid] = new IntArray();
+            for (int i = 0; i < sampleCount; i++) {
+                sampleCounts[pid].add(0);
+            }
+        }
+        return sampleCounts[pid];
+    }
+
+    /**
+     * Number of packets seen before a sample.
+     *
+     * @param pid
+     *            The PID concerned, or ALL_PIDS.
+     * @param sample
+     *            Index of the sample.
+     * @return The count.
+     */
+    private long packetsBefore(int pid, int sample) {
+        if (pid == ALL_PIDS)
+            return sampleTotals.get(sample);
+        if (sampleCounts[pid] == null)
+            return 0;
+        return sampleCounts[pid].get(sample);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.util.IntArray;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Checks the continuity_counter of every PID and records where it goes wrong.
+ *
+ * Following ISO 13818-1, the counter only advances on packets carrying a
+ * payload; packets without one are not checked. One duplicate of a packet is
+ * allowed, any further ones are errors. Packets with the discontinuity_indicator set
+ * restart the sequence, and packets with the transport_error_indicator set or
+ * on the null PID are ignored. After an error the counter is followed from
+ * the offending packet.
+ *
+ * @author Andrew de Quincey
+ */
+public class ContinuityAnalyser implements ChunkAnalyser {
+
+    /**
+     * State value for a PID whose counter is not known.
+     */
+    private static final byte UNKNOWN = -1;
+
+    /**
+     * firstCC value for a PID whose first packet in the chunk restarted the
+     * sequence, so it needs no check against the preceding chunk.
+     */
+    private static final byte RESTART = -2;
+
+    /**
+     * Last continuity_counter of each PID, or UNKNOWN.
+     */
+    private byte[] lastCC = new byte[Constants.PID_COUNT];
+
+    /**
+     * Number of duplicates of the last packet of each PID seen so far.
+     */
+    private int[] duplicates = new int[Constants.PID_COUNT];
+
+    /**
+     * Position of the first checked packet of each PID in this chunk, or -1.
+     */
+    private long[] firstPos = new long[Constants.PID_COUNT];
+
+    /**
+     * continuity_counter of the first checked packet of each PID in this
+     * chunk, or RESTART.
+     */
+    private byte[] firstCC = new byte[Constants.PID_COUNT];
+
+    /**
+     * Has each PID only carried its first checked packet and duplicates of it
+     * so far in this chunk?
+     */
+    private boolean[] leading = new boolean[Constants.PID_COUNT];
+
+    /**
+     * Position of the first duplicate of the first checked packet of each PID
+     * in this chunk, or -1. If that first packet turns out to be a duplicate
+     * itself once the preceding chunk is merged, this one becomes an error.
+     */
+    private long[] firstDuplicatePos = new long[Constants.PID_COUNT];
+
+    /**
+     * Positions of the packets with continuity errors, ascending.
+     */
+    private LongArray errorPositions = new LongArray();
+
+    /**
+     * PIDs of the packets with continuity errors.
+     */
+    private IntArray errorPids = new IntArray();
+
+    /**
+     * Number of errors on each PID.
+     */
+    private int[] errorCounts = new int[Constants.PID_COUNT];
+
+    /**
+     * Constructor.
+     */
+    public ContinuityAnalyser() {
+        java.util.Arrays.fill(lastCC, UNKNOWN);
+        java.util.Arrays.fill(firstPos, -1);
+        java.util.Arrays.fill(firstDuplicatePos, -1);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new ContinuityAnalyser();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        check(packet);
+        return true;
+    }
+
+    /**
+     * Check the continuity_counter of a packet, recording an error if it is
+     * wrong.
+     *
+     * @param packet
+     *            The packet.
+     * @return True if an error was recorded.
+     */
+    boolean check(TransportPacket packet) {
+        int pid = packet.pid();
+        if ((pid == Constants.TS_NULL_PID) || packet.transport_error_indicator())
+            return false;
+
+        boolean discontinuity = packet.hasAdaptation() && ((packet.adaptation_flags() & TransportPacket.adapflag_discontinuity_indicator) != 0);
+        boolean payload = packet.hasPayload();
+        if (!payload && !discontinuity)
+            return false;
+
+        long position = packet.getStreamPosition();
+        byte cc = (byte) packet.continuity_counter();
+
+        if (firstPos[pid] == -1) {
+            // nothing to check against until the chunks are merged
+            firstPos[pid] = position;
+            firstCC[pid] = discontinuity ? RESTART : cc;
+            leading[pid] = !discontinuity;
+            restart(pid, payload ? cc : UNKNOWN);
+        } else if (discontinuity || (lastCC[pid] == UNKNOWN)) {
+            leading[pid] = false;
+            restart(pid, payload ? cc : UNKNOWN);
+        } else if (cc == lastCC[pid]) {
+            if (++duplicates[pid] > 1) {
+                addError(position, pid);
+                return true;
+            } else if (leading[pid]) {
+                firstDuplicatePos[pid] = position;
+            }
+        } else {
+            boolean error = cc != ((lastCC[pid] + 1) & 0x0f);
+            if (error)
+                addError(position, pid);
+            leading[pid] = false;
+            restart(pid, cc);
+            return error;
+        }
+
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public synchronized void merge(ChunkAnalyser following) {
+        ContinuityAnalyser other = (ContinuityAnalyser) following;
+
+        // check the first packet of each PID in the following chunk against
+        // our last one
+        LongArray boundaryPositions = new LongArray();
+        IntArray boundaryPids = new IntArray();
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (other.firstPos[pid] == -1)
+                continue;
+
+            int cc = other.firstCC[pid];
+            boolean known = (cc != RESTART) && (lastCC[pid] != UNKNOWN);
+            boolean duplicate = known && (cc == lastCC[pid]);
+            if (duplicate) {
+                // the following chunk counted its duplicates from its first
+                // packet, so the first duplicate it accepted is one too many
+                if (duplicates[pid] >= 1)
+                    addBoundaryError(boundaryPositions, boundaryPids, other.firstPos[pid], pid);
+                if (other.firstDuplicatePos[pid] != -1)
+                    addBoundaryError(boundaryPositions, boundaryPids, other.firstDuplicatePos[pid], pid);
+            } else if (known && (cc != ((lastCC[pid] + 1) & 0x0f))) {
+                addBoundaryError(boundaryPositions, boundaryPids, other.firstPos[pid], pid);
+            }
+
+            if (firstPos[pid] == -1) {
+                firstPos[pid] = other.firstPos[pid];
+                firstCC[pid] = other.firstCC[pid];
+                leading[pid] = other.leading[pid];
+                firstDuplicatePos[pid] = other.firstDuplicatePos[pid];
+            } else if (leading[pid] && duplicate) {
+                if (firstDuplicatePos[pid] == -1)
+                    firstDuplicatePos[pid] = other.firstPos[pid];
+                leading[pid] = other.leading[pid];
+            } else {
+                leading[pid] = false;
+            }
+
+            if (duplicate && other.leading[pid]) {
+                duplicates[pid] += 1 + other.duplicates[pid];
+            } else {
+                duplicates[pid] = other.duplicates[pid];
+            }
+            lastCC[pid] = other.lastCC[pid];
+        }
+
+        // both lists are ascending, so merge them
+        LongArray positions = new LongArray(errorPositions.size() + other.errorPositions.size() + boundaryPositions.size());
+        IntArray pids = new IntArray(positions.size());
+        int i = 0;
+        int j = 0;
+        while ((i < boundaryPositions.size()) || (j < other.errorPositions.size())) {
+            if ((j == other.errorPositions.size()) || ((i < boundaryPositions.size()) && (boundaryPositions.get(i) < other.errorPositions.get(j)))) {
+                positions.add(boundaryPositions.get(i));
+                pids.add(boundaryPids.get(i++));
+            } else {
+                positions.add(other.errorPositions.get(j));
+                pids.add(other.errorPids.get(j++));
+            }
+        }
+        errorPositions.addAll(positions);
+        errorPids.addAll(pids);
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            errorCounts[pid] += other.errorCounts[pid];
+        }
+    }
+
+    /**
+     * Total number of continuity errors.
+     *
+     * @return The count.
+     */
+    public synchronized int getErrorCount() {
+        return errorPositions.size();
+    }
+
+    /**
+     * Number of continuity errors on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public synchronized int getErrorCount(int pid) {
+        return errorCounts[pid];
+    }
+
+    /**
+     * Position of an error.
+     *
+     * @param index
+     *            Index of the error.
+     * @return The position of the offending packet.
+     */
+    public synchronized long getErrorPosition(int index) {
+        return errorPositions.get(index);
+    }
+
+    /**
+     * PID of an error.
+     *
+     * @param index
+     *            Index of the error.
+     * @return The PID of the offending packet.
+     */
+    public synchronized int getErrorPid(int index) {
+        return errorPids.get(index);
+    }
+
+    /**
+     * Find the last error at or before a position.
+     *
+     * @param position
+     *            The position.
+     * @return The index of the error, or -1 if there is none.
+     */
+    public synchronized int getErrorIndex(long position) {
+        return errorPositions.floorIndex(position);
+    }
+
+    /**
+     * Find the first error after a position.
+     *
+     * @param position
+     *            The position.
+     * @return The position of the error, or -1 if there is none.
+     */
+    public synchronized long nextErrorPosition(long position) {
+        int index = errorPositions.floorIndex(position) + 1;
+        if (index >= errorPositions.size())
+            return -1;
+        return errorPositions.get(index);
+    }
+
+    /**
+     * Find the last error before a position.
+     *
+     * @param position
+     *            The position.
+     * @return The position of the error, or -1 if there is none.
+     */
+    public synchronized long previousErrorPosition(long position) {
+        int index = errorPositions.floorIndex(position - 1);
+        if (index < 0)
+            return -1;
+        return errorPositions.get(index);
+    }
+
+    /**
+     * Start following a PID's counter afresh.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param cc
+     *            Its new continuity_counter, or UNKNOWN.
+     */
+    private void restart(int pid, byte cc) {
+        lastCC[pid] = cc;
+        duplicates[pid] = 0;
+    }
+
+    /**
+     * Record an error found while processing packets.
+     *
+     * @param position
+     *            Position of the offending packet.
+     * @param pid
+     *            Its PID.
+     */
+    private synchronized void addError(long position, int pid) {
+        errorPositions.add(position);
+        errorPids.add(pid);
+        errorCounts[pid]++;
+    }
+
+    /**
+     * Record an error found between two chunks.
+     *
+     * @param positions
+     *            The boundary error positions, kept ascending.
+     * @param pids
+     *            The boundary error PIDs.
+     * @param position
+     *            Position of the offending packet.
+     * @param pid
+     *            Its PID.
+     */
+    private void addBoundaryError(LongArray positions, IntArray pids, long position, int pid) {
+        int index = positions.floorIndex(position) + 1;
+        positions.add(position);
+        pids.add(pid);
+        for (int i = positions.size() - 1; i > index; i--) {
+            positions.set(i, positions.get(i - 1));
+            pids.set(i, pids.get(i - 1));
+        }
+        positions.set(index, position);
+        pids.set(index, pid);
+        errorCounts[pid]++;
+    }
+}
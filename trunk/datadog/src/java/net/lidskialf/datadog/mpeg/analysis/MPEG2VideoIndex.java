@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import java.io.IOException;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+
+/**
+ * Index of the sequence, GOP and picture headers in MPEG-1/2 video
+ * elementary streams, for finding I frames and looking at GOP structure.
+ *
+ * The size of a picture entry is the size of its coded data, up to the next
+ * picture, sequence or GOP header. Keyframes are the I pictures, starting at
+ * any sequence and GOP headers immediately before them.
+ *
+ * @author Andrew de Quincey
+ */
+public class MPEG2VideoIndex extends StartCodeIndex implements PictureIndex {
+
+    /**
+     * picture_start_code value.
+     */
+    public static final int PICTURE_START_CODE = 0x00;
+
+    /**
+     * sequence_header_code value.
+     */
+    public static final int SEQUENCE_HEADER_CODE = 0xb3;
+
+    /**
+     * sequence_end_code value.
+     */
+    public static final int SEQUENCE_END_CODE = 0xb7;
+
+    /**
+     * group_start_code value.
+     */
+    public static final int GROUP_START_CODE = 0xb8;
+
+    /**
+     * picture_coding_type of a D picture (MPEG-1 only).
+     */
+    public static final int PICTURE_TYPE_D = 4;
+
+    /**
+     * Positions of the pictures on each PID; built on first use.
+     */
+    private long[][] picturePositions = new long[Constants.PID_COUNT][];
+
+    /**
+     * Types of the pictures on each PID; built on first use.
+     */
+    private byte[][] pictureTypes = new byte[Constants.PID_COUNT][];
+
+    /**
+     * Positions of the keyframes on each PID; built on first use.
+     */
+    private long[][] keyframePositions = new long[Constants.PID_COUNT][];
+
+    /**
+     * Constructor.
+     *
+     * @param pids
+     *            The MPEG-1/2 video PIDs to index.
+     */
+    public MPEG2VideoIndex(int[] pids) {
+        super(pids);
+    }
+
+    /**
+     * Index some PIDs of a whole stream.
+     *
+     * @param stream
+     *            The stream.
+     * @param pids
+     *            The MPEG-1/2 video PIDs to index.
+     * @return The index.
+     * @throws IOException
+     *             On error.
+     */
+    public static MPEG2VideoIndex build(TransportStream stream, int[] pids) throws IOException {
+        TransportStreamScanner scanner = new TransportStreamScanner(stream);
+        scanner.setPidFilter(new PidFilter(pids));
+        return (MPEG2VideoIndex) scanner.scan(new MPEG2VideoIndex(pids));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new MPEG2VideoIndex(pids);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.StartCodeIndex#isIndexed(int, long)
+     */
+    protected boolean isIndexed(int pid, long header) {
+        int code = (int) (header >>> 56);
+        return (code == PICTURE_START_CODE) || (code == SEQUENCE_HEADER_CODE) || (code == SEQUENCE_END_CODE) || (code == GROUP_START_CODE);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.StartCodeIndex#entriesChanged(int)
+     */
+    protected void entriesChanged(int pid) {
+        picturePositions[pid] = null;
+        pictureTypes[pid] = null;
+        keyframePositions[pid] = null;
+    }
+
+    /**
+     * Start code value of an entry (one of the *_CODE constants).
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The start code value.
+     */
+    public int getStartCode(int pid, int index) {
+        return (int) (getHeader(pid, index) >>> 56);
+    }
+
+    /**
+     * picture_coding_type of a picture entry.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return One of the PICTURE_TYPE_* constants, or 0 if the entry is not a
+     *         picture.
+     */
+    public int getPictureType(int pid, int index) {
+        return pictureType(getHeader(pid, index));
+    }
+
+    /**
+     * temporal_reference of a picture entry.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The temporal_reference.
+     */
+    public int getTemporalReference(int pid, int index) {
+        return (int) (getHeader(pid, index) >> 46) & 0x3ff;
+    }
+
+    /**
+     * horizontal_size_value of a sequence header entry.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The width in pixels (without any sequence_extension bits).
+     */
+    public int getWidth(int pid, int index) {
+        return (int) (getHeader(pid, index) >> 44) & 0xfff;
+    }
+
+    /**
+     * vertical_size_value of a sequence header entry.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The height in pixels (without any sequence_extension bits).
+     */
+    public int getHeight(int pid, int index) {
+        return (int) (getHeader(pid, index) >> 32) & 0xfff;
+    }
+
+    /**
+     * closed_gop flag of a GOP header entry.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return True if the GOP is closed.
+     */
+    public boolean isClosedGOP(int pid, int index) {
+        return (getHeader(pid, index) & (1L << 30)) != 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.PictureIndex#hasPictures(int)
+     */
+    public synchronized boolean hasPictures(int pid) {
+        return buildPictures(pid);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.PictureIndex#getPictureTypeAt(int, long)
+     */
+    public synchronized int getPictureTypeAt(int pid, long position) {
+        if (!buildPictures(pid))
+            return 0;
+
+        int index = floorIndex(picturePositions[pid], position);
+        if (index < 0)
+            return 0;
+        return (pictureTypes[pid][index] == PICTURE_TYPE_D) ? PICTURE_TYPE_I : pictureTypes[pid][index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.PictureIndex#findKeyframe(int, long, boolean)
+     */
+    public synchronized long findKeyframe(int pid, long position, boolean forwards) {
+        if (!buildPictures(pid))
+            return -1;
+        return findPosition(keyframePositions[pid], position, forwards);
+    }
+
+    /**
+     * Find the next (or previous) picture of some type.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            Position to search from; a picture starting here is not
+     *            returned.
+     * @param type
+     *            One of the PICTURE_TYPE_* constants.
+     * @param forwards
+     *            True to search forwards, false to search backwards.
+     * @return Position of the packet the picture header starts in, or -1 if
+     *         there is none.
+     */
+    public synchronized long findPicture(int pid, long position, int type, boolean forwards) {
+        if (!buildPictures(pid))
+            return -1;
+
+        long[] positions = picturePositions[pid];
+        byte[] types = pictureTypes[pid];
+        int index = floorIndex(positions, position);
+        if (forwards) {
+            for (index++; index < positions.length; index++) {
+                if ((types[index] == type) && (positions[index] > position))
+                    return positions[index];
+            }
+        } else {
+            for (; index >= 0; index--) {
+                if ((types[index] == type) && (positions[index] < position))
+                    return positions[index];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Build the picture lookup arrays for a PID if needed.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return True if the PID has any pictures.
+     */
+    private boolean buildPictures(int pid) {
+        int count = getCount(pid);
+        if (count == 0)
+            return false;
+
+        if (picturePositions[pid] == null) {
+            int pictureCount = 0;
+            int keyframeCount = 0;
+            for (int i = 0; i < count; i++) {
+                int type = pictureType(getHeader(pid, i));
+                if (type != 0)
+                    pictureCount++;
+                if (type == PICTURE_TYPE_I)
+                    keyframeCount++;
+            }
+
+            long[] positions = new long[pictureCount];
+            byte[] types = new byte[pictureCount];
+            long[] keyframes = new long[keyframeCount];
+            pictureCount = 0;
+            keyframeCount = 0;
+            int first = 0;
+            for (int i = 0; i < count; i++) {
+                int type = pictureType(getHeader(pid, i));
+                if (type == 0)
+                    continue;
+
+                positions[pictureCount] = getPosition(pid, i);
+                types[pictureCount++] = (byte) type;
+                if (type == PICTURE_TYPE_I) {
+                    // include the headers sent with it
+                    int start = i;
+                    while ((start > first) && (getStartCode(pid, start - 1) != SEQUENCE_END_CODE))
+                        start--;
+                    keyframes[keyframeCount++] = getPosition(pid, start);
+                }
+                first = i + 1;
+            }
+            picturePositions[pid] = positions;
+            pictureTypes[pid] = types;
+            keyframePositions[pid] = keyframes;
+        }
+        return picturePositions[pid].length > 0;
+    }
+
+    /**
+     * Decode the picture_coding_type from an entry's header bytes.
+     *
+     * @param header
+     *            The header bytes.
+     * @return The picture_coding_type, or 0 if the entry is not a picture.
+     */
+    private static int pictureType(long header) {
+        if ((header >>> 56) != PICTURE_START_CODE)
+            return 0;
+        return (int) (header >> 43) & 0x07;
+    }
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import java.io.IOException;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Index of the NAL units in H.264/AVC and H.265/HEVC elementary streams:
+ * access unit delimiters, parameter sets, and the first slice of each
+ * picture.
+ *
+ * Only the eight bytes following each start code prefix are kept. Headers
+ * are decoded from them when asked for, and only then are any emulation
+ * prevention bytes stripped. Keyframes are IDR pictures and pictures made of
+ * I slices for AVC, and IRAP pictures for HEVC, starting at any delimiter
+ * and parameter sets sent with them.
+ *
+ * @author Andrew de Quincey
+ */
+public class NALIndex extends StartCodeIndex implements PictureIndex {
+
+    /**
+     * AVC nal_unit_type of a non-IDR slice.
+     */
+    public static final int AVC_SLICE = 1;
+
+    /**
+     * AVC nal_unit_type of an IDR slice.
+     */
+    public static final int AVC_IDR_SLICE = 5;
+
+    /**
+     * AVC nal_unit_type of a sequence parameter set.
+     */
+    public static final int AVC_SPS = 7;
+
+    /**
+     * AVC nal_unit_type of a picture parameter set.
+     */
+    public static final int AVC_PPS = 8;
+
+    /**
+     * AVC nal_unit_type of an access unit delimiter.
+     */
+    public static final int AVC_AUD = 9;
+
+    /**
+     * First HEVC nal_unit_type of an IRAP picture.
+     */
+    public static final int HEVC_IRAP_FIRST = 16;
+
+    /**
+     * Last HEVC nal_unit_type of an IRAP picture.
+     */
+    public static final int HEVC_IRAP_LAST = 23;
+
+    /**
+     * Last HEVC nal_unit_type of a VCL NAL unit.
+     */
+    public static final int HEVC_VCL_LAST = 31;
+
+    /**
+     * HEVC nal_unit_type of a video parameter set.
+     */
+    public static final int HEVC_VPS = 32;
+
+    /**
+     * HEVC nal_unit_type of a sequence parameter set.
+     */
+    public static final int HEVC_SPS = 33;
+
+    /**
+     * HEVC nal_unit_type of a picture parameter set.
+     */
+    public static final int HEVC_PPS = 34;
+
+    /**
+     * HEVC nal_unit_type of an access unit delimiter.
+     */
+    public static final int HEVC_AUD = 35;
+
+    /**
+     * The AVC PIDs being indexed.
+     */
+    private int[] avcPids;
+
+    /**
+     * The HEVC PIDs being indexed.
+     */
+    private int[] hevcPids;
+
+    /**
+     * Which PIDs are HEVC.
+     */
+    private PidFilter hevc;
+
+    /**
+     * Positions of the pictures on each PID; built on first use.
+     */
+    private long[][] picturePositions = new long[Constants.PID_COUNT][];
+
+    /**
+     * Types of the pictures on each PID; built on first use.
+     */
+    private byte[][] pictureTypes = new byte[Constants.PID_COUNT][];
+
+    /**
+     * Positions of the keyframes on each PID; built on first use.
+     */
+    private long[][] keyframePositions = new long[Constants.PID_COUNT][];
+
+    /**
+     * Constructor.
+     *
+     * @param avcPids
+     *            The H.264/AVC video PIDs to index.
+     * @param hevcPids
+     *            The H.265/HEVC video PIDs to index.
+     */
+    public NALIndex(int[] avcPids, int[] hevcPids) {
+        super(concat(avcPids, hevcPids));
+        this.avcPids = (int[]) avcPids.clone();
+        this.hevcPids = (int[]) hevcPids.clone();
+        hevc = new PidFilter(hevcPids);
+    }
+
+    /**
+     * Index some PIDs of a whole stream.
+     *
+     * @param stream
+     *            The stream.
+     * @param avcPids
+     *            The H.264/AVC video PIDs to index.
+     * @param hevcPids
+     *            The H.265/HEVC video PIDs to index.
+     * @return The index.
+     * @throws IOException
+     *             On error.
+     */
+    public static NALIndex build(TransportStream stream, int[] avcPids, int[] hevcPids) throws IOException {
+        TransportStreamScanner scanner = new TransportStreamScanner(stream);
+        scanner.setPidFilter(new PidFilter(concat(avcPids, hevcPids)));
+        return (NALIndex) scanner.scan(new NALIndex(avcPids, hevcPids));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new NALIndex(avcPids, hevcPids);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.StartCodeIndex#isIndexed(int, long)
+     */
+    protected boolean isIndexed(int pid, long header) {
+        // forbidden_zero_bit
+        if (header < 0)
+            return false;
+
+        int type = nalUnitType(pid, header);
+        if (hevc.accepts(pid)) {
+            if (type <= HEVC_VCL_LAST)
+                return (header & (1L << 47)) != 0; // first_slice_segment_in_pic_flag
+            return (type >= HEVC_VPS) && (type <= HEVC_AUD);
+        }
+
+        switch (type) {
+        case AVC_SLICE:
+        case AVC_IDR_SLICE:
+            return (header & (1L << 55)) != 0; // first_mb_in_slice == 0
+        case AVC_SPS:
+        case AVC_PPS:
+        case AVC_AUD:
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.StartCodeIndex#entriesChanged(int)
+     */
+    protected void entriesChanged(int pid) {
+        picturePositions[pid] = null;
+        pictureTypes[pid] = null;
+        keyframePositions[pid] = null;
+    }
+
+    /**
+     * Is a PID HEVC?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return True if it is HEVC, false if it is AVC (or not indexed).
+     */
+    public boolean isHEVC(int pid) {
+        return hevc.accepts(pid);
+    }
+
+    /**
+     * nal_unit_type of an entry.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The nal_unit_type (AVC or HEVC, depending on the PID).
+     */
+    public int getNALUnitType(int pid, int index) {
+        return nalUnitType(pid, getHeader(pid, index));
+    }
+
+    /**
+     * Is an entry the first slice of a picture?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return True if it is.
+     */
+    public boolean isPicture(int pid, int index) {
+        return isVCL(pid, getNALUnitType(pid, index));
+    }
+
+    /**
+     * Is an entry the first slice of an IDR (AVC) or IRAP (HEVC) picture?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return True if it is.
+     */
+    public boolean isIRAP(int pid, int index) {
+        return isIRAPType(pid, getNALUnitType(pid, index));
+    }
+
+    /**
+     * Decode the slice_type of a picture entry.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return One of the PICTURE_TYPE_* constants, or 0 if the entry is not
+     *         a picture or its slice header cannot be decoded.
+     */
+    public synchronized int getSliceType(int pid, int index) {
+        int extraBits = 0;
+        if (hevc.accepts(pid)) {
+            // num_extra_slice_header_bits from the last PPS with the right id
+            int ppsId = hevcSlicePPSId(getHeader(pid, index));
+            for (int i = index - 1; i >= 0; i--) {
+                long header = getHeader(pid, i);
+                if ((nalUnitType(pid, header) == HEVC_PPS) && (hevcPPSId(header) == ppsId)) {
+                    extraBits = hevcExtraSliceHeaderBits(header);
+                    break;
+                }
+            }
+        }
+        return sliceType(pid, getHeader(pid, index), extraBits);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.PictureIndex#hasPictures(int)
+     */
+    public synchronized boolean hasPictures(int pid) {
+        return buildPictures(pid);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.PictureIndex#getPictureTypeAt(int, long)
+     */
+    public synchronized int getPictureTypeAt(int pid, long position) {
+        if (!buildPictures(pid))
+            return 0;
+
+        int index = floorIndex(picturePositions[pid], position);
+        return (index < 0) ? 0 : pictureTypes[pid][index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.analysis.PictureIndex#findKeyframe(int, long, boolean)
+     */
+    public synchronized long findKeyframe(int pid, long position, boolean forwards) {
+        if (!buildPictures(pid))
+            return -1;
+        return findPosition(keyframePositions[pid], position, forwards);
+    }
+
+    /**
+     * Build the picture lookup arrays for a PID if needed.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return True if the PID has any pictures.
+     */
+    private boolean buildPictures(int pid) {
+        int count = getCount(pid);
+        if (count == 0)
+            return false;
+
+        if (picturePositions[pid] == null) {
+            LongArray positions = new LongArray();
+            LongArray keyframes = new LongArray();
+            byte[] types = new byte[count];
+            int[] extraBits = new int[64];
+            boolean isHEVC = hevc.accepts(pid);
+            int first = 0;
+            for (int i = 0; i < count; i++) {
+                long header = getHeader(pid, i);
+                int nalUnitType = nalUnitType(pid, header);
+                if (isHEVC && (nalUnitType == HEVC_PPS)) {
+                    extraBits[hevcPPSId(header) & 0x3f] = hevcExtraSliceHeaderBits(header);
+                    continue;
+                }
+                if (!isVCL(pid, nalUnitType))
+                    continue;
+
+                int type = sliceType(pid, header, isHEVC ? extraBits[hevcSlicePPSId(header) & 0x3f] : 0);
+                types[positions.size()] = (byte) type;
+                positions.add(getPosition(pid, i));
+                if (isIRAPType(pid, nalUnitType) || (!isHEVC && (type == PICTURE_TYPE_I))) {
+                    // include the delimiter and parameter sets sent with it
+                    keyframes.add(getPosition(pid, first));
+                }
+                first = i + 1;
+            }
+
+            byte[] tmp = new byte[positions.size()];
+            System.arraycopy(types, 0, tmp, 0, tmp.length);
+            picturePositions[pid] = positions.toArray();
+            pictureTypes[pid] = tmp;
+            keyframePositions[pid] = keyframes.toArray();
+        }
+        return picturePositions[pid].length > 0;
+    }
+
+    /**
+     * Extract the nal_unit_type from an entry's header bytes.
+     *
+     * @param pid
+     *            The PID the entry is on.
+     * @param header
+     *            The header bytes.
+     * @return The nal_unit_type.
+     */
+    private int nalUnitType(int pid, long header) {
+        if (hevc.accepts(pid))
+            return (int) (header >>> 57) & 0x3f;
+        return (int) (header >>> 56) & 0x1f;
+    }
+
+    /**
+     * Is a nal_unit_type a slice (VCL NAL unit)?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param nalUnitType
+     *            The nal_unit_type.
+     * @return True if it is.
+     */
+    private boolean isVCL(int pid, int nalUnitType) {
+        if (hevc.accepts(pid))
+            return nalUnitType <= HEVC_VCL_LAST;
+        return (nalUnitType == AVC_SLICE) || (nalUnitType == AVC_IDR_SLICE);
+    }
+
+    /**
+     * Is a nal_unit_type an IDR (AVC) or IRAP (HEVC) slice?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param nalUnitType
+     *            The nal_unit_type.
+     * @return True if it is.
+     */
+    private boolean isIRAPType(int pid, int nalUnitType) {
+        if (hevc.accepts(pid))
+            return (nalUnitType >= HEVC_IRAP_FIRST) && (nalUnitType <= HEVC_IRAP_LAST);
+        return nalUnitType == AVC_IDR_SLICE;
+    }
+
+    /**
+     * Decode the slice_type from the header bytes of a picture's first slice.
+     *
+     * @param pid
+     *            The PID the entry is on.
+     * @param header
+     *            The header bytes.
+     * @param extraBits
+     *            num_extra_slice_header_bits of the slice's PPS (HEVC only).
+     * @return One of the PICTURE_TYPE_* constants, or 0 if it cannot be
+     *         decoded.
+     */
+    private int sliceType(int pid, long header, int extraBits) {
+        if (hevc.accepts(pid)) {
+            RBSPReader reader = new RBSPReader(header, 2);
+            reader.skip(1); // first_slice_segment_in_pic_flag
+            if (isIRAPType(pid, nalUnitType(pid, header)))
+                reader.skip(1); // no_output_of_prior_pics_flag
+            reader.ue(); // slice_pic_parameter_set_id
+            reader.skip(extraBits);
+            switch (reader.ue()) {
+            case 0:
+                return PICTURE_TYPE_B;
+            case 1:
+                return PICTURE_TYPE_P;
+            case 2:
+                return PICTURE_TYPE_I;
+            }
+            return 0;
+        }
+
+        RBSPReader reader = new RBSPReader(header, 1);
+        reader.ue(); // first_mb_in_slice
+        int sliceType = reader.ue();
+        if (sliceType < 0)
+            return 0;
+        switch (sliceType % 5) {
+        case 0: // P
+        case 3: // SP
+            return PICTURE_TYPE_P;
+        case 1:
+            return PICTURE_TYPE_B;
+        default: // I, SI
+            return PICTURE_TYPE_I;
+        }
+    }
+
+    /**
+     * Decode slice_pic_parameter_set_id from the header bytes of an HEVC
+     * picture's first slice.
+     *
+     * @param header
+     *            The header bytes.
+     * @return The PPS id, or -1 if it cannot be decoded.
+     */
+    private static int hevcSlicePPSId(long header) {
+        int nalUnitType = (int) (header >>> 57) & 0x3f;
+        RBSPReader reader = new RBSPReader(header, 2);
+        reader.skip(((nalUnitType >= HEVC_IRAP_FIRST) && (nalUnitType <= HEVC_IRAP_LAST)) ? 2 : 1);
+        return reader.ue();
+    }
+
+    /**
+     * Decode pps_pic_parameter_set_id from the header bytes of an HEVC PPS.
+     *
+     * @param header
+     *            The header bytes.
+     * @return The PPS id, or -1 if it cannot be decoded.
+     */
+    private static int hevcPPSId(long header) {
+        return new RBSPReader(header, 2).ue();
+    }
+
+    /**
+     * Decode num_extra_slice_header_bits from the header bytes of an HEVC
+     * PPS.
+     *
+     * @param header
+     *            The header bytes.
+     * @return The number of bits (0 if it cannot be decoded).
+     */
+    private static int hevcExtraSliceHeaderBits(long header) {
+        RBSPReader reader = new RBSPReader(header, 2);
+        reader.ue(); // pps_pic_parameter_set_id
+        reader.ue(); // pps_seq_parameter_set_id
+        reader.skip(2); // dependent_slice_segments_enabled_flag, output_flag_present_flag
+        return Math.max(reader.u(3), 0);
+    }
+
+    /**
+     * Join two arrays.
+     *
+     * @param a
+     *            The first array.
+     * @param b
+     *            The second array.
+     * @return The joined array.
+     */
+    private static int[] concat(int[] a, int[] b) {
+        int[] tmp = new int[a.length + b.length];
+        System.arraycopy(a, 0, tmp, 0, a.length);
+        System.arraycopy(b, 0, tmp, a.length, b.length);
+        return tmp;
+    }
+
+    /**
+     * Reads the RBSP bits of the header bytes kept for a NAL unit, with the
+     * emulation prevention bytes removed.
+     */
+    private static class RBSPReader {
+
+        /**
+         * The RBSP bits, left aligned.
+         */
+        private long bits;
+
+        /**
+         * Number of RBSP bits available.
+         */
+        private int length;
+
+        /**
+         * Number of bits read so far.
+         */
+        private int pos;
+
+        /**
+         * Constructor.
+         *
+         * @param header
+         *            The eight bytes following the start code prefix.
+         * @param nalHeaderLength
+         *            Length of the NAL unit header to skip.
+         */
+        RBSPReader(long header, int nalHeaderLength) {
+            int zeros = 0;
+            for (int i = 0; i < 8; i++) {
+                int b = (int) (header >>> (56 - (i * 8))) & 0xff;
+                if ((zeros >= 2) && (b == 0x03)) {
+                    // emulation_prevention_three_byte
+                    zeros = 0;
+                    continue;
+                }
+                zeros = (b == 0) ? zeros + 1 : 0;
+
+                if (i >= nalHeaderLength) {
+                    bits |= ((long) b) << (56 - length);
+                    length += 8;
+                }
+            }
+        }
+
+        /**
+         * Skip some bits.
+         *
+         * @param count
+         *            Number of bits.
+         */
+        void skip(int count) {
+            pos += count;
+        }
+
+        /**
+         * Read an unsigned fixed length value.
+         *
+         * @param count
+         *            Number of bits (1 to 32).
+         * @return The value, or -1 if there are not enough bits.
+         */
+        int u(int count) {
+            if (pos + count > length)
+                return -1;
+            int value = (int) ((bits << pos) >>> (64 - count));
+            pos += count;
+            return value;
+        }
+
+        /**
+         * Read an unsigned Exp-Golomb value.
+         *
+         * @return The value, or -1 if there are not enough bits.
+         */
+        int ue() {
+            if (pos >= length)
+                return -1;
+            int zeros = Long.numberOfLeadingZeros(bits << pos);
+            if ((zeros > 31) || (pos + (zeros * 2) + 1 > length))
+                return -1;
+            pos += zeros + 1;
+            return (int) ((1L << zeros) - 1 + ((zeros == 0) ? 0 : u(zeros)));
+        }
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import java.io.IOException;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.util.CompressedIntSet;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Maps between byte positions and stream time using the PCR samples of each
+ * PCR PID.
+ *
+ * The raw 27MHz PCRs are unwrapped into a continuous, non-decreasing "stream
+ * time" starting at 0 at each PID's first PCR. The 2^33 * 300 wraparound is
+ * followed, and at discontinuities (the discontinuity_indicator, or a jump of
+ * more than MAX_PCR_GAP) time carries on at the rate of the preceding
+ * interval. Lookups in either direction are then a binary search plus a
+ * linear interpolation.
+ *
+ * @author Andrew de Quincey
+ */
+public class PCRTimeline implements ChunkAnalyser {
+
+    /**
+     * Frequency of the PCR clock.
+     */
+    public static final long PCR_FREQUENCY = 27000000L;
+
+    /**
+     * PCR values wrap at this value.
+     */
+    public static final long PCR_MODULUS = (1L << 33) * 300;
+
+    /**
+     * Forward PCR jumps larger than this (one second) are treated as
+     * discontinuities.
+     */
+    public static final long MAX_PCR_GAP = PCR_FREQUENCY;
+
+    /**
+     * Flag stored above the PCR value of samples with the
+     * discontinuity_indicator set.
+     */
+    static final long DISCONTINUITY_FLAG = 1L << 62;
+
+    /**
+     * Positions of the PCR samples on each PID (null if none).
+     */
+    private LongArray[] positions = new LongArray[Constants.PID_COUNT];
+
+    /**
+     * PCR values (plus DISCONTINUITY_FLAG) of the samples on each PID.
+     */
+    private LongArray[] pcrs = new LongArray[Constants.PID_COUNT];
+
+    /**
+     * Unwrapped stream times of the samples on each PID, built on first use.
+     */
+    private long[][] times = new long[Constants.PID_COUNT][];
+
+    /**
+     * Sample positions of each PID as plain arrays, built on first use.
+     */
+    private long[][] positionArrays = new long[Constants.PID_COUNT][];
+
+    /**
+     * Build a timeline by reading just the PCR bearing packets listed in a
+     * PacketIndex, rather than scanning the whole stream.
+     *
+     * @param stream
+     *            The stream.
+     * @param index
+     *            The packet index for the stream.
+     * @return The timeline.
+     * @throws IOException
+     *             On error.
+     */
+    public static PCRTimeline build(TransportStream stream, PacketIndex index) throws IOException {
+        PCRTimeline timeline = new PCRTimeline();
+
+        int[] pids = index.getPids();
+        for (int i = 0; i < pids.length; i++) {
+            CompressedIntSet set = index.getPCRPacketSet(pids[i]);
+            for (int j = 0; j < set.size(); j++) {
+                TransportPacket packet = stream.getPacketAt(set.select(j) * Constants.TS_PACKET_LENGTH);
+                if (packet != null)
+                    timeline.packet(packet);
+            }
+        }
+
+        return timeline;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new PCRTimeline();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        int flags = packet.adaptation_flags();
+        if ((flags & TransportPacket.adapflag_PCR_flag) == 0)
+            return true;
+
+        int pid = packet.pid();
+        synchronized (this) {
+            if (positions[pid] == null) {
+                positions[pid] = new LongArray();
+                pcrs[pid] = new LongArray();
+            }
+
+            long pcr = packet.PCR();
+            if ((flags & TransportPacket.adapflag_discontinuity_indicator) != 0)
+                pcr |= DISCONTINUITY_FLAG;
+
+            positions[pid].add(packet.getStreamPosition());
+            pcrs[pid].add(pcr);
+            times[pid] = null;
+            positionArrays[pid] = null;
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public synchronized void merge(ChunkAnalyser following) {
+        PCRTimeline other = (PCRTimeline) following;
+
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (other.positions[pid] == null)
+                continue;
+
+            if (positions[pid] == null) {
+                positions[pid] = other.positions[pid];
+                pcrs[pid] = other.pcrs[pid];
+            } else {
+                positions[pid].addAll(other.positions[pid]);
+                pcrs[pid].addAll(other.pcrs[pid]);
+            }
+            times[pid] = null;
+            positionArrays[pid] = null;
+        }
+    }
+
+    /**
+     * Get the PIDs carrying PCRs.
+     *
+     * @return Ascending array of PIDs.
+     */
+    public synchronized int[] getPids() {
+        int count = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (positions[pid] != null)
+                count++;
+        }
+
+        int[] pids = new int[count];
+        count = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (positions[pid] != null)
+                pids[count++] = pid;
+        }
+        return pids;
+    }
+
+    /**
+     * Choose the PID to use as the time reference for the whole stream: the
+     * one with the most PCR samples.
+     *
+     * @return The PID, or -1 if there are no PCRs at all.
+     */
+    public synchronized int getReferencePid() {
+        int best = -1;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if ((positions[pid] != null) && ((best == -1) || (positions[pid].size() > positions[best].size())))
+                best = pid;
+        }
+        return best;
+    }
+
+    /**
+     * Number of PCR samples on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public synchronized int getSampleCount(int pid) {
+        return (positions[pid] == null) ? 0 : positions[pid].size();
+    }
+
+    /**
+     * Position of a PCR sample.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the sample.
+     * @return The position.
+     */
+    public synchronized long getSamplePosition(int pid, int index) {
+        return positions[pid].get(index);
+    }
+
+    /**
+     * Raw PCR value of a sample.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the sample.
+     * @return The 27MHz PCR.
+     */
+    public synchronized long getSamplePCR(int pid, int index) {
+        return pcrs[pid].get(index) & ~DISCONTINUITY_FLAG;
+    }
+
+    /**
+     * Unwrapped stream time of a sample.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the sample.
+     * @return The time in 27MHz ticks since the PID's first PCR.
+     */
+    public synchronized long getSampleTime(int pid, int index) {
+        return times(pid)[index];
+    }
+
+    /**
+     * Total stream time covered by a PID's PCRs.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The duration in 27MHz ticks, or -1 if the PID has no PCRs.
+     */
+    public synchronized long getDuration(int pid) {
+        if (positions[pid] == null)
+            return -1;
+        long[] t = times(pid);
+        return t[t.length - 1];
+    }
+
+    /**
+     * Convert a position to stream time.
+     *
+     * @param pid
+     *            The PCR PID to use.
+     * @param position
+     *            The byte position.
+     * @return The time in 27MHz ticks since the PID's first PCR (negative
+     *         before it), or Long.MIN_VALUE if the PID has no PCRs.
+     */
+    public synchronized long positionToTime(int pid, long position) {
+        if (positions[pid] == null)
+            return Long.MIN_VALUE;
+
+        long[] p = positionArrays(pid);
+        long[] t = times(pid);
+        if (p.length == 1)
+            return 0;
+
+        int i = floorIndex(p, position);
+        if (i < 0)
+            i = 0;
+        if (i > p.length - 2)
+            i = p.length - 2;
+
+        return interpolate(position, p[i], p[i + 1], t[i], t[i + 1]);
+    }
+
+    /**
+     * Convert stream time to a position.
+     *
+     * @param pid
+     *            The PCR PID to use.
+     * @param time
+     *            The time in 27MHz ticks since the PID's first PCR.
+     * @return The byte position (which may lie outside the stream for times
+     *         outside its range), or -1 if the PID has no PCRs.
+     */
+    public synchronized long timeToPosition(int pid, long time) {
+        if (positions[pid] == null)
+            return -1;
+
+        long[] p = positionArrays(pid);
+        long[] t = times(pid);
+        if (p.length == 1)
+            return p[0];
+
+        // times can repeat (zero length intervals), so take the first of a run
+        int i = floorIndex(t, time);
+        if (i < 0)
+            i = 0;
+        if (i > t.length - 2)
+            i = t.length - 2;
+        while ((i > 0) && (t[i] == t[i - 1])) {
+            i--;
+        }
+        if (t[i + 1] == t[i])
+            return p[i];
+
+        return interpolate(time, t[i], t[i + 1], p[i], p[i + 1]);
+    }
+
+    /**
+     * Format stream time for display.
+     *
+     * @param time
+     *            The time in 27MHz ticks.
+     * @return The time as [-]hh:mm:ss.mmm.
+     */
+    public static String formatTime(long time) {
+        StringBuffer sb = new StringBuffer();
+        if (time < 0) {
+            sb.append('-');
+            time = -time;
+        }
+
+        long millis = time / (PCR_FREQUENCY / 1000);
+        appendPadded(sb, millis / 3600000, 2);
+        sb.append(':');
+        appendPadded(sb, (millis / 60000) % 60, 2);
+        sb.append(':');
+        appendPadded(sb, (millis / 1000) % 60, 2);
+        sb.append('.');
+        appendPadded(sb, millis % 1000, 3);
+        return sb.toString();
+    }
+
+    /**
+     * Parse a time entered by the user: [[hh:]mm:]ss[.fff].
+     *
+     * @param text
+     *            The text.
+     * @return The time in 27MHz ticks.
+     * @throws NumberFormatException
+     *             If the text is not a valid time.
+     */
+    public static long parseTime(String text) throws NumberFormatException {
+        text = text.trim();
+        String fraction = "";
+        int dot = text.indexOf('.');
+        if (dot != -1) {
+            fraction = text.substring(dot + 1);
+            text = text.substring(0, dot);
+        }
+
+        long seconds = 0;
+        String[] fields = text.split(":");
+        if ((fields.length == 0) || (fields.length > 3))
+            throw new NumberFormatException("Invalid time \"" + text + "\"");
+        for (int i = 0; i < fields.length; i++) {
+            long value = Long.parseLong(fields[i]);
+            if ((value < 0) || ((i > 0) && (value > 59)))
+                throw new NumberFormatException("Invalid time \"" + text + "\"");
+            seconds = (seconds * 60) + value;
+        }
+
+        long ticks = seconds * PCR_FREQUENCY;
+        long scale = PCR_FREQUENCY / 10;
+        for (int i = 0; (i < fraction.length()) && (scale > 0); i++) {
+            char c = fraction.charAt(i);
+            if ((c < '0') || (c > '9'))
+                throw new NumberFormatException("Invalid time fraction \"" + fraction + "\"");
+            ticks += (c - '0') * scale;
+            scale /= 10;
+        }
+        return ticks;
+    }
+
+    /**
+     * Get (building if necessary) the sample positions of a PID as an array.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The positions.
+     */
+    private long[] positionArrays(int pid) {
+        if (positionArrays[pid] == null)
+            positionArrays[pid] = positions[pid].toArray();
+        return positionArrays[pid];
+    }
+
+    /**
+     * Get (building if necessary) the unwrapped sample times of a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The times.
+     */
+    private long[] times(int pid) {
+        if (times[pid] != null)
+            return times[pid];
+
+        long[] p = positionArrays(pid);
+        long[] t = new long[p.length];
+        double rate = -1; // ticks per byte over the previous interval
+
+        for (int i = 1; i < p.length; i++) {
+            long delta = pcrDelta(pcrs[pid].get(i - 1), pcrs[pid].get(i));
+            long bytes = p[i] - p[i - 1];
+
+            if (delta < 0) {
+                // a new time base: carry on at the previous rate
+                delta = (rate < 0) ? 0 : (long) (bytes * rate);
+            } else if (bytes > 0) {
+                rate = (double) delta / bytes;
+            }
+
+            t[i] = t[i - 1] + delta;
+        }
+
+        times[pid] = t;
+        return t;
+    }
+
+    /**
+     * Work out the time between two consecutive PCRs, allowing for the
+     * wraparound.
+     *
+     * @param previous
+     *            The earlier PCR (plus DISCONTINUITY_FLAG if set).
+     * @param current
+     *            The later PCR (plus DISCONTINUITY_FLAG if set).
+     * @return The difference in 27MHz ticks, or -1 if there is a
+     *         discontinuity between them.
+     */
+    static long pcrDelta(long previous, long current) {
+        if ((current & DISCONTINUITY_FLAG) != 0)
+            return -1;
+
+        long delta = current - (previous & ~DISCONTINUITY_FLAG);
+        if (delta < 0)
+            delta += PCR_MODULUS;
+        if (delta > MAX_PCR_GAP)
+            return -1;
+        return delta;
+    }
+
+    /**
+     * Binary search for the last entry less than or equal to a value.
+     *
+     * @param values
+     *            Ascending values.
+     * @param value
+     *            The value to find.
+     * @return The index, or -1 if all entries are greater.
+     */
+    private static int floorIndex(long[] values, long value) {
+        int low = 0;
+        int high = values.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Linearly interpolate (or extrapolate) between two points.
+     *
+     * @param x
+     *            The x value to map.
+     * @param x0
+     *            First point x.
+     * @param x1
+     *            Second point x.
+     * @param y0
+     *            First point y.
+     * @param y1
+     *            Second point y.
+     * @return The mapped y value.
+     */
+    private static long interpolate(long x, long x0, long x1, long y0, long y1) {
+        if (x1 == x0)
+            return y0;
+        return y0 + (long) ((double) (x - x0) * (y1 - y0) / (x1 - x0));
+    }
+
+    /**
+     * Append a zero padded number.
+     *
+     * @param sb
+     *            The buffer.
+     * @param value
+     *            The value.
+     * @param width
+     *            The minimum number of digits.
+     */
+    private static void appendPadded(StringBuffer sb, long value, int width) {
+        String tmp = Long.toString(value);
+        for (int i = tmp.length(); i < width; i++) {
+            sb.append('0');
+        }
+        sb.append(tmp);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+/**
+ * An index of the coded pictures on some video PIDs.
+ *
+ * @author Andrew de Quincey
+ */
+public interface PictureIndex {
+
+    /**
+     * An intra coded picture.
+     */
+    public static final int PICTURE_TYPE_I = 1;
+
+    /**
+     * A predicted picture.
+     */
+    public static final int PICTURE_TYPE_P = 2;
+
+    /**
+     * A bidirectionally predicted picture.
+     */
+    public static final int PICTURE_TYPE_B = 3;
+
+    /**
+     * Does the index have any pictures on a PID?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return True if it has.
+     */
+    public boolean hasPictures(int pid);
+
+    /**
+     * Find the type of the picture a packet belongs to.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            Position of the packet.
+     * @return One of the PICTURE_TYPE_* constants, or 0 if the position is
+     *         before the first picture or the type is not known.
+     */
+    public int getPictureTypeAt(int pid, long position);
+
+    /**
+     * Find the next (or previous) keyframe: a picture a decoder can start
+     * from.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            Position to search from; a keyframe starting here is not
+     *            returned.
+     * @param forwards
+     *            True to search forwards, false to search backwards.
+     * @return Position of the packet the keyframe's access unit (including
+     *         any headers sent with it) starts in, or -1 if there is none.
+     */
+    public long findKeyframe(int pid, long position, boolean forwards);
+}
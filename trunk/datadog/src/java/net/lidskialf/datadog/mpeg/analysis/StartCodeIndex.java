@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.pes.*;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Base class for indexes of the start codes in video elementary streams.
+ *
+ * The start codes are found by scanning the transport packet payloads
+ * directly (skipping the PES headers), so nothing is read twice. Each entry
+ * records the position of the transport packet its start code prefix begins
+ * in, and the eight bytes following the prefix; subclasses choose which
+ * start codes to keep, and decode the bytes when asked. The size of an entry
+ * is the number of elementary stream bytes up to the next entry.
+ *
+ * Start codes straddling two payloads, or two chunks of a parallel scan, are
+ * carried over. Each chunk remembers the continuity_counter and size of its
+ * first payload, so a duplicate or lost packet at the start of a chunk is
+ * dropped or breaks the carry just as it would in a single pass, and the
+ * result does not depend on how the stream is split.
+ *
+ * @author Andrew de Quincey
+ */
+public abstract class StartCodeIndex implements ChunkAnalyser {
+
+    /**
+     * Bytes needed to index a start code: the prefix and the bytes kept.
+     */
+    private static final int ENTRY_BYTES = 3 + 8;
+
+    /**
+     * Maximum bytes carried from one payload to the next; start codes
+     * beginning in them have not been looked at yet.
+     */
+    private static final int CARRY_BYTES = ENTRY_BYTES - 1;
+
+    /**
+     * Maximum head bytes kept: the first payload and the bytes which may
+     * complete a start code after it.
+     */
+    private static final int HEAD_BYTES = TransportPacket.TS_PACKET_LEN + CARRY_BYTES;
+
+    /**
+     * Size of the scan buffer.
+     */
+    private static final int BUFFER_SIZE = CARRY_BYTES + TransportPacket.TS_PACKET_LEN;
+
+    /**
+     * The PIDs being indexed.
+     */
+    protected int[] pids;
+
+    /**
+     * Per-PID state (null if the PID is not being indexed).
+     */
+    private IndexedStream[] streams = new IndexedStream[Constants.PID_COUNT];
+
+    /**
+     * Carried bytes plus the current payload, being scanned.
+     */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Constructor.
+     *
+     * @param pids
+     *            The PIDs to index.
+     */
+    protected StartCodeIndex(int[] pids) {
+        this.pids = (int[]) pids.clone();
+        for (int i = 0; i < pids.length; i++)
+            streams[pids[i]] = new IndexedStream();
+    }
+
+    /**
+     * Should a start code be indexed?
+     *
+     * @param pid
+     *            The PID it is on.
+     * @param header
+     *            The eight bytes following its prefix, the first in the top
+     *            byte.
+     * @return True to index it.
+     */
+    protected abstract boolean isIndexed(int pid, long header);
+
+    /**
+     * Called when the entries of a PID have changed, to drop anything built
+     * from them.
+     *
+     * @param pid
+     *            The PID concerned.
+     */
+    protected abstract void entriesChanged(int pid);
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        int pid = packet.pid();
+        IndexedStream stream = streams[pid];
+        if (stream == null)
+            return true;
+
+        if (packet.transport_error_indicator()) {
+            if (stream.firstCC == -2)
+                stream.firstCC = -1;
+            else
+                stream.resetSeen = true;
+            stream.carryLength = 0;
+            stream.lastCC = -1;
+            stream.header.reset();
+            return true;
+        }
+        if (!packet.hasPayload())
+            return true;
+
+        int cc = packet.continuity_counter();
+        boolean first = stream.firstCC == -2;
+        if (first)
+            stream.firstCC = cc;
+        if (stream.lastCC != -1) {
+            if (cc == stream.lastCC)
+                return true;
+            if (cc != ((stream.lastCC + 1) & 0x0f)) {
+                stream.carryLength = 0;
+                stream.header.reset();
+                stream.resetSeen = true;
+            }
+        }
+        stream.lastCC = cc;
+
+        // step over the PES header
+        int size = packet.payloadSize();
+        int start = stream.header.read(packet);
+        int count = size - start;
+        if (first)
+            stream.firstCount = Math.max(count, 0);
+        if (count <= 0)
+            return true;
+
+        int carried = stream.carryLength;
+        System.arraycopy(stream.carry, 0, buffer, 0, carried);
+        packet.getPayloadData(start, buffer, carried, count);
+        stream.addHead(buffer, carried, count, packet.getStreamPosition());
+
+        long esOffset = stream.esLength - carried;
+        stream.esLength += count;
+        int length = carried + count;
+        scan(pid, stream, buffer, length - ENTRY_BYTES, stream.carryPositions, carried, null, packet.getStreamPosition(), esOffset);
+        stream.setCarry(buffer, Math.max(length - CARRY_BYTES, 0), length, packet.getStreamPosition());
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() {
+        // start codes left in the carried bytes are picked up by merge()
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public synchronized void merge(ChunkAnalyser following) {
+        StartCodeIndex other = (StartCodeIndex) following;
+
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            IndexedStream stream = streams[pid];
+            IndexedStream next = other.streams[pid];
+            if ((stream == null) || (next == null) || (next.firstCC == -2))
+                continue;
+            if (stream.firstCC == -2) {
+                // nothing before the following chunk
+                streams[pid] = next;
+                entriesChanged(pid);
+                continue;
+            }
+
+            // a duplicate of our last packet is dropped, and nothing is
+            // carried over a lost or errored packet
+            int skip = 0;
+            boolean joined = next.firstCC != -1;
+            if (joined && (stream.lastCC != -1)) {
+                if (next.firstCC == stream.lastCC)
+                    skip = next.firstCount;
+                else if (next.firstCC != ((stream.lastCC + 1) & 0x0f))
+                    joined = false;
+            }
+
+            // start codes straddling the two chunks
+            int carried = joined ? stream.carryLength : 0;
+            int length = carried + next.headLength - skip;
+            byte[] junction = new byte[length];
+            long[] junctionPositions = new long[length];
+            System.arraycopy(stream.carry, 0, junction, 0, carried);
+            System.arraycopy(stream.carryPositions, 0, junctionPositions, 0, carried);
+            System.arraycopy(next.head, skip, junction, carried, length - carried);
+            System.arraycopy(next.headPositions, skip, junctionPositions, carried, length - carried);
+            scan(pid, stream, junction, Math.min(carried - 1, length - ENTRY_BYTES), junctionPositions, length, null, 0, stream.esLength - carried);
+
+            // the following chunk's entries
+            for (int i = 0; i < next.positions.size(); i++) {
+                long esOffset = next.esOffsets.get(i) - skip;
+                if (esOffset < 0)
+                    continue;
+                stream.positions.add(next.positions.get(i));
+                stream.esOffsets.add(esOffset + stream.esLength);
+                stream.headers.add(next.headers.get(i));
+            }
+
+            if (joined)
+                stream.addHead(junction, carried, length - carried, junctionPositions);
+            if (next.resetSeen || ((next.esLength - skip) >= CARRY_BYTES)) {
+                System.arraycopy(next.carry, 0, stream.carry, 0, next.carryLength);
+                System.arraycopy(next.carryPositions, 0, stream.carryPositions, 0, next.carryLength);
+                stream.carryLength = next.carryLength;
+            } else {
+                // the following chunk was all carried: keep what is still unscanned
+                stream.carryLength = 0;
+                for (int i = Math.max(length - CARRY_BYTES, 0); i < length; i++) {
+                    stream.carry[stream.carryLength] = junction[i];
+                    stream.carryPositions[stream.carryLength++] = junctionPositions[i];
+                }
+            }
+            stream.esLength += next.esLength - skip;
+            stream.lastCC = next.lastCC;
+            if (!joined || next.resetSeen)
+                stream.resetSeen = true;
+            entriesChanged(pid);
+        }
+    }
+
+    /**
+     * Record the wanted start codes in some elementary stream data.
+     *
+     * @param pid
+     *            The PID the data is from.
+     * @param stream
+     *            The state of that PID.
+     * @param data
+     *            The data.
+     * @param last
+     *            Offset of the last byte which may begin a start code.
+     * @param prefixPositions
+     *            Packet positions of the bytes carried from before.
+     * @param prefixLength
+     *            Number of bytes carried from before.
+     * @param suffixPositions
+     *            Packet positions of the remaining bytes, or null if they are
+     *            all from the same packet.
+     * @param suffixPosition
+     *            Packet position of the remaining bytes if suffixPositions is
+     *            null.
+     * @param esOffset
+     *            Elementary stream offset of data[0].
+     */
+    private void scan(int pid, IndexedStream stream, byte[] data, int last, long[] prefixPositions, int prefixLength, long[] suffixPositions,
+            long suffixPosition, long esOffset) {
+        int pos = 0;
+        while ((pos = StartCodeScanner.find(data, pos, last + 3)) >= 0) {
+            long header = 0;
+            for (int i = 3; i < ENTRY_BYTES; i++)
+                header = (header << 8) | (data[pos + i] & 0xff);
+
+            if (isIndexed(pid, header)) {
+                long position;
+                if (pos < prefixLength)
+                    position = prefixPositions[pos];
+                else if (suffixPositions != null)
+                    position = suffixPositions[pos - prefixLength];
+                else
+                    position = suffixPosition;
+
+                stream.positions.add(position);
+                stream.esOffsets.add(esOffset + pos);
+                stream.headers.add(header);
+            }
+            pos += 3;
+        }
+    }
+
+    /**
+     * Get the PIDs being indexed.
+     *
+     * @return The PIDs.
+     */
+    public int[] getPids() {
+        return (int[]) pids.clone();
+    }
+
+    /**
+     * Number of start codes indexed on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public synchronized int getCount(int pid) {
+        return (streams[pid] == null) ? 0 : streams[pid].positions.size();
+    }
+
+    /**
+     * Position of the transport packet an entry's start code prefix begins
+     * in.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The position.
+     */
+    public synchronized long getPosition(int pid, int index) {
+        return streams[pid].positions.get(index);
+    }
+
+    /**
+     * The eight bytes following an entry's start code prefix.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The bytes, the first in the top byte.
+     */
+    public synchronized long getHeader(int pid, int index) {
+        return streams[pid].headers.get(index);
+    }
+
+    /**
+     * Size of an entry: the elementary stream bytes from its start code to
+     * the next one indexed (or the end of the stream).
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The size in bytes.
+     */
+    public synchronized int getSize(int pid, int index) {
+        IndexedStream stream = streams[pid];
+        long end = (index + 1 < stream.esOffsets.size()) ? stream.esOffsets.get(index + 1) : stream.esLength;
+        return (int) (end - stream.esOffsets.get(index));
+    }
+
+    /**
+     * Binary search for a position.
+     *
+     * @param positions
+     *            Ascending positions.
+     * @param position
+     *            The position to find.
+     * @return The index of the last entry at or before position, or -1.
+     */
+    protected static int floorIndex(long[] positions, long position) {
+        int low = 0;
+        int high = positions.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (positions[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Find the next (or previous) position in a list.
+     *
+     * @param positions
+     *            Ascending positions.
+     * @param position
+     *            Position to search from; an equal position is not returned.
+     * @param forwards
+     *            True to search forwards, false to search backwards.
+     * @return The position found, or -1 if there is none.
+     */
+    protected static long findPosition(long[] positions, long position, boolean forwards) {
+        int index = floorIndex(positions, position);
+        if (forwards) {
+            for (index++; index < positions.length; index++) {
+                if (positions[index] > position)
+                    return positions[index];
+            }
+        } else {
+            for (; index >= 0; index--) {
+                if (positions[index] < position)
+                    return positions[index];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Scan state and entries for one PID.
+     */
+    private static class IndexedStream {
+
+        /**
+         * Last continuity_counter seen (-1 for none).
+         */
+        int lastCC = -1;
+
+        /**
+         * continuity_counter of the first packet, -1 if it was errored, or -2
+         * if there has not been one.
+         */
+        int firstCC = -2;
+
+        /**
+         * Elementary stream bytes in the first packet.
+         */
+        int firstCount;
+
+        /**
+         * Has the carry been dropped for a lost or errored packet since the
+         * first packet?
+         */
+        boolean resetSeen;
+
+        /**
+         * Collects the PES header at the start of each PES packet.
+         */
+        PesHeaderReader header = new PesHeaderReader();
+
+        /**
+         * Elementary stream bytes seen.
+         */
+        long esLength;
+
+        /**
+         * Unscanned bytes from the end of the data so far.
+         */
+        byte[] carry = new byte[CARRY_BYTES];
+
+        /**
+         * Packet positions of the carried bytes.
+         */
+        long[] carryPositions = new long[CARRY_BYTES];
+
+        /**
+         * Number of bytes carried.
+         */
+        int carryLength;
+
+        /**
+         * The first bytes of the data, up to the first reset: the first
+         * packet's bytes (which are dropped if it is a duplicate) and enough
+         * after them for scanning start codes which began in the previous
+         * chunk.
+         */
+        byte[] head = new byte[HEAD_BYTES];
+
+        /**
+         * Packet positions of the head bytes.
+         */
+        long[] headPositions = new long[HEAD_BYTES];
+
+        /**
+         * Number of head bytes.
+         */
+        int headLength;
+
+        /**
+         * Packet positions of the entries.
+         */
+        LongArray positions = new LongArray();
+
+        /**
+         * Elementary stream offsets of the entries.
+         */
+        LongArray esOffsets = new LongArray();
+
+        /**
+         * The eight bytes following the prefix of each entry.
+         */
+        LongArray headers = new LongArray();
+
+        /**
+         * Keep the first bytes of the data, all from one packet.
+         *
+         * @param data
+         *            Buffer holding the bytes.
+         * @param offset
+         *            Offset of the bytes.
+         * @param length
+         *            Number of bytes.
+         * @param position
+         *            Position of the packet they came from.
+         */
+        void addHead(byte[] data, int offset, int length, long position) {
+            int limit = resetSeen ? 0 : firstCount + CARRY_BYTES;
+            for (int i = 0; (i < length) && (headLength < limit); i++) {
+                headPositions[headLength] = position;
+                head[headLength++] = data[offset + i];
+            }
+        }
+
+        /**
+         * Keep the first bytes of the data.
+         *
+         * @param data
+         *            Buffer holding the bytes.
+         * @param offset
+         *            Offset of the bytes.
+         * @param length
+         *            Number of bytes.
+         * @param positions
+         *            Packet positions of the bytes.
+         */
+        void addHead(byte[] data, int offset, int length, long[] positions) {
+            int limit = resetSeen ? 0 : firstCount + CARRY_BYTES;
+            for (int i = 0; (i < length) && (headLength < limit); i++) {
+                headPositions[headLength] = positions[offset + i];
+                head[headLength++] = data[offset + i];
+            }
+        }
+
+        /**
+         * Replace the carried bytes with the unscanned end of the buffer.
+         *
+         * @param data
+         *            The buffer, starting with the old carried bytes.
+         * @param from
+         *            Offset of the first unscanned byte.
+         * @param length
+         *            Number of bytes in the buffer.
+         * @param position
+         *            Position of the packet the bytes after the old carried
+         *            bytes came from.
+         */
+        void setCarry(byte[] data, int from, int length, long position) {
+            int count = 0;
+            for (int i = from; i < length; i++) {
+                carryPositions[count] = (i < carryLength) ? carryPositions[i] : position;
+                carry[count++] = data[i];
+            }
+            carryLength = count;
+        }
+    }
+}
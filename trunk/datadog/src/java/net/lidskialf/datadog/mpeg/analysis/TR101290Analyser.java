@@ -0,0 +1,1090 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.psi.*;
+import net.lidskialf.datadog.util.IntArray;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Measures a transport stream against the ETSI TR 101 290 priority 1, 2 and
+ * 3 indicators.
+ *
+ * Time is stream time: the PCRs of the first PCR PID seen, extrapolated
+ * between PCRs at the byte rate of the previous interval, so a capture gives
+ * the same results however fast it is read. Timeouts are checked every
+ * SWEEP_INTERVAL of stream time. All per PID state lives in arrays indexed by
+ * PID, so there is no lookup per packet.
+ *
+ * Sync is declared lost after SYNC_LOSS_COUNT consecutive bad sync bytes
+ * and regained after SYNC_REGAIN_COUNT consecutive good ones; each bad sync
+ * byte while in sync is a Sync_byte_error, but no more are reported until
+ * sync is regained. The bad sync bytes come from TransportStream through
+ * syncError(), so they are found however the packets are filtered.
+ *
+ * Feed packets to packet() to use it incrementally (with a TR101290Listener
+ * to hear about errors as they happen), or use analyse() to check a whole
+ * stream. Measurements needing a buffer model (Buffer_error and the like)
+ * are not made. The DVB SI timeouts only start once the table concerned has
+ * been seen, so streams without DVB SI are not flooded with errors.
+ *
+ * @author Andrew de Quincey
+ */
+public class TR101290Analyser implements SyncErrorSink, SectionHandler, TableListener {
+
+    /**
+     * 1.1: Loss of synchronisation (two or more consecutive bad sync bytes).
+     */
+    public static final int TS_SYNC_LOSS = 0;
+
+    /**
+     * 1.2: Sync byte not 0x47.
+     */
+    public static final int SYNC_BYTE_ERROR = 1;
+
+    /**
+     * 1.3: PAT missing for 0.5s, wrong table_id on PID 0, or PID 0 scrambled.
+     */
+    public static final int PAT_ERROR = 2;
+
+    /**
+     * 1.4: Incorrect continuity_counter.
+     */
+    public static final int CONTINUITY_COUNT_ERROR = 3;
+
+    /**
+     * 1.5: PMT missing for 0.5s, or a PMT PID scrambled.
+     */
+    public static final int PMT_ERROR = 4;
+
+    /**
+     * 1.6: A PID referenced by a PMT missing for the PID error interval.
+     */
+    public static final int PID_ERROR = 5;
+
+    /**
+     * 2.1: transport_error_indicator set.
+     */
+    public static final int TRANSPORT_ERROR = 6;
+
+    /**
+     * 2.2: CRC_32 mismatch in a section.
+     */
+    public static final int CRC_ERROR = 7;
+
+    /**
+     * 2.3a: More than 40ms between PCRs on a PID.
+     */
+    public static final int PCR_REPETITION_ERROR = 8;
+
+    /**
+     * 2.3b: PCRs jumping by more than 100ms, or backwards, without the
+     * discontinuity_indicator.
+     */
+    public static final int PCR_DISCONTINUITY_INDICATOR_ERROR = 9;
+
+    /**
+     * 2.4: PCR more than 500ns away from where the transport rate puts it.
+     */
+    public static final int PCR_ACCURACY_ERROR = 10;
+
+    /**
+     * 2.5: More than 700ms between PTSs on a PID.
+     */
+    public static final int PTS_ERROR = 11;
+
+    /**
+     * 2.6: Scrambled packets with no CAT, or wrong table_id on PID 1.
+     */
+    public static final int CAT_ERROR = 12;
+
+    /**
+     * 3.1: NIT_actual missing for 10s, or wrong table_id on PID 0x10.
+     */
+    public static final int NIT_ERROR = 13;
+
+    /**
+     * 3.2: SI sections repeated less than 25ms apart.
+     */
+    public static final int SI_REPETITION_ERROR = 14;
+
+    /**
+     * 3.4: A PID not referenced by any table for 0.5s.
+     */
+    public static final int UNREFERENCED_PID = 15;
+
+    /**
+     * 3.5: SDT_actual missing for 2s, or wrong table_id on PID 0x11.
+     */
+    public static final int SDT_ERROR = 16;
+
+    /**
+     * 3.6: EIT_actual present/following missing for 2s, or wrong table_id on
+     * PID 0x12.
+     */
+    public static final int EIT_ERROR = 17;
+
+    /**
+     * 3.7: Wrong table_id on PID 0x13.
+     */
+    public static final int RST_ERROR = 18;
+
+    /**
+     * 3.8: TDT missing for 30s, or wrong table_id on PID 0x14.
+     */
+    public static final int TDT_ERROR = 19;
+
+    /**
+     * Number of indicators.
+     */
+    public static final int INDICATOR_COUNT = 20;
+
+    /**
+     * Names of the indicators as used in TR 101 290.
+     */
+    public static final String[] INDICATOR_NAMES = { "TS_sync_loss", "Sync_byte_error", "PAT_error_2", "Continuity_count_error", "PMT_error_2", "PID_error", "Transport_error",
+            "CRC_error", "PCR_repetition_error", "PCR_discontinuity_indicator_error", "PCR_accuracy_error", "PTS_error", "CAT_error", "NIT_error", "SI_repetition_error",
+            "Unreferenced_PID", "SDT_error", "EIT_error", "RST_error", "TDT_error" };
+
+    /**
+     * Priority (1, 2 or 3) of each indicator.
+     */
+    public static final int[] INDICATOR_PRIORITIES = { 1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3 };
+
+    /**
+     * Default time a PMT referenced PID may be missing for (5s).
+     */
+    public static final long DEFAULT_PID_ERROR_INTERVAL = 5 * PCRTimeline.PCR_FREQUENCY;
+
+    /**
+     * How often timeouts are checked (10ms).
+     */
+    public static final long SWEEP_INTERVAL = PCRTimeline.PCR_FREQUENCY / 100;
+
+    private static final long MS = PCRTimeline.PCR_FREQUENCY / 1000;
+    private static final long PAT_INTERVAL = 500 * MS;
+    private static final long PMT_INTERVAL = 500 * MS;
+    private static final long PCR_REPETITION_INTERVAL = 40 * MS;
+    private static final long PCR_DISCONTINUITY_INTERVAL = 100 * MS;
+    private static final long PTS_INTERVAL = 700 * MS;
+    private static final long NIT_INTERVAL = 10000 * MS;
+    private static final long SDT_INTERVAL = 2000 * MS;
+    private static final long EIT_INTERVAL = 2000 * MS;
+    private static final long TDT_INTERVAL = 30000 * MS;
+    private static final long SI_MIN_INTERVAL = 25 * MS;
+    private static final long UNREFERENCED_INTERVAL = 500 * MS;
+
+    /**
+     * Consecutive bad sync bytes before sync is lost.
+     */
+    private static final int SYNC_LOSS_COUNT = 2;
+
+    /**
+     * Consecutive good sync bytes before sync is regained.
+     */
+    private static final int SYNC_REGAIN_COUNT = 5;
+
+    /**
+     * PCR accuracy limit of 500ns, doubled (27 ticks) to stay in integers.
+     */
+    private static final long PCR_ACCURACY_LIMIT_X2 = 27;
+
+    /**
+     * Time value meaning "not yet".
+     */
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private static final int PID_PAT = 0x00;
+    private static final int PID_CAT = 0x01;
+    private static final int PID_NIT = 0x10;
+    private static final int PID_SDT = 0x11;
+    private static final int PID_EIT = 0x12;
+    private static final int PID_RST = 0x13;
+    private static final int PID_TDT = 0x14;
+
+    /**
+     * PIDs below this are reserved for PSI/SI and always count as referenced.
+     */
+    private static final int FIRST_UNRESERVED_PID = 0x20;
+
+    /**
+     * Where errors are reported as they are found (may be null).
+     */
+    private TR101290Listener listener;
+
+    /**
+     * Should every error be remembered?
+     */
+    private boolean recordErrors;
+
+    /**
+     * Positions of the recorded errors.
+     */
+    private LongArray errorPositions = new LongArray();
+
+    /**
+     * Indicators of the recorded errors.
+     */
+    private IntArray errorIndicators = new IntArray();
+
+    /**
+     * PIDs of the recorded errors.
+     */
+    private IntArray errorPids = new IntArray();
+
+    /**
+     * Number of errors found for each indicator.
+     */
+    private long[] errorCounts = new long[INDICATOR_COUNT];
+
+    /**
+     * Time a PMT referenced PID may be missing for.
+     */
+    private long pidErrorInterval = DEFAULT_PID_ERROR_INTERVAL;
+
+    /**
+     * Checks the continuity_counters.
+     */
+    private ContinuityAnalyser continuity = new ContinuityAnalyser();
+
+    /**
+     * Rebuilds the PSI/SI sections.
+     */
+    private SectionAssembler sections = new SectionAssembler(this);
+
+    /**
+     * Decodes the PAT, CAT and PMTs, skipping repeated sections.
+     */
+    private TableDecoder tables = new TableDecoder(this);
+
+    /**
+     * Has sync been lost?
+     */
+    private boolean syncLost;
+
+    /**
+     * Number of consecutive bad sync bytes while in sync.
+     */
+    private int badSyncCount;
+
+    /**
+     * Position of the first of those bad sync bytes.
+     */
+    private long badSyncPos;
+
+    /**
+     * Number of consecutive good sync bytes since sync was lost.
+     */
+    private int goodSyncCount;
+
+    /**
+     * Position of the packet being processed.
+     */
+    private long currentPos;
+
+    /**
+     * The PID whose PCRs give the stream time, or -1 if none seen yet.
+     */
+    private int timePid = -1;
+
+    /**
+     * Last PCR of timePid (plus PCRTimeline.DISCONTINUITY_FLAG if set).
+     */
+    private long timePcr;
+
+    /**
+     * Position of the last PCR of timePid.
+     */
+    private long timePcrPos;
+
+    /**
+     * Stream time of the last PCR of timePid.
+     */
+    private long timePcrTime;
+
+    /**
+     * PCR ticks per byte over the last good interval of timePid, or -1.
+     */
+    private double timeRate = -1;
+
+    /**
+     * Stream time of the packet being processed, or NEVER before the first
+     * PCR.
+     */
+    private long now = NEVER;
+
+    /**
+     * Stream time of the last timeout check.
+     */
+    private long lastSweep = NEVER;
+
+    /**
+     * Stream time each PID was last seen.
+     */
+    private long[] lastSeen = new long[Constants.PID_COUNT];
+
+    /**
+     * Last PCR of each PID, or -1 if none.
+     */
+    private long[] pcrLast = new long[Constants.PID_COUNT];
+
+    /**
+     * Position of the last PCR of each PID.
+     */
+    private long[] pcrLastPos = new long[Constants.PID_COUNT];
+
+    /**
+     * Stream time the last PCR of each PID arrived.
+     */
+    private long[] pcrLastArrival = new long[Constants.PID_COUNT];
+
+    /**
+     * Time since the start of the current PCR segment of each PID.
+     */
+    private long[] pcrTime = new long[Constants.PID_COUNT];
+
+    /**
+     * Position of the start of the current PCR segment of each PID.
+     */
+    private long[] pcrBasePos = new long[Constants.PID_COUNT];
+
+    /**
+     * Stream time the last PTS of each PID arrived.
+     */
+    private long[] ptsLastArrival = new long[Constants.PID_COUNT];
+
+    /**
+     * Stream time the PAT was last seen.
+     */
+    private long patLastSeen = NEVER;
+
+    /**
+     * Is each PID a PMT PID?
+     */
+    private boolean[] pmtPid = new boolean[Constants.PID_COUNT];
+
+    /**
+     * The PMT PIDs.
+     */
+    private IntArray pmtPids = new IntArray();
+
+    /**
+     * Stream time a PMT was last seen on each PMT PID.
+     */
+    private long[] pmtLastSeen = new long[Constants.PID_COUNT];
+
+    /**
+     * Is each PID an elementary stream of a PMT?
+     */
+    private boolean[] esPid = new boolean[Constants.PID_COUNT];
+
+    /**
+     * The elementary stream PIDs.
+     */
+    private IntArray esPids = new IntArray();
+
+    /**
+     * Is each PID referenced by a table?
+     */
+    private boolean[] referenced = new boolean[Constants.PID_COUNT];
+
+    /**
+     * Stream time each unreferenced PID was first seen (NEVER if not
+     * waiting, Long.MAX_VALUE once reported).
+     */
+    private long[] unreferencedSince = new long[Constants.PID_COUNT];
+
+    /**
+     * PIDs waiting to be reported as unreferenced.
+     */
+    private IntArray unreferencedPids = new IntArray();
+
+    /**
+     * Have any scrambled packets been seen?
+     */
+    private boolean scrambled;
+
+    /**
+     * Has a CAT been seen?
+     */
+    private boolean catSeen;
+
+    /**
+     * Has the missing CAT been reported?
+     */
+    private boolean catErrorReported;
+
+    private long nitLastSeen = NEVER;
+    private long sdtLastSeen = NEVER;
+    private long eitLastSeen = NEVER;
+    private long tdtLastSeen = NEVER;
+
+    /**
+     * Stream time each section_number of the NIT_actual was last seen.
+     */
+    private long[] nitSectionLastSeen = new long[256];
+
+    /**
+     * Stream time each section_number of the SDT_actual was last seen.
+     */
+    private long[] sdtSectionLastSeen = new long[256];
+
+    /**
+     * Stream time the TDT section was last seen.
+     */
+    private long tdtSectionLastSeen = NEVER;
+
+    /**
+     * Stream time the TOT section was last seen.
+     */
+    private long totSectionLastSeen = NEVER;
+
+    /**
+     * Start of the PES packet being checked for a PTS.
+     */
+    private byte[] pesHeader = new byte[14];
+
+    /**
+     * Constructor.
+     *
+     * @param recordErrors
+     *            True to remember every error so it can be retrieved later,
+     *            false to just count them (for long running live use).
+     */
+    public TR101290Analyser(boolean recordErrors) {
+        this.recordErrors = recordErrors;
+
+        Arrays.fill(lastSeen, NEVER);
+        Arrays.fill(pcrLast, -1);
+        Arrays.fill(pcrLastArrival, NEVER);
+        Arrays.fill(ptsLastArrival, NEVER);
+        Arrays.fill(pmtLastSeen, NEVER);
+        Arrays.fill(unreferencedSince, NEVER);
+        Arrays.fill(nitSectionLastSeen, NEVER);
+        Arrays.fill(sdtSectionLastSeen, NEVER);
+
+        for (int pid = 0; pid < FIRST_UNRESERVED_PID; pid++) {
+            referenced[pid] = true;
+        }
+        referenced[Constants.TS_NULL_PID] = true;
+
+        sections.addPid(PID_PAT);
+        sections.addPid(PID_CAT);
+        sections.addPid(PID_NIT);
+        sections.addPid(PID_SDT);
+        sections.addPid(PID_EIT);
+        sections.addPid(PID_RST);
+        sections.addPid(PID_TDT);
+    }
+
+    /**
+     * Check a whole stream.
+     *
+     * @param stream
+     *            The stream.
+     * @return The analyser, holding all the errors found.
+     * @throws IOException
+     *             On error.
+     */
+    public static TR101290Analyser analyse(TransportStream stream) throws IOException {
+        TR101290Analyser analyser = new TR101290Analyser(true);
+        stream.readPackets(0, stream.length() / Constants.TS_PACKET_LENGTH, analyser);
+        analyser.finish();
+        return analyser;
+    }
+
+    /**
+     * Set the listener to tell about errors as they are found.
+     *
+     * @param listener
+     *            The listener, or null for none.
+     */
+    public void setListener(TR101290Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set how long a PMT referenced PID may be missing for before a PID_error.
+     *
+     * @param interval
+     *            The interval in 27MHz ticks.
+     */
+    public void setPidErrorInterval(long interval) {
+        this.pidErrorInterval = interval;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        long position = packet.getStreamPosition();
+        currentPos = position;
+
+        badSyncCount = 0;
+        if (syncLost && (++goodSyncCount >= SYNC_REGAIN_COUNT))
+            syncLost = false;
+
+        int pid = packet.pid();
+        if (packet.transport_error_indicator()) {
+            error(TRANSPORT_ERROR, pid, position);
+            return true;
+        }
+
+        int flags = packet.adaptation_flags();
+        if ((flags & TransportPacket.adapflag_PCR_flag) != 0) {
+            if (timePid == -1)
+                timePid = pid;
+            if (pid == timePid)
+                advanceTime(packet, position);
+        }
+        if (timePid != -1)
+            now = timePcrTime + ((timeRate < 0) ? 0 : (long) ((position - timePcrPos) * timeRate));
+
+        if ((now != NEVER) && ((lastSweep == NEVER) || ((now - lastSweep) >= SWEEP_INTERVAL))) {
+            sweep();
+            lastSweep = now;
+        }
+        lastSeen[pid] = now;
+
+        if (continuity.check(packet))
+            error(CONTINUITY_COUNT_ERROR, pid, position);
+
+        if (packet.transport_scrambling_control() != 0) {
+            scrambled = true;
+            if (pid == PID_PAT)
+                error(PAT_ERROR, pid, position);
+            else if (pmtPid[pid])
+                error(PMT_ERROR, pid, position);
+        }
+
+        if ((flags & TransportPacket.adapflag_PCR_flag) != 0)
+            checkPCR(packet, pid, position);
+
+        if (esPid[pid] && packet.payload_unit_start_indicator())
+            checkPTS(packet, pid, position);
+
+        if (!referenced[pid] && (unreferencedSince[pid] == NEVER) && (now != NEVER)) {
+            unreferencedSince[pid] = now;
+            unreferencedPids.add(pid);
+        }
+
+        sections.packet(packet);
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.SyncErrorSink#syncError(long)
+     */
+    public void syncError(long position) {
+        goodSyncCount = 0;
+        if (syncLost)
+            return;
+
+        if (badSyncCount++ == 0)
+            badSyncPos = position;
+        error(SYNC_BYTE_ERROR, -1, position);
+        if (badSyncCount >= SYNC_LOSS_COUNT) {
+            syncLost = true;
+            error(TS_SYNC_LOSS, -1, badSyncPos);
+        }
+    }
+
+    /**
+     * Run the final timeout checks once the whole stream has been seen.
+     */
+    public void finish() {
+        if (now != NEVER)
+            sweep();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.psi.SectionHandler#section(int, byte[], int, int, boolean, long)
+     */
+    public void section(int pid, byte[] data, int offset, int length, boolean crcValid, long position) {
+        if (!crcValid) {
+            error(CRC_ERROR, pid, position);
+            return;
+        }
+
+        int tableId = data[offset] & 0xff;
+        switch (pid) {
+        case PID_PAT:
+            if (tableId != 0x00) {
+                error(PAT_ERROR, pid, position);
+            } else {
+                patLastSeen = now;
+                tables.section(pid, data, offset, length, crcValid, position);
+            }
+            return;
+
+        case PID_CAT:
+            if (tableId != 0x01) {
+                error(CAT_ERROR, pid, position);
+            } else {
+                catSeen = true;
+                catErrorReported = false;
+                tables.section(pid, data, offset, length, crcValid, position);
+            }
+            return;
+
+        case PID_NIT:
+            if ((tableId != 0x40) && (tableId != 0x41) && (tableId != 0x72)) {
+                error(NIT_ERROR, pid, position);
+            } else if (tableId == 0x40) {
+                nitLastSeen = now;
+                checkRepetition(nitSectionLastSeen, data[offset + 6] & 0xff, pid, position);
+            }
+            return;
+
+        case PID_SDT:
+            if ((tableId != 0x42) && (tableId != 0x46) && (tableId != 0x4a) && (tableId != 0x72)) {
+                error(SDT_ERROR, pid, position);
+            } else if (tableId == 0x42) {
+                sdtLastSeen = now;
+                checkRepetition(sdtSectionLastSeen, data[offset + 6] & 0xff, pid, position);
+            }
+            return;
+
+        case PID_EIT:
+            if (((tableId < 0x4e) || (tableId > 0x6f)) && (tableId != 0x72)) {
+                error(EIT_ERROR, pid, position);
+            } else if (tableId == 0x4e) {
+                eitLastSeen = now;
+            }
+            return;
+
+        case PID_RST:
+            if ((tableId != 0x71) && (tableId != 0x72))
+                error(RST_ERROR, pid, position);
+            return;
+
+        case PID_TDT:
+            if ((tableId != 0x70) && (tableId != 0x72) && (tableId != 0x73)) {
+                error(TDT_ERROR, pid, position);
+            } else if (tableId == 0x70) {
+                tdtLastSeen = now;
+                if ((now != NEVER) && (tdtSectionLastSeen != NEVER) && ((now - tdtSectionLastSeen) < SI_MIN_INTERVAL))
+                    error(SI_REPETITION_ERROR, pid, position);
+                tdtSectionLastSeen = now;
+            } else if (tableId == 0x73) {
+                if ((now != NEVER) && (totSectionLastSeen != NEVER) && ((now - totSectionLastSeen) < SI_MIN_INTERVAL))
+                    error(SI_REPETITION_ERROR, pid, position);
+                totSectionLastSeen = now;
+            }
+            return;
+        }
+
+        if (pmtPid[pid] && (tableId == 0x02)) {
+            pmtLastSeen[pid] = now;
+            tables.section(pid, data, offset, length, crcValid, position);
+        }
+    }
+
+    /**
+     * Number of errors found for an indicator.
+     *
+     * @param indicator
+     *            The indicator.
+     * @return The count.
+     */
+    public long getErrorCount(int indicator) {
+        return errorCounts[indicator];
+    }
+
+    /**
+     * Number of errors recorded.
+     *
+     * @return The count (0 if errors are not being recorded).
+     */
+    public int getRecordedErrorCount() {
+        return errorPositions.size();
+    }
+
+    /**
+     * Position of a recorded error.
+     *
+     * @param index
+     *            Index of the error.
+     * @return The position of the packet which revealed it.
+     */
+    public long getErrorPosition(int index) {
+        return errorPositions.get(index);
+    }
+
+    /**
+     * Indicator of a recorded error.
+     *
+     * @param index
+     *            Index of the error.
+     * @return The indicator.
+     */
+    public int getErrorIndicator(int index) {
+        return errorIndicators.get(index);
+    }
+
+    /**
+     * PID of a recorded error.
+     *
+     * @param index
+     *            Index of the error.
+     * @return The PID, or -1 if it did not belong to one.
+     */
+    public int getErrorPid(int index) {
+        return errorPids.get(index);
+    }
+
+    /**
+     * Report an error.
+     *
+     * @param indicator
+     *            The indicator.
+     * @param pid
+     *            The PID, or -1.
+     * @param position
+     *            Position of the packet which revealed it.
+     */
+    private void error(int indicator, int pid, long position) {
+        errorCounts[indicator]++;
+        if (recordErrors) {
+            errorPositions.add(position);
+            errorIndicators.add(indicator);
+            errorPids.add(pid);
+        }
+        if (listener != null)
+            listener.error(indicator, pid, position);
+    }
+
+    /**
+     * Move the stream time on to a PCR of the time PID.
+     *
+     * @param packet
+     *            The packet carrying the PCR.
+     * @param position
+     *            Its position.
+     */
+    private void advanceTime(TransportPacket packet, long position) {
+        long pcr = packet.PCR();
+        if ((packet.adaptation_flags() & TransportPacket.adapflag_discontinuity_indicator) != 0)
+            pcr |= PCRTimeline.DISCONTINUITY_FLAG;
+
+        if (now == NEVER) {
+            timePcrTime = 0;
+        } else {
+            long bytes = position - timePcrPos;
+            long delta = PCRTimeline.pcrDelta(timePcr, pcr);
+            if (delta < 0) {
+                delta = (timeRate < 0) ? 0 : (long) (bytes * timeRate);
+            } else if (bytes > 0) {
+                timeRate = (double) delta / bytes;
+            }
+            timePcrTime += delta;
+        }
+        timePcr = pcr;
+        timePcrPos = position;
+    }
+
+    /**
+     * Check the timeouts.
+     */
+    private void sweep() {
+        if (patLastSeen == NEVER) {
+            patLastSeen = now;
+        } else if ((now - patLastSeen) > PAT_INTERVAL) {
+            error(PAT_ERROR, PID_PAT, currentPos);
+            patLastSeen = now;
+        }
+
+        for (int i = 0; i < pmtPids.size(); i++) {
+            int pid = pmtPids.get(i);
+            if (pmtLastSeen[pid] == NEVER) {
+                pmtLastSeen[pid] = now;
+            } else if ((now - pmtLastSeen[pid]) > PMT_INTERVAL) {
+                error(PMT_ERROR, pid, currentPos);
+                pmtLastSeen[pid] = now;
+            }
+        }
+
+        for (int i = 0; i < esPids.size(); i++) {
+            int pid = esPids.get(i);
+            if (lastSeen[pid] == NEVER) {
+                lastSeen[pid] = now;
+            } else if ((now - lastSeen[pid]) > pidErrorInterval) {
+                error(PID_ERROR, pid, currentPos);
+                lastSeen[pid] = now;
+            }
+        }
+
+        if (scrambled && !catSeen && !catErrorReported) {
+            error(CAT_ERROR, PID_CAT, currentPos);
+            catErrorReported = true;
+        }
+
+        nitLastSeen = checkTimeout(nitLastSeen, NIT_INTERVAL, NIT_ERROR, PID_NIT);
+        sdtLastSeen = checkTimeout(sdtLastSeen, SDT_INTERVAL, SDT_ERROR, PID_SDT);
+        eitLastSeen = checkTimeout(eitLastSeen, EIT_INTERVAL, EIT_ERROR, PID_EIT);
+        tdtLastSeen = checkTimeout(tdtLastSeen, TDT_INTERVAL, TDT_ERROR, PID_TDT);
+
+        // report PIDs which stayed unreferenced, dropping those since referenced
+        int kept = 0;
+        for (int i = 0; i < unreferencedPids.size(); i++) {
+            int pid = unreferencedPids.get(i);
+            if (referenced[pid]) {
+                unreferencedSince[pid] = NEVER;
+            } else if ((now - unreferencedSince[pid]) > UNREFERENCED_INTERVAL) {
+                error(UNREFERENCED_PID, pid, currentPos);
+                unreferencedSince[pid] = Long.MAX_VALUE;
+            } else {
+                unreferencedPids.set(kept++, pid);
+            }
+        }
+        unreferencedPids.truncate(kept);
+    }
+
+    /**
+     * Check the timeout of a DVB SI table which has been seen at least once.
+     *
+     * @param lastSeen
+     *            When the table was last seen, or NEVER.
+     * @param interval
+     *            Longest allowed gap.
+     * @param indicator
+     *            Indicator to report.
+     * @param pid
+     *            PID of the table.
+     * @return The new lastSeen value.
+     */
+    private long checkTimeout(long lastSeen, long interval, int indicator, int pid) {
+        if ((lastSeen == NEVER) || ((now - lastSeen) <= interval))
+            return lastSeen;
+
+        error(indicator, pid, currentPos);
+        return now;
+    }
+
+    /**
+     * Check a section of an SI table is not repeated too quickly.
+     *
+     * @param sectionLastSeen
+     *            When each section_number was last seen.
+     * @param sectionNumber
+     *            The section_number.
+     * @param pid
+     *            The PID.
+     * @param position
+     *            Position of the section.
+     */
+    private void checkRepetition(long[] sectionLastSeen, int sectionNumber, int pid, long position) {
+        if ((now != NEVER) && (sectionLastSeen[sectionNumber] != NEVER) && ((now - sectionLastSeen[sectionNumber]) < SI_MIN_INTERVAL))
+            error(SI_REPETITION_ERROR, pid, position);
+        sectionLastSeen[sectionNumber] = now;
+    }
+
+    /**
+     * Check the PCR of a packet.
+     *
+     * @param packet
+     *            The packet.
+     * @param pid
+     *            Its PID.
+     * @param position
+     *            Its position.
+     */
+    private void checkPCR(TransportPacket packet, int pid, long position) {
+        long pcr = packet.PCR();
+        boolean discontinuity = (packet.adaptation_flags() & TransportPacket.adapflag_discontinuity_indicator) != 0;
+
+        boolean restart = true;
+        if (pcrLast[pid] != -1) {
+            long delta = pcr - pcrLast[pid];
+            if (delta < -(PCRTimeline.PCR_MODULUS / 2))
+                delta += PCRTimeline.PCR_MODULUS;
+            else if (delta > (PCRTimeline.PCR_MODULUS / 2))
+                delta -= PCRTimeline.PCR_MODULUS;
+
+            if ((now != NEVER) && (pcrLastArrival[pid] != NEVER) && ((now - pcrLastArrival[pid]) > PCR_REPETITION_INTERVAL))
+                error(PCR_REPETITION_ERROR, pid, position);
+
+            if (!discontinuity) {
+                if ((delta < 0) || (delta > PCR_DISCONTINUITY_INTERVAL)) {
+                    error(PCR_DISCONTINUITY_INDICATOR_ERROR, pid, position);
+                } else {
+                    // compare with where the average transport rate of this
+                    // segment puts it; a bad PCR (or lost packets) starts a
+                    // new segment so one fault is only reported once
+                    long previousTime = pcrTime[pid];
+                    pcrTime[pid] += delta;
+                    restart = false;
+                    long previousBytes = pcrLastPos[pid] - pcrBasePos[pid];
+                    if (previousBytes > 0) {
+                        double rate = (double) previousTime / previousBytes;
+                        long expected = (long) ((position - pcrBasePos[pid]) * rate);
+                        if (Math.abs(pcrTime[pid] - expected) * 2 > PCR_ACCURACY_LIMIT_X2) {
+                            error(PCR_ACCURACY_ERROR, pid, position);
+                            restart = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (restart) {
+            pcrTime[pid] = 0;
+            pcrBasePos[pid] = position;
+        }
+        pcrLast[pid] = pcr;
+        pcrLastPos[pid] = position;
+        pcrLastArrival[pid] = now;
+    }
+
+    /**
+     * Check the PTS interval of a PES packet start.
+     *
+     * @param packet
+     *            The packet.
+     * @param pid
+     *            Its PID.
+     * @param position
+     *            Its position.
+     */
+    private void checkPTS(TransportPacket packet, int pid, long position) {
+        if ((now == NEVER) || (packet.payloadSize() < pesHeader.length))
+            return;
+
+        packet.getPayloadData(0, pesHeader, 0, pesHeader.length);
+        if ((pesHeader[0] != 0) || (pesHeader[1] != 0) || (pesHeader[2] != 1))
+            return;
+
+        // these stream_ids have no PES header extension
+        int streamId = pesHeader[3] & 0xff;
+        if ((streamId == 0xbc) || (streamId == 0xbe) || (streamId == 0xbf) || (streamId == 0xf0) || (streamId == 0xf1) || (streamId == 0xf2) || (streamId == 0xf8)
+                || (streamId == 0xff))
+            return;
+        if ((pesHeader[7] & 0x80) == 0)
+            return;
+
+        if ((ptsLastArrival[pid] != NEVER) && ((now - ptsLastArrival[pid]) > PTS_INTERVAL))
+            error(PTS_ERROR, pid, position);
+        ptsLastArrival[pid] = now;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.psi.TableListener#table(int, net.lidskialf.datadog.mpeg.psi.PsiTable)
+     */
+    public void table(int pid, PsiTable table) {
+        if (table instanceof ProgramAssociationTable) {
+            setPAT((ProgramAssociationTable) table);
+        } else if (table instanceof ConditionalAccessTable) {
+            reference(((ConditionalAccessTable) table).getCaPids());
+        } else if (table instanceof ProgramMapTable) {
+            ProgramMapTable pmt = (ProgramMapTable) table;
+            reference(pmt.getPcrPid());
+            reference(pmt.getCaPids());
+            for (int i = 0; i < pmt.getStreamCount(); i++) {
+                int esPid = pmt.getStreamPid(i);
+                reference(esPid);
+                if (!this.esPid[esPid]) {
+                    this.esPid[esPid] = true;
+                    esPids.add(esPid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Follow the PMT PIDs of a new PAT, dropping those no longer listed.
+     *
+     * @param pat
+     *            The PAT.
+     */
+    private void setPAT(ProgramAssociationTable pat) {
+        int kept = 0;
+        for (int i = 0; i < pmtPids.size(); i++) {
+            int pid = pmtPids.get(i);
+            if (isPmtPid(pat, pid)) {
+                pmtPids.set(kept++, pid);
+            } else {
+                pmtPid[pid] = false;
+                sections.removePid(pid);
+                tables.reset(pid);
+            }
+        }
+        pmtPids.truncate(kept);
+
+        for (int i = 0; i < pat.getProgramCount(); i++) {
+            int pid = pat.getPid(i);
+            reference(pid);
+            if ((pat.getProgramNumber(i) == 0) || pmtPid[pid])
+                continue;
+
+            pmtPid[pid] = true;
+            pmtPids.add(pid);
+            pmtLastSeen[pid] = now;
+            sections.addPid(pid);
+        }
+    }
+
+    /**
+     * Is a PID used for any PMT in a PAT?
+     *
+     * @param pat
+     *            The PAT.
+     * @param pid
+     *            The PID.
+     * @return True if it is.
+     */
+    private static boolean isPmtPid(ProgramAssociationTable pat, int pid) {
+        for (int i = 0; i < pat.getProgramCount(); i++) {
+            if ((pat.getProgramNumber(i) != 0) && (pat.getPid(i) == pid))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark some PIDs as referenced by a table.
+     *
+     * @param pids
+     *            The PIDs.
+     */
+    private void reference(int[] pids) {
+        for (int i = 0; i < pids.length; i++)
+            reference(pids[i]);
+    }
+
+    /**
+     * Mark a PID as referenced by a table.
+     *
+     * @param pid
+     *            The PID.
+     */
+    private void reference(int pid) {
+        referenced[pid] = true;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+/**
+ * Told about each error found by a TR101290Analyser as it happens.
+ *
+ * @author Andrew de Quincey
+ */
+public interface TR101290Listener {
+
+    /**
+     * Called for each error.
+     *
+     * @param indicator
+     *            The indicator concerned (one of the TR101290Analyser
+     *            constants).
+     * @param pid
+     *            The PID concerned, or -1 if the error does not belong to one.
+     * @param position
+     *            Position of the packet which revealed the error.
+     */
+    public void error(int indicator, int pid, long position);
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.analysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.lidskialf.datadog.Bitstream;
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.pes.*;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Index of the PTS and DTS of every PES packet on some elementary stream
+ * PIDs, for A/V offset checks and finding the frame with a given PTS.
+ *
+ * Timestamps are unwrapped from 33 bits into a single timeline shared by all
+ * the PIDs: each one is taken as the value closest to the one before it in
+ * the stream, on whichever PID that was. PES packets without a PTS are not
+ * indexed; a PES packet with a PTS but no DTS has its DTS recorded as equal
+ * to its PTS.
+ *
+ * @author Andrew de Quincey
+ */
+public class TimestampIndex implements ChunkAnalyser, PesHandler {
+
+    /**
+     * Frequency of the PTS/DTS clock.
+     */
+    public static final long TIMESTAMP_FREQUENCY = 90000;
+
+    /**
+     * PTS/DTS values wrap at this value.
+     */
+    public static final long TIMESTAMP_MODULUS = 1L << 33;
+
+    /**
+     * Marks timestamps which have not been seen.
+     */
+    private static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * Maximum number of entries per PID the sorted PTS lookup can handle.
+     */
+    private static final int MAX_SORTED_ENTRIES = 1 << 24;
+
+    /**
+     * The Bitstream the packets come from.
+     */
+    private Bitstream bitstream;
+
+    /**
+     * The PIDs being indexed.
+     */
+    private int[] pids;
+
+    /**
+     * Rebuilds the PES packets.
+     */
+    private PesAssembler assembler;
+
+    /**
+     * Positions of the PES packets on each PID (null if none).
+     */
+    private LongArray[] positions = new LongArray[Constants.PID_COUNT];
+
+    /**
+     * Unwrapped PTS of the PES packets on each PID.
+     */
+    private LongArray[] ptss = new LongArray[Constants.PID_COUNT];
+
+    /**
+     * Unwrapped DTS of the PES packets on each PID.
+     */
+    private LongArray[] dtss = new LongArray[Constants.PID_COUNT];
+
+    /**
+     * (PTS - smallest PTS) shifted up 24 bits, plus the entry index, of each
+     * PID's entries in ascending order; built on first use.
+     */
+    private long[][] sortedPts = new long[Constants.PID_COUNT][];
+
+    /**
+     * First unwrapped timestamp indexed.
+     */
+    private long firstTimestamp = NONE;
+
+    /**
+     * Last unwrapped timestamp indexed (on any PID).
+     */
+    private long lastTimestamp = NONE;
+
+    /**
+     * Constructor.
+     *
+     * @param bitstream
+     *            The Bitstream the packets come from.
+     * @param pids
+     *            The elementary stream PIDs to index.
+     */
+    public TimestampIndex(Bitstream bitstream, int[] pids) {
+        this.bitstream = bitstream;
+        this.pids = (int[]) pids.clone();
+
+        assembler = new PesAssembler(bitstream, this);
+        for (int i = 0; i < pids.length; i++)
+            assembler.addPid(pids[i]);
+    }
+
+    /**
+     * Index some PIDs of a whole stream.
+     *
+     * @param stream
+     *            The stream.
+     * @param pids
+     *            The elementary stream PIDs to index.
+     * @return The index.
+     * @throws IOException
+     *             On error.
+     */
+    public static TimestampIndex build(TransportStream stream, int[] pids) throws IOException {
+        return (TimestampIndex) new TransportStreamScanner(stream).scan(new TimestampIndex(stream.getBitstream(), pids));
+    }
+
+    /**
+     * Unwrap a 33 bit timestamp.
+     *
+     * @param reference
+     *            An unwrapped timestamp near the expected value.
+     * @param raw
+     *            The 33 bit timestamp.
+     * @return The value congruent to raw (mod TIMESTAMP_MODULUS) closest to
+     *         reference.
+     */
+    public static long unwrap(long reference, long raw) {
+        long delta = (raw - reference) % TIMESTAMP_MODULUS;
+        if (delta < 0)
+            delta += TIMESTAMP_MODULUS;
+        if (delta >= TIMESTAMP_MODULUS / 2)
+            delta -= TIMESTAMP_MODULUS;
+        return reference + delta;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new TimestampIndex(bitstream, pids);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) throws IOException {
+        return assembler.packet(packet);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.pes.PesHandler#pes(net.lidskialf.datadog.mpeg.pes.PesPacket)
+     */
+    public void pes(PesPacket pes) {
+        if (!pes.hasPTS())
+            return;
+
+        long pts = pes.getPTS();
+        if (lastTimestamp != NONE)
+            pts = unwrap(lastTimestamp, pts);
+        long dts = pes.hasDTS() ? unwrap(pts, pes.getDTS()) : pts;
+
+        int pid = pes.getPid();
+        synchronized (this) {
+            if (positions[pid] == null) {
+                positions[pid] = new LongArray();
+                ptss[pid] = new LongArray();
+                dtss[pid] = new LongArray();
+            }
+
+            positions[pid].add(pes.getPosition());
+            ptss[pid].add(pts);
+            dtss[pid].add(dts);
+            sortedPts[pid] = null;
+
+            if (firstTimestamp == NONE)
+                firstTimestamp = dts;
+            lastTimestamp = dts;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() throws IOException {
+        // PES packets running into the next chunk still have their headers
+        assembler.finish();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public synchronized void merge(ChunkAnalyser following) {
+        TimestampIndex other = (TimestampIndex) following;
+        if (other.firstTimestamp == NONE)
+            return;
+
+        // bring the following chunk onto this chunk's timeline
+        long offset = 0;
+        if (lastTimestamp != NONE)
+            offset = unwrap(lastTimestamp, other.firstTimestamp) - other.firstTimestamp;
+
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (other.positions[pid] == null)
+                continue;
+
+            if (positions[pid] == null) {
+                positions[pid] = new LongArray(other.positions[pid].size());
+                ptss[pid] = new LongArray(other.positions[pid].size());
+                dtss[pid] = new LongArray(other.positions[pid].size());
+            }
+
+            positions[pid].addAll(other.positions[pid]);
+            for (int i = 0; i < other.positions[pid].size(); i++) {
+                ptss[pid].add(other.ptss[pid].get(i) + offset);
+                dtss[pid].add(other.dtss[pid].get(i) + offset);
+            }
+            sortedPts[pid] = null;
+        }
+
+        if (firstTimestamp == NONE)
+            firstTimestamp = other.firstTimestamp + offset;
+        lastTimestamp = other.lastTimestamp + offset;
+    }
+
+    /**
+     * Get the PIDs with timestamps.
+     *
+     * @return Ascending array of PIDs.
+     */
+    public synchronized int[] getPids() {
+        int count = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (positions[pid] != null)
+                count++;
+        }
+
+        int[] tmp = new int[count];
+        count = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (positions[pid] != null)
+                tmp[count++] = pid;
+        }
+        return tmp;
+    }
+
+    /**
+     * Number of PES packets indexed on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public synchronized int getCount(int pid) {
+        return (positions[pid] == null) ? 0 : positions[pid].size();
+    }
+
+    /**
+     * Position of the transport packet a PES packet starts in.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The position.
+     */
+    public synchronized long getPosition(int pid, int index) {
+        return positions[pid].get(index);
+    }
+
+    /**
+     * Unwrapped PTS of a PES packet.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The PTS in 90kHz ticks.
+     */
+    public synchronized long getPTS(int pid, int index) {
+        return ptss[pid].get(index);
+    }
+
+    /**
+     * Unwrapped DTS of a PES packet.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the entry.
+     * @return The DTS in 90kHz ticks.
+     */
+    public synchronized long getDTS(int pid, int index) {
+        return dtss[pid].get(index);
+    }
+
+    /**
+     * Find the last PES packet starting at or before a position.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            The position.
+     * @return Index of the entry, or -1 if there is none.
+     */
+    public synchronized int getIndex(int pid, long position) {
+        if (positions[pid] == null)
+            return -1;
+        return positions[pid].floorIndex(position);
+    }
+
+    /**
+     * Get the PTS of the last PES packet starting at or before a position.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            The position.
+     * @return The unwrapped PTS, or Long.MIN_VALUE if there is none.
+     */
+    public synchronized long getPTSAt(int pid, long position) {
+        int index = getIndex(pid, position);
+        if (index < 0)
+            return Long.MIN_VALUE;
+        return ptss[pid].get(index);
+    }
+
+    /**
+     * Find the last PES packet in decoding order with a DTS at or before a
+     * given DTS.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param dts
+     *            The unwrapped DTS.
+     * @return Index of the entry, or -1 if there is none.
+     */
+    public synchronized int getIndexForDTS(int pid, long dts) {
+        if (positions[pid] == null)
+            return -1;
+        return dtss[pid].floorIndex(dts);
+    }
+
+    /**
+     * Find the PES packet with the highest PTS at or before a given PTS.
+     * PTS are not in stream order where frames are reordered, so this
+     * searches a sorted copy.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param pts
+     *            The unwrapped PTS.
+     * @return Index of the entry, or -1 if there is none.
+     */
+    public synchronized int getIndexForPTS(int pid, long pts) {
+        long[] sorted = sortedPts(pid);
+        if ((sorted == null) || (sorted.length == 0))
+            return -1;
+
+        long min = ptss[pid].get((int) (sorted[0] & (MAX_SORTED_ENTRIES - 1)));
+        if (pts < min)
+            return -1;
+
+        // find the last key for this PTS or below
+        long key = ((pts - min) << 24) | (MAX_SORTED_ENTRIES - 1);
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return (int) (sorted[high] & (MAX_SORTED_ENTRIES - 1));
+    }
+
+    /**
+     * Build (if necessary) the sorted PTS keys of a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The keys, or null if the PID has no entries.
+     */
+    private long[] sortedPts(int pid) {
+        if (positions[pid] == null)
+            return null;
+        if (sortedPts[pid] != null)
+            return sortedPts[pid];
+
+        int count = Math.min(ptss[pid].size(), MAX_SORTED_ENTRIES);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++)
+            min = Math.min(min, ptss[pid].get(i));
+
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = ((ptss[pid].get(i) - min) << 24) | i;
+        Arrays.sort(keys);
+
+        sortedPts[pid] = keys;
+        return keys;
+    }
+}
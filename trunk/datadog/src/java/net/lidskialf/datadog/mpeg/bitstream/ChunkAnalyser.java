@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.io.IOException;
+
+/**
+ * A PacketSink whose work can be split into independent chunks of the stream
+ * and merged back together afterwards, so TransportStreamScanner can run it
+ * over many chunks in parallel.
+ *
+ * @author Andrew de Quincey
+ */
+public interface ChunkAnalyser extends PacketSink {
+
+    /**
+     * Create a fresh, empty analyser of the same kind and configuration to
+     * process one chunk.
+     *
+     * @param startPos
+     *            Position of the first packet of the chunk.
+     * @param endPos
+     *            Position just after the last packet of the chunk.
+     * @return The new analyser.
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos);
+
+    /**
+     * Called once all the packets of the chunk have been passed to packet().
+     *
+     * @throws IOException
+     *             On error.
+     */
+    public void finish() throws IOException;
+
+    /**
+     * Fold in the results of the chunk immediately following this one. Chunks
+     * are always merged in stream order.
+     *
+     * @param following
+     *            Analyser for the following chunk (created by
+     *            createChunkAnalyser() on an analyser of this kind).
+     */
+    public void merge(ChunkAnalyser following);
+}
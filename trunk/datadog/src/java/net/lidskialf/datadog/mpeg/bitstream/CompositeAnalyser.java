@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.io.IOException;
+
+/**
+ * A ChunkAnalyser which feeds each packet to several others, so they can all
+ * be run in a single pass over the stream. Sync errors are passed on to those
+ * which are SyncErrorSinks.
+ *
+ * @author Andrew de Quincey
+ */
+public class CompositeAnalyser implements ChunkAnalyser, SyncErrorSink {
+
+    /**
+     * The analysers.
+     */
+    private ChunkAnalyser[] analysers;
+
+    /**
+     * Which analysers have asked for no more packets.
+     */
+    private boolean[] done;
+
+    /**
+     * Number of analysers still wanting packets.
+     */
+    private int active;
+
+    /**
+     * Constructor.
+     *
+     * @param analysers
+     *            The analysers to run.
+     */
+    public CompositeAnalyser(ChunkAnalyser[] analysers) {
+        this.analysers = analysers;
+        this.done = new boolean[analysers.length];
+        this.active = analysers.length;
+    }
+
+    /**
+     * Number of analysers being run.
+     *
+     * @return The count.
+     */
+    public int getAnalyserCount() {
+        return analysers.length;
+    }
+
+    /**
+     * Get one of the analysers.
+     *
+     * @param index
+     *            Index of the analyser as passed to the constructor.
+     * @return The analyser.
+     */
+    public ChunkAnalyser getAnalyser(int index) {
+        return analysers[index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        ChunkAnalyser[] chunkAnalysers = new ChunkAnalyser[analysers.length];
+        for (int i = 0; i < analysers.length; i++) {
+            chunkAnalysers[i] = analysers[i].createChunkAnalyser(startPos, endPos);
+        }
+        return new CompositeAnalyser(chunkAnalysers);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) throws IOException {
+        for (int i = 0; i < analysers.length; i++) {
+            if (!done[i] && !analysers[i].packet(packet)) {
+                done[i] = true;
+                active--;
+            }
+        }
+        return active > 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.SyncErrorSink#syncError(long)
+     */
+    public void syncError(long position) throws IOException {
+        for (int i = 0; i < analysers.length; i++) {
+            if (!done[i] && (analysers[i] instanceof SyncErrorSink))
+                ((SyncErrorSink) analysers[i]).syncError(position);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() throws IOException {
+        for (int i = 0; i < analysers.length; i++) {
+            analysers[i].finish();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public void merge(ChunkAnalyser following) {
+        CompositeAnalyser other = (CompositeAnalyser) following;
+        for (int i = 0; i < analysers.length; i++) {
+            analysers[i].merge(other.analysers[i]);
+        }
+    }
+}
@@ -33,4 +33,14 @@ public class Constants {
      * The length of a transport stream packet in bytes.
      */
     public static final int TS_PACKET_LENGTH = 188;
+
+    /**
+     * The PID of null (stuffing) packets.
+     */
+    public static final int TS_NULL_PID = 0x1fff;
+
+    /**
+     * Number of possible PIDs.
+     */
+    public static final int PID_COUNT = 0x2000;
 }
@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.text.ParseException;
+import java.util.Arrays;
+
+import net.lidskialf.datadog.util.IntArray;
+
+/**
+ * A predicate over the header fields of transport packets, compiled from an
+ * expression such as <code>pid == 0x100 &amp;&amp; pcr &amp;&amp; !cc_ok</code>.
+ *
+ * The expression is compiled into a branch program in the style of a BPF
+ * filter: each instruction masks a field out of the raw header bytes,
+ * compares it with a constant and jumps forward to one of two further
+ * instructions (or to the accept/reject exits) on the result. &amp;&amp;, ||
+ * and ! cost nothing at run time, as they are folded into the jump targets,
+ * and nothing is decoded or allocated per packet. The PIDs the program can
+ * possibly accept are also worked out when it is compiled, so most packets
+ * are rejected by a PidFilter style bitmap test before the program runs.
+ *
+ * Fields (all compared as unsigned integers; a field on its own is true when
+ * it is non zero):
+ * <ul>
+ * <li>tei, pusi, priority, pid, scrambling, afc, cc - the packet header</li>
+ * <li>adaptation, payload - the halves of afc</li>
+ * <li>af_length - adaptation_field_length (0 with no adaptation field)</li>
+ * <li>discontinuity, random_access, es_priority, pcr, opcr, splicing_point,
+ * private_data, af_extension - the adaptation field flags</li>
+ * <li>cc_ok - false if the continuity_counter is wrong, following the rules
+ * of ContinuityAnalyser. It is worked out from the packets the filter has
+ * been shown, so the first packet of each PID always passes.</li>
+ * </ul>
+ * Comparisons are ==, !=, &lt;, &lt;=, &gt; and &gt;=; they may be combined
+ * with &amp;&amp;, || and !, and grouped with brackets.
+ *
+ * Filters using cc_ok keep state, so are not thread safe; use copy() to get
+ * one for each thread.
+ *
+ * @author Andrew de Quincey
+ */
+public class PacketFilter {
+
+    /**
+     * Source for fields in header bytes 1-3.
+     */
+    private static final int SOURCE_HEADER = 0;
+
+    /**
+     * Source for the adaptation_field_length.
+     */
+    private static final int SOURCE_AF_LENGTH = 1;
+
+    /**
+     * Source for the adaptation field flags.
+     */
+    private static final int SOURCE_AF_FLAGS = 2;
+
+    /**
+     * Source for the result of the continuity check.
+     */
+    private static final int SOURCE_CC_OK = 3;
+
+    private static final int COMPARE_EQ = 0;
+    private static final int COMPARE_NE = 1;
+    private static final int COMPARE_LT = 2;
+    private static final int COMPARE_LE = 3;
+    private static final int COMPARE_GT = 4;
+    private static final int COMPARE_GE = 5;
+
+    /**
+     * Comparison operators, indexed by COMPARE_*.
+     */
+    private static final String[] OPERATORS = { "==", "!=", "<", "<=", ">", ">=" };
+
+    /**
+     * Number of ints in each instruction: source, shift, mask, comparison,
+     * constant, next instruction if true, next instruction if false.
+     */
+    private static final int STRIDE = 7;
+
+    /**
+     * Names of the fields.
+     */
+    private static final String[] FIELD_NAMES = { "tei", "pusi", "priority", "pid", "scrambling", "afc", "adaptation", "payload", "cc", "af_length",
+            "discontinuity", "random_access", "es_priority", "pcr", "opcr", "splicing_point", "private_data", "af_extension", "cc_ok" };
+
+    /**
+     * Source, shift and mask of each field, matching FIELD_NAMES.
+     */
+    private static final int[][] FIELDS = { { SOURCE_HEADER, 23, 1 }, { SOURCE_HEADER, 22, 1 }, { SOURCE_HEADER, 21, 1 }, { SOURCE_HEADER, 8, 0x1fff },
+            { SOURCE_HEADER, 6, 3 }, { SOURCE_HEADER, 4, 3 }, { SOURCE_HEADER, 5, 1 }, { SOURCE_HEADER, 4, 1 }, { SOURCE_HEADER, 0, 0x0f },
+            { SOURCE_AF_LENGTH, 0, 0xff }, { SOURCE_AF_FLAGS, 7, 1 }, { SOURCE_AF_FLAGS, 6, 1 }, { SOURCE_AF_FLAGS, 5, 1 }, { SOURCE_AF_FLAGS, 4, 1 },
+            { SOURCE_AF_FLAGS, 3, 1 }, { SOURCE_AF_FLAGS, 2, 1 }, { SOURCE_AF_FLAGS, 1, 1 }, { SOURCE_AF_FLAGS, 0, 1 }, { SOURCE_CC_OK, 0, 1 } };
+
+    /**
+     * Bits of the header word holding the PID.
+     */
+    private static final int PID_BITS = 0x1fff << 8;
+
+    /**
+     * lastCC value for a PID whose counter is not known.
+     */
+    private static final byte UNKNOWN = -1;
+
+    /**
+     * The source expression.
+     */
+    private String expression;
+
+    /**
+     * The program.
+     */
+    private int[] code;
+
+    /**
+     * Number of instructions; jumping to this accepts the packet, and to one
+     * past it rejects it.
+     */
+    private int length;
+
+    /**
+     * The PIDs the program can accept, or null for any of them.
+     */
+    private PidFilter pids;
+
+    /**
+     * Does the program use cc_ok?
+     */
+    private boolean checksContinuity;
+
+    /**
+     * Last continuity_counter of each PID, or UNKNOWN (only when checking
+     * continuity).
+     */
+    private byte[] lastCC;
+
+    /**
+     * Number of duplicates of the last packet of each PID (only when
+     * checking continuity).
+     */
+    private byte[] duplicates;
+
+    /**
+     * Constructor.
+     *
+     * @param expression
+     *            The source expression.
+     * @param code
+     *            The program.
+     * @param pids
+     *            The PIDs it can accept, or null for any of them.
+     */
+    private PacketFilter(String expression, int[] code, PidFilter pids) {
+        this.expression = expression;
+        this.code = code;
+        this.length = code.length / STRIDE;
+        this.pids = pids;
+
+        for (int pc = 0; pc < length; pc++)
+            checksContinuity |= code[pc * STRIDE] == SOURCE_CC_OK;
+        if (checksContinuity) {
+            lastCC = new byte[Constants.PID_COUNT];
+            duplicates = new byte[Constants.PID_COUNT];
+            reset();
+        }
+    }
+
+    /**
+     * Compile an expression.
+     *
+     * @param expression
+     *            The expression.
+     * @return The filter.
+     * @throws ParseException
+     *             If the expression is not valid.
+     */
+    public static PacketFilter compile(String expression) throws ParseException {
+        Parser parser = new Parser(expression);
+        Node root = parser.parseOr();
+        parser.skipSpace();
+        if (parser.pos < expression.length())
+            throw new ParseException("Unexpected '" + expression.charAt(parser.pos) + "'", parser.pos);
+
+        // instructions are emitted last first, so every jump is to one
+        // already emitted, then put the right way round
+        IntArray emitted = new IntArray();
+        root.emit(emitted, -1, -2);
+        int count = emitted.size() / STRIDE;
+        int[] code = new int[emitted.size()];
+        for (int i = 0; i < count; i++) {
+            int pc = count - 1 - i;
+            emitted.get(i * STRIDE, code, pc * STRIDE, STRIDE);
+            for (int j = 5; j < 7; j++) {
+                int target = code[(pc * STRIDE) + j];
+                code[(pc * STRIDE) + j] = (target == -1) ? count : (target == -2) ? count + 1 : count - 1 - target;
+            }
+        }
+
+        return new PacketFilter(expression, code, findPids(code));
+    }
+
+    /**
+     * Get a filter running the same program, with its own continuity state.
+     *
+     * @return The new filter.
+     */
+    public PacketFilter copy() {
+        return new PacketFilter(expression, code, pids);
+    }
+
+    /**
+     * Forget the continuity_counters seen so far, as when starting to read
+     * from a new position.
+     */
+    public void reset() {
+        if (checksContinuity) {
+            Arrays.fill(lastCC, UNKNOWN);
+            Arrays.fill(duplicates, (byte) 0);
+        }
+    }
+
+    /**
+     * Get the PIDs the filter can accept.
+     *
+     * @return A copy of the filter of them, or null if it can accept any PID.
+     */
+    public PidFilter getPidFilter() {
+        return (pids != null) ? new PidFilter(pids) : null;
+    }
+
+    /**
+     * Is the packet at a given offset in a buffer accepted?
+     *
+     * @param data
+     *            Buffer holding the packet.
+     * @param offset
+     *            Offset of the packet's sync byte.
+     * @return True if it is.
+     */
+    public boolean accepts(byte[] data, int offset) {
+        int header = ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        if ((pids != null) && !pids.accepts((header & PID_BITS) >>> 8))
+            return false;
+        boolean ccOk = checksContinuity ? checkContinuity(header, data, offset) : true;
+
+        int[] code = this.code;
+        int pc = 0;
+        while (pc < length) {
+            int i = pc * STRIDE;
+            int value;
+            switch (code[i]) {
+            case SOURCE_HEADER:
+                value = header;
+                break;
+            case SOURCE_AF_LENGTH:
+                value = ((header & 0x20) != 0) ? data[offset + 4] & 0xff : 0;
+                break;
+            case SOURCE_AF_FLAGS:
+                value = (((header & 0x20) != 0) && ((data[offset + 4] & 0xff) >= 1)) ? data[offset + 5] & 0xff : 0;
+                break;
+            default:
+                value = ccOk ? 1 : 0;
+                break;
+            }
+
+            pc = compare((value >>> code[i + 1]) & code[i + 2], code[i + 3], code[i + 4]) ? code[i + 5] : code[i + 6];
+        }
+        return pc == length;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Check the continuity_counter of a packet, and remember it for the next
+     * packet on the PID.
+     *
+     * @param header
+     *            Header bytes 1-3 of the packet.
+     * @param data
+     *            Buffer holding the packet.
+     * @param offset
+     *            Offset of the packet's sync byte.
+     * @return False if the counter is wrong.
+     */
+    private boolean checkContinuity(int header, byte[] data, int offset) {
+        int pid = (header & PID_BITS) >>> 8;
+        if ((pid == Constants.TS_NULL_PID) || ((header & 0x800000) != 0))
+            return true;
+
+        boolean discontinuity = ((header & 0x20) != 0) && ((data[offset + 4] & 0xff) >= 1)
+                && ((data[offset + 5] & TransportPacket.adapflag_discontinuity_indicator) != 0);
+        boolean payload = (header & 0x10) != 0;
+        if (!payload && !discontinuity)
+            return true;
+
+        byte cc = (byte) (header & 0x0f);
+        if (discontinuity || (lastCC[pid] == UNKNOWN)) {
+            lastCC[pid] = payload ? cc : UNKNOWN;
+            duplicates[pid] = 0;
+            return true;
+        }
+        if (cc == lastCC[pid]) {
+            // one duplicate is allowed
+            if (duplicates[pid] < 2)
+                duplicates[pid]++;
+            return duplicates[pid] == 1;
+        }
+
+        boolean ok = cc == ((lastCC[pid] + 1) & 0x0f);
+        lastCC[pid] = cc;
+        duplicates[pid] = 0;
+        return ok;
+    }
+
+    /**
+     * Apply a comparison.
+     *
+     * @param value
+     *            The field value.
+     * @param comparison
+     *            One of COMPARE_*.
+     * @param constant
+     *            The value to compare with.
+     * @return The result.
+     */
+    private static boolean compare(int value, int comparison, int constant) {
+        switch (comparison) {
+        case COMPARE_EQ:
+            return value == constant;
+        case COMPARE_NE:
+            return value != constant;
+        case COMPARE_LT:
+            return value < constant;
+        case COMPARE_LE:
+            return value <= constant;
+        case COMPARE_GT:
+            return value > constant;
+        default:
+            return value >= constant;
+        }
+    }
+
+    /**
+     * Work out which PIDs a program can accept, by following it for each
+     * PID in turn, taking both branches of every instruction testing anything
+     * other than the PID.
+     *
+     * @param code
+     *            The program.
+     * @return The PIDs, or null if it can accept any of them.
+     */
+    private static PidFilter findPids(int[] code) {
+        int length = code.length / STRIDE;
+        boolean[] reachable = new boolean[length + 2];
+        PidFilter pids = new PidFilter();
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            Arrays.fill(reachable, false);
+            reachable[0] = true;
+            for (int pc = 0; pc < length; pc++) {
+                if (!reachable[pc])
+                    continue;
+
+                int i = pc * STRIDE;
+                if ((code[i] == SOURCE_HEADER) && (((code[i + 2] << code[i + 1]) & ~PID_BITS) == 0)) {
+                    boolean result = compare(((pid << 8) >>> code[i + 1]) & code[i + 2], code[i + 3], code[i + 4]);
+                    reachable[code[i + (result ? 5 : 6)]] = true;
+                } else {
+                    reachable[code[i + 5]] = true;
+                    reachable[code[i + 6]] = true;
+                }
+            }
+            if (reachable[length])
+                pids.add(pid);
+        }
+
+        return (pids.size() == Constants.PID_COUNT) ? null : pids;
+    }
+
+    /**
+     * A node of a parsed expression.
+     */
+    private static class Node {
+
+        /**
+         * &amp;&amp; node.
+         */
+        static final int AND = 0;
+
+        /**
+         * || node.
+         */
+        static final int OR = 1;
+
+        /**
+         * ! node (the operand is left).
+         */
+        static final int NOT = 2;
+
+        /**
+         * Comparison node.
+         */
+        static final int COMPARE = 3;
+
+        int type;
+
+        Node left;
+
+        Node right;
+
+        /**
+         * The instruction, for comparison nodes.
+         */
+        int[] instruction;
+
+        /**
+         * Emit the instructions for this node.
+         *
+         * @param code
+         *            Instructions emitted so far.
+         * @param ifTrue
+         *            Where to go if this node is true.
+         * @param ifFalse
+         *            Where to go if it is false.
+         * @return Index of this node's first instruction.
+         */
+        int emit(IntArray code, int ifTrue, int ifFalse) {
+            switch (type) {
+            case AND:
+                return left.emit(code, right.emit(code, ifTrue, ifFalse), ifFalse);
+            case OR:
+                return left.emit(code, ifTrue, right.emit(code, ifTrue, ifFalse));
+            case NOT:
+                return left.emit(code, ifFalse, ifTrue);
+            default:
+                for (int i = 0; i < 5; i++)
+                    code.add(instruction[i]);
+                code.add(ifTrue);
+                code.add(ifFalse);
+                return (code.size() / STRIDE) - 1;
+            }
+        }
+    }
+
+    /**
+     * Recursive descent parser for expressions.
+     */
+    private static class Parser {
+
+        private String text;
+
+        int pos = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param text The expression.
+         */
+        Parser(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Parse a || expression.
+         *
+         * @return The node.
+         * @throws ParseException If the expression is not valid.
+         */
+        Node parseOr() throws ParseException {
+            Node node = parseAnd();
+            while (accept("||"))
+                node = combine(Node.OR, node, parseAnd());
+            return node;
+        }
+
+        /**
+         * Parse a &amp;&amp; expression.
+         *
+         * @return The node.
+         * @throws ParseException If the expression is not valid.
+         */
+        Node parseAnd() throws ParseException {
+            Node node = parseUnary();
+            while (accept("&&"))
+                node = combine(Node.AND, node, parseUnary());
+            return node;
+        }
+
+        /**
+         * Parse a negation, bracketed expression or comparison.
+         *
+         * @return The node.
+         * @throws ParseException If the expression is not valid.
+         */
+        Node parseUnary() throws ParseException {
+            if (accept("!"))
+                return combine(Node.NOT, parseUnary(), null);
+
+            if (accept("(")) {
+                Node node = parseOr();
+                if (!accept(")"))
+                    throw new ParseException("Missing ')'", pos);
+                return node;
+            }
+
+            // a field, optionally compared with a constant
+            int start = pos;
+            String name = parseWord();
+            int field = Arrays.asList(FIELD_NAMES).indexOf(name);
+            if (field == -1)
+                throw new ParseException((name.length() == 0) ? "Field name expected" : "Unknown field '" + name + "'", start);
+
+            Node node = new Node();
+            node.type = Node.COMPARE;
+            node.instruction = new int[] { FIELDS[field][0], FIELDS[field][1], FIELDS[field][2], COMPARE_NE, 0 };
+
+            // try the two character operators first
+            for (int i = OPERATORS.length - 1; i >= 0; i--) {
+                if (accept(OPERATORS[i])) {
+                    node.instruction[3] = i;
+                    skipSpace();
+                    start = pos;
+                    String number = parseWord();
+                    try {
+                        node.instruction[4] = Integer.decode(number).intValue();
+                    } catch (NumberFormatException e) {
+                        throw new ParseException((number.length() == 0) ? "Number expected" : "Invalid number '" + number + "'", start);
+                    }
+                    break;
+                }
+            }
+            return node;
+        }
+
+        /**
+         * Skip any whitespace.
+         */
+        void skipSpace() {
+            while ((pos < text.length()) && Character.isWhitespace(text.charAt(pos)))
+                pos++;
+        }
+
+        /**
+         * Consume a token if it comes next.
+         *
+         * @param token The token.
+         * @return True if it came next.
+         */
+        private boolean accept(String token) {
+            skipSpace();
+            if (!text.startsWith(token, pos))
+                return false;
+            // don't take the start of a longer operator
+            if (token.equals("<") || token.equals(">") || token.equals("!")) {
+                if (text.startsWith("=", pos + 1))
+                    return false;
+            }
+            pos += token.length();
+            return true;
+        }
+
+        /**
+         * Consume a field name or number.
+         *
+         * @return The word (empty if there is none).
+         */
+        private String parseWord() {
+            skipSpace();
+            int start = pos;
+            while ((pos < text.length()) && (Character.isLetterOrDigit(text.charAt(pos)) || (text.charAt(pos) == '_')))
+                pos++;
+            return text.substring(start, pos).toLowerCase();
+        }
+
+        /**
+         * Make an operator node.
+         *
+         * @param type Node.AND, Node.OR or Node.NOT.
+         * @param left The first operand.
+         * @param right The second operand, or null.
+         * @return The node.
+         */
+        private static Node combine(int type, Node left, Node right) {
+            Node node = new Node();
+            node.type = type;
+            node.left = left;
+            node.right = right;
+            return node;
+        }
+    }
+}
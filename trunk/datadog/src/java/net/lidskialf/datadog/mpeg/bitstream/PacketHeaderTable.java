@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * The decoded header fields of every packet of a TransportStream, held as one
+ * column per field and indexed by packet number (stream position /
+ * TS_PACKET_LENGTH). It is filled once by passing it every packet of the
+ * stream as a PacketSink; counts and histograms over any range of packets are
+ * then simple loops over the columns rather than re-reading the packets.
+ *
+ * Each packet takes five bytes, which comes to gigabytes for a long capture,
+ * so the columns are kept in a memory-mapped temporary file rather than on
+ * the heap. The file is split into segments of SEGMENT_PACKETS packets, as a
+ * single mapping cannot exceed 2GB.
+ *
+ * @author Andrew de Quincey
+ */
+public class PacketHeaderTable implements PacketSink {
+
+    /**
+     * PID recorded for packets without a sync byte (and those not filled in).
+     */
+    public static final int NO_PID = Constants.PID_COUNT;
+
+    /**
+     * Flag: transport_error_indicator.
+     */
+    public static final int FLAG_TRANSPORT_ERROR = 0x80;
+
+    /**
+     * Flag: payload_unit_start_indicator.
+     */
+    public static final int FLAG_PAYLOAD_UNIT_START = 0x40;
+
+    /**
+     * Flag: transport_priority.
+     */
+    public static final int FLAG_PRIORITY = 0x20;
+
+    /**
+     * Flag: the adaptation field carries a PCR.
+     */
+    public static final int FLAG_PCR = 0x10;
+
+    /**
+     * Flag: discontinuity_indicator.
+     */
+    public static final int FLAG_DISCONTINUITY = 0x08;
+
+    /**
+     * Flag: random_access_indicator.
+     */
+    public static final int FLAG_RANDOM_ACCESS = 0x04;
+
+    /**
+     * Flag: the packet has an adaptation field.
+     */
+    public static final int FLAG_ADAPTATION = 0x02;
+
+    /**
+     * Flag: the packet has a payload.
+     */
+    public static final int FLAG_PAYLOAD = 0x01;
+
+    /**
+     * log2 of the number of packets in each segment.
+     */
+    private static final int SEGMENT_SHIFT = 28;
+
+    /**
+     * Number of packets in each segment.
+     */
+    private static final int SEGMENT_PACKETS = 1 << SEGMENT_SHIFT;
+
+    /**
+     * Mask giving the index of a packet within its segment.
+     */
+    private static final int SEGMENT_MASK = SEGMENT_PACKETS - 1;
+
+    /**
+     * Bytes taken by each packet.
+     */
+    private static final int PACKET_BYTES = 5;
+
+    private int packetCount;
+
+    /**
+     * PID of each packet XORed with NO_PID, for each segment. A packet which
+     * has not been filled in is therefore 0 in the new file, and reads back
+     * as NO_PID.
+     */
+    private ShortBuffer[] pids;
+
+    /**
+     * FLAG_* bits of each packet, for each segment.
+     */
+    private ByteBuffer[] flags;
+
+    /**
+     * continuity_counter of each packet in the low nibble, and
+     * transport_scrambling_control in bits 4 and 5, for each segment.
+     */
+    private ByteBuffer[] ccs;
+
+    /**
+     * adaptation_field_length of each packet (unsigned, 0 if it has no
+     * adaptation field), for each segment.
+     */
+    private ByteBuffer[] adaptationLengths;
+
+    /**
+     * Constructor.
+     *
+     * @param packetCount
+     *            Number of packets in the stream.
+     * @throws IOException
+     *             If the temporary file cannot be created or mapped.
+     */
+    public PacketHeaderTable(int packetCount) throws IOException {
+        this.packetCount = packetCount;
+
+        int segments = (int) (((long) packetCount + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        pids = new ShortBuffer[segments];
+        flags = new ByteBuffer[segments];
+        ccs = new ByteBuffer[segments];
+        adaptationLengths = new ByteBuffer[segments];
+
+        File file = File.createTempFile("datadog", ".headers");
+        file.deleteOnExit();
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.setLength((long) packetCount * PACKET_BYTES);
+            FileChannel channel = data.getChannel();
+            for (int i = 0; i < segments; i++) {
+                int count = Math.min(packetCount - (i << SEGMENT_SHIFT), SEGMENT_PACKETS);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, (long) (i << SEGMENT_SHIFT) * PACKET_BYTES, count
+                        * PACKET_BYTES);
+                segment.order(ByteOrder.nativeOrder());
+
+                flags[i] = column(segment, count * 2, count);
+                ccs[i] = column(segment, count * 3, count);
+                adaptationLengths[i] = column(segment, count * 4, count);
+                segment.limit(count * 2);
+                pids[i] = segment.asShortBuffer();
+            }
+        } finally {
+            data.close();
+
+            // the mappings stay valid once the file is gone, where the OS
+            // allows it to be deleted at all
+            file.delete();
+        }
+    }
+
+    /**
+     * Get one byte column of a segment.
+     *
+     * @param segment
+     *            The mapped segment.
+     * @param offset
+     *            Offset of the column.
+     * @param count
+     *            Number of packets in the segment.
+     * @return The column.
+     */
+    private static ByteBuffer column(ByteBuffer segment, int offset, int count) {
+        ByteBuffer dup = segment.duplicate();
+        dup.limit(offset + count);
+        dup.position(offset);
+        return dup.slice();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        long index = packet.getStreamPosition() / Constants.TS_PACKET_LENGTH;
+        if (index >= packetCount)
+            return false;
+        int segment = (int) (index >>> SEGMENT_SHIFT);
+        int i = (int) index & SEGMENT_MASK;
+
+        int f = 0;
+        if (packet.transport_error_indicator())
+            f |= FLAG_TRANSPORT_ERROR;
+        if (packet.payload_unit_start_indicator())
+            f |= FLAG_PAYLOAD_UNIT_START;
+        if (packet.transport_priority())
+            f |= FLAG_PRIORITY;
+        if (packet.hasAdaptation())
+            f |= FLAG_ADAPTATION;
+        if (packet.hasPayload())
+            f |= FLAG_PAYLOAD;
+
+        int adaptationFlags = packet.adaptation_flags();
+        if ((adaptationFlags & TransportPacket.adapflag_PCR_flag) != 0)
+            f |= FLAG_PCR;
+        if ((adaptationFlags & TransportPacket.adapflag_discontinuity_indicator) != 0)
+            f |= FLAG_DISCONTINUITY;
+        if ((adaptationFlags & TransportPacket.adapflag_random_access_indicator) != 0)
+            f |= FLAG_RANDOM_ACCESS;
+
+        pids[segment].put(i, (short) (packet.pid() ^ NO_PID));
+        flags[segment].put(i, (byte) f);
+        ccs[segment].put(i, (byte) ((packet.transport_scrambling_control() << 4) | packet.continuity_counter()));
+        adaptationLengths[segment].put(i, (byte) packet.adaptation_field_length());
+        return true;
+    }
+
+    /**
+     * Number of packets in the table.
+     *
+     * @return The count.
+     */
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Get the number of the packet at a stream position.
+     *
+     * @param position
+     *            The position.
+     * @return The packet number, clipped to 0 - getPacketCount().
+     */
+    public int getPacketNumber(long position) {
+        if (position <= 0)
+            return 0;
+        return (int) Math.min(position / Constants.TS_PACKET_LENGTH, packetCount);
+    }
+
+    /**
+     * PID of a packet.
+     *
+     * @param packet
+     *            The packet number.
+     * @return The PID, or NO_PID if it had no sync byte.
+     */
+    public int getPid(int packet) {
+        return pids[packet >>> SEGMENT_SHIFT].get(packet & SEGMENT_MASK) ^ NO_PID;
+    }
+
+    /**
+     * FLAG_* bits of a packet.
+     *
+     * @param packet
+     *            The packet number.
+     * @return The flags.
+     */
+    public int getFlags(int packet) {
+        return flags[packet >>> SEGMENT_SHIFT].get(packet & SEGMENT_MASK) & 0xff;
+    }
+
+    /**
+     * continuity_counter of a packet.
+     *
+     * @param packet
+     *            The packet number.
+     * @return The counter.
+     */
+    public int getCC(int packet) {
+        return ccs[packet >>> SEGMENT_SHIFT].get(packet & SEGMENT_MASK) & 0x0f;
+    }
+
+    /**
+     * transport_scrambling_control of a packet.
+     *
+     * @param packet
+     *            The packet number.
+     * @return The value.
+     */
+    public int getScrambling(int packet) {
+        return (ccs[packet >>> SEGMENT_SHIFT].get(packet & SEGMENT_MASK) >> 4) & 0x03;
+    }
+
+    /**
+     * adaptation_field_length of a packet.
+     *
+     * @param packet
+     *            The packet number.
+     * @return The length, or 0 if it has no adaptation field.
+     */
+    public int getAdaptationLength(int packet) {
+        return adaptationLengths[packet >>> SEGMENT_SHIFT].get(packet & SEGMENT_MASK) & 0xff;
+    }
+
+    /**
+     * Count the packets on each PID which have all of a set of flags.
+     *
+     * @param mask
+     *            FLAG_* bits the packets must have (0 to count every packet).
+     * @param start
+     *            First packet number.
+     * @param end
+     *            Packet number just after the last one.
+     * @return Count for each PID, indexed by PID, with the packets without a
+     *         sync byte at NO_PID.
+     */
+    public int[] countPackets(int mask, int start, int end) {
+        int[] counts = new int[NO_PID + 1];
+        for (int i = start; i < end;) {
+            int segment = i >>> SEGMENT_SHIFT;
+            int base = segment << SEGMENT_SHIFT;
+            int segmentEnd = (int) Math.min(end, (long) base + SEGMENT_PACKETS);
+            ShortBuffer p = pids[segment];
+            ByteBuffer f = flags[segment];
+            for (; i < segmentEnd; i++)
+                counts[p.get(i - base) ^ NO_PID] += ((f.get(i - base) & mask) == mask) ? 1 : 0;
+        }
+        return counts;
+    }
+
+    /**
+     * Count the packets on one PID which have all of a set of flags.
+     *
+     * @param pid
+     *            The PID, or -1 for all of them.
+     * @param mask
+     *            FLAG_* bits the packets must have (0 to count every packet).
+     * @param start
+     *            First packet number.
+     * @param end
+     *            Packet number just after the last one.
+     * @return The count.
+     */
+    public int countPackets(int pid, int mask, int start, int end) {
+        int count = 0;
+        // a stored 0 is NO_PID
+        int stored = (pid == -1) ? 0 : pid ^ NO_PID;
+        for (int i = start; i < end;) {
+            int segment = i >>> SEGMENT_SHIFT;
+            int base = segment << SEGMENT_SHIFT;
+            int segmentEnd = (int) Math.min(end, (long) base + SEGMENT_PACKETS);
+            ShortBuffer p = pids[segment];
+            ByteBuffer f = flags[segment];
+            if (pid == -1) {
+                for (; i < segmentEnd; i++)
+                    count += ((p.get(i - base) != stored) && ((f.get(i - base) & mask) == mask)) ? 1 : 0;
+            } else {
+                for (; i < segmentEnd; i++)
+                    count += ((p.get(i - base) == stored) && ((f.get(i - base) & mask) == mask)) ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the packets on one PID which have all of a set of flags in each of
+     * a number of equal slices of a range, as for a bitrate graph.
+     *
+     * @param pid
+     *            The PID, or -1 for all of them.
+     * @param mask
+     *            FLAG_* bits the packets must have (0 to count every packet).
+     * @param start
+     *            First packet number.
+     * @param end
+     *            Packet number just after the last one.
+     * @param slices
+     *            Number of slices to split the range into.
+     * @return The count for each slice.
+     */
+    public int[] countPackets(int pid, int mask, int start, int end, int slices) {
+        int[] counts = new int[slices];
+        long length = end - start;
+        for (int i = 0; i < slices; i++)
+            counts[i] = countPackets(pid, mask, start + (int) ((length * i) / slices), start + (int) ((length * (i + 1)) / slices));
+        return counts;
+    }
+
+    /**
+     * Count the scrambled packets (transport_scrambling_control not 0) on
+     * each PID.
+     *
+     * @param start
+     *            First packet number.
+     * @param end
+     *            Packet number just after the last one.
+     * @return Count for each PID, indexed as countPackets(int, int, int).
+     */
+    public int[] countScrambled(int start, int end) {
+        int[] counts = new int[NO_PID + 1];
+        for (int i = start; i < end;) {
+            int segment = i >>> SEGMENT_SHIFT;
+            int base = segment << SEGMENT_SHIFT;
+            int segmentEnd = (int) Math.min(end, (long) base + SEGMENT_PACKETS);
+            ShortBuffer p = pids[segment];
+            ByteBuffer c = ccs[segment];
+            for (; i < segmentEnd; i++)
+                counts[p.get(i - base) ^ NO_PID] += ((c.get(i - base) & 0x30) != 0) ? 1 : 0;
+        }
+        return counts;
+    }
+
+    /**
+     * Total the adaptation_field_lengths of the packets on each PID.
+     *
+     * @param start
+     *            First packet number.
+     * @param end
+     *            Packet number just after the last one.
+     * @return Total for each PID, indexed as countPackets(int, int, int).
+     */
+    public long[] sumAdaptationLengths(int start, int end) {
+        long[] sums = new long[NO_PID + 1];
+        for (int i = start; i < end;) {
+            int segment = i >>> SEGMENT_SHIFT;
+            int base = segment << SEGMENT_SHIFT;
+            int segmentEnd = (int) Math.min(end, (long) base + SEGMENT_PACKETS);
+            ShortBuffer p = pids[segment];
+            ByteBuffer a = adaptationLengths[segment];
+            for (; i < segmentEnd; i++)
+                sums[p.get(i - base) ^ NO_PID] += a.get(i - base) & 0xff;
+        }
+        return sums;
+    }
+
+    /**
+     * Histogram of the adaptation_field_lengths of the packets on one PID
+     * which have an adaptation field.
+     *
+     * @param pid
+     *            The PID, or -1 for all of them.
+     * @param start
+     *            First packet number.
+     * @param end
+     *            Packet number just after the last one.
+     * @return Number of packets with each length, indexed by length.
+     */
+    public int[] adaptationLengthHistogram(int pid, int start, int end) {
+        int[] counts = new int[0x100];
+        int stored = pid ^ NO_PID;
+        for (int i = start; i < end;) {
+            int segment = i >>> SEGMENT_SHIFT;
+            int base = segment << SEGMENT_SHIFT;
+            int segmentEnd = (int) Math.min(end, (long) base + SEGMENT_PACKETS);
+            ShortBuffer p = pids[segment];
+            ByteBuffer f = flags[segment];
+            ByteBuffer a = adaptationLengths[segment];
+            for (; i < segmentEnd; i++) {
+                if (((f.get(i - base) & FLAG_ADAPTATION) != 0) && ((pid == -1) || (p.get(i - base) == stored)))
+                    counts[a.get(i - base) & 0xff]++;
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import net.lidskialf.datadog.util.*;
+
+/**
+ * A persistent index of the packets on each PID of a transport stream file.
+ *
+ * The index is built once with a parallel scan and written to a sidecar file
+ * next to the capture (or to ~/.datadog/index if that is not writable).
+ * Reopening the capture memory maps the existing index instead of rescanning,
+ * as long as the capture's length and modification time still match.
+ *
+ * File layout (big endian): magic, version, capture length, capture mtime,
+ * PID count, then a (pid, packet count, data offset, PCR packet count, PCR
+ * data offset) entry per PID, then the packet numbers as unsigned ints.
+ *
+ * The packet numbers of each PID are mapped in windows of WINDOW_INTS, as a
+ * single mapping cannot exceed 2Gb. For navigation they are also available as
+ * CompressedIntSets, which are built from the mapped data on first use.
+ *
+ * @author Andrew de Quincey
+ */
+public class PacketIndex {
+
+    /**
+     * Magic number at the start of an index file ("DDPI").
+     */
+    public static final int MAGIC = 0x44445049;
+
+    /**
+     * Current index file format version.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Suffix appended to the capture filename to make the index filename.
+     */
+    public static final String SUFFIX = ".ddidx";
+
+    /**
+     * Number of packet numbers in each mapped window (1Gb).
+     */
+    private static final int WINDOW_INTS = 1 << 28;
+
+    /**
+     * Length of the fixed file header.
+     */
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 4;
+
+    /**
+     * Length of each PID table entry.
+     */
+    private static final int PID_ENTRY_LENGTH = 4 + 4 + 8 + 4 + 8;
+
+    /**
+     * The open index file.
+     */
+    private RandomAccessFile indexFile;
+
+    /**
+     * The PIDs present, ascending.
+     */
+    private int[] pids;
+
+    /**
+     * Mapped packet numbers for each PID (null if the PID is not present).
+     */
+    private PacketNumbers[] packetNumbers;
+
+    /**
+     * Mapped packet numbers of PCR bearing packets for each PID (null if the
+     * PID is not present).
+     */
+    private PacketNumbers[] pcrPacketNumbers;
+
+    /**
+     * Packet sets for each PID, built on demand.
+     */
+    private CompressedIntSet[] packetSets = new CompressedIntSet[Constants.PID_COUNT];
+
+    /**
+     * PCR packet sets for each PID, built on demand.
+     */
+    private CompressedIntSet[] pcrPacketSets = new CompressedIntSet[Constants.PID_COUNT];
+
+    /**
+     * Constructor.
+     *
+     * @param indexFile
+     *            The opened index file.
+     * @param pids
+     *            The PIDs present.
+     * @param packetNumbers
+     *            Packet numbers for each PID.
+     * @param pcrPacketNumbers
+     *            PCR packet numbers for each PID.
+     */
+    private PacketIndex(RandomAccessFile indexFile, int[] pids, PacketNumbers[] packetNumbers, PacketNumbers[] pcrPacketNumbers) {
+        this.indexFile = indexFile;
+        this.pids = pids;
+        this.packetNumbers = packetNumbers;
+        this.pcrPacketNumbers = pcrPacketNumbers;
+    }
+
+    /**
+     * Open the index for a capture, building and saving it first if there is
+     * no valid index already.
+     *
+     * @param stream
+     *            The TransportStream for the capture.
+     * @param captureFile
+     *            The capture file.
+     * @return The PacketIndex.
+     * @throws IOException
+     *             On error, or if the index could not be saved anywhere.
+     */
+    public static PacketIndex open(TransportStream stream, File captureFile) throws IOException {
+        File[] candidates = indexFiles(captureFile);
+        for (int i = 0; i < candidates.length; i++) {
+            PacketIndex index = loadIfValid(candidates[i], captureFile);
+            if (index != null)
+                return index;
+        }
+
+        PacketIndexBuilder builder = new PacketIndexBuilder();
+        try {
+            builder = (PacketIndexBuilder) new TransportStreamScanner(stream).scan(builder);
+
+            for (int i = 0; i < candidates.length; i++) {
+                try {
+                    write(builder, candidates[i], captureFile);
+                } catch (IOException e) {
+                    continue;
+                }
+
+                PacketIndex index = loadIfValid(candidates[i], captureFile);
+                if (index != null)
+                    return index;
+            }
+        } finally {
+            builder.close();
+        }
+
+        throw new IOException("Could not save packet index for " + captureFile);
+    }
+
+    /**
+     * Get the places an index for a capture may be kept, in order of
+     * preference.
+     *
+     * @param captureFile
+     *            The capture file.
+     * @return The candidate index files.
+     */
+    public static File[] indexFiles(File captureFile) {
+        File absolute = captureFile.getAbsoluteFile();
+        File cacheDir = new File(System.getProperty("user.home") + File.separator + ".datadog" + File.separator + "index");
+
+        return new File[] { new File(absolute.getPath() + SUFFIX),
+                new File(cacheDir, absolute.getName() + "-" + Integer.toHexString(absolute.getPath().hashCode()) + SUFFIX) };
+    }
+
+    /**
+     * Load an existing index.
+     *
+     * @param file
+     *            The index file.
+     * @param captureFile
+     *            The capture it should describe.
+     * @return The PacketIndex, or null if the index is missing, corrupt, or out
+     *         of date with respect to the capture.
+     * @throws IOException
+     *             On error.
+     */
+    public static PacketIndex load(File file, File captureFile) throws IOException {
+        if (!file.isFile())
+            return null;
+
+        RandomAccessFile indexFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = indexFile.getChannel();
+            long indexLength = channel.size();
+            if (indexLength < HEADER_LENGTH)
+                return closeAndFail(indexFile);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(channel, header, 0);
+            if ((header.getInt() != MAGIC) || (header.getInt() != VERSION))
+                return closeAndFail(indexFile);
+            if ((header.getLong() != captureFile.length()) || (header.getLong() != captureFile.lastModified()))
+                return closeAndFail(indexFile);
+
+            int pidCount = header.getInt();
+            if ((pidCount < 0) || (pidCount > Constants.PID_COUNT) || (indexLength < HEADER_LENGTH + ((long) pidCount * PID_ENTRY_LENGTH)))
+                return closeAndFail(indexFile);
+
+            ByteBuffer table = ByteBuffer.allocate(pidCount * PID_ENTRY_LENGTH);
+            readFully(channel, table, HEADER_LENGTH);
+
+            int[] pids = new int[pidCount];
+            PacketNumbers[] packetNumbers = new PacketNumbers[Constants.PID_COUNT];
+            PacketNumbers[] pcrPacketNumbers = new PacketNumbers[Constants.PID_COUNT];
+            for (int i = 0; i < pidCount; i++) {
+                int pid = table.getInt();
+                long count = table.getInt() & 0xffffffffL;
+                long offset = table.getLong();
+                long pcrCount = table.getInt() & 0xffffffffL;
+                long pcrOffset = table.getLong();
+
+                if ((pid < 0) || (pid >= Constants.PID_COUNT) || !validRegion(offset, count, indexLength) || !validRegion(pcrOffset, pcrCount, indexLength))
+                    return closeAndFail(indexFile);
+
+                pids[i] = pid;
+                packetNumbers[pid] = new PacketNumbers(channel, offset, count);
+                pcrPacketNumbers[pid] = new PacketNumbers(channel, pcrOffset, pcrCount);
+            }
+
+            return new PacketIndex(indexFile, pids, packetNumbers, pcrPacketNumbers);
+        } catch (IOException e) {
+            indexFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Load an existing index, treating one which cannot be read like one which
+     * is out of date.
+     *
+     * @param file
+     *            The index file.
+     * @param captureFile
+     *            The capture it should describe.
+     * @return The PacketIndex, or null if it could not be loaded.
+     */
+    private static PacketIndex loadIfValid(File file, File captureFile) {
+        try {
+            return load(file, captureFile);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write an index file.
+     *
+     * @param builder
+     *            The results of scanning the capture.
+     * @param file
+     *            The index file to write.
+     * @param captureFile
+     *            The capture scanned.
+     * @throws IOException
+     *             On error.
+     */
+    public static void write(PacketIndexBuilder builder, File file, File captureFile) throws IOException {
+        if (file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+
+        // write to a temporary file and rename it into place, so a crash never
+        // leaves a truncated index behind
+        File tmpFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+
+            int pidCount = 0;
+            for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+                if (builder.getPacketCount(pid) != 0)
+                    pidCount++;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + (pidCount * PID_ENTRY_LENGTH));
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(captureFile.length());
+            header.putLong(captureFile.lastModified());
+            header.putInt(pidCount);
+
+            long offset = header.capacity();
+            for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+                long count = builder.getPacketCount(pid);
+                if (count == 0)
+                    continue;
+                long pcrCount = builder.getPCRPacketCount(pid);
+
+                header.putInt(pid);
+                header.putInt((int) count);
+                header.putLong(offset);
+                offset += count * 4L;
+                header.putInt((int) pcrCount);
+                header.putLong(offset);
+                offset += pcrCount * 4L;
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            // copy the packet numbers across from the builder's spill file in
+            // the same order as the table
+            for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+                if (builder.getPacketCount(pid) == 0)
+                    continue;
+
+                builder.transferPacketNumbers(pid, false, channel);
+                builder.transferPacketNumbers(pid, true, channel);
+            }
+
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+
+        file.delete();
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Get the PIDs present in the capture.
+     *
+     * @return Ascending array of PIDs.
+     */
+    public int[] getPids() {
+        return pids;
+    }
+
+    /**
+     * Number of packets on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count (0 if the PID is not present).
+     */
+    public long getPacketCount(int pid) {
+        if (packetNumbers[pid] == null)
+            return 0;
+        return packetNumbers[pid].count;
+    }
+
+    /**
+     * Packet number (position / 188) of a packet on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the packet within the PID (0 .. getPacketCount(pid) - 1).
+     * @return The packet number.
+     */
+    public long getPacketNumber(int pid, long index) {
+        return packetNumbers[pid].get(index);
+    }
+
+    /**
+     * Stream position of a packet on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param index
+     *            Index of the packet within the PID (0 .. getPacketCount(pid) - 1).
+     * @return The position.
+     */
+    public long getPacketPosition(int pid, long index) {
+        return getPacketNumber(pid, index) * Constants.TS_PACKET_LENGTH;
+    }
+
+    /**
+     * Get all the packets on a PID as a compressed set of packet numbers.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The set (empty if the PID is not present).
+     */
+    public synchronized CompressedIntSet getPacketSet(int pid) {
+        if (packetSets[pid] == null)
+            packetSets[pid] = buildSet(packetNumbers[pid]);
+        return packetSets[pid];
+    }
+
+    /**
+     * Get the PCR bearing packets on a PID as a compressed set of packet
+     * numbers.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The set (empty if the PID carries no PCRs).
+     */
+    public synchronized CompressedIntSet getPCRPacketSet(int pid) {
+        if (pcrPacketSets[pid] == null)
+            pcrPacketSets[pid] = buildSet(pcrPacketNumbers[pid]);
+        return pcrPacketSets[pid];
+    }
+
+    /**
+     * Find the next packet on a PID after a position.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            The position to search from (exclusive).
+     * @param pcrOnly
+     *            If true, only PCR bearing packets are considered.
+     * @return Position of the packet, or -1 if there is none.
+     */
+    public long nextPacketPosition(int pid, long position, boolean pcrOnly) {
+        CompressedIntSet set = pcrOnly ? getPCRPacketSet(pid) : getPacketSet(pid);
+        long packetNumber = set.next((position / Constants.TS_PACKET_LENGTH) + 1);
+        return (packetNumber < 0) ? -1 : packetNumber * Constants.TS_PACKET_LENGTH;
+    }
+
+    /**
+     * Find the previous packet on a PID before a position.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param position
+     *            The position to search from (exclusive).
+     * @param pcrOnly
+     *            If true, only PCR bearing packets are considered.
+     * @return Position of the packet, or -1 if there is none.
+     */
+    public long previousPacketPosition(int pid, long position, boolean pcrOnly) {
+        CompressedIntSet set = pcrOnly ? getPCRPacketSet(pid) : getPacketSet(pid);
+        long packetNumber = set.prev(((position + Constants.TS_PACKET_LENGTH - 1) / Constants.TS_PACKET_LENGTH) - 1);
+        return (packetNumber < 0) ? -1 : packetNumber * Constants.TS_PACKET_LENGTH;
+    }
+
+    /**
+     * Close the index file. The mappings are released when they are garbage
+     * collected.
+     */
+    public void close() {
+        try {
+            indexFile.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Build a CompressedIntSet from mapped packet numbers.
+     *
+     * @param numbers
+     *            The packet numbers (may be null).
+     * @return The set.
+     */
+    private static CompressedIntSet buildSet(PacketNumbers numbers) {
+        if (numbers == null)
+            return CompressedIntSet.EMPTY;
+
+        CompressedIntSet.Builder builder = new CompressedIntSet.Builder();
+        for (int w = 0; w < numbers.windows.length; w++) {
+            IntBuffer window = numbers.windows[w];
+            for (int i = 0; i < window.capacity(); i++) {
+                builder.add(window.get(i) & 0xffffffffL);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Check a region of unsigned ints lies within the index file.
+     *
+     * @param offset
+     *            Offset of the region.
+     * @param count
+     *            Number of ints.
+     * @param indexLength
+     *            Length of the index file.
+     * @return True if it is valid.
+     */
+    private static boolean validRegion(long offset, long count, long indexLength) {
+        return (offset >= 0) && ((offset + (count * 4)) <= indexLength);
+    }
+
+    /**
+     * Fill a buffer from a channel and flip it ready for reading.
+     *
+     * @param channel
+     *            The channel.
+     * @param dest
+     *            The buffer to fill.
+     * @param position
+     *            Position in the channel to read from.
+     * @throws IOException
+     *             On error, or if the channel ends first.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            int count = channel.read(dest, position + dest.position());
+            if (count < 0)
+                throw new EOFException("Truncated packet index");
+        }
+        dest.flip();
+    }
+
+    /**
+     * Close an index file which failed validation.
+     *
+     * @param indexFile
+     *            The file.
+     * @return Always null.
+     * @throws IOException
+     *             On error.
+     */
+    private static PacketIndex closeAndFail(RandomAccessFile indexFile) throws IOException {
+        indexFile.close();
+        return null;
+    }
+
+    /**
+     * The mapped packet numbers of one PID.
+     */
+    private static class PacketNumbers {
+
+        /**
+         * Number of packet numbers.
+         */
+        long count;
+
+        /**
+         * The windows, each of WINDOW_INTS packet numbers except the last.
+         */
+        IntBuffer[] windows;
+
+        /**
+         * Constructor.
+         *
+         * @param channel
+         *            The index file.
+         * @param offset
+         *            Offset of the packet numbers.
+         * @param count
+         *            Number of packet numbers.
+         * @throws IOException
+         *             On error.
+         */
+        PacketNumbers(FileChannel channel, long offset, long count) throws IOException {
+            this.count = count;
+            windows = new IntBuffer[(int) ((count + WINDOW_INTS - 1) / WINDOW_INTS)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = (long) i * WINDOW_INTS;
+                long size = Math.min(count - start, WINDOW_INTS);
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + (start * 4), size * 4).asIntBuffer();
+            }
+        }
+
+        /**
+         * Get a packet number.
+         *
+         * @param index
+         *            Its index.
+         * @return The packet number.
+         */
+        long get(long index) {
+            return windows[(int) (index / WINDOW_INTS)].get((int) (index % WINDOW_INTS)) & 0xffffffffL;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import net.lidskialf.datadog.util.*;
+
+/**
+ * ChunkAnalyser which collects the packet numbers (position / 188) of every
+ * packet, and of every PCR bearing packet, on each PID, for writing out as a
+ * PacketIndex.
+ *
+ * Packet numbers are held as unsigned ints, so streams of up to 2^32 packets
+ * (around 800Gb) can be indexed. Each chunk only keeps its numbers in memory
+ * until it finishes; they are then spilled to a temporary file shared by all
+ * the chunks, and the merged builder just keeps a list of where each chunk's
+ * numbers for each PID went. Memory use is therefore bounded by the chunk
+ * size, not the stream length. close() deletes the temporary file.
+ *
+ * @author Andrew de Quincey
+ */
+public class PacketIndexBuilder implements ChunkAnalyser {
+
+    /**
+     * The temporary file shared by all the chunks of a scan.
+     */
+    private Spill spill;
+
+    /**
+     * Packet numbers on each PID in this chunk (null if none seen, and once
+     * spilled).
+     */
+    private IntArray[] packetNumbers = new IntArray[Constants.PID_COUNT];
+
+    /**
+     * Packet numbers of PCR bearing packets on each PID in this chunk (null
+     * if none seen, and once spilled).
+     */
+    private IntArray[] pcrPacketNumbers = new IntArray[Constants.PID_COUNT];
+
+    /**
+     * PID of each spilled segment, in stream order.
+     */
+    private IntArray segmentPids = new IntArray();
+
+    /**
+     * Offset of each segment in the spill file. A segment holds its packet
+     * numbers followed by its PCR packet numbers, as big endian ints.
+     */
+    private LongArray segmentOffsets = new LongArray();
+
+    /**
+     * Number of packet numbers in each segment.
+     */
+    private IntArray segmentCounts = new IntArray();
+
+    /**
+     * Number of PCR packet numbers in each segment.
+     */
+    private IntArray segmentPcrCounts = new IntArray();
+
+    /**
+     * Total number of packets seen on each PID.
+     */
+    private long[] packetCounts = new long[Constants.PID_COUNT];
+
+    /**
+     * Total number of PCR bearing packets seen on each PID.
+     */
+    private long[] pcrPacketCounts = new long[Constants.PID_COUNT];
+
+    /**
+     * Constructor for a prototype analyser to pass to TransportStreamScanner.
+     */
+    public PacketIndexBuilder() {
+        this(new Spill());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param spill
+     *            The temporary file to spill chunks to.
+     */
+    private PacketIndexBuilder(Spill spill) {
+        this.spill = spill;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new PacketIndexBuilder(spill);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        int pid = packet.pid();
+        if (packetNumbers[pid] == null)
+            packetNumbers[pid] = new IntArray(1024);
+        int packetNumber = (int) (packet.getStreamPosition() / Constants.TS_PACKET_LENGTH);
+        packetNumbers[pid].add(packetNumber);
+
+        if ((packet.adaptation_flags() & TransportPacket.adapflag_PCR_flag) != 0) {
+            if (pcrPacketNumbers[pid] == null)
+                pcrPacketNumbers[pid] = new IntArray();
+            pcrPacketNumbers[pid].add(packetNumber);
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() throws IOException {
+        int total = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            total += size(packetNumbers[pid]) + size(pcrPacketNumbers[pid]);
+        }
+        if (total == 0)
+            return;
+
+        // lay the chunk out one PID after another and write it in one go
+        int[] numbers = new int[total];
+        int used = 0;
+        long offset = spill.reserve(total * 4L);
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (packetNumbers[pid] == null)
+                continue;
+
+            int count = packetNumbers[pid].size();
+            int pcrCount = size(pcrPacketNumbers[pid]);
+            segmentPids.add(pid);
+            segmentOffsets.add(offset + (used * 4L));
+            segmentCounts.add(count);
+            segmentPcrCounts.add(pcrCount);
+            packetCounts[pid] += count;
+            pcrPacketCounts[pid] += pcrCount;
+
+            packetNumbers[pid].get(0, numbers, used, count);
+            used += count;
+            if (pcrCount != 0)
+                pcrPacketNumbers[pid].get(0, numbers, used, pcrCount);
+            used += pcrCount;
+
+            packetNumbers[pid] = null;
+            pcrPacketNumbers[pid] = null;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(total * 4);
+        data.asIntBuffer().put(numbers);
+        spill.write(data, offset);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public void merge(ChunkAnalyser following) {
+        PacketIndexBuilder other = (PacketIndexBuilder) following;
+
+        segmentPids.addAll(other.segmentPids);
+        segmentOffsets.addAll(other.segmentOffsets);
+        segmentCounts.addAll(other.segmentCounts);
+        segmentPcrCounts.addAll(other.segmentPcrCounts);
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            packetCounts[pid] += other.packetCounts[pid];
+            pcrPacketCounts[pid] += other.pcrPacketCounts[pid];
+        }
+    }
+
+    /**
+     * Number of packets seen on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count (0 if the PID was not seen).
+     */
+    public long getPacketCount(int pid) {
+        return packetCounts[pid];
+    }
+
+    /**
+     * Number of PCR bearing packets seen on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public long getPCRPacketCount(int pid) {
+        return pcrPacketCounts[pid];
+    }
+
+    /**
+     * Copy the packet numbers collected for a PID to a channel, as big endian
+     * unsigned ints in stream order, straight from the spill file.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param pcrOnly
+     *            If true, only copy the numbers of PCR bearing packets.
+     * @param target
+     *            The channel to write to.
+     * @throws IOException
+     *             On error.
+     */
+    public void transferPacketNumbers(int pid, boolean pcrOnly, WritableByteChannel target) throws IOException {
+        for (int i = 0; i < segmentPids.size(); i++) {
+            if (segmentPids.get(i) != pid)
+                continue;
+
+            long offset = segmentOffsets.get(i);
+            long length = segmentPcrCounts.get(i) * 4L;
+            if (pcrOnly)
+                offset += segmentCounts.get(i) * 4L;
+            else
+                length = segmentCounts.get(i) * 4L;
+            spill.transferTo(offset, length, target);
+        }
+    }
+
+    /**
+     * Delete the spill file. The builder cannot be used afterwards.
+     *
+     * @throws IOException
+     *             On error.
+     */
+    public void close() throws IOException {
+        spill.close();
+    }
+
+    /**
+     * Size of an IntArray which may be null.
+     *
+     * @param array
+     *            The array.
+     * @return Its size, or 0 if it is null.
+     */
+    private static int size(IntArray array) {
+        return (array == null) ? 0 : array.size();
+    }
+
+    /**
+     * The temporary file the chunks of a scan spill their packet numbers to.
+     * Space is handed out under a lock and then written to with positional
+     * writes, so chunks finishing on different threads do not wait for each
+     * other's IO.
+     */
+    private static class Spill {
+
+        private File file;
+
+        private RandomAccessFile data;
+
+        private FileChannel channel;
+
+        /**
+         * Length of the file once all the reserved space has been written.
+         */
+        private long length;
+
+        /**
+         * Reserve space at the end of the file, creating it if necessary.
+         *
+         * @param size
+         *            Number of bytes needed.
+         * @return Offset of the space.
+         * @throws IOException
+         *             On error.
+         */
+        synchronized long reserve(long size) throws IOException {
+            if (channel == null) {
+                file = File.createTempFile("datadog", ".spill");
+                file.deleteOnExit();
+                data = new RandomAccessFile(file, "rw");
+                channel = data.getChannel();
+            }
+
+            long offset = length;
+            length += size;
+            return offset;
+        }
+
+        /**
+         * Write to reserved space.
+         *
+         * @param src
+         *            The data.
+         * @param offset
+         *            Offset from reserve().
+         * @throws IOException
+         *             On error.
+         */
+        void write(ByteBuffer src, long offset) throws IOException {
+            while (src.hasRemaining()) {
+                offset += channel.write(src, offset);
+            }
+        }
+
+        /**
+         * Copy part of the file to a channel.
+         *
+         * @param offset
+         *            Offset of the data.
+         * @param count
+         *            Number of bytes.
+         * @param target
+         *            The channel to write to.
+         * @throws IOException
+         *             On error.
+         */
+        void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+            while (count > 0) {
+                long done = channel.transferTo(offset, count, target);
+                if (done <= 0)
+                    throw new EOFException("Unexpected end of " + file);
+                offset += done;
+                count -= done;
+            }
+        }
+
+        /**
+         * Close and delete the file.
+         *
+         * @throws IOException
+         *             On error.
+         */
+        synchronized void close() throws IOException {
+            if (channel == null)
+                return;
+
+            channel = null;
+            data.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+/**
+ * A set of PIDs held as an 8192 bit bitmap, so testing a packet against it
+ * costs one shift and mask before the packet is decoded at all.
+ *
+ * Filters are not thread safe; once one has been handed to a reader or
+ * viewer it should not be changed.
+ *
+ * @author Andrew de Quincey
+ */
+public class PidFilter {
+
+    /**
+     * The bitmap, one bit per PID.
+     */
+    private long[] bits = new long[Constants.PID_COUNT / 64];
+
+    /**
+     * Constructor for an empty filter.
+     */
+    public PidFilter() {
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param pids
+     *            The PIDs to accept.
+     */
+    public PidFilter(int[] pids) {
+        addAll(pids);
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other
+     *            The filter to copy.
+     */
+    public PidFilter(PidFilter other) {
+        System.arraycopy(other.bits, 0, bits, 0, bits.length);
+    }
+
+    /**
+     * Accept a PID.
+     *
+     * @param pid
+     *            The PID.
+     */
+    public void add(int pid) {
+        bits[pid >>> 6] |= 1L << pid;
+    }
+
+    /**
+     * Accept some PIDs.
+     *
+     * @param pids
+     *            The PIDs.
+     */
+    public void addAll(int[] pids) {
+        for (int i = 0; i < pids.length; i++)
+            add(pids[i]);
+    }
+
+    /**
+     * Stop accepting a PID.
+     *
+     * @param pid
+     *            The PID.
+     */
+    public void remove(int pid) {
+        bits[pid >>> 6] &= ~(1L << pid);
+    }
+
+    /**
+     * Is a PID accepted?
+     *
+     * @param pid
+     *            The PID.
+     * @return True if it is.
+     */
+    public boolean accepts(int pid) {
+        return (bits[pid >>> 6] & (1L << pid)) != 0;
+    }
+
+    /**
+     * Is the packet at a given offset in a buffer accepted? Only the PID
+     * field of the header is looked at.
+     *
+     * @param data
+     *            Buffer holding the packet.
+     * @param offset
+     *            Offset of the packet's sync byte.
+     * @return True if it is.
+     */
+    public boolean accepts(byte[] data, int offset) {
+        int pid = ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff);
+        return (bits[pid >>> 6] & (1L << pid)) != 0;
+    }
+
+    /**
+     * Number of PIDs accepted.
+     *
+     * @return The count.
+     */
+    public int size() {
+        int count = 0;
+        for (int i = 0; i < bits.length; i++)
+            count += Long.bitCount(bits[i]);
+        return count;
+    }
+
+    /**
+     * Get the PIDs accepted.
+     *
+     * @return The PIDs in ascending order.
+     */
+    public int[] getPids() {
+        int[] pids = new int[size()];
+        int count = 0;
+        for (int i = 0; i < bits.length; i++) {
+            long word = bits[i];
+            while (word != 0) {
+                pids[count++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return pids;
+    }
+}
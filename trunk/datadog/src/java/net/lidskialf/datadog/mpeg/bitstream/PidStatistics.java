@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * Basic per PID statistics gathered from a scan of a TransportStream: packet
+ * counts, PCR samples, and the positions of sync and transport errors.
+ *
+ * @author Andrew de Quincey
+ */
+public class PidStatistics implements ChunkAnalyser, SyncErrorSink {
+
+    /**
+     * Number of packets seen on each PID.
+     */
+    private long[] packetCounts = new long[Constants.PID_COUNT];
+
+    /**
+     * Positions of PCR bearing packets on each PID (null if none seen).
+     */
+    private LongArray[] pcrPositions = new LongArray[Constants.PID_COUNT];
+
+    /**
+     * PCR values of PCR bearing packets on each PID (null if none seen).
+     */
+    private LongArray[] pcrValues = new LongArray[Constants.PID_COUNT];
+
+    /**
+     * Positions of packets with a missing sync byte.
+     */
+    private LongArray syncErrors = new LongArray();
+
+    /**
+     * Positions of packets with the transport_error_indicator set.
+     */
+    private LongArray transportErrors = new LongArray();
+
+    /**
+     * Constructor for a prototype analyser to pass to TransportStreamScanner,
+     * or to use directly as a PacketSink.
+     */
+    public PidStatistics() {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#createChunkAnalyser(long, long)
+     */
+    public ChunkAnalyser createChunkAnalyser(long startPos, long endPos) {
+        return new PidStatistics();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        long position = packet.getStreamPosition();
+        int pid = packet.pid();
+        packetCounts[pid]++;
+
+        if (packet.transport_error_indicator())
+            transportErrors.add(position);
+
+        if ((packet.adaptation_flags() & TransportPacket.adapflag_PCR_flag) != 0) {
+            if (pcrPositions[pid] == null) {
+                pcrPositions[pid] = new LongArray();
+                pcrValues[pid] = new LongArray();
+            }
+            pcrPositions[pid].add(position);
+            pcrValues[pid].add(packet.PCR());
+        }
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.SyncErrorSink#syncError(long)
+     */
+    public void syncError(long position) {
+        syncErrors.add(position);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#finish()
+     */
+    public void finish() {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser#merge(net.lidskialf.datadog.mpeg.bitstream.ChunkAnalyser)
+     */
+    public void merge(ChunkAnalyser following) {
+        PidStatistics other = (PidStatistics) following;
+
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            packetCounts[pid] += other.packetCounts[pid];
+
+            if (other.pcrPositions[pid] != null) {
+                if (pcrPositions[pid] == null) {
+                    pcrPositions[pid] = other.pcrPositions[pid];
+                    pcrValues[pid] = other.pcrValues[pid];
+                } else {
+                    pcrPositions[pid].addAll(other.pcrPositions[pid]);
+                    pcrValues[pid].addAll(other.pcrValues[pid]);
+                }
+            }
+        }
+
+        syncErrors.addAll(other.syncErrors);
+        transportErrors.addAll(other.transportErrors);
+    }
+
+    /**
+     * Number of packets seen on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The count.
+     */
+    public long getPacketCount(int pid) {
+        return packetCounts[pid];
+    }
+
+    /**
+     * Total number of packets seen.
+     *
+     * @return The count.
+     */
+    public long getTotalPacketCount() {
+        long total = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            total += packetCounts[pid];
+        }
+        return total;
+    }
+
+    /**
+     * Get the PIDs which were seen at least once.
+     *
+     * @return Ascending array of PIDs.
+     */
+    public int[] getPids() {
+        int count = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (packetCounts[pid] != 0)
+                count++;
+        }
+
+        int[] pids = new int[count];
+        count = 0;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (packetCounts[pid] != 0)
+                pids[count++] = pid;
+        }
+        return pids;
+    }
+
+    /**
+     * Positions of the PCR bearing packets on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The positions in stream order, or null if the PID carries no PCR.
+     */
+    public LongArray getPCRPositions(int pid) {
+        return pcrPositions[pid];
+    }
+
+    /**
+     * PCR values on a PID, matching getPCRPositions().
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The PCRs in stream order, or null if the PID carries no PCR.
+     */
+    public LongArray getPCRValues(int pid) {
+        return pcrValues[pid];
+    }
+
+    /**
+     * Positions of packets with a missing sync byte.
+     *
+     * @return The positions in stream order.
+     */
+    public LongArray getSyncErrors() {
+        return syncErrors;
+    }
+
+    /**
+     * Positions of packets with the transport_error_indicator set.
+     *
+     * @return The positions in stream order.
+     */
+    public LongArray getTransportErrors() {
+        return transportErrors;
+    }
+}
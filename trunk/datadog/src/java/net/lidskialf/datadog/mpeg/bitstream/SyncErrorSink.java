@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.io.IOException;
+
+/**
+ * A PacketSink which also wants to hear about the packet slots
+ * TransportStream.readPackets() skips because they do not start with a sync
+ * byte. Those slots are reported whatever PidFilter or PacketFilter is in
+ * use, so a gap between the packets a sink is given never has to be taken
+ * as a sync error.
+ *
+ * @author Andrew de Quincey
+ */
+public interface SyncErrorSink extends PacketSink {
+
+    /**
+     * Called for a packet slot without a sync byte.
+     *
+     * @param position
+     *            Position of the slot.
+     * @throws IOException
+     *             On error.
+     */
+    public void syncError(long position) throws IOException;
+}
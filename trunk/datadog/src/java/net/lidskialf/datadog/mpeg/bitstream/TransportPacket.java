@@ -17,8 +17,14 @@
  */
 package net.lidskialf.datadog.mpeg.bitstream;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class representing a Transport Stream Packet.
+ *
+ * A packet either owns its own 188 byte array, or is a flyweight which is
+ * re-pointed at successive packets within a larger buffer with bind(), so that
+ * scanning a stream does not allocate anything per packet.
  */
 public class TransportPacket {
 
@@ -51,6 +57,17 @@ public class TransportPacket {
      */
     private byte[] data;
 
+    /**
+     * Offset of the packet within data (non-zero for flyweight packets bound
+     * into a larger buffer).
+     */
+    private int offset;
+
+    /**
+     * Storage owned by a flyweight packet, used when binding to direct buffers.
+     */
+    private byte[] ownData;
+
     /**
      * Position of packet within the source stream.
      */
@@ -69,18 +86,94 @@ public class TransportPacket {
             throw new RuntimeException("Invalid length of transport stream packet");
         }
         this.data = data;
+        this.offset = 0;
         this.streamPosition = streamPosition;
 
         // FIXME: need to deal with errors!
     }
 
+    /**
+     * Constructor for a flyweight packet, which must be bound to some data
+     * with bind() before use.
+     */
+    public TransportPacket() {
+    }
+
+    /**
+     * Re-point this packet at a packet held within a larger buffer. No data is
+     * copied, so the packet is only valid until the buffer is reused.
+     *
+     * @param buf
+     *            Buffer holding the packet.
+     * @param offset
+     *            Offset of the packet's sync byte within buf.
+     * @param streamPosition
+     *            Position of the packet within the source stream.
+     */
+    public void bind(byte[] buf, int offset, long streamPosition) {
+        if ((offset < 0) || ((offset + TS_PACKET_LEN) > buf.length)) {
+            throw new RuntimeException("Invalid offset of transport stream packet");
+        }
+        this.data = buf;
+        this.offset = offset;
+        this.streamPosition = streamPosition;
+    }
+
+    /**
+     * Re-point this packet at the packet starting at the position of a
+     * ByteBuffer. Heap buffers are used in place; the packet is copied out of
+     * direct buffers into storage owned by this packet.
+     *
+     * @param buf
+     *            Buffer holding the packet (its position is not changed).
+     * @param streamPosition
+     *            Position of the packet within the source stream.
+     */
+    public void bind(ByteBuffer buf, long streamPosition) {
+        if (buf.remaining() < TS_PACKET_LEN) {
+            throw new RuntimeException("Invalid length of transport stream packet");
+        }
+
+        if (buf.hasArray()) {
+            bind(buf.array(), buf.arrayOffset() + buf.position(), streamPosition);
+            return;
+        }
+
+        if (ownData == null)
+            ownData = new byte[TS_PACKET_LEN];
+        ByteBuffer src = buf.duplicate();
+        src.get(ownData);
+        bind(ownData, 0, streamPosition);
+    }
+
+    /**
+     * Make a standalone copy of this packet, for keeping hold of a flyweight
+     * packet beyond the life of the buffer it is bound to.
+     *
+     * @return The new packet.
+     */
+    public TransportPacket copy() {
+        byte[] tmp = new byte[TS_PACKET_LEN];
+        System.arraycopy(data, offset, tmp, 0, TS_PACKET_LEN);
+        return new TransportPacket(tmp, streamPosition);
+    }
+
+    /**
+     * Position of the packet within the source stream.
+     *
+     * @return The position.
+     */
+    public long getStreamPosition() {
+        return streamPosition;
+    }
+
     /**
      * Is the transport error flag set?
      *
      * @return True if it is.
      */
     public boolean transport_error_indicator() {
-        return (data[1] & 0x80) != 0;
+        return (data[offset + 1] & 0x80) != 0;
     }
 
     /**
@@ -89,7 +182,7 @@ public class TransportPacket {
      * @return True if it is.
      */
     public boolean payload_unit_start_indicator() {
-        return (data[1] & 0x40) != 0;
+        return (data[offset + 1] & 0x40) != 0;
     }
 
     /**
@@ -98,7 +191,7 @@ public class TransportPacket {
      * @return True if it is.
      */
     public boolean transport_priority() {
-        return (data[1] & 0x20) != 0;
+        return (data[offset + 1] & 0x20) != 0;
     }
 
     /**
@@ -107,7 +200,7 @@ public class TransportPacket {
      * @return The pid.
      */
     public int pid() {
-        return ((data[1] & 0x1f) << 8) | (data[2] & 0xff);
+        return ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff);
     }
 
     /**
@@ -116,7 +209,7 @@ public class TransportPacket {
      * @return The two bit field..
      */
     public int transport_scrambling_control() {
-        return (data[3] & 0xc0) >> 6;
+        return (data[offset + 3] & 0xc0) >> 6;
     }
 
     /**
@@ -125,7 +218,7 @@ public class TransportPacket {
      * @return The 4 bit continuity counter.
      */
     public int continuity_counter() {
-        return data[3] & 0x0f;
+        return data[offset + 3] & 0x0f;
     }
 
     /**
@@ -136,7 +229,7 @@ public class TransportPacket {
     public int adaptation_field_length() {
         if (!hasAdaptation())
             return 0;
-        return data[4] & 0xff;
+        return data[offset + 4] & 0xff;
     }
 
     /**
@@ -147,9 +240,9 @@ public class TransportPacket {
     public int adaptation_flags() {
         if (!hasAdaptation())
             return 0;
-        if (data[4] < 1)
+        if ((data[offset + 4] & 0xff) < 1)
             return 0;
-        return data[5] & 0xff;
+        return data[offset + 5] & 0xff;
     }
 
     /**
@@ -158,7 +251,7 @@ public class TransportPacket {
      * @return True if it does.
      */
     public boolean hasPayload() {
-        return (data[3] & 0x10) != 0;
+        return (data[offset + 3] & 0x10) != 0;
     }
 
     /**
@@ -167,7 +260,7 @@ public class TransportPacket {
      * @return True if it does.
      */
     public boolean hasAdaptation() {
-        return (data[3] & 0x20) != 0;
+        return (data[offset + 3] & 0x20) != 0;
     }
 
     /**
@@ -191,10 +284,10 @@ public class TransportPacket {
             return 0;
 
         int pos = adaptationOffset(adapflag_PCR_flag | adapflag_OPCR_flag | adapflag_splicing_point_flag | adapflag_transport_private_data_flag);
-        int len = data[pos + 0] & 0xff;
+        int len = data[offset + pos + 0] & 0xff;
         if (len < 1)
             return 0;
-        return data[pos + 1];
+        return data[offset + pos + 1];
     }
 
     /**
@@ -207,14 +300,14 @@ public class TransportPacket {
             return 0;
         int pos = adaptationOffset(0);
 
-        long pcrbase = (data[pos + 0] & 0xff) << 25;
-        pcrbase |= (data[pos + 1] & 0xff) << 17;
-        pcrbase |= (data[pos + 2] & 0xff) << 9;
-        pcrbase |= (data[pos + 3] & 0xff) << 1;
-        pcrbase |= (data[pos + 4] & 0x80) >> 7;
+        long pcrbase = (long) (data[offset + pos + 0] & 0xff) << 25;
+        pcrbase |= (data[offset + pos + 1] & 0xff) << 17;
+        pcrbase |= (data[offset + pos + 2] & 0xff) << 9;
+        pcrbase |= (data[offset + pos + 3] & 0xff) << 1;
+        pcrbase |= (data[offset + pos + 4] & 0x80) >> 7;
 
-        long pcrext = (data[pos + 4] & 0x01) << 8;
-        pcrext |= (data[pos + 5] & 0xff);
+        long pcrext = (data[offset + pos + 4] & 0x01) << 8;
+        pcrext |= (data[offset + pos + 5] & 0xff);
 
         return (pcrbase * 300) + pcrext;
     }
@@ -229,14 +322,14 @@ public class TransportPacket {
             return 0;
         int pos = adaptationOffset(adapflag_PCR_flag);
 
-        long pcrbase = (data[pos + 0] & 0xff) << 25;
-        pcrbase |= (data[pos + 1] & 0xff) << 17;
-        pcrbase |= (data[pos + 2] & 0xff) << 9;
-        pcrbase |= (data[pos + 3] & 0xff) << 1;
-        pcrbase |= (data[pos + 4] & 0x80) >> 7;
+        long pcrbase = (long) (data[offset + pos + 0] & 0xff) << 25;
+        pcrbase |= (data[offset + pos + 1] & 0xff) << 17;
+        pcrbase |= (data[offset + pos + 2] & 0xff) << 9;
+        pcrbase |= (data[offset + pos + 3] & 0xff) << 1;
+        pcrbase |= (data[offset + pos + 4] & 0x80) >> 7;
 
-        long pcrext = (data[pos + 4] & 0x01) << 8;
-        pcrext |= (data[pos + 5] & 0xff);
+        long pcrext = (data[offset + pos + 4] & 0x01) << 8;
+        pcrext |= (data[offset + pos + 5] & 0xff);
 
         return (pcrbase * 300) + pcrext;
     }
@@ -251,7 +344,7 @@ public class TransportPacket {
             return 0;
         int pos = adaptationOffset(adapflag_PCR_flag | adapflag_OPCR_flag);
 
-        return (data[pos + 0] & 0xff);
+        return (data[offset + pos + 0] & 0xff);
     }
 
     /**
@@ -263,10 +356,10 @@ public class TransportPacket {
         if ((adaptation_flags() & adapflag_transport_private_data_flag) == 0)
             return new byte[0];
         int pos = adaptationOffset(adapflag_PCR_flag | adapflag_OPCR_flag | adapflag_splicing_point_flag);
-        int len = data[pos + 0] & 0xff;
+        int len = data[offset + pos + 0] & 0xff;
 
         byte[] tmp = new byte[len];
-        System.arraycopy(data, pos + 1, tmp, 0, len);
+        System.arraycopy(data, offset + pos + 1, tmp, 0, len);
         return tmp;
     }
 
@@ -280,9 +373,9 @@ public class TransportPacket {
             return 0;
         int pos = adaptationExtensionOffset(0);
 
-        if ((data[pos + 0] & 0x80) == 0)
+        if ((data[offset + pos + 0] & 0x80) == 0)
             return -1; // i.e. not valid
-        return ((data[pos + 0] & 0x7f) << 8) | (data[pos + 1] & 0xff);
+        return ((data[offset + pos + 0] & 0x7f) << 8) | (data[offset + pos + 1] & 0xff);
     }
 
     /**
@@ -295,7 +388,7 @@ public class TransportPacket {
             return 0;
         int pos = adaptationExtensionOffset(adapextenflag_ltw_flag);
 
-        return ((data[pos + 0] & 0x3f) << 16) | ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+        return ((data[offset + pos + 0] & 0x3f) << 16) | ((data[offset + pos + 1] & 0xff) << 8) | (data[offset + pos + 2] & 0xff);
     }
 
     /**
@@ -308,7 +401,7 @@ public class TransportPacket {
             return 0;
         int pos = adaptationExtensionOffset(adapextenflag_ltw_flag | adapextenflag_piecewise_rate_flag);
 
-        return (data[pos + 0] & 0xf0) >> 4;
+        return (data[offset + pos + 0] & 0xf0) >> 4;
     }
 
     /**
@@ -321,11 +414,11 @@ public class TransportPacket {
             return 0;
         int pos = adaptationExtensionOffset(adapextenflag_ltw_flag | adapextenflag_piecewise_rate_flag);
 
-        long result = (data[pos + 0] & 0x0e) << 30;
-        result |= (data[pos + 1] & 0xff) << 22;
-        result |= (data[pos + 2] & 0xfe) << 14;
-        result |= (data[pos + 3] & 0xff) << 7;
-        result |= (data[pos + 4] & 0xfe) >> 1;
+        long result = ((long) (data[offset + pos + 0] & 0x0e)) << 29;
+        result |= (data[offset + pos + 1] & 0xff) << 22;
+        result |= (data[offset + pos + 2] & 0xfe) << 14;
+        result |= (data[offset + pos + 3] & 0xff) << 7;
+        result |= (data[offset + pos + 4] & 0xfe) >> 1;
 
         return result;
     }
@@ -342,11 +435,11 @@ public class TransportPacket {
         int adapExtenStart = adaptationOffset(adapflag_PCR_flag | adapflag_OPCR_flag | adapflag_splicing_point_flag | adapflag_transport_private_data_flag);
         int reservedStart = adaptationExtensionOffset(adapextenflag_ltw_flag | adapextenflag_piecewise_rate_flag | adapextenflag_seamless_splice_flag);
         int used = reservedStart - adapExtenStart;
-        int unused = (data[adapExtenStart] & 0xff) - used;
+        int unused = (data[offset + adapExtenStart] & 0xff) - used;
 
         if (unused > 0) {
             byte[] result = new byte[unused];
-            System.arraycopy(data, reservedStart, result, 0, unused);
+            System.arraycopy(data, offset + reservedStart, result, 0, unused);
             return result;
         }
         return new byte[0];
@@ -366,17 +459,31 @@ public class TransportPacket {
         int len = (adaptation_field_length() + 4 + 1 + 1) - pos;
 
         byte[] tmp = new byte[len];
-        System.arraycopy(data, pos, tmp, 0, len);
+        System.arraycopy(data, offset + pos, tmp, 0, len);
         return tmp;
     }
 
+    /**
+     * Get the offset of the payload within this packet.
+     *
+     * @return The offset in bytes from the start of the packet (the packet
+     *         length if there is no room for any payload).
+     */
+    public int payloadOffset() {
+        if (!hasAdaptation())
+            return 4;
+        return Math.min(4 + 1 + adaptation_field_length(), TS_PACKET_LEN);
+    }
+
     /**
      * Get the size of the payload of this packet.
      *
      * @return The payload size in bytes.
      */
     public int payloadSize() {
-        return data.length - (4 + adaptation_field_length());
+        if (!hasPayload())
+            return 0;
+        return TS_PACKET_LEN - payloadOffset();
     }
 
     /**
@@ -392,7 +499,33 @@ public class TransportPacket {
      *            Number of bytes to extract.
      */
     public void getPayloadData(int payloadOff, byte[] dest, int destOff, int length) {
-        System.arraycopy(data, payloadOff, dest, destOff, length);
+        System.arraycopy(data, offset + payloadOffset() + payloadOff, dest, destOff, length);
+    }
+
+    /**
+     * Retrieve a chunk of payload data from this packet into a buffer.
+     *
+     * @param payloadOff
+     *            Offset into the payload.
+     * @param dest
+     *            Buffer to put the data in, from its position (which is
+     *            advanced past it).
+     * @param length
+     *            Number of bytes to extract.
+     */
+    public void getPayloadData(int payloadOff, ByteBuffer dest, int length) {
+        dest.put(data, offset + payloadOffset() + payloadOff, length);
+    }
+
+    /**
+     * Copy the whole of this packet into a buffer.
+     *
+     * @param dest
+     *            Buffer to put the packet in, from its position (which is
+     *            advanced past it).
+     */
+    public void getData(ByteBuffer dest) {
+        dest.put(data, offset, TS_PACKET_LEN);
     }
 
     /**
@@ -417,10 +550,10 @@ public class TransportPacket {
         if ((flags & adapflag_splicing_point_flag) != 0)
             pos += 1;
         if ((flags & adapflag_transport_private_data_flag) != 0) {
-            pos += (data[pos] & 0xff) + 1;
+            pos += (data[offset + pos] & 0xff) + 1;
         }
         if ((flags & adapflag_adaptation_field_extension_flag) != 0) {
-            pos += (data[pos] & 0xff) + 1;
+            pos += (data[offset + pos] & 0xff) + 1;
         }
 
         return pos;
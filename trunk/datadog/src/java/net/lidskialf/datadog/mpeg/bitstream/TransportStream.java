@@ -18,11 +18,15 @@
 package net.lidskialf.datadog.mpeg.bitstream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import net.lidskialf.datadog.*;
 
 /**
  * This implements MPEG2 transport streams.
  *
+ * Packet reads use Bitstream.readAt(), so a single TransportStream may be
+ * read from several threads at once.
+ *
  * @author Andrew de Quincey
  */
 public class TransportStream {
@@ -42,6 +46,11 @@ public class TransportStream {
      */
     public static final int ROUND_INC = 2;
 
+    /**
+     * Number of packets fetched per read by readPackets().
+     */
+    public static final int READ_BLOCK_PACKETS = 1024;
+
     /**
      * The bitstream containing our stream.
      */
@@ -66,6 +75,15 @@ public class TransportStream {
         this.bitstream = bitstream;
     }
 
+    /**
+     * Get the Bitstream the stream is read from.
+     *
+     * @return The Bitstream.
+     */
+    public Bitstream getBitstream() {
+        return bitstream;
+    }
+
     /**
      * Retrieve the nearest transport packet to the given position.
      *
@@ -81,9 +99,9 @@ public class TransportStream {
             return null;
 
         // ok, read it!
-        bitstream.seek(position);
         byte[] data = new byte[Constants.TS_PACKET_LENGTH];
-        bitstream.readBlock(data);
+        if (bitstream.readAt(position, ByteBuffer.wrap(data)) != Constants.TS_PACKET_LENGTH)
+            return null;
         if (data[0] != Constants.TS_SYNC_BYTE)
             return null;
         TransportPacket packet = new TransportPacket(data, position);
@@ -92,6 +110,121 @@ public class TransportStream {
         return packet;
     }
 
+    /**
+     * Read a run of consecutive packets, fetching them from the bitstream in
+     * large blocks rather than one packet at a time. Packets which do not start
+     * with a sync byte are skipped, as getPacketAt() would return null for them;
+     * if the sink is a SyncErrorSink it is told about each one.
+     *
+     * The same flyweight TransportPacket instance is passed for every packet, and
+     * is only valid during the call to the sink; use TransportPacket.copy() to
+     * keep hold of one.
+     *
+     * @param firstPos
+     *            Position of the first packet.
+     * @param count
+     *            Number of packets to read (clipped to the end of the stream).
+     * @param sink
+     *            PacketSink to hand each packet to.
+     * @return The number of packets passed to the sink.
+     * @throws IOException
+     *             On IO error.
+     */
+    public long readPackets(long firstPos, long count, PacketSink sink) throws IOException {
+        return readPackets(firstPos, count, null, null, sink);
+    }
+
+    /**
+     * Read a run of consecutive packets as readPackets(long, long,
+     * PacketSink), but only pass on the packets on the PIDs a filter accepts.
+     * Other packets are rejected on their raw header bytes before anything is
+     * decoded.
+     *
+     * @param firstPos
+     *            Position of the first packet.
+     * @param count
+     *            Number of packets to read (clipped to the end of the stream),
+     *            including those filtered out.
+     * @param filter
+     *            The PIDs wanted, or null for all of them.
+     * @param sink
+     *            PacketSink to hand each packet to.
+     * @return The number of packets passed to the sink.
+     * @throws IOException
+     *             On IO error.
+     */
+    public long readPackets(long firstPos, long count, PidFilter filter, PacketSink sink) throws IOException {
+        return readPackets(firstPos, count, filter, null, sink);
+    }
+
+    /**
+     * Read a run of consecutive packets as readPackets(long, long, PidFilter,
+     * PacketSink), also only passing on the packets a PacketFilter accepts.
+     * Like the PidFilter, it is applied to the raw header bytes before
+     * anything is decoded.
+     *
+     * @param firstPos
+     *            Position of the first packet.
+     * @param count
+     *            Number of packets to read (clipped to the end of the stream),
+     *            including those filtered out.
+     * @param filter
+     *            The PIDs wanted, or null for all of them.
+     * @param packetFilter
+     *            The packets wanted, or null for all of them.
+     * @param sink
+     *            PacketSink to hand each packet to.
+     * @return The number of packets passed to the sink.
+     * @throws IOException
+     *             On IO error.
+     */
+    public long readPackets(long firstPos, long count, PidFilter filter, PacketFilter packetFilter, PacketSink sink) throws IOException {
+        if (firstPos < 0)
+            return 0;
+
+        // clip to the end of the stream
+        long available = (bitstream.length() - firstPos) / Constants.TS_PACKET_LENGTH;
+        if (count > available)
+            count = available;
+        if (count <= 0)
+            return 0;
+
+        byte[] block = new byte[(int) Math.min(count, READ_BLOCK_PACKETS) * Constants.TS_PACKET_LENGTH];
+        TransportPacket packet = new TransportPacket();
+        long delivered = 0;
+        long blockPos = firstPos;
+        long remaining = count;
+        while (remaining > 0) {
+            int blockPackets = (int) Math.min(remaining, READ_BLOCK_PACKETS);
+            int blockLength = blockPackets * Constants.TS_PACKET_LENGTH;
+            if (bitstream.readAt(blockPos, ByteBuffer.wrap(block, 0, blockLength)) != blockLength)
+                break;
+
+            for (int i = 0; i < blockPackets; i++) {
+                int offset = i * Constants.TS_PACKET_LENGTH;
+                if (block[offset] != Constants.TS_SYNC_BYTE) {
+                    if (sink instanceof SyncErrorSink)
+                        ((SyncErrorSink) sink).syncError(blockPos + offset);
+                    continue;
+                }
+                if ((filter != null) && !filter.accepts(block, offset))
+                    continue;
+                if ((packetFilter != null) && !packetFilter.accepts(block, offset))
+                    continue;
+
+                packet.bind(block, offset, blockPos + offset);
+                delivered++;
+                if (!sink.packet(packet))
+                    return delivered;
+            }
+
+            blockPos += blockLength;
+            remaining -= blockPackets;
+        }
+
+        return delivered;
+    }
+
     /**
      * Round a given position within the stream to a transport packet.
      *
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.bitstream;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Runs ChunkAnalysers over a whole TransportStream (or a range of one) in
+ * parallel. The stream is split into packet aligned chunks which are
+ * processed on a ForkJoinPool, and the per chunk results are merged back
+ * together in stream order.
+ *
+ * A scan may be cancelled from any thread; chunks not yet started are then
+ * skipped, so the results are incomplete.
+ *
+ * @author Andrew de Quincey
+ */
+public class TransportStreamScanner {
+
+    /**
+     * Default number of packets in each chunk (about 12Mb).
+     */
+    public static final long DEFAULT_CHUNK_PACKETS = 0x10000;
+
+    /**
+     * The stream to scan.
+     */
+    private TransportStream stream;
+
+    /**
+     * The pool to run chunks on.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Maximum number of packets in a chunk.
+     */
+    private long chunkPackets;
+
+    /**
+     * The PIDs to scan, or null for all of them.
+     */
+    private PidFilter filter;
+
+    /**
+     * Set to stop the scan.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructor using the common ForkJoinPool and default chunk size.
+     *
+     * @param stream
+     *            The stream to scan.
+     */
+    public TransportStreamScanner(TransportStream stream) {
+        this(stream, ForkJoinPool.commonPool(), DEFAULT_CHUNK_PACKETS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param stream
+     *            The stream to scan.
+     * @param pool
+     *            The ForkJoinPool to run chunks on.
+     * @param chunkPackets
+     *            Maximum number of packets in a chunk.
+     */
+    public TransportStreamScanner(TransportStream stream, ForkJoinPool pool, long chunkPackets) {
+        if (chunkPackets <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkPackets);
+        }
+
+        this.stream = stream;
+        this.pool = pool;
+        this.chunkPackets = chunkPackets;
+    }
+
+    /**
+     * Restrict scans to some PIDs; packets on other PIDs are never passed to
+     * the analysers.
+     *
+     * @param filter
+     *            The PIDs wanted, or null for all of them.
+     */
+    public void setPidFilter(PidFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Get the PIDs scans are restricted to.
+     *
+     * @return The filter, or null for all PIDs.
+     */
+    public PidFilter getPidFilter() {
+        return filter;
+    }
+
+    /**
+     * Cancel the scan. Chunks already being read are finished, but no more
+     * are started.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Has the scan been cancelled?
+     *
+     * @return True if it has.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Scan the whole stream.
+     *
+     * @param prototype
+     *            Analyser used to create the per chunk analysers (it is not
+     *            passed any packets itself).
+     * @return An analyser holding the merged results for the whole stream
+     *         (incomplete if the scan was cancelled).
+     * @throws IOException
+     *             On error.
+     */
+    public ChunkAnalyser scan(ChunkAnalyser prototype) throws IOException {
+        return scan(prototype, 0, stream.length());
+    }
+
+    /**
+     * Scan a range of the stream.
+     *
+     * @param prototype
+     *            Analyser used to create the per chunk analysers (it is not
+     *            passed any packets itself).
+     * @param startPos
+     *            Position of the first packet to scan (should be packet
+     *            aligned).
+     * @param endPos
+     *            Position to stop scanning at.
+     * @return An analyser holding the merged results for the range
+     *         (incomplete if the scan was cancelled).
+     * @throws IOException
+     *             On error.
+     */
+    public ChunkAnalyser scan(ChunkAnalyser prototype, long startPos, long endPos) throws IOException {
+        long packetCount = (endPos - startPos) / Constants.TS_PACKET_LENGTH;
+        if (packetCount < 0)
+            packetCount = 0;
+
+        try {
+            return (ChunkAnalyser) pool.invoke(new ScanTask(prototype, startPos, packetCount));
+        } catch (ScanException e) {
+            // the pool may wrap the exception again when rethrowing it on
+            // another thread, so dig out the original
+            Throwable cause = e;
+            while (!(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw (IOException) cause;
+        }
+    }
+
+    /**
+     * Process a single chunk on the calling thread.
+     *
+     * @param prototype
+     *            Analyser to create the chunk's analyser from.
+     * @param startPos
+     *            Position of the first packet in the chunk.
+     * @param packetCount
+     *            Number of packets in the chunk.
+     * @return The analyser holding the chunk's results.
+     * @throws IOException
+     *             On error.
+     */
+    private ChunkAnalyser scanChunk(ChunkAnalyser prototype, long startPos, long packetCount) throws IOException {
+        long endPos = startPos + (packetCount * Constants.TS_PACKET_LENGTH);
+        ChunkAnalyser analyser = prototype.createChunkAnalyser(startPos, endPos);
+        if (!cancelled)
+            stream.readPackets(startPos, packetCount, filter, analyser);
+        analyser.finish();
+        return analyser;
+    }
+
+    /**
+     * Recursively splits a range into halves until it is small enough to be
+     * scanned as a single chunk, then merges the halves left to right.
+     */
+    private class ScanTask extends RecursiveTask {
+
+        private ChunkAnalyser prototype;
+
+        private long startPos;
+
+        private long packetCount;
+
+        /**
+         * Constructor.
+         *
+         * @param prototype Analyser to create chunk analysers from.
+         * @param startPos Position of the first packet in the range.
+         * @param packetCount Number of packets in the range.
+         */
+        ScanTask(ChunkAnalyser prototype, long startPos, long packetCount) {
+            this.prototype = prototype;
+            this.startPos = startPos;
+            this.packetCount = packetCount;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.RecursiveTask#compute()
+         */
+        protected Object compute() {
+            if (packetCount <= chunkPackets) {
+                try {
+                    return scanChunk(prototype, startPos, packetCount);
+                } catch (IOException e) {
+                    throw new ScanException(e);
+                }
+            }
+
+            // split on a chunk boundary so the chunks are the same whichever
+            // way the range is divided
+            long leftCount = ((packetCount / chunkPackets + 1) / 2) * chunkPackets;
+            ScanTask left = new ScanTask(prototype, startPos, leftCount);
+            ScanTask right = new ScanTask(prototype, startPos + (leftCount * Constants.TS_PACKET_LENGTH), packetCount - leftCount);
+            right.fork();
+            ChunkAnalyser leftResult = (ChunkAnalyser) left.compute();
+            ChunkAnalyser rightResult = (ChunkAnalyser) right.join();
+
+            leftResult.merge(rightResult);
+            return leftResult;
+        }
+    }
+
+    /**
+     * Carries an IOException out of a ForkJoinTask.
+     */
+    private static class ScanException extends RuntimeException {
+
+        /**
+         * Constructor.
+         *
+         * @param cause The IOException.
+         */
+        ScanException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.diff;
+
+/**
+ * Told about each difference found by a StreamDiff, in roughly stream order.
+ *
+ * @author Andrew de Quincey
+ */
+public interface DiffListener {
+
+    /**
+     * A packet of the first stream is missing from the second.
+     *
+     * @param pid
+     *            The packet's PID.
+     * @param positionA
+     *            Its position in the first stream.
+     */
+    public void dropped(int pid, long positionA);
+
+    /**
+     * A packet of the second stream is missing from the first.
+     *
+     * @param pid
+     *            The packet's PID.
+     * @param positionB
+     *            Its position in the second stream.
+     * @param positionA
+     *            Position in the first stream the diff had reached, as a rough
+     *            guide to where the packet would have been.
+     */
+    public void inserted(int pid, long positionB, long positionA);
+
+    /**
+     * A packet is in both streams (with the same PID and continuity_counter
+     * in the same place) but its contents differ.
+     *
+     * @param pid
+     *            The packet's PID.
+     * @param positionA
+     *            Its position in the first stream.
+     * @param positionB
+     *            Its position in the second stream.
+     */
+    public void changed(int pid, long positionA, long positionB);
+}
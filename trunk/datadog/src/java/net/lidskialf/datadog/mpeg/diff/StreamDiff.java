@@ -0,0 +1,898 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.util.IntArray;
+
+/**
+ * Compares two transport streams packet by packet, reporting the packets
+ * dropped from the first, inserted into the second, and changed between them.
+ *
+ * The streams are first lined up on the first PCR they have in common, so
+ * captures started at different times compare sensibly. They are then read
+ * in windows whose packets are hashed in parallel on a ForkJoinPool. While
+ * the streams agree, whole runs of packets are compared at once using
+ * polynomial rolling hashes of the packet hashes, which work out the hash of
+ * any run within a window in constant time, however far the streams have
+ * been shifted against each other by earlier differences. Elsewhere the
+ * packets of each PID are matched up separately, looking ahead up to
+ * LOOKAHEAD packets for a packet's partner; packets with no partner but the
+ * same continuity_counter in the same place are reported as changed.
+ *
+ * Packets are compared by 64 bit hash, not byte by byte.
+ *
+ * @author Andrew de Quincey
+ */
+public class StreamDiff {
+
+    /**
+     * Number of packets read from each stream at once.
+     */
+    public static final int WINDOW_PACKETS = 0x4000;
+
+    /**
+     * Number of packets of a PID searched for the partner of a packet.
+     */
+    public static final int LOOKAHEAD = 512;
+
+    /**
+     * Number of packets the diff may move on from a packet before giving up
+     * on finding its partner.
+     */
+    public static final long MAX_LAG = 0x4000;
+
+    /**
+     * Number of packets at the start of each stream searched for a common
+     * PCR.
+     */
+    public static final long ALIGN_PACKETS = 0x10000;
+
+    /**
+     * Number of packets in a run compared by rolling hash when a whole window
+     * does not match.
+     */
+    private static final int SKIP_PACKETS = 256;
+
+    /**
+     * Maximum number of packets hashed by a single task.
+     */
+    private static final int HASH_TASK_PACKETS = 1024;
+
+    /**
+     * Multiplier of the rolling hash.
+     */
+    private static final long MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Powers of MULTIPLIER, for taking a run's hash out of the prefix hashes.
+     */
+    private static final long[] POWERS = new long[WINDOW_PACKETS + 1];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++)
+            POWERS[i] = POWERS[i - 1] * MULTIPLIER;
+    }
+
+    /**
+     * The first stream.
+     */
+    private Side a;
+
+    /**
+     * The second stream.
+     */
+    private Side b;
+
+    /**
+     * The pool to hash packets on.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Unmatched packets of the first stream, indexed by PID.
+     */
+    private PacketQueue[] queuesA = new PacketQueue[Constants.PID_COUNT];
+
+    /**
+     * Unmatched packets of the second stream, indexed by PID.
+     */
+    private PacketQueue[] queuesB = new PacketQueue[Constants.PID_COUNT];
+
+    /**
+     * PIDs with unmatched packets.
+     */
+    private IntArray pending = new IntArray();
+
+    /**
+     * Is each PID in pending?
+     */
+    private boolean[] isPending = new boolean[Constants.PID_COUNT];
+
+    /**
+     * Total number of unmatched packets.
+     */
+    private int queued = 0;
+
+    /**
+     * Told about the differences.
+     */
+    private DiffListener listener;
+
+    /**
+     * Set to stop the diff.
+     */
+    private volatile boolean cancelled = false;
+
+    private long matchedCount = 0;
+    private long droppedCount = 0;
+    private long insertedCount = 0;
+    private long changedCount = 0;
+
+    /**
+     * Constructor using the common ForkJoinPool.
+     *
+     * @param streamA
+     *            The first stream.
+     * @param streamB
+     *            The second stream.
+     * @throws IOException
+     *             On error.
+     */
+    public StreamDiff(TransportStream streamA, TransportStream streamB) throws IOException {
+        this(streamA, streamB, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param streamA
+     *            The first stream.
+     * @param streamB
+     *            The second stream.
+     * @param pool
+     *            The ForkJoinPool to hash packets on.
+     * @throws IOException
+     *             On error.
+     */
+    public StreamDiff(TransportStream streamA, TransportStream streamB, ForkJoinPool pool) throws IOException {
+        this.a = new Side(streamA);
+        this.b = new Side(streamB);
+        this.pool = pool;
+    }
+
+    /**
+     * Compare the streams, returning once they have been compared to the end
+     * or the diff is cancelled.
+     *
+     * @param listener
+     *            Told about each difference.
+     * @throws IOException
+     *             On error.
+     */
+    public void diff(DiffListener listener) throws IOException {
+        this.listener = listener;
+        align();
+
+        while (!cancelled) {
+            boolean moreA = a.available();
+            boolean moreB = b.available();
+            if (!moreA && !moreB)
+                break;
+
+            if ((queued == 0) && moreA && moreB && skipIdentical())
+                continue;
+            if (moreA)
+                take(a);
+            if (moreB)
+                take(b);
+            resolvePending();
+        }
+
+        if (!cancelled)
+            resolvePending();
+    }
+
+    /**
+     * Stop the diff as soon as possible.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Has the diff been cancelled?
+     *
+     * @return True if it has.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the position in the first stream the diff started from.
+     *
+     * @return The position.
+     */
+    public long getStartPositionA() {
+        return a.startPacket * Constants.TS_PACKET_LENGTH;
+    }
+
+    /**
+     * Get the position in the second stream the diff started from.
+     *
+     * @return The position.
+     */
+    public long getStartPositionB() {
+        return b.startPacket * Constants.TS_PACKET_LENGTH;
+    }
+
+    /**
+     * Get the position in the first stream read up to so far, for progress
+     * reporting.
+     *
+     * @return The position.
+     */
+    public long getPositionA() {
+        return a.readPosition;
+    }
+
+    /**
+     * Get the number of packets found in both streams.
+     *
+     * @return The number.
+     */
+    public long getMatchedCount() {
+        return matchedCount;
+    }
+
+    /**
+     * Get the number of packets of the first stream missing from the second.
+     *
+     * @return The number.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Get the number of packets of the second stream missing from the first.
+     *
+     * @return The number.
+     */
+    public long getInsertedCount() {
+        return insertedCount;
+    }
+
+    /**
+     * Get the number of packets whose contents differ between the streams.
+     *
+     * @return The number.
+     */
+    public long getChangedCount() {
+        return changedCount;
+    }
+
+    /**
+     * Hash a packet.
+     *
+     * @param data
+     *            Buffer holding the packet.
+     * @param offset
+     *            Offset of the packet's sync byte.
+     * @return The hash.
+     */
+    static long hash(byte[] data, int offset) {
+        long hash = 0;
+        int end = offset + Constants.TS_PACKET_LENGTH;
+        for (int i = offset; i < end; i += 4) {
+            int word = ((data[i] & 0xff) << 24) | ((data[i + 1] & 0xff) << 16) | ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff);
+            hash = (hash ^ (word & 0xffffffffL)) * MULTIPLIER;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+
+    /**
+     * Line the streams up on the first PCR of one also found near the start
+     * of the other, skipping the packets before it in whichever started
+     * earlier.
+     *
+     * @throws IOException
+     *             On error.
+     */
+    private void align() throws IOException {
+        long[] first = findPcr(a.stream, -1, 0);
+        long[] other = (first != null) ? findPcr(b.stream, (int) first[1], first[2]) : null;
+        if (other == null) {
+            first = findPcr(b.stream, -1, 0);
+            other = (first != null) ? findPcr(a.stream, (int) first[1], first[2]) : null;
+            if (other == null)
+                return;
+
+            // first is in b, so swap them round
+            long[] tmp = first;
+            first = other;
+            other = tmp;
+        }
+
+        long common = Math.min(first[0], other[0]);
+        a.startPacket = first[0] - common;
+        b.startPacket = other[0] - common;
+        a.windowStart = a.startPacket;
+        b.windowStart = b.startPacket;
+    }
+
+    /**
+     * Find a PCR near the start of a stream.
+     *
+     * @param stream
+     *            The stream.
+     * @param pid
+     *            PID of the PCR wanted, or -1 for the first PCR on any PID.
+     * @param pcr
+     *            The PCR wanted (ignored if pid is -1).
+     * @return { packet number, PID, PCR } of the packet, or null if none was
+     *         found.
+     * @throws IOException
+     *             On error.
+     */
+    private static long[] findPcr(TransportStream stream, final int pid, final long pcr) throws IOException {
+        final long[] found = new long[3];
+        found[0] = -1;
+        stream.readPackets(0, ALIGN_PACKETS, new PacketSink() {
+            public boolean packet(TransportPacket packet) {
+                if ((packet.adaptation_flags() & TransportPacket.adapflag_PCR_flag) == 0)
+                    return true;
+                if ((pid != -1) && ((packet.pid() != pid) || (packet.PCR() != pcr)))
+                    return true;
+
+                found[0] = packet.getStreamPosition() / Constants.TS_PACKET_LENGTH;
+                found[1] = packet.pid();
+                found[2] = packet.PCR();
+                return false;
+            }
+        });
+        return (found[0] != -1) ? found : null;
+    }
+
+    /**
+     * While the streams agree, skip the longest run of identical packets the
+     * rolling hashes can show, trying the rest of the windows and then a
+     * shorter run.
+     *
+     * @return True if any packets were skipped.
+     */
+    private boolean skipIdentical() {
+        int length = Math.min(a.count - a.index, b.count - b.index);
+        if (a.runHash(a.index, length) != b.runHash(b.index, length)) {
+            length = Math.min(length, SKIP_PACKETS);
+            if (a.runHash(a.index, length) != b.runHash(b.index, length))
+                return false;
+        }
+
+        a.index += length;
+        b.index += length;
+        matchedCount += length;
+        return true;
+    }
+
+    /**
+     * Queue the next packet of a stream and try to match it up.
+     *
+     * @param side
+     *            The stream.
+     */
+    private void take(Side side) {
+        int i = side.index++;
+        int pid = side.pids[i];
+        if (pid == -1)
+            return;
+
+        PacketQueue[] queues = (side == a) ? queuesA : queuesB;
+        if (queues[pid] == null)
+            queues[pid] = new PacketQueue();
+        queues[pid].add(side.windowStart + i, side.hashes[i], side.data[(i * Constants.TS_PACKET_LENGTH) + 3] & 0x0f);
+        queued++;
+
+        if (!isPending[pid]) {
+            isPending[pid] = true;
+            pending.add(pid);
+        }
+        resolve(pid);
+    }
+
+    /**
+     * Try to match up the packets of every PID with unmatched packets, which
+     * may have waited long enough to be given up on.
+     */
+    private void resolvePending() {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            int pid = pending.get(i);
+            resolve(pid);
+            if (isEmpty(queuesA[pid]) && isEmpty(queuesB[pid])) {
+                isPending[pid] = false;
+                pending.set(i, pending.get(pending.size() - 1));
+                pending.truncate(pending.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Match up as many unmatched packets of a PID as possible, reporting
+     * those with no partner once it is clear none is coming.
+     *
+     * @param pid
+     *            The PID.
+     */
+    private void resolve(int pid) {
+        PacketQueue qa = queuesA[pid];
+        PacketQueue qb = queuesB[pid];
+        while (true) {
+            int sizeA = (qa != null) ? qa.size : 0;
+            int sizeB = (qb != null) ? qb.size : 0;
+            if ((sizeA == 0) && (sizeB == 0))
+                return;
+
+            // only one stream has packets waiting
+            if (sizeB == 0) {
+                if (!b.ended && (sizeA < LOOKAHEAD) && !isStale(qa, a))
+                    return;
+                drop(pid, qa);
+                continue;
+            }
+            if (sizeA == 0) {
+                if (!a.ended && (sizeB < LOOKAHEAD) && !isStale(qb, b))
+                    return;
+                insert(pid, qb, a.windowStart + a.index);
+                continue;
+            }
+
+            if (qa.hash(0) == qb.hash(0)) {
+                qa.remove();
+                qb.remove();
+                queued -= 2;
+                matchedCount++;
+                continue;
+            }
+
+            // packets with the same continuity_counter are in the same place,
+            // so if the packets after them agree they are changed (runs of
+            // identical packets, such as null packets, would otherwise match
+            // up one packet out)
+            if (qa.cc(0) == qb.cc(0)) {
+                if ((sizeA > 1) && (sizeB > 1)) {
+                    if (qa.hash(1) == qb.hash(1)) {
+                        change(pid, qa, qb);
+                        continue;
+                    }
+                } else if ((((sizeA < 2) && !a.ended) || ((sizeB < 2) && !b.ended)) && (sizeA < LOOKAHEAD) && (sizeB < LOOKAHEAD) && !isStale(qa, a)
+                        && !isStale(qb, b)) {
+                    return;
+                }
+            }
+
+            // look ahead for either packet's partner, preferring the nearer
+            int inB = qb.indexOf(qa.hash(0));
+            int inA = qa.indexOf(qb.hash(0));
+            if ((inB != -1) && ((inA == -1) || (inB <= inA))) {
+                while (inB-- > 0)
+                    insert(pid, qb, qa.number(0));
+                continue;
+            }
+            if (inA != -1) {
+                while (inA-- > 0)
+                    drop(pid, qa);
+                continue;
+            }
+
+            // neither has a partner yet; decide once the following packets
+            // agree or no partner can be coming
+            boolean resync = (sizeA > 1) && (sizeB > 1) && (qa.hash(1) == qb.hash(1));
+            if (!resync && !(a.ended && b.ended) && (sizeA < LOOKAHEAD) && (sizeB < LOOKAHEAD) && !isStale(qa, a) && !isStale(qb, b))
+                return;
+            if (qa.cc(0) == qb.cc(0))
+                change(pid, qa, qb);
+            else
+                drop(pid, qa);
+        }
+    }
+
+    /**
+     * Report the first unmatched packet of the first stream as dropped.
+     *
+     * @param pid
+     *            Its PID.
+     * @param qa
+     *            Its queue.
+     */
+    private void drop(int pid, PacketQueue qa) {
+        listener.dropped(pid, qa.number(0) * Constants.TS_PACKET_LENGTH);
+        qa.remove();
+        queued--;
+        droppedCount++;
+    }
+
+    /**
+     * Report the first unmatched packets of both streams as changed.
+     *
+     * @param pid
+     *            Their PID.
+     * @param qa
+     *            The first stream's queue.
+     * @param qb
+     *            The second stream's queue.
+     */
+    private void change(int pid, PacketQueue qa, PacketQueue qb) {
+        listener.changed(pid, qa.number(0) * Constants.TS_PACKET_LENGTH, qb.number(0) * Constants.TS_PACKET_LENGTH);
+        qa.remove();
+        qb.remove();
+        queued -= 2;
+        changedCount++;
+    }
+
+    /**
+     * Report the first unmatched packet of the second stream as inserted.
+     *
+     * @param pid
+     *            Its PID.
+     * @param qb
+     *            Its queue.
+     * @param numberA
+     *            Number of the packet of the first stream it comes before.
+     */
+    private void insert(int pid, PacketQueue qb, long numberA) {
+        listener.inserted(pid, qb.number(0) * Constants.TS_PACKET_LENGTH, numberA * Constants.TS_PACKET_LENGTH);
+        qb.remove();
+        queued--;
+        insertedCount++;
+    }
+
+    /**
+     * Has a queue waited too long for partners? This counts from when it was
+     * last empty rather than from its first packet, so a PID left one packet
+     * out of step within a run of identical packets is caught too.
+     *
+     * @param queue
+     *            The queue.
+     * @param side
+     *            The stream it is from.
+     * @return True if it has.
+     */
+    private static boolean isStale(PacketQueue queue, Side side) {
+        return (side.windowStart + side.index) - queue.waitingSince > MAX_LAG;
+    }
+
+    /**
+     * Is a queue empty?
+     *
+     * @param queue
+     *            The queue, or null.
+     * @return True if it is empty or null.
+     */
+    private static boolean isEmpty(PacketQueue queue) {
+        return (queue == null) || (queue.size == 0);
+    }
+
+    /**
+     * One of the streams being compared, with its current window of packets.
+     */
+    private class Side {
+
+        TransportStream stream;
+
+        /**
+         * Number of packets in the stream.
+         */
+        long packetCount;
+
+        /**
+         * Number of the packet the diff started from.
+         */
+        long startPacket = 0;
+
+        /**
+         * Number of the first packet in the window.
+         */
+        long windowStart = 0;
+
+        /**
+         * Number of packets in the window.
+         */
+        int count = 0;
+
+        /**
+         * Index in the window of the next packet to compare.
+         */
+        int index = 0;
+
+        /**
+         * Set once the end of the stream has been reached.
+         */
+        boolean ended = false;
+
+        /**
+         * Position read up to.
+         */
+        volatile long readPosition = 0;
+
+        /**
+         * The window's packets.
+         */
+        byte[] data = new byte[WINDOW_PACKETS * Constants.TS_PACKET_LENGTH];
+
+        /**
+         * PID of each packet in the window, or -1 for those without a sync
+         * byte.
+         */
+        int[] pids = new int[WINDOW_PACKETS];
+
+        /**
+         * Hash of each packet in the window.
+         */
+        long[] hashes = new long[WINDOW_PACKETS];
+
+        /**
+         * Rolling hashes of the packet hashes before each index.
+         */
+        long[] prefixes = new long[WINDOW_PACKETS + 1];
+
+        /**
+         * Constructor.
+         *
+         * @param stream
+         *            The stream.
+         * @throws IOException
+         *             On error.
+         */
+        Side(TransportStream stream) throws IOException {
+            this.stream = stream;
+            this.packetCount = stream.length() / Constants.TS_PACKET_LENGTH;
+        }
+
+        /**
+         * Are there more packets to compare? Reads the next window if the
+         * current one is finished.
+         *
+         * @return True if there are.
+         * @throws IOException
+         *             On error.
+         */
+        boolean available() throws IOException {
+            if ((index == count) && !ended)
+                fill();
+            return index < count;
+        }
+
+        /**
+         * Read and hash the next window.
+         *
+         * @throws IOException
+         *             On error.
+         */
+        void fill() throws IOException {
+            windowStart += count;
+            index = 0;
+            count = (int) Math.min(WINDOW_PACKETS, packetCount - windowStart);
+            if (count > 0) {
+                int length = count * Constants.TS_PACKET_LENGTH;
+                int read = stream.getBitstream().readAt(windowStart * Constants.TS_PACKET_LENGTH, ByteBuffer.wrap(data, 0, length));
+                count = Math.max(read, 0) / Constants.TS_PACKET_LENGTH;
+            }
+            if (count <= 0) {
+                count = 0;
+                ended = true;
+                return;
+            }
+
+            pool.invoke(new HashTask(this, 0, count));
+            for (int i = 0; i < count; i++)
+                prefixes[i + 1] = (prefixes[i] * MULTIPLIER) + hashes[i];
+            readPosition = (windowStart + count) * Constants.TS_PACKET_LENGTH;
+        }
+
+        /**
+         * Get the rolling hash of a run of packets in the window.
+         *
+         * @param start
+         *            Index of the first packet.
+         * @param length
+         *            Number of packets.
+         * @return The hash.
+         */
+        long runHash(int start, int length) {
+            return prefixes[start + length] - (prefixes[start] * POWERS[length]);
+        }
+    }
+
+    /**
+     * Works out the PIDs and hashes of some of the packets in a window,
+     * splitting the work up between the pool's threads.
+     */
+    private static class HashTask extends RecursiveAction {
+
+        private Side side;
+
+        private int start;
+
+        private int end;
+
+        /**
+         * Constructor.
+         *
+         * @param side The stream whose window is being hashed.
+         * @param start Index of the first packet.
+         * @param end Index after the last packet.
+         */
+        HashTask(Side side, int start, int end) {
+            this.side = side;
+            this.start = start;
+            this.end = end;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        protected void compute() {
+            if (end - start > HASH_TASK_PACKETS) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new HashTask(side, start, middle), new HashTask(side, middle, end));
+                return;
+            }
+
+            byte[] data = side.data;
+            for (int i = start; i < end; i++) {
+                int offset = i * Constants.TS_PACKET_LENGTH;
+                side.hashes[i] = hash(data, offset);
+                side.pids[i] = (data[offset] == Constants.TS_SYNC_BYTE) ? ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff) : -1;
+            }
+        }
+    }
+
+    /**
+     * Unmatched packets of one PID of one stream, in order.
+     */
+    private static class PacketQueue {
+
+        /**
+         * Packet numbers, in a ring buffer.
+         */
+        private long[] numbers = new long[16];
+
+        /**
+         * Packet hashes, in a ring buffer.
+         */
+        private long[] hashes = new long[16];
+
+        /**
+         * continuity_counters, in a ring buffer.
+         */
+        private byte[] ccs = new byte[16];
+
+        /**
+         * Index of the first packet.
+         */
+        private int head = 0;
+
+        /**
+         * Number of packets.
+         */
+        int size = 0;
+
+        /**
+         * Packet number of the packet added when the queue was last empty.
+         */
+        long waitingSince;
+
+        /**
+         * Add a packet at the end.
+         *
+         * @param number Its packet number.
+         * @param hash Its hash.
+         * @param cc Its continuity_counter.
+         */
+        void add(long number, long hash, int cc) {
+            if (size == 0)
+                waitingSince = number;
+            if (size == numbers.length)
+                grow();
+            int i = (head + size) & (numbers.length - 1);
+            numbers[i] = number;
+            hashes[i] = hash;
+            ccs[i] = (byte) cc;
+            size++;
+        }
+
+        /**
+         * Remove the first packet.
+         */
+        void remove() {
+            head = (head + 1) & (numbers.length - 1);
+            size--;
+        }
+
+        /**
+         * Get the packet number of a packet.
+         *
+         * @param n Index of the packet in the queue.
+         * @return The number.
+         */
+        long number(int n) {
+            return numbers[(head + n) & (numbers.length - 1)];
+        }
+
+        /**
+         * Get the hash of a packet.
+         *
+         * @param n Index of the packet in the queue.
+         * @return The hash.
+         */
+        long hash(int n) {
+            return hashes[(head + n) & (numbers.length - 1)];
+        }
+
+        /**
+         * Get the continuity_counter of a packet.
+         *
+         * @param n Index of the packet in the queue.
+         * @return The continuity_counter.
+         */
+        int cc(int n) {
+            return ccs[(head + n) & (numbers.length - 1)];
+        }
+
+        /**
+         * Find a packet by hash.
+         *
+         * @param hash The hash.
+         * @return Index of the first packet with it, or -1 if there is none.
+         */
+        int indexOf(long hash) {
+            for (int n = 0; n < size; n++) {
+                if (hash(n) == hash)
+                    return n;
+            }
+            return -1;
+        }
+
+        /**
+         * Double the size of the ring buffer.
+         */
+        private void grow() {
+            long[] newNumbers = new long[numbers.length * 2];
+            long[] newHashes = new long[numbers.length * 2];
+            byte[] newCcs = new byte[numbers.length * 2];
+            for (int n = 0; n < size; n++) {
+                newNumbers[n] = number(n);
+                newHashes[n] = hash(n);
+                newCcs[n] = (byte) cc(n);
+            }
+            numbers = newNumbers;
+            hashes = newHashes;
+            ccs = newCcs;
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.export;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.pes.PesHeaderReader;
+
+/**
+ * Writes some PIDs of a transport stream out to files, as transport packets,
+ * PES packets or bare elementary stream data, in one sequential pass.
+ *
+ * Data is gathered into large direct buffers, and each PID's file is written
+ * by its own thread, so the pass reading the stream only blocks when a writer
+ * has fallen a few buffers behind.
+ *
+ * @author Andrew de Quincey
+ */
+public class PidExporter implements PacketSink {
+
+    /**
+     * Write whole transport packets.
+     */
+    public static final int FORMAT_TS = 0;
+
+    /**
+     * Write the PES packets, starting with the first PES packet seen.
+     */
+    public static final int FORMAT_PES = 1;
+
+    /**
+     * Write the elementary stream data of the PES packets, without their
+     * headers.
+     */
+    public static final int FORMAT_ES = 2;
+
+    /**
+     * Size of each output buffer.
+     */
+    public static final int BUFFER_SIZE = 0x100000;
+
+    /**
+     * Number of full buffers each PID may have waiting to be written.
+     */
+    public static final int WRITE_BEHIND_BUFFERS = 4;
+
+    /**
+     * One of the FORMAT_* constants.
+     */
+    private int format;
+
+    /**
+     * Per-PID outputs (null if the PID is not being exported).
+     */
+    private Output[] outputs = new Output[Constants.PID_COUNT];
+
+    /**
+     * The PIDs being exported.
+     */
+    private PidFilter filter = new PidFilter();
+
+    /**
+     * Constructor.
+     *
+     * @param format
+     *            One of the FORMAT_* constants.
+     */
+    public PidExporter(int format) {
+        if ((format < FORMAT_TS) || (format > FORMAT_ES)) {
+            throw new IllegalArgumentException("Invalid export format " + format);
+        }
+        this.format = format;
+    }
+
+    /**
+     * Export some PIDs of a stream.
+     *
+     * @param stream
+     *            The stream.
+     * @param pids
+     *            The PIDs to export.
+     * @param files
+     *            The file to write each PID to.
+     * @param format
+     *            One of the FORMAT_* constants.
+     * @throws IOException
+     *             On error.
+     */
+    public static void export(TransportStream stream, int[] pids, File[] files, int format) throws IOException {
+        PidExporter exporter = new PidExporter(format);
+        try {
+            for (int i = 0; i < pids.length; i++)
+                exporter.addPid(pids[i], files[i]);
+            stream.readPackets(0, stream.length() / Constants.TS_PACKET_LENGTH, exporter.getPidFilter(), exporter);
+        } finally {
+            exporter.finish();
+        }
+    }
+
+    /**
+     * Start exporting a PID.
+     *
+     * @param pid
+     *            The PID.
+     * @param file
+     *            The file to write it to (any existing file is replaced).
+     * @throws IOException
+     *             If the file could not be created.
+     */
+    public void addPid(int pid, File file) throws IOException {
+        if (outputs[pid] != null) {
+            throw new IllegalArgumentException("PID 0x" + Integer.toHexString(pid) + " is already being exported");
+        }
+
+        outputs[pid] = new Output(pid, file);
+        outputs[pid].start();
+        filter.add(pid);
+    }
+
+    /**
+     * Get a filter accepting the PIDs being exported, for reading only their
+     * packets from the stream.
+     *
+     * @return The filter.
+     */
+    public PidFilter getPidFilter() {
+        return filter;
+    }
+
+    /**
+     * Get the number of bytes exported from a PID so far (including any not
+     * yet written).
+     *
+     * @param pid
+     *            The PID.
+     * @return The count.
+     */
+    public long getByteCount(int pid) {
+        return (outputs[pid] == null) ? 0 : outputs[pid].byteCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) throws IOException {
+        Output output = outputs[packet.pid()];
+        if (output == null)
+            return true;
+
+        if (format == FORMAT_TS) {
+            packet.getData(output.reserve(Constants.TS_PACKET_LENGTH));
+            return true;
+        }
+
+        // drop damaged and repeated packets when rebuilding the payload
+        if (packet.transport_error_indicator()) {
+            output.lastCC = -1;
+            output.header.reset();
+            return true;
+        }
+        if (!packet.hasPayload())
+            return true;
+        int cc = packet.continuity_counter();
+        if (cc == output.lastCC)
+            return true;
+        output.lastCC = cc;
+
+        int size = packet.payloadSize();
+
+        if (packet.payload_unit_start_indicator())
+            output.started = true;
+        if (!output.started)
+            return true;
+
+        int start = (format == FORMAT_ES) ? output.header.read(packet) : 0;
+        if (size > start)
+            packet.getPayloadData(start, output.reserve(size - start), size - start);
+        return true;
+    }
+
+    /**
+     * Write out everything still buffered, wait for the writers to finish and
+     * close the files.
+     *
+     * @throws IOException
+     *             If any of the writes failed.
+     */
+    public void finish() throws IOException {
+        IOException error = null;
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (outputs[pid] == null)
+                continue;
+
+            try {
+                outputs[pid].close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * The file one PID is written to, and the thread writing it.
+     */
+    private static class Output extends Thread {
+
+        /**
+         * Queued after the last buffer to stop the thread.
+         */
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        /**
+         * The file being written.
+         */
+        private FileOutputStream file;
+
+        /**
+         * Its channel.
+         */
+        private FileChannel channel;
+
+        /**
+         * Buffer being filled.
+         */
+        private ByteBuffer current;
+
+        /**
+         * Full buffers waiting to be written.
+         */
+        private ArrayBlockingQueue full = new ArrayBlockingQueue(WRITE_BEHIND_BUFFERS + 1);
+
+        /**
+         * Written buffers waiting to be filled again.
+         */
+        private ArrayBlockingQueue empty = new ArrayBlockingQueue(WRITE_BEHIND_BUFFERS);
+
+        /**
+         * The first write error, if any.
+         */
+        private volatile IOException error;
+
+        /**
+         * Number of bytes exported.
+         */
+        volatile long byteCount;
+
+        /**
+         * Last continuity_counter seen (-1 for none).
+         */
+        int lastCC = -1;
+
+        /**
+         * Has the start of a PES packet been seen?
+         */
+        boolean started;
+
+        /**
+         * Collects the PES header at the start of each PES packet, when
+         * writing the elementary stream.
+         */
+        PesHeaderReader header = new PesHeaderReader();
+
+        /**
+         * Constructor.
+         *
+         * @param pid
+         *            The PID being written.
+         * @param filename
+         *            The file to write it to.
+         * @throws IOException
+         *             If the file could not be created.
+         */
+        Output(int pid, File filename) throws IOException {
+            super("Export PID 0x" + Integer.toHexString(pid) + ": " + filename.getName());
+            setDaemon(true);
+
+            file = new FileOutputStream(filename);
+            channel = file.getChannel();
+            current = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            for (int i = 0; i < WRITE_BEHIND_BUFFERS; i++)
+                empty.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+
+        /**
+         * Make room for some bytes in the buffer being filled, handing it to
+         * the writer if it is full.
+         *
+         * @param length
+         *            Number of bytes wanted (at most a packet's worth).
+         * @return The buffer to put them in.
+         * @throws IOException
+         *             If an earlier write failed.
+         */
+        ByteBuffer reserve(int length) throws IOException {
+            if (error != null)
+                throw error;
+
+            if (current.remaining() < length) {
+                queue(current);
+                try {
+                    current = (ByteBuffer) empty.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Export interrupted");
+                }
+            }
+            byteCount += length;
+            return current;
+        }
+
+        /**
+         * Write out what is left, stop the thread and close the file.
+         *
+         * @throws IOException
+         *             If any of the writes failed.
+         */
+        void close() throws IOException {
+            try {
+                queue(current);
+                queue(END);
+                join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Export interrupted");
+            } finally {
+                file.close();
+            }
+            if (error != null)
+                throw error;
+        }
+
+        /**
+         * Hand a buffer to the writer thread.
+         *
+         * @param buffer
+         *            The buffer.
+         * @throws InterruptedIOException
+         *             If interrupted while waiting for room.
+         */
+        private void queue(ByteBuffer buffer) throws InterruptedIOException {
+            try {
+                full.put(buffer);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Export interrupted");
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Thread#run()
+         */
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer buffer = (ByteBuffer) full.take();
+                    if (buffer == END)
+                        return;
+
+                    buffer.flip();
+                    try {
+                        while ((error == null) && buffer.hasRemaining())
+                            channel.write(buffer);
+                    } catch (IOException e) {
+                        // keep taking buffers so the reader does not block
+                        error = e;
+                    }
+                    buffer.clear();
+                    empty.offer(buffer);
+                }
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Export interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.export;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import net.lidskialf.datadog.Bitstream;
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.psi.*;
+
+/**
+ * Copies a transport stream to a new one, keeping only some PIDs, optionally
+ * dropping the null packets and renumbering PIDs.
+ *
+ * Long runs of consecutive packets which are copied unchanged are handed to
+ * Bitstream.transferTo(), so their data never passes through the Java heap;
+ * short runs (as left when a service is picked out of a multiplex) and
+ * renumbered packets are gathered into a direct buffer and written in large
+ * blocks instead, rather than making a system call for every few packets.
+ *
+ * When PIDs are renumbered, the PAT and PMT sections which fit in a single
+ * packet are rewritten to match; longer sections are copied unchanged.
+ *
+ * @author Andrew de Quincey
+ */
+public class TransportStreamRemuxer implements PacketSink {
+
+    /**
+     * Size of the buffer gathering packets to be written.
+     */
+    public static final int BUFFER_SIZE = 0x100000;
+
+    /**
+     * Number of consecutive unchanged packets at which a run is written with
+     * Bitstream.transferTo() rather than through the buffer.
+     */
+    public static final int MIN_TRANSFER_PACKETS = 256;
+
+    /**
+     * The stream being copied.
+     */
+    private Bitstream source;
+
+    /**
+     * Where the copy is written.
+     */
+    private WritableByteChannel target;
+
+    /**
+     * The PIDs to keep.
+     */
+    private PidFilter filter;
+
+    /**
+     * New number of each PID.
+     */
+    private int[] pidMap = new int[Constants.PID_COUNT];
+
+    /**
+     * Are any PIDs being renumbered?
+     */
+    private boolean remapping;
+
+    /**
+     * The PMT PIDs listed by the PAT (by their original numbers).
+     */
+    private PidFilter pmtPids = new PidFilter();
+
+    /**
+     * Packets waiting to be written.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Copy of the packet being rewritten.
+     */
+    private byte[] packetData = new byte[Constants.TS_PACKET_LENGTH];
+
+    /**
+     * Source position of the current run of unchanged packets.
+     */
+    private long runStart;
+
+    /**
+     * Length of the current run of unchanged packets (0 if none).
+     */
+    private long runLength;
+
+    /**
+     * Is the current run being copied with transferTo() (rather than being
+     * gathered in the buffer)?
+     */
+    private boolean transferring;
+
+    /**
+     * Number of bytes written so far.
+     */
+    private long byteCount;
+
+    /**
+     * Constructor. All PIDs apart from the null PID are kept to start with.
+     *
+     * @param source
+     *            The stream being copied.
+     * @param target
+     *            Where to write the copy.
+     */
+    public TransportStreamRemuxer(Bitstream source, WritableByteChannel target) {
+        this.source = source;
+        this.target = target;
+
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++)
+            pidMap[pid] = pid;
+        setPidFilter(null, true);
+    }
+
+    /**
+     * Copy a whole stream to a file.
+     *
+     * @param stream
+     *            The stream.
+     * @param file
+     *            The file to write (any existing file is replaced).
+     * @param keep
+     *            The PIDs to keep, or null for all of them.
+     * @param stripNulls
+     *            Drop the null packets (even if keep accepts the null PID)?
+     * @return The number of bytes written.
+     * @throws IOException
+     *             On error.
+     */
+    public static long remux(TransportStream stream, File file, PidFilter keep, boolean stripNulls) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            TransportStreamRemuxer remuxer = new TransportStreamRemuxer(stream.getBitstream(), channel);
+            remuxer.setPidFilter(keep, stripNulls);
+            stream.readPackets(0, stream.length() / Constants.TS_PACKET_LENGTH, remuxer.getPidFilter(), remuxer);
+            remuxer.finish();
+            return remuxer.getByteCount();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Choose the PIDs to keep.
+     *
+     * @param keep
+     *            The PIDs, or null for all of them.
+     * @param stripNulls
+     *            Drop the null packets (even if keep accepts the null PID)?
+     */
+    public void setPidFilter(PidFilter keep, boolean stripNulls) {
+        if (keep == null) {
+            filter = new PidFilter();
+            for (int pid = 0; pid < Constants.PID_COUNT; pid++)
+                filter.add(pid);
+        } else {
+            filter = new PidFilter(keep);
+        }
+        if (stripNulls)
+            filter.remove(Constants.TS_NULL_PID);
+    }
+
+    /**
+     * Get a filter accepting the PIDs being kept, for reading only their
+     * packets from the stream.
+     *
+     * @return The filter.
+     */
+    public PidFilter getPidFilter() {
+        return filter;
+    }
+
+    /**
+     * Renumber a PID in the copy.
+     *
+     * @param pid
+     *            The PID in the original stream.
+     * @param newPid
+     *            Its number in the copy.
+     */
+    public void remapPid(int pid, int newPid) {
+        if ((newPid < 0) || (newPid >= Constants.PID_COUNT)) {
+            throw new IllegalArgumentException("Invalid PID " + newPid);
+        }
+
+        pidMap[pid] = newPid;
+        remapping = false;
+        for (int i = 0; i < Constants.PID_COUNT; i++)
+            remapping |= pidMap[i] != i;
+    }
+
+    /**
+     * Get the number of bytes written so far.
+     *
+     * @return The count.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) throws IOException {
+        int pid = packet.pid();
+        if (!filter.accepts(pid)) {
+            endRun();
+            return true;
+        }
+
+        long position = packet.getStreamPosition();
+        if (remapping && ((pidMap[pid] != pid) || (pid == PsiCollector.PID_PAT) || pmtPids.accepts(pid))) {
+            endRun();
+            makeRoom();
+            packet.getData(ByteBuffer.wrap(packetData));
+            rewrite(packet);
+            buffer.put(packetData);
+            return true;
+        }
+
+        // extend the current run, or start a new one
+        if ((runLength > 0) && (runStart + runLength == position)) {
+            runLength += Constants.TS_PACKET_LENGTH;
+        } else {
+            endRun();
+            runStart = position;
+            runLength = Constants.TS_PACKET_LENGTH;
+        }
+        if (transferring)
+            return true;
+
+        if (buffer.remaining() < Constants.TS_PACKET_LENGTH) {
+            // the earlier part of the run is written out with the buffer
+            makeRoom();
+            runStart = position;
+            runLength = Constants.TS_PACKET_LENGTH;
+        }
+        packet.getData(buffer);
+
+        // a long run is better copied by the operating system
+        if (runLength >= (long) MIN_TRANSFER_PACKETS * Constants.TS_PACKET_LENGTH) {
+            buffer.position(buffer.position() - (int) runLength);
+            flush();
+            transferring = true;
+        }
+        return true;
+    }
+
+    /**
+     * Write out everything still waiting. The target is not closed.
+     *
+     * @throws IOException
+     *             On error.
+     */
+    public void finish() throws IOException {
+        endRun();
+        flush();
+    }
+
+    /**
+     * Finish the current run of unchanged packets, copying it if it is being
+     * transferred (a gathered run is already in the buffer).
+     *
+     * @throws IOException
+     *             On error.
+     */
+    private void endRun() throws IOException {
+        if (transferring) {
+            long copied = source.transferTo(runStart, runLength, target);
+            if (copied != runLength) {
+                throw new EOFException("Unexpected end of bitstream at " + (runStart + copied));
+            }
+            byteCount += copied;
+            transferring = false;
+        }
+        runLength = 0;
+    }
+
+    /**
+     * Make sure there is room in the buffer for another packet.
+     *
+     * @throws IOException
+     *             On error.
+     */
+    private void makeRoom() throws IOException {
+        if (buffer.remaining() < Constants.TS_PACKET_LENGTH)
+            flush();
+    }
+
+    /**
+     * Write out the buffer.
+     *
+     * @throws IOException
+     *             On error.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        byteCount += buffer.remaining();
+        while (buffer.hasRemaining())
+            target.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Renumber the PIDs in the copy of a packet, in its header and in any
+     * PAT or PMT section it holds in full.
+     *
+     * @param packet
+     *            The packet (packetData holds its copy).
+     */
+    private void rewrite(TransportPacket packet) {
+        int pid = packet.pid();
+        setPid(packetData, 1, pidMap[pid]);
+        if (!packet.payload_unit_start_indicator() || (packet.payloadSize() < 1))
+            return;
+        if ((pid != PsiCollector.PID_PAT) && !pmtPids.accepts(pid))
+            return;
+
+        int section = packet.payloadOffset() + 1 + (packetData[packet.payloadOffset()] & 0xff);
+        if (section + 3 > Constants.TS_PACKET_LENGTH)
+            return;
+        int tableId = packetData[section] & 0xff;
+        int end = section + 3 + (((packetData[section + 1] & 0x0f) << 8) | (packetData[section + 2] & 0xff));
+        if ((end > Constants.TS_PACKET_LENGTH) || (end < section + 12))
+            return;
+
+        if ((pid == PsiCollector.PID_PAT) && (tableId == ProgramAssociationTable.TABLE_ID)) {
+            for (int pos = section + 8; pos + 4 <= end - 4; pos += 4) {
+                int programNumber = ((packetData[pos] & 0xff) << 8) | (packetData[pos + 1] & 0xff);
+                int pmtPid = getPid(packetData, pos + 2);
+                if (programNumber != 0)
+                    pmtPids.add(pmtPid);
+                setPid(packetData, pos + 2, pidMap[pmtPid]);
+            }
+        } else if (tableId == ProgramMapTable.TABLE_ID) {
+            setPid(packetData, section + 8, pidMap[getPid(packetData, section + 8)]);
+            int pos = section + 12 + (((packetData[section + 10] & 0x0f) << 8) | (packetData[section + 11] & 0xff));
+            while (pos + 5 <= end - 4) {
+                setPid(packetData, pos + 1, pidMap[getPid(packetData, pos + 1)]);
+                pos += 5 + (((packetData[pos + 3] & 0x0f) << 8) | (packetData[pos + 4] & 0xff));
+            }
+        } else {
+            return;
+        }
+
+        int crc = Crc32.crc(packetData, section, end - 4 - section);
+        packetData[end - 4] = (byte) (crc >>> 24);
+        packetData[end - 3] = (byte) (crc >>> 16);
+        packetData[end - 2] = (byte) (crc >>> 8);
+        packetData[end - 1] = (byte) crc;
+    }
+
+    /**
+     * Read a 13 bit PID.
+     *
+     * @param data
+     *            The buffer.
+     * @param pos
+     *            Offset of the two bytes holding it.
+     * @return The PID.
+     */
+    private static int getPid(byte[] data, int pos) {
+        return ((data[pos] & 0x1f) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /**
+     * Write a 13 bit PID, leaving the three bits above it alone.
+     *
+     * @param data
+     *            The buffer.
+     * @param pos
+     *            Offset of the two bytes holding it.
+     * @param pid
+     *            The PID.
+     */
+    private static void setPid(byte[] data, int pos, int pid) {
+        data[pos] = (byte) ((data[pos] & 0xe0) | (pid >> 8));
+        data[pos + 1] = (byte) pid;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.pes;
+
+import java.io.IOException;
+
+import net.lidskialf.datadog.Bitstream;
+import net.lidskialf.datadog.mpeg.bitstream.*;
+
+/**
+ * A PacketSink which collects the payloads of transport packets on chosen
+ * PIDs into PES packets, starting a new one at each
+ * payload_unit_start_indicator.
+ *
+ * Nothing is copied except the first few bytes of each PES packet: the
+ * payload bytes stay in the Bitstream and each PesPacket only records where
+ * they are. One PesPacket per PID is reused, so a full scan allocates almost
+ * nothing.
+ *
+ * @author Andrew de Quincey
+ */
+public class PesAssembler implements PacketSink {
+
+    /**
+     * Where to send PES packets.
+     */
+    private PesHandler handler;
+
+    /**
+     * The Bitstream the transport packets come from.
+     */
+    private Bitstream bitstream;
+
+    /**
+     * The PES packet being assembled on each PID (null if the PID is not
+     * wanted).
+     */
+    private PesPacket[] current = new PesPacket[Constants.PID_COUNT];
+
+    /**
+     * Is a PES packet in progress on each PID?
+     */
+    private boolean[] active = new boolean[Constants.PID_COUNT];
+
+    /**
+     * Bytes still to come for each PES packet in progress with a bounded
+     * PES_packet_length, or -1 if it is unbounded (or not known yet).
+     */
+    private int[] remaining = new int[Constants.PID_COUNT];
+
+    /**
+     * Last continuity_counter seen on each PID (-1 for none).
+     */
+    private byte[] lastCC = new byte[Constants.PID_COUNT];
+
+    /**
+     * Constructor.
+     *
+     * @param bitstream
+     *            The Bitstream the transport packets come from.
+     * @param handler
+     *            Where to send PES packets.
+     */
+    public PesAssembler(Bitstream bitstream, PesHandler handler) {
+        this.bitstream = bitstream;
+        this.handler = handler;
+    }
+
+    /**
+     * Start collecting the PES packets on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     */
+    public void addPid(int pid) {
+        if (current[pid] != null)
+            return;
+
+        current[pid] = new PesPacket(bitstream);
+        active[pid] = false;
+        lastCC[pid] = -1;
+    }
+
+    /**
+     * Stop collecting the PES packets on a PID, dropping any in progress.
+     *
+     * @param pid
+     *            The PID concerned.
+     */
+    public void removePid(int pid) {
+        current[pid] = null;
+        active[pid] = false;
+    }
+
+    /**
+     * Are the PES packets on a PID being collected?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return True if they are.
+     */
+    public boolean hasPid(int pid) {
+        return current[pid] != null;
+    }
+
+    /**
+     * Deliver the PES packets still in progress at the end of the data; they
+     * are marked incomplete.
+     *
+     * @throws IOException
+     *             On error.
+     */
+    public void finish() throws IOException {
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if (active[pid]) {
+                current[pid].setIncomplete();
+                deliver(pid);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) throws IOException {
+        int pid = packet.pid();
+        PesPacket pes = current[pid];
+        if (pes == null)
+            return true;
+
+        if (packet.transport_error_indicator()) {
+            if (active[pid]) {
+                pes.setIncomplete();
+                deliver(pid);
+            }
+            lastCC[pid] = -1;
+            return true;
+        }
+        if (!packet.hasPayload())
+            return true;
+
+        int cc = packet.continuity_counter();
+        if (lastCC[pid] != -1) {
+            if (cc == lastCC[pid])
+                return true;
+            if ((cc != ((lastCC[pid] + 1) & 0x0f)) && active[pid]) {
+                pes.setIncomplete();
+                deliver(pid);
+            }
+        }
+        lastCC[pid] = (byte) cc;
+
+        if (packet.payload_unit_start_indicator()) {
+            if (active[pid])
+                deliver(pid);
+            pes.reset(pid);
+            active[pid] = true;
+            remaining[pid] = -1;
+        } else if (!active[pid]) {
+            // waiting for the start of a packet
+            return true;
+        }
+
+        int size = packet.payloadSize();
+        if ((remaining[pid] >= 0) && (size > remaining[pid]))
+            size = remaining[pid];
+        pes.addSlice(packet, size);
+
+        // work out how much is still to come once the length is known
+        if ((remaining[pid] == -1) && (pes.getLength() >= PesPacket.FIXED_HEADER_LENGTH)) {
+            int packetLength = pes.getPacketLength();
+            if (pes.getStreamId() == -1) {
+                // not a PES packet at all
+                active[pid] = false;
+                return true;
+            }
+            if (packetLength != 0) {
+                int total = PesPacket.FIXED_HEADER_LENGTH + packetLength;
+                remaining[pid] = Math.max(total - pes.getLength(), 0);
+            }
+        } else if (remaining[pid] > 0) {
+            remaining[pid] -= size;
+        }
+
+        if (remaining[pid] == 0)
+            deliver(pid);
+        return true;
+    }
+
+    /**
+     * Hand the PES packet in progress on a PID to the handler.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @throws IOException
+     *             On error.
+     */
+    private void deliver(int pid) throws IOException {
+        active[pid] = false;
+        handler.pes(current[pid]);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.pes;
+
+import java.io.IOException;
+
+/**
+ * Receives the PES packets rebuilt by a PesAssembler.
+ *
+ * @author Andrew de Quincey
+ */
+public interface PesHandler {
+
+    /**
+     * Called for each PES packet. The PesPacket is reused once the call
+     * returns; use PesPacket.copy() to keep hold of it.
+     *
+     * @param pes
+     *            The packet.
+     * @throws IOException
+     *             On error.
+     */
+    public void pes(PesPacket pes) throws IOException;
+}
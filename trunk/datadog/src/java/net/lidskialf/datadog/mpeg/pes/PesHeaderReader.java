@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.pes;
+
+import net.lidskialf.datadog.mpeg.bitstream.TransportPacket;
+
+/**
+ * Picks the PES header out of the start of a PID's transport packet
+ * payloads, for code which scans the payloads directly rather than going
+ * through PesAssembler.
+ *
+ * The header may be split across any number of packets; its bytes are
+ * collected until it is complete. The payload is only taken to start with a
+ * PES header if it begins with the 00 00 01 start code prefix.
+ *
+ * @author Andrew de Quincey
+ */
+public class PesHeaderReader {
+
+    /**
+     * Longest possible PES header.
+     */
+    public static final int MAX_HEADER_LENGTH = PesPacket.FIXED_HEADER_LENGTH + 3 + 0xff;
+
+    /**
+     * The header bytes collected so far.
+     */
+    private byte[] header = new byte[MAX_HEADER_LENGTH];
+
+    /**
+     * Number of header bytes collected.
+     */
+    private int collected;
+
+    /**
+     * Length of the header, or the number of bytes needed to work it out
+     * until lengthKnown is set.
+     */
+    private int headerLength;
+
+    /**
+     * Is headerLength the real length of the header yet?
+     */
+    private boolean lengthKnown;
+
+    /**
+     * Is a header being collected?
+     */
+    private boolean reading;
+
+    /**
+     * Did the header end in the last packet read?
+     */
+    private boolean complete;
+
+    /**
+     * Pass a packet on the PID through the reader. Packets must be passed in
+     * order, with repeated packets left out.
+     *
+     * @param packet
+     *            The packet.
+     * @return Number of bytes at the start of its payload which belong to
+     *         the PES header; the rest is elementary stream data.
+     */
+    public int read(TransportPacket packet) {
+        complete = false;
+        if (packet.payload_unit_start_indicator()) {
+            reading = true;
+            collected = 0;
+            headerLength = PesPacket.FIXED_HEADER_LENGTH;
+            lengthKnown = false;
+        }
+        if (!reading)
+            return 0;
+
+        int size = packet.payloadSize();
+        int used = 0;
+        while (used < size) {
+            int count = Math.min(headerLength - collected, size - used);
+            packet.getPayloadData(used, header, collected, count);
+            collected += count;
+            used += count;
+            if (collected < headerLength)
+                break;
+
+            if (!lengthKnown) {
+                if (collected == PesPacket.FIXED_HEADER_LENGTH) {
+                    if ((header[0] != 0) || (header[1] != 0) || (header[2] != 1)) {
+                        // not a PES header after all: it is all payload
+                        reading = false;
+                        return 0;
+                    }
+                    if (PesPacket.hasOptionalHeader(header[3] & 0xff)) {
+                        headerLength = PesPacket.FIXED_HEADER_LENGTH + 3;
+                        continue;
+                    }
+                } else {
+                    headerLength = PesPacket.FIXED_HEADER_LENGTH + 3 + (header[8] & 0xff);
+                    lengthKnown = true;
+                    if (collected < headerLength)
+                        continue;
+                }
+                lengthKnown = true;
+            }
+
+            reading = false;
+            complete = true;
+            break;
+        }
+        return used;
+    }
+
+    /**
+     * Abandon any header being collected, as after a continuity error. The
+     * payload is taken as elementary stream data until the next packet with
+     * the payload_unit_start_indicator set.
+     */
+    public void reset() {
+        reading = false;
+        complete = false;
+    }
+
+    /**
+     * Did the PES header end in the last packet passed to read()?
+     *
+     * @return True if it did.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Get the bytes of the last complete PES header.
+     *
+     * @return The buffer holding them, from offset 0.
+     */
+    public byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Get the length of the last complete PES header.
+     *
+     * @return The length.
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * Does the last complete PES header carry a PTS?
+     *
+     * @return True if it does.
+     */
+    public boolean hasPTS() {
+        return (headerLength >= 14) && ((header[7] & 0x80) != 0);
+    }
+
+    /**
+     * Get the PTS of the last complete PES header.
+     *
+     * @return The 33 bit PTS (only valid if hasPTS() is true).
+     */
+    public long getPTS() {
+        return PesPacket.decodeTimestamp(header, 9);
+    }
+}
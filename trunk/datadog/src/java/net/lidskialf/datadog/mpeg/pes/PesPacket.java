@@ -0,0 +1,679 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.pes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.lidskialf.datadog.Bitstream;
+import net.lidskialf.datadog.mpeg.bitstream.TransportPacket;
+
+/**
+ * A PES packet, held as a chain of slices of transport packet payloads in
+ * the underlying Bitstream rather than as a copy of its bytes. The bytes are
+ * only read when asked for. The first few bytes are captured while the
+ * packet is assembled, so the PES header can be decoded (lazily) without
+ * going back to the Bitstream.
+ *
+ * PesAssembler reuses instances; use copy() to keep hold of one beyond the
+ * call it was delivered in.
+ *
+ * @author Andrew de Quincey
+ */
+public class PesPacket {
+
+    /**
+     * stream_id of a program_stream_map.
+     */
+    public static final int STREAM_ID_PROGRAM_STREAM_MAP = 0xbc;
+
+    /**
+     * stream_id of a padding_stream.
+     */
+    public static final int STREAM_ID_PADDING = 0xbe;
+
+    /**
+     * stream_id of a private_stream_2.
+     */
+    public static final int STREAM_ID_PRIVATE_2 = 0xbf;
+
+    /**
+     * stream_id of an ECM_stream.
+     */
+    public static final int STREAM_ID_ECM = 0xf0;
+
+    /**
+     * stream_id of an EMM_stream.
+     */
+    public static final int STREAM_ID_EMM = 0xf1;
+
+    /**
+     * stream_id of a DSMCC_stream.
+     */
+    public static final int STREAM_ID_DSMCC = 0xf2;
+
+    /**
+     * stream_id of an ITU-T H.222.1 type E stream.
+     */
+    public static final int STREAM_ID_H222_1_E = 0xf8;
+
+    /**
+     * stream_id of a program_stream_directory.
+     */
+    public static final int STREAM_ID_PROGRAM_STREAM_DIRECTORY = 0xff;
+
+    /**
+     * Length of the fixed part of a PES header (start code, stream_id and
+     * PES_packet_length).
+     */
+    public static final int FIXED_HEADER_LENGTH = 6;
+
+    /**
+     * Number of bytes captured from the start of each packet: enough for the
+     * flags, PTS and DTS.
+     */
+    public static final int CAPTURE_LENGTH = 19;
+
+    /**
+     * Value returned for a PTS or DTS which is not present.
+     */
+    public static final long NO_TIMESTAMP = -1;
+
+    /**
+     * The Bitstream the slices refer to.
+     */
+    private Bitstream bitstream;
+
+    /**
+     * PID the packet was carried on.
+     */
+    private int pid;
+
+    /**
+     * Stream position of the transport packet carrying each slice.
+     */
+    private long[] slicePositions;
+
+    /**
+     * Offset within its transport packet (high 16 bits) and length (low 16
+     * bits) of each slice.
+     */
+    private int[] sliceExtents;
+
+    /**
+     * Number of slices.
+     */
+    private int sliceCount = 0;
+
+    /**
+     * Total number of bytes in the slices.
+     */
+    private int length = 0;
+
+    /**
+     * False if the packet was cut short by a discontinuity or the end of the
+     * stream.
+     */
+    private boolean complete = true;
+
+    /**
+     * The first bytes of the packet.
+     */
+    private byte[] capture = new byte[CAPTURE_LENGTH];
+
+    /**
+     * Has the header been decoded from the captured bytes yet?
+     */
+    private boolean decoded = false;
+
+    /**
+     * Decoded stream_id (-1 if the packet does not start with a PES start
+     * code).
+     */
+    private int streamId;
+
+    /**
+     * Decoded PES_packet_length.
+     */
+    private int packetLength;
+
+    /**
+     * Decoded flags bytes (the two following PES_packet_length), or -1 if the
+     * packet has no optional header.
+     */
+    private int flags;
+
+    /**
+     * Decoded PES_header_data_length.
+     */
+    private int headerDataLength;
+
+    /**
+     * Decoded PTS.
+     */
+    private long pts;
+
+    /**
+     * Decoded DTS.
+     */
+    private long dts;
+
+    /**
+     * Constructor.
+     *
+     * @param bitstream
+     *            The Bitstream the slices will refer to.
+     */
+    public PesPacket(Bitstream bitstream) {
+        this(bitstream, 16);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bitstream
+     *            The Bitstream the slices will refer to.
+     * @param capacity
+     *            Initial number of slices to allow for.
+     */
+    private PesPacket(Bitstream bitstream, int capacity) {
+        this.bitstream = bitstream;
+        slicePositions = new long[Math.max(capacity, 1)];
+        sliceExtents = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Make a standalone copy of this packet (the slices are copied, not the
+     * bytes they refer to).
+     *
+     * @return The new packet.
+     */
+    public PesPacket copy() {
+        PesPacket tmp = new PesPacket(bitstream, sliceCount);
+        tmp.pid = pid;
+        System.arraycopy(slicePositions, 0, tmp.slicePositions, 0, sliceCount);
+        System.arraycopy(sliceExtents, 0, tmp.sliceExtents, 0, sliceCount);
+        tmp.sliceCount = sliceCount;
+        tmp.length = length;
+        tmp.complete = complete;
+        System.arraycopy(capture, 0, tmp.capture, 0, CAPTURE_LENGTH);
+        return tmp;
+    }
+
+    /**
+     * Empty the packet, ready to assemble a new one.
+     *
+     * @param pid
+     *            PID the new packet is carried on.
+     */
+    void reset(int pid) {
+        this.pid = pid;
+        sliceCount = 0;
+        length = 0;
+        complete = true;
+        decoded = false;
+    }
+
+    /**
+     * Add the start of a transport packet's payload to the end of the packet.
+     *
+     * @param packet
+     *            The transport packet.
+     * @param sliceLength
+     *            Number of payload bytes to add.
+     */
+    void addSlice(TransportPacket packet, int sliceLength) {
+        if (sliceCount == slicePositions.length) {
+            long[] tmpPositions = new long[sliceCount * 2];
+            int[] tmpExtents = new int[sliceCount * 2];
+            System.arraycopy(slicePositions, 0, tmpPositions, 0, sliceCount);
+            System.arraycopy(sliceExtents, 0, tmpExtents, 0, sliceCount);
+            slicePositions = tmpPositions;
+            sliceExtents = tmpExtents;
+        }
+
+        if (length < CAPTURE_LENGTH)
+            packet.getPayloadData(0, capture, length, Math.min(sliceLength, CAPTURE_LENGTH - length));
+
+        slicePositions[sliceCount] = packet.getStreamPosition();
+        sliceExtents[sliceCount] = (packet.payloadOffset() << 16) | sliceLength;
+        sliceCount++;
+        length += sliceLength;
+    }
+
+    /**
+     * Mark the packet as cut short.
+     */
+    void setIncomplete() {
+        complete = false;
+    }
+
+    /**
+     * Get the PID the packet was carried on.
+     *
+     * @return The PID.
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * Get the stream position of the transport packet the PES packet starts
+     * in.
+     *
+     * @return The position, or -1 if the packet is empty.
+     */
+    public long getPosition() {
+        if (sliceCount == 0)
+            return -1;
+        return slicePositions[0];
+    }
+
+    /**
+     * Was the whole packet collected? Packets cut short by a continuity
+     * error, a transport error or the end of the stream are delivered anyway
+     * so their headers can still be used.
+     *
+     * @return True if it was.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Number of bytes collected (the whole packet if it is complete).
+     *
+     * @return The length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Number of slices the packet is made of.
+     *
+     * @return The count.
+     */
+    public int getSliceCount() {
+        return sliceCount;
+    }
+
+    /**
+     * Get the stream position of the transport packet carrying a slice.
+     *
+     * @param index
+     *            Index of the slice.
+     * @return The position.
+     */
+    public long getSlicePacketPosition(int index) {
+        if (index >= sliceCount)
+            throw new ArrayIndexOutOfBoundsException(index);
+        return slicePositions[index];
+    }
+
+    /**
+     * Get the offset of a slice within its transport packet.
+     *
+     * @param index
+     *            Index of the slice.
+     * @return The offset.
+     */
+    public int getSliceOffset(int index) {
+        if (index >= sliceCount)
+            throw new ArrayIndexOutOfBoundsException(index);
+        return sliceExtents[index] >>> 16;
+    }
+
+    /**
+     * Get the length of a slice.
+     *
+     * @param index
+     *            Index of the slice.
+     * @return The length.
+     */
+    public int getSliceLength(int index) {
+        if (index >= sliceCount)
+            throw new ArrayIndexOutOfBoundsException(index);
+        return sliceExtents[index] & 0xffff;
+    }
+
+    /**
+     * Read bytes of the packet from the Bitstream.
+     *
+     * @param pesOffset
+     *            Offset within the PES packet of the first byte.
+     * @param dest
+     *            Buffer to put the data in.
+     * @param destOffset
+     *            Offset in dest to put the data.
+     * @param count
+     *            Number of bytes to read.
+     * @throws IOException
+     *             On error.
+     */
+    public void read(int pesOffset, byte[] dest, int destOffset, int count) throws IOException {
+        if ((pesOffset < 0) || (count < 0) || (pesOffset + count > length))
+            throw new IndexOutOfBoundsException("Invalid range " + pesOffset + "+" + count);
+        if (count == 0)
+            return;
+
+        // find the slice holding the first byte
+        int slice = 0;
+        int sliceStart = 0;
+        while ((slice < sliceCount) && (sliceStart + getSliceLength(slice) <= pesOffset)) {
+            sliceStart += getSliceLength(slice);
+            slice++;
+        }
+
+        int skip = pesOffset - sliceStart;
+        while (count > 0) {
+            int sliceLength = Math.min(getSliceLength(slice) - skip, count);
+            ByteBuffer buffer = ByteBuffer.wrap(dest, destOffset, sliceLength);
+            long position = slicePositions[slice] + getSliceOffset(slice) + skip;
+            while (buffer.hasRemaining()) {
+                if (bitstream.readAt(position + buffer.position() - destOffset, buffer) <= 0)
+                    throw new IOException("Unexpected end of bitstream at " + position);
+            }
+
+            destOffset += sliceLength;
+            count -= sliceLength;
+            skip = 0;
+            slice++;
+        }
+    }
+
+    /**
+     * Read the whole packet from the Bitstream.
+     *
+     * @return The bytes collected.
+     * @throws IOException
+     *             On error.
+     */
+    public byte[] getBytes() throws IOException {
+        byte[] tmp = new byte[length];
+        read(0, tmp, 0, length);
+        return tmp;
+    }
+
+    /**
+     * Read the elementary stream data carried by the packet (the bytes after
+     * the PES header) from the Bitstream.
+     *
+     * @return The bytes.
+     * @throws IOException
+     *             On error.
+     */
+    public byte[] getPayloadBytes() throws IOException {
+        int start = Math.min(getHeaderLength(), length);
+        byte[] tmp = new byte[length - start];
+        read(start, tmp, 0, tmp.length);
+        return tmp;
+    }
+
+    /**
+     * Get the stream_id.
+     *
+     * @return The stream_id, or -1 if the packet does not start with a PES
+     *         start code.
+     */
+    public int getStreamId() {
+        decode();
+        return streamId;
+    }
+
+    /**
+     * Get the PES_packet_length.
+     *
+     * @return The PES_packet_length (0 if unbounded).
+     */
+    public int getPacketLength() {
+        decode();
+        return packetLength;
+    }
+
+    /**
+     * Does the packet have the optional PES header (flags, PTS etc.)?
+     *
+     * @return True if it does.
+     */
+    public boolean hasOptionalHeader() {
+        decode();
+        return flags != -1;
+    }
+
+    /**
+     * Get the total length of the PES header, that is the offset of the
+     * elementary stream data within the packet.
+     *
+     * @return The length.
+     */
+    public int getHeaderLength() {
+        decode();
+        if (flags == -1)
+            return FIXED_HEADER_LENGTH;
+        return FIXED_HEADER_LENGTH + 3 + headerDataLength;
+    }
+
+    /**
+     * Get the PES_scrambling_control.
+     *
+     * @return The value (0 if there is no optional header).
+     */
+    public int getScramblingControl() {
+        decode();
+        return (flags == -1) ? 0 : ((flags >> 12) & 0x03);
+    }
+
+    /**
+     * Get the PES_priority.
+     *
+     * @return The flag.
+     */
+    public boolean getPriority() {
+        return flag(0x0800);
+    }
+
+    /**
+     * Get the data_alignment_indicator.
+     *
+     * @return The flag.
+     */
+    public boolean isDataAligned() {
+        return flag(0x0400);
+    }
+
+    /**
+     * Get the copyright flag.
+     *
+     * @return The flag.
+     */
+    public boolean getCopyright() {
+        return flag(0x0200);
+    }
+
+    /**
+     * Get the original_or_copy flag.
+     *
+     * @return The flag.
+     */
+    public boolean isOriginal() {
+        return flag(0x0100);
+    }
+
+    /**
+     * Get the ESCR_flag.
+     *
+     * @return The flag.
+     */
+    public boolean hasESCR() {
+        return flag(0x0020);
+    }
+
+    /**
+     * Get the ES_rate_flag.
+     *
+     * @return The flag.
+     */
+    public boolean hasESRate() {
+        return flag(0x0010);
+    }
+
+    /**
+     * Get the PES_CRC_flag.
+     *
+     * @return The flag.
+     */
+    public boolean hasCRC() {
+        return flag(0x0002);
+    }
+
+    /**
+     * Does the packet carry a PTS?
+     *
+     * @return True if it does.
+     */
+    public boolean hasPTS() {
+        decode();
+        return pts != NO_TIMESTAMP;
+    }
+
+    /**
+     * Get the PTS.
+     *
+     * @return The 33 bit PTS in 90kHz units, or NO_TIMESTAMP if there is
+     *         none.
+     */
+    public long getPTS() {
+        decode();
+        return pts;
+    }
+
+    /**
+     * Does the packet carry a DTS?
+     *
+     * @return True if it does.
+     */
+    public boolean hasDTS() {
+        decode();
+        return dts != NO_TIMESTAMP;
+    }
+
+    /**
+     * Get the DTS.
+     *
+     * @return The 33 bit DTS in 90kHz units, or NO_TIMESTAMP if there is
+     *         none.
+     */
+    public long getDTS() {
+        decode();
+        return dts;
+    }
+
+    /**
+     * Does a stream_id have the optional PES header?
+     *
+     * @param streamId
+     *            The stream_id.
+     * @return True if it does.
+     */
+    public static boolean hasOptionalHeader(int streamId) {
+        switch (streamId) {
+        case STREAM_ID_PROGRAM_STREAM_MAP:
+        case STREAM_ID_PADDING:
+        case STREAM_ID_PRIVATE_2:
+        case STREAM_ID_ECM:
+        case STREAM_ID_EMM:
+        case STREAM_ID_DSMCC:
+        case STREAM_ID_H222_1_E:
+        case STREAM_ID_PROGRAM_STREAM_DIRECTORY:
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decode a 33 bit timestamp from its 5 byte marker-bit encoding.
+     *
+     * @param data
+     *            Buffer holding it.
+     * @param pos
+     *            Offset of the first byte.
+     * @return The timestamp.
+     */
+    public static long decodeTimestamp(byte[] data, int pos) {
+        return (((long) (data[pos] & 0x0e)) << 29) | ((data[pos + 1] & 0xff) << 22) | ((data[pos + 2] & 0xfe) << 14) | ((data[pos + 3] & 0xff) << 7)
+                | ((data[pos + 4] & 0xfe) >>> 1);
+    }
+
+    /**
+     * Test one of the flags in the optional header.
+     *
+     * @param mask
+     *            The flag's bit in the two flags bytes.
+     * @return True if set (false if there is no optional header).
+     */
+    private boolean flag(int mask) {
+        decode();
+        return (flags != -1) && ((flags & mask) != 0);
+    }
+
+    /**
+     * Decode the header from the captured bytes, if not done already.
+     */
+    private void decode() {
+        if (decoded)
+            return;
+        decoded = true;
+
+        streamId = -1;
+        packetLength = 0;
+        flags = -1;
+        headerDataLength = 0;
+        pts = NO_TIMESTAMP;
+        dts = NO_TIMESTAMP;
+
+        int captured = Math.min(length, CAPTURE_LENGTH);
+        if ((captured < FIXED_HEADER_LENGTH) || (capture[0] != 0) || (capture[1] != 0) || (capture[2] != 1))
+            return;
+
+        streamId = capture[3] & 0xff;
+        packetLength = ((capture[4] & 0xff) << 8) | (capture[5] & 0xff);
+        if (!hasOptionalHeader(streamId) || (captured < 9) || ((capture[6] & 0xc0) != 0x80))
+            return;
+
+        flags = ((capture[6] & 0xff) << 8) | (capture[7] & 0xff);
+        headerDataLength = capture[8] & 0xff;
+
+        int ptsDtsFlags = (flags >> 6) & 0x03;
+        if ((ptsDtsFlags & 0x02) != 0) {
+            if (captured >= 14)
+                pts = decodeTimestamp(capture, 9);
+            if ((ptsDtsFlags == 0x03) && (captured >= 19))
+                dts = decodeTimestamp(capture, 14);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return "PES pid 0x" + Integer.toHexString(pid) + " @" + getPosition() + " length " + length;
+    }
+}
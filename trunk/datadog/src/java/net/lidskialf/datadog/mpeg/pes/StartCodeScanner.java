@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.pes;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Finds 0x000001 start code prefixes in elementary stream data.
+ *
+ * The data is tested eight bytes at a time: a start code needs a zero byte,
+ * so any 64 bit word without one can be skipped with a single test, and only
+ * words containing a zero are examined byte by byte.
+ *
+ * @author Andrew de Quincey
+ */
+public class StartCodeScanner {
+
+    /**
+     * Reads 64 bit words out of byte arrays at any offset.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * 0x01 in every byte.
+     */
+    private static final long ONES = 0x0101010101010101L;
+
+    /**
+     * 0x80 in every byte.
+     */
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /**
+     * Find the next start code prefix.
+     *
+     * @param data
+     *            Buffer holding the data.
+     * @param from
+     *            Offset to start searching at.
+     * @param to
+     *            Offset just after the last byte which may be part of a start
+     *            code prefix.
+     * @return Offset of the first 0x00 of the prefix, or -1 if there is none.
+     */
+    public static int find(byte[] data, int from, int to) {
+        int pos = from;
+        while (pos + 8 <= to) {
+            long word = (long) LONGS.get(data, pos);
+            if (((word - ONES) & ~word & HIGHS) == 0) {
+                // no zero byte, so no prefix starts in this word
+                pos += 8;
+                continue;
+            }
+
+            int end = Math.min(pos + 8, to - 2);
+            for (; pos < end; pos++) {
+                if ((data[pos] == 0) && (data[pos + 1] == 0) && (data[pos + 2] == 1))
+                    return pos;
+            }
+        }
+
+        for (; pos < to - 2; pos++) {
+            if ((data[pos] == 0) && (data[pos + 1] == 0) && (data[pos + 2] == 1))
+                return pos;
+        }
+        return -1;
+    }
+}
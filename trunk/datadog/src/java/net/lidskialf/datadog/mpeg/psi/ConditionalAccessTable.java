@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+/**
+ * A decoded CA_section (PID 0x0001, table_id 0x01).
+ *
+ * @author Andrew de Quincey
+ */
+public class ConditionalAccessTable extends PsiTable {
+
+    /**
+     * The table_id.
+     */
+    public static final int TABLE_ID = 0x01;
+
+    /**
+     * The descriptor loops of all the sections, concatenated.
+     */
+    private byte[] descriptors;
+
+    /**
+     * Constructor.
+     *
+     * @param sections
+     *            The sections of the table, in section_number order.
+     * @param count
+     *            Number of sections.
+     */
+    public ConditionalAccessTable(byte[][] sections, int count) {
+        super(sections[0]);
+
+        int total = 0;
+        for (int i = 0; i < count; i++)
+            total += Math.max(sections[i].length - 12, 0);
+
+        descriptors = new byte[total];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            int length = Math.max(sections[i].length - 12, 0);
+            System.arraycopy(sections[i], 8, descriptors, pos, length);
+            pos += length;
+        }
+    }
+
+    /**
+     * Get the descriptor loop.
+     *
+     * @return The descriptors.
+     */
+    public byte[] getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * Get the EMM PIDs from all the CA_descriptors in the table.
+     *
+     * @return The PIDs.
+     */
+    public int[] getCaPids() {
+        return getCaPids(descriptors);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+/**
+ * The CRC32/MPEG-2 used by PSI/SI sections: polynomial 0x04C11DB7, initial
+ * value 0xFFFFFFFF, no bit reflection and no final XOR. Running it over a
+ * whole section including its CRC_32 field gives 0 if the section is intact.
+ *
+ * Uses the slicing-by-8 method: eight tables let eight bytes be folded in per
+ * step with independent lookups, rather than one byte per dependent lookup.
+ *
+ * @author Andrew de Quincey
+ */
+public class Crc32 {
+
+    /**
+     * The generator polynomial.
+     */
+    public static final int POLYNOMIAL = 0x04c11db7;
+
+    /**
+     * TABLES[k][b] is the CRC contribution of byte b followed by k zero bytes.
+     */
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x80000000) != 0) ? ((crc << 1) ^ POLYNOMIAL) : (crc << 1);
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int i = 0; i < 256; i++) {
+                int prev = TABLES[k - 1][i];
+                TABLES[k][i] = (prev << 8) ^ TABLES[0][prev >>> 24];
+            }
+        }
+    }
+
+    /**
+     * Calculate the CRC of a block of data.
+     *
+     * @param data
+     *            The data.
+     * @param offset
+     *            Offset of the first byte.
+     * @param length
+     *            Number of bytes.
+     * @return The CRC.
+     */
+    public static int crc(byte[] data, int offset, int length) {
+        int[] t0 = TABLES[0];
+        int[] t1 = TABLES[1];
+        int[] t2 = TABLES[2];
+        int[] t3 = TABLES[3];
+        int[] t4 = TABLES[4];
+        int[] t5 = TABLES[5];
+        int[] t6 = TABLES[6];
+        int[] t7 = TABLES[7];
+
+        int crc = 0xffffffff;
+        int pos = offset;
+        int end = offset + length;
+
+        for (int blockEnd = end - 7; pos < blockEnd; pos += 8) {
+            crc ^= ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+            crc = t7[crc >>> 24] ^ t6[(crc >>> 16) & 0xff] ^ t5[(crc >>> 8) & 0xff] ^ t4[crc & 0xff]
+                    ^ t3[data[pos + 4] & 0xff] ^ t2[data[pos + 5] & 0xff] ^ t1[data[pos + 6] & 0xff] ^ t0[data[pos + 7] & 0xff];
+        }
+        for (; pos < end; pos++) {
+            crc = (crc << 8) ^ t0[((crc >>> 24) ^ data[pos]) & 0xff];
+        }
+        return crc;
+    }
+}
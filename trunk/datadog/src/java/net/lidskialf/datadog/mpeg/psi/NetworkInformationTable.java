@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import java.util.ArrayList;
+
+import net.lidskialf.datadog.util.IntArray;
+
+/**
+ * A decoded network_information_section (PID 0x0010, table_id 0x40 for the
+ * actual network or 0x41 for another network).
+ *
+ * @author Andrew de Quincey
+ */
+public class NetworkInformationTable extends PsiTable {
+
+    /**
+     * table_id of the NIT for the actual network.
+     */
+    public static final int TABLE_ID_ACTUAL = 0x40;
+
+    /**
+     * table_id of the NIT for other networks.
+     */
+    public static final int TABLE_ID_OTHER = 0x41;
+
+    /**
+     * Tag of the network_name_descriptor.
+     */
+    public static final int NETWORK_NAME_DESCRIPTOR = 0x40;
+
+    /**
+     * The network descriptor loops of all the sections, concatenated.
+     */
+    private byte[] networkDescriptors;
+
+    /**
+     * The transport_stream_id of each transport stream.
+     */
+    private int[] transportStreamIds;
+
+    /**
+     * The original_network_id of each transport stream.
+     */
+    private int[] originalNetworkIds;
+
+    /**
+     * The transport descriptor loop of each transport stream.
+     */
+    private byte[][] transportDescriptors;
+
+    /**
+     * Constructor.
+     *
+     * @param sections
+     *            The sections of the table, in section_number order.
+     * @param count
+     *            Number of sections.
+     */
+    public NetworkInformationTable(byte[][] sections, int count) {
+        super(sections[0]);
+
+        ArrayList networkLoops = new ArrayList();
+        ArrayList transportLoops = new ArrayList();
+        IntArray tsIds = new IntArray();
+        IntArray onIds = new IntArray();
+        int total = 0;
+
+        for (int i = 0; i < count; i++) {
+            byte[] section = sections[i];
+            int end = section.length - 4;
+            if (10 > end)
+                continue;
+
+            int descriptorsLength = length12(section, 8);
+            byte[] loop = copy(section, 10, descriptorsLength);
+            networkLoops.add(loop);
+            total += loop.length;
+
+            for (int pos = 12 + descriptorsLength; pos + 6 <= end; pos += 6 + length12(section, pos + 4)) {
+                tsIds.add(u16(section, pos));
+                onIds.add(u16(section, pos + 2));
+                transportLoops.add(copy(section, pos + 6, length12(section, pos + 4)));
+            }
+        }
+
+        networkDescriptors = new byte[total];
+        int pos = 0;
+        for (int i = 0; i < networkLoops.size(); i++) {
+            byte[] loop = (byte[]) networkLoops.get(i);
+            System.arraycopy(loop, 0, networkDescriptors, pos, loop.length);
+            pos += loop.length;
+        }
+        transportStreamIds = tsIds.toArray();
+        originalNetworkIds = onIds.toArray();
+        transportDescriptors = (byte[][]) transportLoops.toArray(new byte[transportLoops.size()][]);
+    }
+
+    /**
+     * Is this the NIT of the actual network?
+     *
+     * @return True if it is.
+     */
+    public boolean isActual() {
+        return getTableId() == TABLE_ID_ACTUAL;
+    }
+
+    /**
+     * Get the network_id.
+     *
+     * @return The network_id.
+     */
+    public int getNetworkId() {
+        return getTableIdExtension();
+    }
+
+    /**
+     * Get the network descriptor loop.
+     *
+     * @return The descriptors.
+     */
+    public byte[] getNetworkDescriptors() {
+        return networkDescriptors;
+    }
+
+    /**
+     * Get the name from the network_name_descriptor.
+     *
+     * @return The name, or null if there is no network_name_descriptor.
+     */
+    public String getNetworkName() {
+        int pos = findDescriptor(networkDescriptors, NETWORK_NAME_DESCRIPTOR);
+        if (pos == -1)
+            return null;
+        return decodeText(networkDescriptors, pos + 2, networkDescriptors[pos + 1] & 0xff);
+    }
+
+    /**
+     * Number of transport streams described.
+     *
+     * @return The count.
+     */
+    public int getTransportStreamCount() {
+        return transportStreamIds.length;
+    }
+
+    /**
+     * Get the transport_stream_id of a transport stream.
+     *
+     * @param index
+     *            Index of the transport stream.
+     * @return The transport_stream_id.
+     */
+    public int getTransportStreamId(int index) {
+        return transportStreamIds[index];
+    }
+
+    /**
+     * Get the original_network_id of a transport stream.
+     *
+     * @param index
+     *            Index of the transport stream.
+     * @return The original_network_id.
+     */
+    public int getOriginalNetworkId(int index) {
+        return originalNetworkIds[index];
+    }
+
+    /**
+     * Get the transport descriptor loop of a transport stream.
+     *
+     * @param index
+     *            Index of the transport stream.
+     * @return The descriptors.
+     */
+    public byte[] getTransportDescriptors(int index) {
+        return transportDescriptors[index];
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import net.lidskialf.datadog.util.IntArray;
+
+/**
+ * A decoded program_association_section (PID 0x0000, table_id 0x00).
+ *
+ * @author Andrew de Quincey
+ */
+public class ProgramAssociationTable extends PsiTable {
+
+    /**
+     * The table_id.
+     */
+    public static final int TABLE_ID = 0x00;
+
+    /**
+     * The program_numbers, in table order.
+     */
+    private int[] programNumbers;
+
+    /**
+     * The program_map_PID (or network_PID for program 0) of each program.
+     */
+    private int[] pids;
+
+    /**
+     * Constructor.
+     *
+     * @param sections
+     *            The sections of the table, in section_number order.
+     * @param count
+     *            Number of sections.
+     */
+    public ProgramAssociationTable(byte[][] sections, int count) {
+        super(sections[0]);
+
+        IntArray programs = new IntArray();
+        IntArray tmpPids = new IntArray();
+        for (int i = 0; i < count; i++) {
+            byte[] section = sections[i];
+            for (int pos = 8; pos + 4 <= section.length - 4; pos += 4) {
+                programs.add(u16(section, pos));
+                tmpPids.add(pid(section, pos + 2));
+            }
+        }
+        programNumbers = programs.toArray();
+        pids = tmpPids.toArray();
+    }
+
+    /**
+     * Get the transport_stream_id.
+     *
+     * @return The transport_stream_id.
+     */
+    public int getTransportStreamId() {
+        return getTableIdExtension();
+    }
+
+    /**
+     * Number of programs listed (including any network_PID entry).
+     *
+     * @return The count.
+     */
+    public int getProgramCount() {
+        return programNumbers.length;
+    }
+
+    /**
+     * Get the program_number of an entry.
+     *
+     * @param index
+     *            Index of the entry.
+     * @return The program_number.
+     */
+    public int getProgramNumber(int index) {
+        return programNumbers[index];
+    }
+
+    /**
+     * Get the PID of an entry.
+     *
+     * @param index
+     *            Index of the entry.
+     * @return The program_map_PID, or the network_PID for program 0.
+     */
+    public int getPid(int index) {
+        return pids[index];
+    }
+
+    /**
+     * Find the PMT PID for a program.
+     *
+     * @param programNumber
+     *            The program_number.
+     * @return The program_map_PID, or -1 if the program is not listed.
+     */
+    public int getPmtPid(int programNumber) {
+        if (programNumber == 0)
+            return -1;
+        for (int i = 0; i < programNumbers.length; i++) {
+            if (programNumbers[i] == programNumber)
+                return pids[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Get the network_PID.
+     *
+     * @return The network_PID, or -1 if the table does not give one.
+     */
+    public int getNetworkPid() {
+        for (int i = 0; i < programNumbers.length; i++) {
+            if (programNumbers[i] == 0)
+                return pids[i];
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import net.lidskialf.datadog.util.IntArray;
+
+/**
+ * A decoded TS_program_map_section (table_id 0x02).
+ *
+ * @author Andrew de Quincey
+ */
+public class ProgramMapTable extends PsiTable {
+
+    /**
+     * The table_id.
+     */
+    public static final int TABLE_ID = 0x02;
+
+    /**
+     * stream_type of ISO/IEC 11172-2 (MPEG-1) video.
+     */
+    public static final int STREAM_TYPE_MPEG1_VIDEO = 0x01;
+
+    /**
+     * stream_type of ITU-T H.262 / ISO/IEC 13818-2 (MPEG-2) video.
+     */
+    public static final int STREAM_TYPE_MPEG2_VIDEO = 0x02;
+
+    /**
+     * stream_type of ISO/IEC 11172-3 (MPEG-1) audio.
+     */
+    public static final int STREAM_TYPE_MPEG1_AUDIO = 0x03;
+
+    /**
+     * stream_type of ISO/IEC 13818-3 (MPEG-2) audio.
+     */
+    public static final int STREAM_TYPE_MPEG2_AUDIO = 0x04;
+
+    /**
+     * stream_type of PES packets containing private data.
+     */
+    public static final int STREAM_TYPE_PES_PRIVATE_DATA = 0x06;
+
+    /**
+     * stream_type of ISO/IEC 13818-7 audio with ADTS transport syntax.
+     */
+    public static final int STREAM_TYPE_ADTS_AUDIO = 0x0f;
+
+    /**
+     * stream_type of ITU-T H.264 / ISO/IEC 14496-10 (AVC) video.
+     */
+    public static final int STREAM_TYPE_AVC_VIDEO = 0x1b;
+
+    /**
+     * stream_type of ITU-T H.265 / ISO/IEC 23008-2 (HEVC) video.
+     */
+    public static final int STREAM_TYPE_HEVC_VIDEO = 0x24;
+
+    /**
+     * stream_type of AC-3 audio (ATSC A/52).
+     */
+    public static final int STREAM_TYPE_AC3_AUDIO = 0x81;
+
+    /**
+     * stream_type of E-AC-3 audio (ATSC A/52).
+     */
+    public static final int STREAM_TYPE_EAC3_AUDIO = 0x87;
+
+    /**
+     * Tag of the DVB AC-3_descriptor, marking private data streams as AC-3.
+     */
+    public static final int AC3_DESCRIPTOR = 0x6a;
+
+    /**
+     * Tag of the DVB enhanced_AC-3_descriptor, marking private data streams as
+     * E-AC-3.
+     */
+    public static final int ENHANCED_AC3_DESCRIPTOR = 0x7a;
+
+    /**
+     * The PCR_PID.
+     */
+    private int pcrPid;
+
+    /**
+     * The program_info descriptor loop.
+     */
+    private byte[] programInfo;
+
+    /**
+     * The stream_type of each elementary stream.
+     */
+    private int[] streamTypes;
+
+    /**
+     * The elementary_PID of each elementary stream.
+     */
+    private int[] pids;
+
+    /**
+     * The ES_info descriptor loop of each elementary stream.
+     */
+    private byte[][] esInfo;
+
+    /**
+     * Constructor. A PMT is always a single section.
+     *
+     * @param sections
+     *            The sections of the table.
+     * @param count
+     *            Number of sections.
+     */
+    public ProgramMapTable(byte[][] sections, int count) {
+        super(sections[0]);
+
+        byte[] section = sections[0];
+        int end = section.length - 4;
+        pcrPid = pid(section, 8);
+        int infoLength = length12(section, 10);
+        programInfo = copy(section, 12, infoLength);
+
+        IntArray types = new IntArray();
+        IntArray tmpPids = new IntArray();
+        IntArray offsets = new IntArray();
+        for (int pos = 12 + infoLength; pos + 5 <= end; pos += 5 + length12(section, pos + 3)) {
+            types.add(section[pos] & 0xff);
+            tmpPids.add(pid(section, pos + 1));
+            offsets.add(pos);
+        }
+
+        streamTypes = types.toArray();
+        pids = tmpPids.toArray();
+        esInfo = new byte[pids.length][];
+        for (int i = 0; i < pids.length; i++) {
+            int pos = offsets.get(i);
+            esInfo[i] = copy(section, pos + 5, length12(section, pos + 3));
+        }
+    }
+
+    /**
+     * Get the program_number.
+     *
+     * @return The program_number.
+     */
+    public int getProgramNumber() {
+        return getTableIdExtension();
+    }
+
+    /**
+     * Get the PCR_PID.
+     *
+     * @return The PCR_PID (0x1fff if the program has no PCR).
+     */
+    public int getPcrPid() {
+        return pcrPid;
+    }
+
+    /**
+     * Get the program_info descriptor loop.
+     *
+     * @return The descriptors.
+     */
+    public byte[] getProgramInfo() {
+        return programInfo;
+    }
+
+    /**
+     * Number of elementary streams.
+     *
+     * @return The count.
+     */
+    public int getStreamCount() {
+        return pids.length;
+    }
+
+    /**
+     * Get the stream_type of an elementary stream.
+     *
+     * @param index
+     *            Index of the stream.
+     * @return The stream_type.
+     */
+    public int getStreamType(int index) {
+        return streamTypes[index];
+    }
+
+    /**
+     * Get the elementary_PID of an elementary stream.
+     *
+     * @param index
+     *            Index of the stream.
+     * @return The PID.
+     */
+    public int getStreamPid(int index) {
+        return pids[index];
+    }
+
+    /**
+     * Get the ES_info descriptor loop of an elementary stream.
+     *
+     * @param index
+     *            Index of the stream.
+     * @return The descriptors.
+     */
+    public byte[] getStreamInfo(int index) {
+        return esInfo[index];
+    }
+
+    /**
+     * Get the ECM PIDs from all the CA_descriptors in the table.
+     *
+     * @return The PIDs.
+     */
+    public int[] getCaPids() {
+        IntArray tmp = new IntArray();
+        add(tmp, getCaPids(programInfo));
+        for (int i = 0; i < esInfo.length; i++)
+            add(tmp, getCaPids(esInfo[i]));
+        return tmp.toArray();
+    }
+
+    /**
+     * Append some values to an IntArray.
+     *
+     * @param dest
+     *            The IntArray.
+     * @param values
+     *            The values.
+     */
+    private static void add(IntArray dest, int[] values) {
+        for (int i = 0; i < values.length; i++)
+            dest.add(values[i]);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+
+/**
+ * Keeps track of the current PAT, CAT, PMTs, NIT and SDT of a transport
+ * stream. PMT PIDs are followed as the PAT lists them.
+ *
+ * @author Andrew de Quincey
+ */
+public class PsiCollector implements PacketSink, TableListener {
+
+    /**
+     * PID of the PAT.
+     */
+    public static final int PID_PAT = 0x0000;
+
+    /**
+     * PID of the CAT.
+     */
+    public static final int PID_CAT = 0x0001;
+
+    /**
+     * Default PID of the NIT.
+     */
+    public static final int PID_NIT = 0x0010;
+
+    /**
+     * PID of the SDT.
+     */
+    public static final int PID_SDT = 0x0011;
+
+    /**
+     * Rebuilds sections from packets.
+     */
+    private SectionAssembler sections;
+
+    /**
+     * Decodes tables from sections.
+     */
+    private TableDecoder decoder;
+
+    /**
+     * Also told about each table, or null.
+     */
+    private TableListener listener;
+
+    /**
+     * The current PAT.
+     */
+    private ProgramAssociationTable pat;
+
+    /**
+     * The current CAT.
+     */
+    private ConditionalAccessTable cat;
+
+    /**
+     * The current NIT of the actual network.
+     */
+    private NetworkInformationTable nit;
+
+    /**
+     * The current SDT of the actual transport stream.
+     */
+    private ServiceDescriptionTable sdt;
+
+    /**
+     * program_number (Integer) -> current ProgramMapTable.
+     */
+    private HashMap pmts = new HashMap();
+
+    /**
+     * Constructor.
+     */
+    public PsiCollector() {
+        decoder = new TableDecoder(this);
+        sections = new SectionAssembler(decoder);
+        sections.addPid(PID_PAT);
+        sections.addPid(PID_CAT);
+        sections.addPid(PID_NIT);
+        sections.addPid(PID_SDT);
+    }
+
+    /**
+     * Read the tables from the start of a stream, stopping once the PAT and
+     * all the PMTs it lists have been seen.
+     *
+     * @param stream
+     *            The stream.
+     * @param maxPackets
+     *            Maximum number of packets to read.
+     * @return The collector.
+     * @throws IOException
+     *             On error.
+     */
+    public static PsiCollector collect(TransportStream stream, long maxPackets) throws IOException {
+        final PsiCollector collector = new PsiCollector();
+        stream.readPackets(0, maxPackets, new PacketSink() {
+            public boolean packet(TransportPacket packet) throws IOException {
+                collector.packet(packet);
+                return !collector.isComplete();
+            }
+        });
+        return collector;
+    }
+
+    /**
+     * Set a listener to also be told about each table.
+     *
+     * @param listener
+     *            The listener, or null for none.
+     */
+    public void setListener(TableListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the TableDecoder, for its statistics.
+     *
+     * @return The TableDecoder.
+     */
+    public TableDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Have the PAT and all the PMTs it lists been seen?
+     *
+     * @return True if they have.
+     */
+    public synchronized boolean isComplete() {
+        if (pat == null)
+            return false;
+        for (int i = 0; i < pat.getProgramCount(); i++) {
+            int programNumber = pat.getProgramNumber(i);
+            if ((programNumber != 0) && !pmts.containsKey(new Integer(programNumber)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the current PAT.
+     *
+     * @return The PAT, or null if none has been seen.
+     */
+    public synchronized ProgramAssociationTable getPAT() {
+        return pat;
+    }
+
+    /**
+     * Get the current PMT of a program.
+     *
+     * @param programNumber
+     *            The program_number.
+     * @return The PMT, or null if none has been seen.
+     */
+    public synchronized ProgramMapTable getPMT(int programNumber) {
+        return (ProgramMapTable) pmts.get(new Integer(programNumber));
+    }
+
+    /**
+     * Get the current CAT.
+     *
+     * @return The CAT, or null if none has been seen.
+     */
+    public synchronized ConditionalAccessTable getCAT() {
+        return cat;
+    }
+
+    /**
+     * Get the current NIT of the actual network.
+     *
+     * @return The NIT, or null if none has been seen.
+     */
+    public synchronized NetworkInformationTable getNIT() {
+        return nit;
+    }
+
+    /**
+     * Get the current SDT of the actual transport stream.
+     *
+     * @return The SDT, or null if none has been seen.
+     */
+    public synchronized ServiceDescriptionTable getSDT() {
+        return sdt;
+    }
+
+    /**
+     * Get the elementary stream PIDs of all the current PMTs.
+     *
+     * @return Ascending array of PIDs.
+     */
+    public int[] getStreamPids() {
+        return getStreamPids(null);
+    }
+
+    /**
+     * Get the elementary stream PIDs of some stream_types in all the current
+     * PMTs.
+     *
+     * @param streamTypes
+     *            The stream_types wanted, or null for all of them.
+     * @return Ascending array of PIDs.
+     */
+    public int[] getStreamPids(int[] streamTypes) {
+        return getStreamPids(streamTypes, null);
+    }
+
+    /**
+     * Get the elementary stream PIDs of some stream_types in all the current
+     * PMTs, also picking out private data streams by their descriptors (as
+     * DVB signals AC-3, for instance).
+     *
+     * @param streamTypes
+     *            The stream_types wanted, or null for all of them.
+     * @param descriptorTags
+     *            Tags of the descriptors marking the private data streams
+     *            wanted, or null for none.
+     * @return Ascending array of PIDs.
+     */
+    public synchronized int[] getStreamPids(int[] streamTypes, int[] descriptorTags) {
+        PidFilter pids = new PidFilter();
+        for (Iterator it = pmts.values().iterator(); it.hasNext();) {
+            ProgramMapTable pmt = (ProgramMapTable) it.next();
+            for (int i = 0; i < pmt.getStreamCount(); i++) {
+                if ((streamTypes == null) || contains(streamTypes, pmt.getStreamType(i))) {
+                    pids.add(pmt.getStreamPid(i));
+                } else if ((descriptorTags != null) && (pmt.getStreamType(i) == ProgramMapTable.STREAM_TYPE_PES_PRIVATE_DATA)) {
+                    for (int j = 0; j < descriptorTags.length; j++) {
+                        if (PsiTable.findDescriptor(pmt.getStreamInfo(i), descriptorTags[j]) != -1)
+                            pids.add(pmt.getStreamPid(i));
+                    }
+                }
+            }
+        }
+        return pids.getPids();
+    }
+
+    /**
+     * Build a filter accepting the PIDs of some programs: the PAT, and each
+     * program's PMT, PCR, elementary stream and ECM PIDs.
+     *
+     * @param programNumbers
+     *            The program_numbers of the programs.
+     * @return The filter.
+     */
+    public synchronized PidFilter getProgramFilter(int[] programNumbers) {
+        PidFilter filter = new PidFilter();
+        filter.add(PID_PAT);
+
+        for (int i = 0; i < programNumbers.length; i++) {
+            if (pat != null) {
+                int pmtPid = pat.getPmtPid(programNumbers[i]);
+                if (pmtPid != -1)
+                    filter.add(pmtPid);
+            }
+
+            ProgramMapTable pmt = getPMT(programNumbers[i]);
+            if (pmt == null)
+                continue;
+            if (pmt.getPcrPid() != Constants.TS_NULL_PID)
+                filter.add(pmt.getPcrPid());
+            for (int j = 0; j < pmt.getStreamCount(); j++)
+                filter.add(pmt.getStreamPid(j));
+            filter.addAll(pmt.getCaPids());
+        }
+
+        return filter;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        return sections.packet(packet);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.psi.TableListener#table(int, net.lidskialf.datadog.mpeg.psi.PsiTable)
+     */
+    public void table(int pid, PsiTable table) {
+        synchronized (this) {
+            if (table instanceof ProgramAssociationTable) {
+                if (pid == PID_PAT)
+                    setPAT((ProgramAssociationTable) table);
+            } else if (table instanceof ProgramMapTable) {
+                ProgramMapTable pmt = (ProgramMapTable) table;
+                if ((pat != null) && (pat.getPmtPid(pmt.getProgramNumber()) == pid))
+                    pmts.put(new Integer(pmt.getProgramNumber()), pmt);
+            } else if (table instanceof ConditionalAccessTable) {
+                if (pid == PID_CAT)
+                    cat = (ConditionalAccessTable) table;
+            } else if (table instanceof NetworkInformationTable) {
+                if (((NetworkInformationTable) table).isActual())
+                    nit = (NetworkInformationTable) table;
+            } else if (table instanceof ServiceDescriptionTable) {
+                if (((ServiceDescriptionTable) table).isActual())
+                    sdt = (ServiceDescriptionTable) table;
+            }
+        }
+
+        if (listener != null)
+            listener.table(pid, table);
+    }
+
+    /**
+     * Switch to a new PAT, following any new PMT PIDs and dropping the ones
+     * no longer listed.
+     *
+     * @param newPat
+     *            The new PAT.
+     */
+    private void setPAT(ProgramAssociationTable newPat) {
+        if (pat != null) {
+            for (int i = 0; i < pat.getProgramCount(); i++) {
+                int programNumber = pat.getProgramNumber(i);
+                int pid = pat.getPid(i);
+                if ((programNumber == 0) || (newPat.getPmtPid(programNumber) == pid))
+                    continue;
+
+                pmts.remove(new Integer(programNumber));
+                if (!isPmtPid(newPat, pid) && (pid != PID_NIT)) {
+                    sections.removePid(pid);
+                    decoder.reset(pid);
+                }
+            }
+        }
+
+        pat = newPat;
+        for (int i = 0; i < pat.getProgramCount(); i++)
+            sections.addPid(pat.getPid(i));
+    }
+
+    /**
+     * Is a PID used for any PMT in a PAT?
+     *
+     * @param pat
+     *            The PAT.
+     * @param pid
+     *            The PID.
+     * @return True if it is.
+     */
+    private static boolean isPmtPid(ProgramAssociationTable pat, int pid) {
+        for (int i = 0; i < pat.getProgramCount(); i++) {
+            if ((pat.getProgramNumber(i) != 0) && (pat.getPid(i) == pid))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Does an array hold a value?
+     *
+     * @param values
+     *            The array.
+     * @param value
+     *            The value.
+     * @return True if it does.
+     */
+    private static boolean contains(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value)
+                return true;
+        }
+        return false;
+    }
+}
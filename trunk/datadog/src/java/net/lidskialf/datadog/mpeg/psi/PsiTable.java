@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Base class for a complete PSI/SI table decoded from its sections.
+ *
+ * Tables are immutable once built. Descriptor loops are kept as raw bytes;
+ * the static helpers here pick the common descriptors out of them.
+ *
+ * @author Andrew de Quincey
+ */
+public abstract class PsiTable {
+
+    /**
+     * Tag of the CA_descriptor.
+     */
+    public static final int CA_DESCRIPTOR = 0x09;
+
+    /**
+     * The table_id.
+     */
+    private int tableId;
+
+    /**
+     * The table_id_extension.
+     */
+    private int tableIdExtension;
+
+    /**
+     * The version_number.
+     */
+    private int version;
+
+    /**
+     * Constructor.
+     *
+     * @param section
+     *            Any section of the table.
+     */
+    protected PsiTable(byte[] section) {
+        tableId = section[0] & 0xff;
+        tableIdExtension = u16(section, 3);
+        version = (section[5] >> 1) & 0x1f;
+    }
+
+    /**
+     * Get the table_id.
+     *
+     * @return The table_id.
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * Get the table_id_extension.
+     *
+     * @return The table_id_extension.
+     */
+    public int getTableIdExtension() {
+        return tableIdExtension;
+    }
+
+    /**
+     * Get the version_number.
+     *
+     * @return The version_number.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Find a descriptor in a descriptor loop.
+     *
+     * @param descriptors
+     *            The descriptor loop.
+     * @param tag
+     *            The descriptor_tag to look for.
+     * @return Offset of the first matching descriptor, or -1 if there is none.
+     */
+    public static int findDescriptor(byte[] descriptors, int tag) {
+        int pos = 0;
+        while (pos + 2 <= descriptors.length) {
+            int length = descriptors[pos + 1] & 0xff;
+            if (pos + 2 + length > descriptors.length)
+                break;
+            if ((descriptors[pos] & 0xff) == tag)
+                return pos;
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the CA_PIDs of all the CA_descriptors in a descriptor loop.
+     *
+     * @param descriptors
+     *            The descriptor loop.
+     * @return The PIDs.
+     */
+    public static int[] getCaPids(byte[] descriptors) {
+        int count = 0;
+        int[] pids = new int[descriptors.length / 6];
+        int pos = 0;
+        while (pos + 2 <= descriptors.length) {
+            int length = descriptors[pos + 1] & 0xff;
+            if (pos + 2 + length > descriptors.length)
+                break;
+            if (((descriptors[pos] & 0xff) == CA_DESCRIPTOR) && (length >= 4))
+                pids[count++] = pid(descriptors, pos + 4);
+            pos += 2 + length;
+        }
+
+        int[] tmp = new int[count];
+        System.arraycopy(pids, 0, tmp, 0, count);
+        return tmp;
+    }
+
+    /**
+     * Decode a DVB text string (EN 300 468 annex A). Only the character
+     * table selectors for ISO/IEC 10646 and UTF-8 are honoured; everything
+     * else is treated as ISO/IEC 8859-1.
+     *
+     * @param data
+     *            Buffer holding the string.
+     * @param offset
+     *            Offset of the string.
+     * @param length
+     *            Length of the string in bytes.
+     * @return The text.
+     */
+    public static String decodeText(byte[] data, int offset, int length) {
+        if (length <= 0)
+            return "";
+
+        String encoding = "ISO-8859-1";
+        int first = data[offset] & 0xff;
+        if (first < 0x20) {
+            int skip = 1;
+            if (first == 0x10) {
+                skip = 3;
+            } else if (first == 0x11) {
+                encoding = "UTF-16BE";
+            } else if (first == 0x15) {
+                encoding = "UTF-8";
+            }
+            offset += skip;
+            length -= skip;
+            if (length <= 0)
+                return "";
+        }
+
+        if (encoding.equals("ISO-8859-1")) {
+            // drop the single byte control codes
+            StringBuffer sb = new StringBuffer(length);
+            for (int i = offset; i < offset + length; i++) {
+                int c = data[i] & 0xff;
+                if (c == 0x8a) {
+                    sb.append('\n');
+                } else if ((c < 0x80) || (c > 0x9f)) {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+
+        try {
+            return new String(data, offset, length, encoding);
+        } catch (UnsupportedEncodingException e) {
+            return new String(data, offset, length);
+        }
+    }
+
+    /**
+     * Read a 16 bit big endian value.
+     *
+     * @param data
+     *            The buffer.
+     * @param pos
+     *            Offset of the value.
+     * @return The value.
+     */
+    protected static int u16(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /**
+     * Read a 13 bit PID preceded by 3 reserved bits.
+     *
+     * @param data
+     *            The buffer.
+     * @param pos
+     *            Offset of the value.
+     * @return The PID.
+     */
+    protected static int pid(byte[] data, int pos) {
+        return ((data[pos] & 0x1f) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /**
+     * Read a 12 bit length preceded by 4 reserved bits.
+     *
+     * @param data
+     *            The buffer.
+     * @param pos
+     *            Offset of the value.
+     * @return The length.
+     */
+    protected static int length12(byte[] data, int pos) {
+        return ((data[pos] & 0x0f) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /**
+     * Copy a descriptor loop out of a section.
+     *
+     * @param section
+     *            The section.
+     * @param pos
+     *            Offset of the loop.
+     * @param length
+     *            Length of the loop, which is clipped to the section data.
+     * @return The loop.
+     */
+    protected static byte[] copy(byte[] section, int pos, int length) {
+        int end = section.length - 4;
+        if (pos + length > end)
+            length = Math.max(end - pos, 0);
+
+        byte[] tmp = new byte[length];
+        System.arraycopy(section, pos, tmp, 0, length);
+        return tmp;
+    }
+}
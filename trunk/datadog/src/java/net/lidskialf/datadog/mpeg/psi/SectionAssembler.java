@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+
+/**
+ * Rebuilds PSI/SI sections from the packets of selected PIDs.
+ *
+ * Each selected PID has a single reusable buffer, so no garbage is made per
+ * section. Partial sections are dropped on a continuity_counter gap, on a
+ * packet with the transport_error_indicator set, or if a new section starts
+ * before they are complete; duplicate packets are ignored.
+ *
+ * @author Andrew de Quincey
+ */
+public class SectionAssembler implements PacketSink {
+
+    /**
+     * Largest possible section (3 header bytes plus a 12 bit section_length).
+     */
+    public static final int MAX_SECTION_LENGTH = 3 + 0xfff;
+
+    /**
+     * table_id of the Time Offset Table, which has a CRC_32 even though its
+     * section_syntax_indicator is clear.
+     */
+    private static final int TABLE_ID_TOT = 0x73;
+
+    /**
+     * Where complete sections are sent.
+     */
+    private SectionHandler handler;
+
+    /**
+     * Section buffer of each selected PID (null if not selected).
+     */
+    private byte[][] buffers = new byte[Constants.PID_COUNT][];
+
+    /**
+     * Number of bytes of the current section in each buffer (0 if none in
+     * progress).
+     */
+    private int[] filled = new int[Constants.PID_COUNT];
+
+    /**
+     * Position of the packet the current section of each PID started in.
+     */
+    private long[] startPos = new long[Constants.PID_COUNT];
+
+    /**
+     * Last continuity_counter of each PID, or -1 if not known.
+     */
+    private byte[] lastCC = new byte[Constants.PID_COUNT];
+
+    /**
+     * Payload of the packet being processed.
+     */
+    private byte[] payload = new byte[Constants.TS_PACKET_LENGTH];
+
+    /**
+     * Constructor.
+     *
+     * @param handler
+     *            Where to send complete sections.
+     */
+    public SectionAssembler(SectionHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Start rebuilding the sections on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     */
+    public void addPid(int pid) {
+        if (buffers[pid] != null)
+            return;
+
+        buffers[pid] = new byte[MAX_SECTION_LENGTH];
+        filled[pid] = 0;
+        lastCC[pid] = -1;
+    }
+
+    /**
+     * Stop rebuilding the sections on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     */
+    public void removePid(int pid) {
+        buffers[pid] = null;
+    }
+
+    /**
+     * Are the sections on a PID being rebuilt?
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return True if they are.
+     */
+    public boolean hasPid(int pid) {
+        return buffers[pid] != null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.bitstream.PacketSink#packet(net.lidskialf.datadog.mpeg.bitstream.TransportPacket)
+     */
+    public boolean packet(TransportPacket packet) {
+        int pid = packet.pid();
+        if (buffers[pid] == null)
+            return true;
+
+        if (packet.transport_error_indicator()) {
+            filled[pid] = 0;
+            lastCC[pid] = -1;
+            return true;
+        }
+        if (!packet.hasPayload())
+            return true;
+
+        int cc = packet.continuity_counter();
+        if (lastCC[pid] != -1) {
+            if (cc == lastCC[pid])
+                return true;
+            if (cc != ((lastCC[pid] + 1) & 0x0f))
+                filled[pid] = 0;
+        }
+        lastCC[pid] = (byte) cc;
+
+        int size = packet.payloadSize();
+        packet.getPayloadData(0, payload, 0, size);
+
+        if (!packet.payload_unit_start_indicator()) {
+            if (filled[pid] != 0)
+                append(pid, 0, size);
+            return true;
+        }
+
+        // finish off the previous section, then start the new ones
+        int pos = 1 + (payload[0] & 0xff);
+        if (pos > size) {
+            filled[pid] = 0;
+            return true;
+        }
+        if (filled[pid] != 0) {
+            append(pid, 1, pos);
+            filled[pid] = 0;
+        }
+        while ((pos < size) && (payload[pos] != (byte) 0xff)) {
+            startPos[pid] = packet.getStreamPosition();
+            pos = append(pid, pos, size);
+            if (filled[pid] != 0)
+                break;
+        }
+
+        return true;
+    }
+
+    /**
+     * Add payload bytes to the section in progress on a PID, passing it to
+     * the handler if that completes it.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param pos
+     *            Offset of the first byte in payload.
+     * @param end
+     *            Offset just after the last byte available in payload.
+     * @return Offset just after the bytes used.
+     */
+    private int append(int pid, int pos, int end) {
+        byte[] buffer = buffers[pid];
+
+        while (pos < end) {
+            int wanted = (filled[pid] < 3) ? (3 - filled[pid]) : (sectionLength(buffer) - filled[pid]);
+            int count = Math.min(wanted, end - pos);
+            System.arraycopy(payload, pos, buffer, filled[pid], count);
+            filled[pid] += count;
+            pos += count;
+
+            if (filled[pid] >= 3) {
+                int length = sectionLength(buffer);
+                if (filled[pid] == length) {
+                    handler.section(pid, buffer, 0, length, checkCrc(buffer, length), startPos[pid]);
+                    filled[pid] = 0;
+                    return pos;
+                }
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Total length of the section in a buffer from its header.
+     *
+     * @param buffer
+     *            The buffer (holding at least the 3 header bytes).
+     * @return The length.
+     */
+    private static int sectionLength(byte[] buffer) {
+        return 3 + (((buffer[1] & 0x0f) << 8) | (buffer[2] & 0xff));
+    }
+
+    /**
+     * Check the CRC_32 of a section, if it has one.
+     *
+     * @param buffer
+     *            The section.
+     * @param length
+     *            Its length.
+     * @return False if it has a CRC_32 which does not match.
+     */
+    private static boolean checkCrc(byte[] buffer, int length) {
+        boolean hasCrc = ((buffer[1] & 0x80) != 0) || ((buffer[0] & 0xff) == TABLE_ID_TOT);
+        if (!hasCrc)
+            return true;
+        if (length < 3 + 4)
+            return false;
+        return Crc32.crc(buffer, 0, length) == 0;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+/**
+ * Receives the sections rebuilt by a SectionAssembler.
+ *
+ * @author Andrew de Quincey
+ */
+public interface SectionHandler {
+
+    /**
+     * Called for each complete section. The data is only valid for the
+     * duration of the call.
+     *
+     * @param pid
+     *            The PID the section was carried on.
+     * @param data
+     *            Buffer holding the section.
+     * @param offset
+     *            Offset of the table_id byte within data.
+     * @param length
+     *            Length of the whole section, including its header and any
+     *            CRC_32.
+     * @param crcValid
+     *            False if the section has a CRC_32 and it does not match.
+     * @param position
+     *            Position of the packet the section started in.
+     */
+    public void section(int pid, byte[] data, int offset, int length, boolean crcValid, long position);
+}
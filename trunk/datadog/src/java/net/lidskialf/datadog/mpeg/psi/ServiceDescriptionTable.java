@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import java.util.ArrayList;
+
+import net.lidskialf.datadog.util.IntArray;
+
+/**
+ * A decoded service_description_section (PID 0x0011, table_id 0x42 for the
+ * actual transport stream or 0x46 for another transport stream).
+ *
+ * @author Andrew de Quincey
+ */
+public class ServiceDescriptionTable extends PsiTable {
+
+    /**
+     * table_id of the SDT for the actual transport stream.
+     */
+    public static final int TABLE_ID_ACTUAL = 0x42;
+
+    /**
+     * table_id of the SDT for other transport streams.
+     */
+    public static final int TABLE_ID_OTHER = 0x46;
+
+    /**
+     * Tag of the service_descriptor.
+     */
+    public static final int SERVICE_DESCRIPTOR = 0x48;
+
+    /**
+     * The original_network_id.
+     */
+    private int originalNetworkId;
+
+    /**
+     * The service_id of each service.
+     */
+    private int[] serviceIds;
+
+    /**
+     * The byte holding the EIT flags, and the byte holding running_status and
+     * free_CA_mode, of each service.
+     */
+    private int[] flags;
+
+    /**
+     * The descriptor loop of each service.
+     */
+    private byte[][] descriptors;
+
+    /**
+     * Constructor.
+     *
+     * @param sections
+     *            The sections of the table, in section_number order.
+     * @param count
+     *            Number of sections.
+     */
+    public ServiceDescriptionTable(byte[][] sections, int count) {
+        super(sections[0]);
+
+        ArrayList loops = new ArrayList();
+        IntArray ids = new IntArray();
+        IntArray tmpFlags = new IntArray();
+        originalNetworkId = (sections[0].length >= 10) ? u16(sections[0], 8) : 0;
+
+        for (int i = 0; i < count; i++) {
+            byte[] section = sections[i];
+            int end = section.length - 4;
+            for (int pos = 11; pos + 5 <= end; pos += 5 + length12(section, pos + 3)) {
+                ids.add(u16(section, pos));
+                tmpFlags.add(((section[pos + 2] & 0xff) << 8) | (section[pos + 3] & 0xff));
+                loops.add(copy(section, pos + 5, length12(section, pos + 3)));
+            }
+        }
+
+        serviceIds = ids.toArray();
+        flags = tmpFlags.toArray();
+        descriptors = (byte[][]) loops.toArray(new byte[loops.size()][]);
+    }
+
+    /**
+     * Is this the SDT of the actual transport stream?
+     *
+     * @return True if it is.
+     */
+    public boolean isActual() {
+        return getTableId() == TABLE_ID_ACTUAL;
+    }
+
+    /**
+     * Get the transport_stream_id.
+     *
+     * @return The transport_stream_id.
+     */
+    public int getTransportStreamId() {
+        return getTableIdExtension();
+    }
+
+    /**
+     * Get the original_network_id.
+     *
+     * @return The original_network_id.
+     */
+    public int getOriginalNetworkId() {
+        return originalNetworkId;
+    }
+
+    /**
+     * Number of services described.
+     *
+     * @return The count.
+     */
+    public int getServiceCount() {
+        return serviceIds.length;
+    }
+
+    /**
+     * Get the service_id of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The service_id.
+     */
+    public int getServiceId(int index) {
+        return serviceIds[index];
+    }
+
+    /**
+     * Find a service.
+     *
+     * @param serviceId
+     *            The service_id (the same as the program_number in the PAT).
+     * @return Its index, or -1 if it is not described.
+     */
+    public int getServiceIndex(int serviceId) {
+        for (int i = 0; i < serviceIds.length; i++) {
+            if (serviceIds[i] == serviceId)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the EIT_schedule_flag of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The flag.
+     */
+    public boolean hasEitSchedule(int index) {
+        return (flags[index] & 0x0200) != 0;
+    }
+
+    /**
+     * Get the EIT_present_following_flag of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The flag.
+     */
+    public boolean hasEitPresentFollowing(int index) {
+        return (flags[index] & 0x0100) != 0;
+    }
+
+    /**
+     * Get the running_status of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The running_status.
+     */
+    public int getRunningStatus(int index) {
+        return (flags[index] >> 5) & 0x07;
+    }
+
+    /**
+     * Get the free_CA_mode of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return True if the service is scrambled.
+     */
+    public boolean isScrambled(int index) {
+        return (flags[index] & 0x10) != 0;
+    }
+
+    /**
+     * Get the descriptor loop of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The descriptors.
+     */
+    public byte[] getDescriptors(int index) {
+        return descriptors[index];
+    }
+
+    /**
+     * Get the service_type from the service_descriptor of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The service_type, or -1 if there is no service_descriptor.
+     */
+    public int getServiceType(int index) {
+        byte[] loop = descriptors[index];
+        int pos = findDescriptor(loop, SERVICE_DESCRIPTOR);
+        if ((pos == -1) || ((loop[pos + 1] & 0xff) < 1))
+            return -1;
+        return loop[pos + 2] & 0xff;
+    }
+
+    /**
+     * Get the service_provider_name from the service_descriptor of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The name, or null if there is no service_descriptor.
+     */
+    public String getProviderName(int index) {
+        return getServiceDescriptorText(index, 0);
+    }
+
+    /**
+     * Get the service_name from the service_descriptor of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @return The name, or null if there is no service_descriptor.
+     */
+    public String getServiceName(int index) {
+        return getServiceDescriptorText(index, 1);
+    }
+
+    /**
+     * Get one of the strings from the service_descriptor of a service.
+     *
+     * @param index
+     *            Index of the service.
+     * @param which
+     *            0 for the service_provider_name, 1 for the service_name.
+     * @return The string, or null if there is no valid service_descriptor.
+     */
+    private String getServiceDescriptorText(int index, int which) {
+        byte[] loop = descriptors[index];
+        int pos = findDescriptor(loop, SERVICE_DESCRIPTOR);
+        if (pos == -1)
+            return null;
+
+        int end = pos + 2 + (loop[pos + 1] & 0xff);
+        pos += 3;
+        for (int i = 0; pos < end; i++) {
+            int length = loop[pos] & 0xff;
+            if (pos + 1 + length > end)
+                return null;
+            if (i == which)
+                return decodeText(loop, pos + 1, length);
+            pos += 1 + length;
+        }
+        return null;
+    }
+}
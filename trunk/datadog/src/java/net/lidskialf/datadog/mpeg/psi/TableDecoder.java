@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+import java.util.Arrays;
+
+import net.lidskialf.datadog.mpeg.bitstream.Constants;
+
+/**
+ * Collects the sections of PAT, CAT, PMT, NIT and SDT tables and decodes each
+ * table once it is complete.
+ *
+ * Tables are repeated constantly in a transport stream, so a section with the
+ * same version_number and CRC_32 as the one already held for its slot is
+ * dropped without being copied or parsed. Only new or changed sections are
+ * copied, and only a change to a complete table builds a new table object.
+ *
+ * @author Andrew de Quincey
+ */
+public class TableDecoder implements SectionHandler {
+
+    /**
+     * Where to send decoded tables.
+     */
+    private TableListener listener;
+
+    /**
+     * Chains of the tables seen on each PID.
+     */
+    private Table[] tables = new Table[Constants.PID_COUNT];
+
+    /**
+     * Number of sections of decoded tables received.
+     */
+    private long sectionCount = 0;
+
+    /**
+     * Number of those which were repeats of sections already held.
+     */
+    private long repeatCount = 0;
+
+    /**
+     * Number of sections which failed their CRC check.
+     */
+    private long crcErrorCount = 0;
+
+    /**
+     * Number of tables decoded.
+     */
+    private long tableCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param listener
+     *            Where to send decoded tables.
+     */
+    public TableDecoder(TableListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Is a table_id one of the tables decoded?
+     *
+     * @param tableId
+     *            The table_id.
+     * @return True if it is.
+     */
+    public static boolean isDecoded(int tableId) {
+        switch (tableId) {
+        case ProgramAssociationTable.TABLE_ID:
+        case ConditionalAccessTable.TABLE_ID:
+        case ProgramMapTable.TABLE_ID:
+        case NetworkInformationTable.TABLE_ID_ACTUAL:
+        case NetworkInformationTable.TABLE_ID_OTHER:
+        case ServiceDescriptionTable.TABLE_ID_ACTUAL:
+        case ServiceDescriptionTable.TABLE_ID_OTHER:
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget the tables on a PID, so they are decoded afresh next time they
+     * are seen.
+     *
+     * @param pid
+     *            The PID concerned.
+     */
+    public void reset(int pid) {
+        tables[pid] = null;
+    }
+
+    /**
+     * Forget all tables.
+     */
+    public void reset() {
+        Arrays.fill(tables, null);
+    }
+
+    /**
+     * Number of sections of decoded tables received.
+     *
+     * @return The count.
+     */
+    public long getSectionCount() {
+        return sectionCount;
+    }
+
+    /**
+     * Number of sections dropped as repeats of ones already held.
+     *
+     * @return The count.
+     */
+    public long getRepeatCount() {
+        return repeatCount;
+    }
+
+    /**
+     * Number of sections which failed their CRC check.
+     *
+     * @return The count.
+     */
+    public long getCrcErrorCount() {
+        return crcErrorCount;
+    }
+
+    /**
+     * Number of tables decoded.
+     *
+     * @return The count.
+     */
+    public long getTableCount() {
+        return tableCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.mpeg.psi.SectionHandler#section(int, byte[], int, int, boolean, long)
+     */
+    public void section(int pid, byte[] data, int offset, int length, boolean crcValid, long position) {
+        if (!crcValid) {
+            crcErrorCount++;
+            return;
+        }
+
+        // only long form, currently applicable sections of the tables we
+        // decode
+        int tableId = data[offset] & 0xff;
+        if (!isDecoded(tableId) || ((data[offset + 1] & 0x80) == 0) || (length < 12) || ((data[offset + 5] & 0x01) == 0))
+            return;
+        sectionCount++;
+
+        int extension = ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff);
+        int version = (data[offset + 5] >> 1) & 0x1f;
+        int sectionNumber = data[offset + 6] & 0xff;
+        int lastSectionNumber = data[offset + 7] & 0xff;
+        int crcPos = offset + length - 4;
+        int crc = ((data[crcPos] & 0xff) << 24) | ((data[crcPos + 1] & 0xff) << 16) | ((data[crcPos + 2] & 0xff) << 8) | (data[crcPos + 3] & 0xff);
+        if (sectionNumber > lastSectionNumber)
+            return;
+
+        Table table = tables[pid];
+        while ((table != null) && ((table.tableId != tableId) || (table.extension != extension)))
+            table = table.next;
+        if (table == null) {
+            table = new Table(tableId, extension);
+            table.next = tables[pid];
+            tables[pid] = table;
+        }
+
+        boolean sameVersion = (table.version == version) && (table.lastSectionNumber == lastSectionNumber);
+        if (sameVersion && (table.sections[sectionNumber] != null) && (table.crcs[sectionNumber] == crc)) {
+            repeatCount++;
+            return;
+        }
+
+        if (!sameVersion) {
+            Arrays.fill(table.sections, null);
+            table.present = 0;
+            table.version = version;
+            table.lastSectionNumber = lastSectionNumber;
+        }
+
+        byte[] section = table.sections[sectionNumber];
+        if (section == null)
+            table.present++;
+        if ((section == null) || (section.length != length)) {
+            section = new byte[length];
+            table.sections[sectionNumber] = section;
+        }
+        System.arraycopy(data, offset, section, 0, length);
+        table.crcs[sectionNumber] = crc;
+
+        if (table.present == lastSectionNumber + 1) {
+            tableCount++;
+            listener.table(pid, decode(tableId, table.sections, lastSectionNumber + 1));
+        }
+    }
+
+    /**
+     * Build the table object for a complete set of sections.
+     *
+     * @param tableId
+     *            The table_id.
+     * @param sections
+     *            The sections, in section_number order.
+     * @param count
+     *            Number of sections.
+     * @return The table.
+     */
+    private static PsiTable decode(int tableId, byte[][] sections, int count) {
+        switch (tableId) {
+        case ProgramAssociationTable.TABLE_ID:
+            return new ProgramAssociationTable(sections, count);
+        case ConditionalAccessTable.TABLE_ID:
+            return new ConditionalAccessTable(sections, count);
+        case ProgramMapTable.TABLE_ID:
+            return new ProgramMapTable(sections, count);
+        case NetworkInformationTable.TABLE_ID_ACTUAL:
+        case NetworkInformationTable.TABLE_ID_OTHER:
+            return new NetworkInformationTable(sections, count);
+        default:
+            return new ServiceDescriptionTable(sections, count);
+        }
+    }
+
+    /**
+     * The sections held for one table (one table_id and table_id_extension on
+     * one PID).
+     */
+    private static class Table {
+
+        /**
+         * The table_id.
+         */
+        int tableId;
+
+        /**
+         * The table_id_extension.
+         */
+        int extension;
+
+        /**
+         * version_number of the sections held (-1 for none).
+         */
+        int version = -1;
+
+        /**
+         * last_section_number of the sections held.
+         */
+        int lastSectionNumber = -1;
+
+        /**
+         * Number of sections held.
+         */
+        int present = 0;
+
+        /**
+         * The sections held, by section_number.
+         */
+        byte[][] sections = new byte[256][];
+
+        /**
+         * The CRC_32 of each section held.
+         */
+        int[] crcs = new int[256];
+
+        /**
+         * Next table on the same PID.
+         */
+        Table next;
+
+        /**
+         * Constructor.
+         *
+         * @param tableId
+         *            The table_id.
+         * @param extension
+         *            The table_id_extension.
+         */
+        Table(int tableId, int extension) {
+            this.tableId = tableId;
+            this.extension = extension;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.psi;
+
+/**
+ * Receives the tables decoded by a TableDecoder.
+ *
+ * @author Andrew de Quincey
+ */
+public interface TableListener {
+
+    /**
+     * Called when a table is first complete, and again each time it changes.
+     *
+     * @param pid
+     *            The PID the table was carried on.
+     * @param table
+     *            The table.
+     */
+    public void table(int pid, PsiTable table);
+}
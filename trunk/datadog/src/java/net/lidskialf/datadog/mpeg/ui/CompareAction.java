@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.Color;
+import java.awt.event.*;
+import java.io.*;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.*;
+import net.lidskialf.datadog.mpeg.bitstream.TransportStream;
+import net.lidskialf.datadog.mpeg.diff.*;
+import net.lidskialf.datadog.util.*;
+
+/**
+ * An Action allowing the user to compare a TransportStreamsViewer's stream
+ * with another transport stream file in the background, bookmarking each
+ * difference found in the viewer.
+ *
+ * @author Andrew de Quincey
+ */
+public class CompareAction extends AbstractAction {
+
+    /**
+     * No more differences are bookmarked after this many.
+     */
+    private static final int MAX_BOOKMARKS = 10000;
+
+    /**
+     * Milliseconds between passing new differences to the viewer.
+     */
+    private static final int UPDATE_INTERVAL = 250;
+
+    private static final int DROPPED = 0;
+    private static final int INSERTED = 1;
+    private static final int CHANGED = 2;
+
+    /**
+     * Bookmark descriptions, indexed by DROPPED, INSERTED and CHANGED.
+     */
+    private static final String[] DESCRIPTIONS = { "Dropped", "Inserted", "Changed" };
+
+    /**
+     * Bookmark colours, indexed by DROPPED, INSERTED and CHANGED.
+     */
+    private static final Color[] COLOURS = { Color.red, Color.green, Color.orange };
+
+    private TransportStreamsViewer viewer;
+    private TransportStream stream;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     * @param stream
+     *            The stream it is showing.
+     */
+    public CompareAction(TransportStreamsViewer viewer, TransportStream stream) {
+        this.viewer = viewer;
+        this.stream = stream;
+
+        putValue(Action.NAME, "Compare");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Compare with file");
+        if (chooser.showOpenDialog(viewer) != JFileChooser.APPROVE_OPTION)
+            return;
+        final File file = chooser.getSelectedFile();
+
+        final Bitstream otherBitstream;
+        try {
+            otherBitstream = new FileBitstream(file.getPath());
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(viewer, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        // TransportStream rejects a file which is not a transport stream with
+        // a RuntimeException rather than an IOException
+        final StreamDiff diff;
+        final long length;
+        try {
+            diff = new StreamDiff(stream, new TransportStream(otherBitstream));
+            length = stream.length();
+        } catch (IOException e) {
+            fail(otherBitstream, e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            fail(otherBitstream, e.getMessage());
+            return;
+        }
+
+        // differences are passed to the viewer in batches
+        final LongArray positions = new LongArray();
+        final IntArray details = new IntArray();
+        final DiffListener listener = new DiffListener() {
+            public void dropped(int pid, long positionA) {
+                add(positionA, DROPPED, pid);
+            }
+
+            public void inserted(int pid, long positionB, long positionA) {
+                add(positionA, INSERTED, pid);
+            }
+
+            public void changed(int pid, long positionA, long positionB) {
+                add(positionA, CHANGED, pid);
+            }
+
+            private void add(long position, int type, int pid) {
+                synchronized (positions) {
+                    positions.add(position);
+                    details.add((type << 16) | pid);
+                }
+            }
+        };
+
+        final ProgressMonitor progress = new ProgressMonitor(viewer, "Comparing with " + file.getName(), null, 0, 1000);
+        final int[] bookmarked = new int[1];
+        final ActionListener update = new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                synchronized (positions) {
+                    for (int i = 0; (i < positions.size()) && (bookmarked[0] < MAX_BOOKMARKS); i++, bookmarked[0]++) {
+                        int type = details.get(i) >>> 16;
+                        String description = DESCRIPTIONS[type] + " packet on PID 0x" + Integer.toHexString(details.get(i) & 0xffff);
+                        viewer.addBookmark(positions.get(i), new StreamBookmark(description, COLOURS[type]));
+                    }
+                    positions.clear();
+                    details.clear();
+                }
+
+                if (progress.isCanceled())
+                    diff.cancel();
+                if (length > 0)
+                    progress.setProgress((int) ((diff.getPositionA() * 1000) / length));
+            }
+        };
+        final Timer timer = new Timer(UPDATE_INTERVAL, update);
+        timer.start();
+
+        Thread thread = new Thread("Compare: " + file.getName()) {
+            public void run() {
+                String error = null;
+                try {
+                    diff.diff(listener);
+                } catch (IOException e) {
+                    error = e.getMessage();
+                } finally {
+                    try {
+                        otherBitstream.close();
+                    } catch (IOException e) {
+                    }
+                }
+
+                final String message = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        // one last pass to pick up the final differences
+                        timer.stop();
+                        update.actionPerformed(null);
+                        progress.close();
+
+                        if (message != null) {
+                            JOptionPane.showMessageDialog(viewer, message, "Error", JOptionPane.ERROR_MESSAGE);
+                        } else if (!diff.isCancelled()) {
+                            String summary = "Compared from 0x" + Long.toHexString(diff.getStartPositionA()) + " here and 0x"
+                                    + Long.toHexString(diff.getStartPositionB()) + " in " + file.getName() + ".\n" + diff.getMatchedCount()
+                                    + " packets the same, " + diff.getChangedCount() + " changed, " + diff.getDroppedCount() + " dropped and "
+                                    + diff.getInsertedCount() + " inserted.";
+                            if (bookmarked[0] >= MAX_BOOKMARKS)
+                                summary += "\nOnly the first " + MAX_BOOKMARKS + " differences have been bookmarked.";
+                            JOptionPane.showMessageDialog(viewer, summary, "Compare", JOptionPane.INFORMATION_MESSAGE);
+                        }
+                    }
+                });
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Close the other bitstream after the comparison could not be started and
+     * report the reason.
+     *
+     * @param otherBitstream
+     *            The bitstream to close.
+     * @param message
+     *            The error message.
+     */
+    private void fail(Bitstream otherBitstream, String message) {
+        try {
+            otherBitstream.close();
+        } catch (IOException e) {
+        }
+        JOptionPane.showMessageDialog(viewer, message, "Error", JOptionPane.ERROR_MESSAGE);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.event.ActionEvent;
+import java.io.*;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.export.PidExporter;
+
+/**
+ * An Action allowing the user to write some PIDs of a TransportStreamsViewer's
+ * stream out to files, in the background, optionally only writing the packets
+ * its PacketFilter accepts.
+ *
+ * @author Andrew de Quincey
+ */
+public class ExportPidsAction extends AbstractAction {
+
+    /**
+     * Number of packets read between progress updates.
+     */
+    private static final long PROGRESS_PACKETS = 0x10000;
+
+    /**
+     * Names of the export formats, indexed by PidExporter.FORMAT_*.
+     */
+    private static final String[] FORMAT_NAMES = { "Transport packets", "PES packets", "Elementary stream" };
+
+    /**
+     * Filename extensions of the export formats, indexed by
+     * PidExporter.FORMAT_*.
+     */
+    private static final String[] FORMAT_EXTENSIONS = { ".ts", ".pes", ".es" };
+
+    private TransportStreamsViewer viewer;
+    private TransportStream stream;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     * @param stream
+     *            The stream it is showing.
+     */
+    public ExportPidsAction(TransportStreamsViewer viewer, TransportStream stream) {
+        this.viewer = viewer;
+        this.stream = stream;
+
+        putValue(Action.NAME, "Export");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        PacketIndex packetIndex = viewer.getPacketIndex();
+        if (packetIndex == null) {
+            JOptionPane.showMessageDialog(viewer, "The PIDs of the stream are not known (yet).", "Export", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        // offer the PIDs being shown
+        int[] allPids = packetIndex.getPids();
+        int count = 0;
+        int[] pids = new int[allPids.length];
+        for (int i = 0; i < allPids.length; i++) {
+            if (viewer.acceptsPid(allPids[i]))
+                pids[count++] = allPids[i];
+        }
+        String[] labels = new String[count];
+        for (int i = 0; i < count; i++)
+            labels[i] = "0x" + Integer.toHexString(pids[i]) + " (" + packetIndex.getPacketCount(pids[i]) + " packets)";
+
+        JList list = new JList(labels);
+        list.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        list.setVisibleRowCount(Math.min(count, 12));
+        JComboBox formats = new JComboBox(FORMAT_NAMES);
+        JCheckBox filtered = new JCheckBox("Only packets matching: " + viewer.getPacketFilter(), viewer.getPacketFilter() != null);
+        filtered.setVisible(viewer.getPacketFilter() != null);
+        Object[] message = new Object[] { "PIDs to export:", new JScrollPane(list), "Write as:", formats, filtered };
+        if (JOptionPane.showConfirmDialog(viewer, message, "Export", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) != JOptionPane.OK_OPTION)
+            return;
+        int[] indices = list.getSelectedIndices();
+        if (indices.length == 0)
+            return;
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Export to directory");
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showSaveDialog(viewer) != JFileChooser.APPROVE_OPTION)
+            return;
+
+        int format = formats.getSelectedIndex();
+        String baseName = new File(stream.getBitstream().toString()).getName();
+        final PacketFilter packetFilter = filtered.isSelected() ? viewer.getPacketFilter().copy() : null;
+        final PidExporter exporter = new PidExporter(format);
+        try {
+            for (int i = 0; i < indices.length; i++) {
+                int pid = pids[indices[i]];
+                exporter.addPid(pid, new File(chooser.getSelectedFile(), baseName + ".0x" + Integer.toHexString(pid) + FORMAT_EXTENSIONS[format]));
+            }
+        } catch (IOException e) {
+            try {
+                exporter.finish();
+            } catch (IOException e2) {
+            }
+            JOptionPane.showMessageDialog(viewer, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        final ProgressMonitor progress = new ProgressMonitor(viewer, "Exporting " + indices.length + " PID(s)", null, 0, 1000);
+        Thread thread = new Thread("Export: " + baseName) {
+            public void run() {
+                String error = null;
+                try {
+                    final long total = stream.length() / Constants.TS_PACKET_LENGTH;
+                    for (long done = 0; (done < total) && !progress.isCanceled(); done += PROGRESS_PACKETS) {
+                        stream.readPackets(done * Constants.TS_PACKET_LENGTH, PROGRESS_PACKETS, exporter.getPidFilter(), packetFilter, exporter);
+
+                        final int permille = (int) ((done * 1000) / total);
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                progress.setProgress(permille);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    error = e.getMessage();
+                } finally {
+                    try {
+                        exporter.finish();
+                    } catch (IOException e) {
+                        if (error == null)
+                            error = e.getMessage();
+                    }
+                }
+
+                final String message = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        progress.close();
+                        if (message != null)
+                            JOptionPane.showMessageDialog(viewer, message, "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.event.ActionEvent;
+import java.text.ParseException;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.bitstream.PacketFilter;
+
+/**
+ * An Action allowing the user to show only the packets matching a
+ * PacketFilter expression in a TransportStreamsViewer.
+ *
+ * @author Andrew de Quincey
+ */
+public class FilterPacketsAction extends AbstractAction {
+
+    private TransportStreamsViewer viewer;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     */
+    public FilterPacketsAction(TransportStreamsViewer viewer) {
+        this.viewer = viewer;
+
+        putValue(Action.NAME, "Filter");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        String text = askForExpression(viewer, "Show packets matching (empty for all, e.g. pid == 0x100 && pcr && !cc_ok):", "Filter");
+        if (text == null)
+            return;
+
+        try {
+            viewer.setPacketFilter((text.length() == 0) ? null : PacketFilter.compile(text));
+        } catch (ParseException e) {
+            // askForExpression() has already checked it
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Ask the user for a filter expression, starting from the viewer's
+     * current one, until they give a valid one or cancel.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     * @param prompt
+     *            The prompt.
+     * @param title
+     *            The dialog title.
+     * @return The expression (empty if none was given), or null if
+     *         cancelled.
+     */
+    static String askForExpression(TransportStreamsViewer viewer, String prompt, String title) {
+        String text = (viewer.getPacketFilter() != null) ? viewer.getPacketFilter().toString() : "";
+        while (true) {
+            text = (String) JOptionPane.showInputDialog(viewer, prompt, title, JOptionPane.QUESTION_MESSAGE, null, null, text);
+            if (text == null)
+                return null;
+            text = text.trim();
+            if (text.length() == 0)
+                return text;
+
+            try {
+                PacketFilter.compile(text);
+                return text;
+            } catch (ParseException e) {
+                JOptionPane.showMessageDialog(viewer, e.getMessage() + " at column " + (e.getErrorOffset() + 1), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+}
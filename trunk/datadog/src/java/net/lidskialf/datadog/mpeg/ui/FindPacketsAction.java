@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+import java.text.ParseException;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.StreamBookmark;
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.util.LongArray;
+
+/**
+ * An Action allowing the user to search a TransportStreamsViewer's stream for
+ * packets matching a PacketFilter expression in the background, bookmarking
+ * each one found. Only the PIDs the viewer is showing are searched.
+ *
+ * @author Andrew de Quincey
+ */
+public class FindPacketsAction extends AbstractAction {
+
+    /**
+     * Number of packets read between progress updates.
+     */
+    private static final long PROGRESS_PACKETS = 0x10000;
+
+    /**
+     * The search stops once this many packets have been bookmarked.
+     */
+    private static final int MAX_MATCHES = 10000;
+
+    /**
+     * Colour of the bookmarks for matches.
+     */
+    private static final Color MATCH_COLOUR = Color.cyan;
+
+    private TransportStreamsViewer viewer;
+    private TransportStream stream;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     * @param stream
+     *            The stream it is showing.
+     */
+    public FindPacketsAction(TransportStreamsViewer viewer, TransportStream stream) {
+        this.viewer = viewer;
+        this.stream = stream;
+
+        putValue(Action.NAME, "Find packets");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        final String text = FilterPacketsAction.askForExpression(viewer, "Find packets matching (e.g. pid == 0x100 && pcr && !cc_ok):", "Find packets");
+        if ((text == null) || (text.length() == 0))
+            return;
+
+        final PacketFilter filter;
+        try {
+            filter = PacketFilter.compile(text);
+        } catch (ParseException e) {
+            // askForExpression() has already checked it
+            throw new RuntimeException(e);
+        }
+        final PidFilter pids = viewer.getPidFilter();
+        final String description = "Match: " + text;
+
+        final ProgressMonitor progress = new ProgressMonitor(viewer, "Finding " + text, null, 0, 1000);
+        Thread thread = new Thread("Find packets: " + text) {
+            public void run() {
+                String error = null;
+                final int[] count = new int[1];
+                try {
+                    long total = stream.length() / Constants.TS_PACKET_LENGTH;
+                    for (long done = 0; (done < total) && (count[0] < MAX_MATCHES) && !progress.isCanceled(); done += PROGRESS_PACKETS) {
+                        final LongArray found = new LongArray();
+                        stream.readPackets(done * Constants.TS_PACKET_LENGTH, PROGRESS_PACKETS, pids, filter, new PacketSink() {
+                            public boolean packet(TransportPacket packet) {
+                                found.add(packet.getStreamPosition());
+                                return ++count[0] < MAX_MATCHES;
+                            }
+                        });
+
+                        // bookmark the matches from this batch as it finishes
+                        final int permille = (int) ((done * 1000) / total);
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                for (int i = 0; i < found.size(); i++)
+                                    viewer.addBookmark(found.get(i), new StreamBookmark(description, MATCH_COLOUR));
+                                progress.setProgress(permille);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    error = e.getMessage();
+                }
+
+                final String message = error;
+                final int matches = count[0];
+                final boolean cancelled = progress.isCanceled();
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        progress.close();
+                        if (message != null)
+                            JOptionPane.showMessageDialog(viewer, message, "Error", JOptionPane.ERROR_MESSAGE);
+                        else if (matches >= MAX_MATCHES)
+                            JOptionPane.showMessageDialog(viewer, "Stopped after " + MAX_MATCHES + " packets.", "Find packets", JOptionPane.INFORMATION_MESSAGE);
+                        else if (!cancelled)
+                            JOptionPane.showMessageDialog(viewer, matches + " packets found.", "Find packets", JOptionPane.INFORMATION_MESSAGE);
+                    }
+                });
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.analysis.*;
+import net.lidskialf.datadog.ui.*;
+
+/**
+ * Action to move to the PES packet of a PID presenting at a given PTS.
+ *
+ * ActionInformationSource.isEnabled() should support the "GoToPTSAction" action.
+ *
+ * ActionInformationSource.getParameter() must implement the following:
+ *   "substream" - return the selected TransportSubstream (or null if none).
+ *
+ * @author Andrew de Quincey
+ */
+public class GoToPTSAction extends GroupableAction {
+
+    private TransportStreamsViewer viewer;
+    private ActionInformationSource infoSource;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer The TransportStreamsViewer concerned.
+     * @param infoSource The ActionInformationSource as described in the class information.
+     */
+    public GoToPTSAction(TransportStreamsViewer viewer, ActionInformationSource infoSource) {
+        this.viewer = viewer;
+        this.infoSource = infoSource;
+
+        putValue(Action.NAME, "Go to PTS");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent e) {
+        Object substream = infoSource.getActionParameter("substream");
+        if (!(substream instanceof TransportStreamsViewer.TransportSubstream))
+            return;
+        int pid = ((TransportStreamsViewer.TransportSubstream) substream).getPid();
+
+        // offer the PTS at the current position, as a raw 33 bit value
+        long current = viewer.getTimestamps().getPTSAt(pid, viewer.getCurrentPosition());
+        if (current == Long.MIN_VALUE)
+            current = viewer.getTimestamps().getPTS(pid, 0);
+        current %= TimestampIndex.TIMESTAMP_MODULUS;
+        if (current < 0)
+            current += TimestampIndex.TIMESTAMP_MODULUS;
+
+        String text = (String) JOptionPane.showInputDialog(viewer, "PTS (90kHz ticks, or hh:mm:ss.fff):", "Go to PTS", JOptionPane.QUESTION_MESSAGE, null, null, Long.toString(current));
+        if (text == null)
+            return;
+
+        try {
+            long pts;
+            if (text.indexOf(':') != -1) {
+                pts = PCRTimeline.parseTime(text) / (PCRTimeline.PCR_FREQUENCY / TimestampIndex.TIMESTAMP_FREQUENCY);
+            } else {
+                pts = Long.parseLong(text.trim());
+            }
+            if ((pts < 0) || (pts >= TimestampIndex.TIMESTAMP_MODULUS))
+                throw new NumberFormatException("PTS out of range: " + text);
+
+            if (!viewer.jumpToPTS(pid, pts)) {
+                Toolkit.getDefaultToolkit().beep();
+            }
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(viewer, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.lidskialf.datadog.ui.GroupableAction#update()
+     */
+    public void update() {
+        setEnabled(infoSource.isActionEnabled("GoToPTSAction"));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.analysis.PCRTimeline;
+
+/**
+ * An Action allowing the user to move to a given stream time (derived from
+ * the PCRs) in a TransportStreamsViewer.
+ *
+ * @author Andrew de Quincey
+ */
+public class GoToTimeAction extends AbstractAction {
+
+    private TransportStreamsViewer viewer;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     */
+    public GoToTimeAction(TransportStreamsViewer viewer) {
+        this.viewer = viewer;
+
+        putValue(Action.NAME, "Go to time");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        if (viewer.getTimeline() == null) {
+            JOptionPane.showMessageDialog(viewer, "No PCR timing information is available (yet).", "Go to time", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        long current = viewer.positionToTime(viewer.getCurrentPosition());
+        String text = (String) JOptionPane.showInputDialog(viewer, "Time (hh:mm:ss.fff):", "Go to time", JOptionPane.QUESTION_MESSAGE, null, null, PCRTimeline.formatTime(current));
+        if (text == null)
+            return;
+
+        try {
+            if (!viewer.jumpToTime(PCRTimeline.parseTime(text))) {
+                Toolkit.getDefaultToolkit().beep();
+            }
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(viewer, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.ui.*;
+
+/**
+ * Action to move to the next/previous packet (or PCR bearing packet) of a PID.
+ *
+ * ActionInformationSource.isEnabled() should support the "JumpToPacketAction" action.
+ *
+ * ActionInformationSource.getParameter() must implement the following:
+ *   "substream" - return the selected TransportSubstream (or null if none).
+ *
+ * @author Andrew de Quincey
+ */
+public class JumpToPacketAction extends GroupableAction {
+
+    private TransportStreamsViewer viewer;
+    private ActionInformationSource infoSource;
+    private boolean forwards;
+    private boolean pcrOnly;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer The TransportStreamsViewer concerned.
+     * @param infoSource The ActionInformationSource as described in the class information.
+     * @param forwards True to move to the next packet, false for the previous one.
+     * @param pcrOnly True to only consider PCR bearing packets.
+     */
+    public JumpToPacketAction(TransportStreamsViewer viewer, ActionInformationSource infoSource, boolean forwards, boolean pcrOnly) {
+        this.viewer = viewer;
+        this.infoSource = infoSource;
+        this.forwards = forwards;
+        this.pcrOnly = pcrOnly;
+
+        putValue(Action.NAME, (forwards ? "Next " : "Previous ") + (pcrOnly ? "PCR packet" : "packet"));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent e) {
+        Object substream = infoSource.getActionParameter("substream");
+
+        if (substream instanceof TransportStreamsViewer.TransportSubstream) {
+            int pid = ((TransportStreamsViewer.TransportSubstream) substream).getPid();
+            if (!viewer.jumpToPacket(pid, forwards, pcrOnly)) {
+                Toolkit.getDefaultToolkit().beep();
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.lidskialf.datadog.ui.GroupableAction#update()
+     */
+    public void update() {
+        setEnabled(infoSource.isActionEnabled("JumpToPacketAction"));
+    }
+}
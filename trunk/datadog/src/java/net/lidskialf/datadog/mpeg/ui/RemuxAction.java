@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.event.ActionEvent;
+import java.io.*;
+import java.util.StringTokenizer;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.export.TransportStreamRemuxer;
+
+/**
+ * An Action allowing the user to copy the PIDs a TransportStreamsViewer is
+ * showing (all of them, or those of the selected programs) to a new transport
+ * stream file, in the background, optionally only copying the packets its
+ * PacketFilter accepts.
+ *
+ * @author Andrew de Quincey
+ */
+public class RemuxAction extends AbstractAction {
+
+    /**
+     * Number of packets read between progress updates.
+     */
+    private static final long PROGRESS_PACKETS = 0x10000;
+
+    private TransportStreamsViewer viewer;
+    private TransportStream stream;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     * @param stream
+     *            The stream it is showing.
+     */
+    public RemuxAction(TransportStreamsViewer viewer, TransportStream stream) {
+        this.viewer = viewer;
+        this.stream = stream;
+
+        putValue(Action.NAME, "Remux");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        JCheckBox stripNulls = new JCheckBox("Drop null packets", true);
+        JCheckBox filtered = new JCheckBox("Only packets matching: " + viewer.getPacketFilter(), viewer.getPacketFilter() != null);
+        filtered.setVisible(viewer.getPacketFilter() != null);
+        JTextField remap = new JTextField();
+        Object[] message = new Object[] { (viewer.getPidFilter() == null) ? "Copy every PID." : "Copy the PIDs of the selected programs.", stripNulls, filtered,
+                "Renumber PIDs (e.g. 0x100=0x200, 0x101=0x201):", remap };
+        if (JOptionPane.showConfirmDialog(viewer, message, "Remux", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) != JOptionPane.OK_OPTION)
+            return;
+
+        // check the renumbering before asking where to write
+        int[][] pidMap;
+        try {
+            pidMap = parsePidMap(remap.getText());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(viewer, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Remux to file");
+        if (chooser.showSaveDialog(viewer) != JFileChooser.APPROVE_OPTION)
+            return;
+        final File file = chooser.getSelectedFile();
+
+        final FileOutputStream out;
+        try {
+            out = new FileOutputStream(file);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(viewer, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        final PacketFilter packetFilter = filtered.isSelected() ? viewer.getPacketFilter().copy() : null;
+        final TransportStreamRemuxer remuxer = new TransportStreamRemuxer(stream.getBitstream(), out.getChannel());
+        remuxer.setPidFilter(viewer.getPidFilter(), stripNulls.isSelected());
+        for (int i = 0; i < pidMap.length; i++)
+            remuxer.remapPid(pidMap[i][0], pidMap[i][1]);
+
+        final ProgressMonitor progress = new ProgressMonitor(viewer, "Remuxing to " + file.getName(), null, 0, 1000);
+        Thread thread = new Thread("Remux: " + file.getName()) {
+            public void run() {
+                String error = null;
+                try {
+                    long total = stream.length() / Constants.TS_PACKET_LENGTH;
+                    for (long done = 0; (done < total) && !progress.isCanceled(); done += PROGRESS_PACKETS) {
+                        stream.readPackets(done * Constants.TS_PACKET_LENGTH, PROGRESS_PACKETS, remuxer.getPidFilter(), packetFilter, remuxer);
+
+                        final int permille = (int) ((done * 1000) / total);
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                progress.setProgress(permille);
+                            }
+                        });
+                    }
+                    remuxer.finish();
+                } catch (IOException e) {
+                    error = e.getMessage();
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        if (error == null)
+                            error = e.getMessage();
+                    }
+                }
+
+                final String message = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        progress.close();
+                        if (message != null)
+                            JOptionPane.showMessageDialog(viewer, message, "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Parse a list of PID renumberings.
+     *
+     * @param text
+     *            Comma separated pairs of PIDs, as "old=new".
+     * @return The pairs, as { old, new }.
+     * @throws NumberFormatException
+     *             If the text is not valid.
+     */
+    private static int[][] parsePidMap(String text) {
+        StringTokenizer tokens = new StringTokenizer(text, ", ");
+        int[][] pidMap = new int[tokens.countTokens()][];
+        for (int i = 0; i < pidMap.length; i++) {
+            String token = tokens.nextToken();
+            int split = token.indexOf('=');
+            if (split == -1)
+                throw new NumberFormatException("Invalid PID renumbering: " + token);
+
+            int from = Integer.decode(token.substring(0, split).trim()).intValue();
+            int to = Integer.decode(token.substring(split + 1).trim()).intValue();
+            if ((from < 0) || (from >= Constants.PID_COUNT) || (to < 0) || (to >= Constants.PID_COUNT))
+                throw new NumberFormatException("PID out of range: " + token);
+            pidMap[i] = new int[] { from, to };
+        }
+        return pidMap;
+    }
+}
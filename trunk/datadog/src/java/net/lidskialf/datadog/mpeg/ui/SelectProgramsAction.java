@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.psi.*;
+
+/**
+ * An Action allowing the user to choose which programs a
+ * TransportStreamsViewer shows, from those listed in the PAT.
+ *
+ * @author Andrew de Quincey
+ */
+public class SelectProgramsAction extends AbstractAction {
+
+    private TransportStreamsViewer viewer;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     */
+    public SelectProgramsAction(TransportStreamsViewer viewer) {
+        this.viewer = viewer;
+
+        putValue(Action.NAME, "Programs");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        PsiCollector psi = viewer.getPsi();
+        ProgramAssociationTable pat = (psi != null) ? psi.getPAT() : null;
+        if (pat == null) {
+            JOptionPane.showMessageDialog(viewer, "No program information is available (yet).", "Programs", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        // list the programs, named from the SDT where possible
+        ServiceDescriptionTable sdt = psi.getSDT();
+        int count = 0;
+        int[] programs = new int[pat.getProgramCount()];
+        for (int i = 0; i < pat.getProgramCount(); i++) {
+            if (pat.getProgramNumber(i) != 0)
+                programs[count++] = pat.getProgramNumber(i);
+        }
+
+        String[] labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            String name = null;
+            if (sdt != null) {
+                int service = sdt.getServiceIndex(programs[i]);
+                if (service != -1)
+                    name = sdt.getServiceName(service);
+            }
+            labels[i] = programs[i] + ((name != null) ? ": " + name : "") + " (PMT 0x" + Integer.toHexString(pat.getPmtPid(programs[i])) + ")";
+        }
+
+        JList list = new JList(labels);
+        list.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        list.setVisibleRowCount(Math.min(count, 12));
+        int[] selected = viewer.getSelectedPrograms();
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < selected.length; j++) {
+                if (programs[i] == selected[j])
+                    list.addSelectionInterval(i, i);
+            }
+        }
+
+        Object[] message = new Object[] { "Programs to show (none selected shows every PID):", new JScrollPane(list) };
+        if (JOptionPane.showConfirmDialog(viewer, message, "Programs", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) != JOptionPane.OK_OPTION)
+            return;
+
+        int[] indices = list.getSelectedIndices();
+        int[] chosen = new int[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            chosen[i] = programs[indices[i]];
+        viewer.setSelectedPrograms(chosen);
+    }
+}
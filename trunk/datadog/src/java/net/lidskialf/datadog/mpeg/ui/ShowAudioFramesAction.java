@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.analysis.*;
+import net.lidskialf.datadog.mpeg.psi.*;
+import net.lidskialf.datadog.ui.*;
+
+/**
+ * Action to summarise the audio frames of a PID: format, average bitrate,
+ * frame drops, and how far the audio at the current position is from the
+ * video it is multiplexed with.
+ *
+ * ActionInformationSource.isEnabled() should support the "ShowAudioFramesAction" action.
+ *
+ * ActionInformationSource.getParameter() must implement the following:
+ *   "substream" - return the selected TransportSubstream (or null if none).
+ *
+ * @author Andrew de Quincey
+ */
+public class ShowAudioFramesAction extends GroupableAction {
+
+    private TransportStreamsViewer viewer;
+    private ActionInformationSource infoSource;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer The TransportStreamsViewer concerned.
+     * @param infoSource The ActionInformationSource as described in the class information.
+     */
+    public ShowAudioFramesAction(TransportStreamsViewer viewer, ActionInformationSource infoSource) {
+        this.viewer = viewer;
+        this.infoSource = infoSource;
+
+        putValue(Action.NAME, "Audio frames");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent e) {
+        Object substream = infoSource.getActionParameter("substream");
+        if (!(substream instanceof TransportStreamsViewer.TransportSubstream))
+            return;
+        int pid = ((TransportStreamsViewer.TransportSubstream) substream).getPid();
+        AudioFrameIndex frames = viewer.getAudioFrames();
+
+        StringBuffer sb = new StringBuffer();
+        switch (frames.getCodec(pid)) {
+        case AudioFrameIndex.CODEC_MPEG_AUDIO:
+            sb.append("MPEG audio");
+            break;
+        case AudioFrameIndex.CODEC_AC3:
+            sb.append("AC-3");
+            break;
+        case AudioFrameIndex.CODEC_ADTS:
+            sb.append("AAC (ADTS)");
+            break;
+        }
+        int count = frames.getCount(pid);
+        sb.append("\nFrames: ").append(count);
+        if (count > 0) {
+            sb.append(" (").append(frames.getSampleRate(pid, 0)).append("Hz, ").append(frames.getSampleCount(pid, 0)).append(" samples)");
+            sb.append("\nAverage bitrate: ").append(frames.getBitrate(pid)).append(" bit/s");
+            sb.append("\nDiscontinuities: ").append(frames.getDiscontinuityCount(pid));
+        }
+
+        int index = frames.getIndex(pid, viewer.getCurrentPosition());
+        if ((index >= 0) && (frames.getPTS(pid, index) != AudioFrameIndex.NO_PTS)) {
+            long pts = frames.getPTS(pid, index);
+            sb.append("\n\nFrame here: ").append(index).append(", PTS ").append(pts);
+            long videoPts = getVideoPTS(pid);
+            if (videoPts != Long.MIN_VALUE)
+                sb.append("\nAudio - video PTS here: ").append((pts - videoPts) / (TimestampIndex.TIMESTAMP_FREQUENCY / 1000)).append("ms");
+        }
+
+        JOptionPane.showMessageDialog(viewer, sb.toString(), "Audio frames of PID 0x" + Integer.toHexString(pid), JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Find the PTS of the last video PES packet at or before the current
+     * position, from the first video stream in the audio's program.
+     *
+     * @param pid
+     *            The audio PID.
+     * @return The PTS, or Long.MIN_VALUE if there is none.
+     */
+    private long getVideoPTS(int pid) {
+        PsiCollector psi = viewer.getPsi();
+        TimestampIndex timestamps = viewer.getTimestamps();
+        ProgramAssociationTable pat = (psi == null) ? null : psi.getPAT();
+        if ((pat == null) || (timestamps == null))
+            return Long.MIN_VALUE;
+
+        for (int i = 0; i < pat.getProgramCount(); i++) {
+            ProgramMapTable pmt = psi.getPMT(pat.getProgramNumber(i));
+            if (pmt == null)
+                continue;
+
+            boolean found = false;
+            int videoPid = -1;
+            for (int j = 0; j < pmt.getStreamCount(); j++) {
+                found |= pmt.getStreamPid(j) == pid;
+                if ((videoPid == -1) && (viewer.getPictureIndex(pmt.getStreamPid(j)) != null))
+                    videoPid = pmt.getStreamPid(j);
+            }
+            if (found && (videoPid != -1))
+                return timestamps.getPTSAt(videoPid, viewer.getCurrentPosition());
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /* (non-Javadoc)
+     * @see net.lidskialf.datadog.ui.GroupableAction#update()
+     */
+    public void update() {
+        setEnabled(infoSource.isActionEnabled("ShowAudioFramesAction"));
+    }
+}
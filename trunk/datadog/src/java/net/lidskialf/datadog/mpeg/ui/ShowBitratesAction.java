@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.*;
+
+/**
+ * An Action allowing the user to toggle the bitrate overlay of a
+ * TransportStreamsViewer.
+ *
+ * @author Andrew de Quincey
+ */
+public class ShowBitratesAction extends AbstractAction {
+
+    private TransportStreamsViewer viewer;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     */
+    public ShowBitratesAction(TransportStreamsViewer viewer) {
+        this.viewer = viewer;
+
+        putValue(Action.NAME, "Bitrates");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        viewer.setShowBitrates(!viewer.getShowBitrates());
+    }
+}
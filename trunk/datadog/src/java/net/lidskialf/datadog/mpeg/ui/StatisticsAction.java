@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.mpeg.bitstream.*;
+
+/**
+ * An Action showing per PID packet statistics for the part of the stream a
+ * TransportStreamsViewer is showing. The first time, it builds the viewer's
+ * PacketHeaderTable in the background; after that the statistics are counted
+ * from the table.
+ *
+ * @author Andrew de Quincey
+ */
+public class StatisticsAction extends AbstractAction {
+
+    /**
+     * Number of packets read between progress updates.
+     */
+    private static final long PROGRESS_PACKETS = 0x10000;
+
+    private TransportStreamsViewer viewer;
+    private TransportStream stream;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer concerned.
+     * @param stream
+     *            The stream it is showing.
+     */
+    public StatisticsAction(TransportStreamsViewer viewer, TransportStream stream) {
+        this.viewer = viewer;
+        this.stream = stream;
+
+        putValue(Action.NAME, "Statistics");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        if (viewer.getHeaderTable() != null) {
+            showStatistics();
+            return;
+        }
+
+        final long total = viewer.getStreamLength() / Constants.TS_PACKET_LENGTH;
+        if (total > Integer.MAX_VALUE) {
+            JOptionPane.showMessageDialog(viewer, "The stream is too long.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        final ProgressMonitor progress = new ProgressMonitor(viewer, "Reading packet headers", null, 0, 1000);
+        Thread thread = new Thread("Statistics") {
+            public void run() {
+                String error = null;
+                PacketHeaderTable table = null;
+                try {
+                    table = new PacketHeaderTable((int) total);
+                    for (long done = 0; (done < total) && !progress.isCanceled(); done += PROGRESS_PACKETS) {
+                        stream.readPackets(done * Constants.TS_PACKET_LENGTH, PROGRESS_PACKETS, table);
+
+                        final int permille = (int) ((done * 1000) / total);
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                progress.setProgress(permille);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    error = e.getMessage();
+                }
+
+                final String message = error;
+                final PacketHeaderTable result = ((error == null) && !progress.isCanceled()) ? table : null;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        progress.close();
+                        if (message != null) {
+                            JOptionPane.showMessageDialog(viewer, message, "Error", JOptionPane.ERROR_MESSAGE);
+                        } else if (result != null) {
+                            viewer.setHeaderTable(result);
+                            showStatistics();
+                        }
+                    }
+                });
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Show the statistics of the packets in view.
+     */
+    private void showStatistics() {
+        PacketHeaderTable table = viewer.getHeaderTable();
+        Rectangle viewRect = viewer.getViewport().getViewRect();
+        int start = table.getPacketNumber(viewer.panelXPositionToAbsolutePosition(viewRect.x));
+        int end = table.getPacketNumber(viewer.panelXPositionToAbsolutePosition(viewRect.x + viewRect.width) + Constants.TS_PACKET_LENGTH - 1);
+
+        int[] packets = table.countPackets(0, start, end);
+        int[] unitStarts = table.countPackets(PacketHeaderTable.FLAG_PAYLOAD_UNIT_START, start, end);
+        int[] pcrs = table.countPackets(PacketHeaderTable.FLAG_PCR, start, end);
+        int[] randomAccess = table.countPackets(PacketHeaderTable.FLAG_RANDOM_ACCESS, start, end);
+        int[] discontinuities = table.countPackets(PacketHeaderTable.FLAG_DISCONTINUITY, start, end);
+        int[] errors = table.countPackets(PacketHeaderTable.FLAG_TRANSPORT_ERROR, start, end);
+        int[] scrambled = table.countScrambled(start, end);
+        long[] adaptationLengths = table.sumAdaptationLengths(start, end);
+
+        StringBuffer sb = new StringBuffer();
+        sb.append("Packets ").append(start).append(" - ").append(end).append(" of ").append(table.getPacketCount()).append("\n\n");
+        sb.append("PID         Packets      %   PUSI    PCR     RA   Disc  Scram    TEI  AF avg\n");
+        for (int pid = 0; pid < Constants.PID_COUNT; pid++) {
+            if ((packets[pid] == 0) || !viewer.acceptsPid(pid))
+                continue;
+
+            sb.append(pad("0x" + Integer.toHexString(pid), -6));
+            sb.append(pad(Integer.toString(packets[pid]), 12));
+            long permille = (packets[pid] * 1000L) / (end - start);
+            sb.append(pad((permille / 10) + "." + (permille % 10), 7));
+            sb.append(pad(Integer.toString(unitStarts[pid]), 7));
+            sb.append(pad(Integer.toString(pcrs[pid]), 7));
+            sb.append(pad(Integer.toString(randomAccess[pid]), 7));
+            sb.append(pad(Integer.toString(discontinuities[pid]), 7));
+            sb.append(pad(Integer.toString(scrambled[pid]), 7));
+            sb.append(pad(Integer.toString(errors[pid]), 7));
+            sb.append(pad(Long.toString(adaptationLengths[pid] / packets[pid]), 8));
+            sb.append('\n');
+        }
+        if (packets[PacketHeaderTable.NO_PID] != 0)
+            sb.append("\nPackets without a sync byte: ").append(packets[PacketHeaderTable.NO_PID]).append('\n');
+
+        JTextArea text = new JTextArea(sb.toString());
+        text.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        text.setEditable(false);
+        JScrollPane scroll = new JScrollPane(text);
+        scroll.setPreferredSize(new Dimension(640, 400));
+        JOptionPane.showMessageDialog(viewer, scroll, "Statistics", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Pad a string with spaces to a width.
+     *
+     * @param s
+     *            The string.
+     * @param width
+     *            The width: positive to pad on the left, negative on the
+     *            right.
+     * @return The padded string.
+     */
+    private static String pad(String s, int width) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = s.length(); i < Math.abs(width); i++)
+            sb.append(' ');
+        return (width < 0) ? s + sb : sb + s;
+    }
+}
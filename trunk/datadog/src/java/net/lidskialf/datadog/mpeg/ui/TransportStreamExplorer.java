@@ -23,10 +23,13 @@ import com.jgoodies.forms.builder.PanelBuilder;
 import com.jgoodies.forms.layout.CellConstraints;
 import com.jgoodies.forms.layout.FormLayout;
 
-import java.io.IOException;
+import java.beans.*;
+import java.io.*;
 
 import net.lidskialf.datadog.*;
+import net.lidskialf.datadog.mpeg.analysis.*;
 import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.psi.*;
 import net.lidskialf.datadog.ui.*;
 import net.lidskialf.datadog.ui.actions.*;
 
@@ -47,16 +50,63 @@ public class TransportStreamExplorer implements StreamExplorer {
      */
     public static final int MAJOR_TICK_SPACING = 0x100;
 
+    /**
+     * Maximum number of packets to read from the start of the stream looking
+     * for the PAT and PMTs.
+     */
+    public static final long PSI_SCAN_PACKETS = 0x40000;
+
+    /**
+     * stream_types indexed by the MPEG2VideoIndex.
+     */
+    private static final int[] VIDEO_STREAM_TYPES = { ProgramMapTable.STREAM_TYPE_MPEG1_VIDEO, ProgramMapTable.STREAM_TYPE_MPEG2_VIDEO };
+
+    /**
+     * stream_types indexed by the NALIndex as AVC.
+     */
+    private static final int[] AVC_STREAM_TYPES = { ProgramMapTable.STREAM_TYPE_AVC_VIDEO };
+
+    /**
+     * stream_types indexed by the NALIndex as HEVC.
+     */
+    private static final int[] HEVC_STREAM_TYPES = { ProgramMapTable.STREAM_TYPE_HEVC_VIDEO };
+
+    /**
+     * stream_types indexed by the AudioFrameIndex as MPEG audio.
+     */
+    private static final int[] MPEG_AUDIO_STREAM_TYPES = { ProgramMapTable.STREAM_TYPE_MPEG1_AUDIO, ProgramMapTable.STREAM_TYPE_MPEG2_AUDIO };
+
+    /**
+     * stream_types indexed by the AudioFrameIndex as AC-3.
+     */
+    private static final int[] AC3_STREAM_TYPES = { ProgramMapTable.STREAM_TYPE_AC3_AUDIO, ProgramMapTable.STREAM_TYPE_EAC3_AUDIO };
+
+    /**
+     * Tags of the descriptors marking private data streams as AC-3.
+     */
+    private static final int[] AC3_DESCRIPTOR_TAGS = { ProgramMapTable.AC3_DESCRIPTOR, ProgramMapTable.ENHANCED_AC3_DESCRIPTOR };
+
+    /**
+     * stream_types indexed by the AudioFrameIndex as ADTS.
+     */
+    private static final int[] ADTS_STREAM_TYPES = { ProgramMapTable.STREAM_TYPE_ADTS_AUDIO };
+
 
     private Bitstream bitstream;
+    private File sourceFile;
     private TransportStream transportStream;
+    private PacketIndex packetIndex;
+    private PCRTimeline timeline;
+    private PsiCollector psi;
+    private int analysisGeneration = 0;
+    private TransportStreamScanner analysisScanner;
     private StreamBookmarks bookmarks;
     private Substreams substreams;
 
     private JToolBar toolbar;
     private TransportStreamsViewer viewer;
-    private StreamsViewerColumnHeader columnHeader;
-    private StreamsViewerRowHeader rowHeader;
+    private TransportStreamsViewerColumnHeader columnHeader;
+    private TransportStreamsViewerRowHeader rowHeader;
     private JComponent ui;
 
 
@@ -68,7 +118,22 @@ public class TransportStreamExplorer implements StreamExplorer {
      * @throws IOException if there was a problem parsing <code>bitstream</code>
      */
     public TransportStreamExplorer(Bitstream bitstream) throws IOException {
+        this(bitstream, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bitstream
+     *            The Bitstream to view.
+     * @param sourceFile
+     *            The file the Bitstream was opened from, or null if it did
+     *            not come from a file (no packet index is kept in that case).
+     * @throws IOException if there was a problem parsing <code>bitstream</code>
+     */
+    public TransportStreamExplorer(Bitstream bitstream, File sourceFile) throws IOException {
         this.bitstream = bitstream;
+        this.sourceFile = sourceFile;
         transportStream = new TransportStream(bitstream);
     }
 
@@ -115,6 +180,17 @@ public class TransportStreamExplorer implements StreamExplorer {
      * @see net.lidskialf.datadog.StreamExplorer#close()
      */
     public void close() {
+        synchronized (this) {
+            if (packetIndex != null)
+                packetIndex.close();
+            packetIndex = null;
+            sourceFile = null;
+
+            if (analysisScanner != null)
+                analysisScanner.cancel();
+            analysisScanner = null;
+        }
+
         try {
             bitstream.close();
         } catch (IOException e) {
@@ -142,10 +218,10 @@ public class TransportStreamExplorer implements StreamExplorer {
         viewer = new TransportStreamsViewer(transportStream, bookmarks, substreams);
         viewer.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
 
-        columnHeader = new StreamsViewerColumnHeader(viewer, MINOR_TICK_SPACING, MAJOR_TICK_SPACING);
+        columnHeader = new TransportStreamsViewerColumnHeader(viewer, MINOR_TICK_SPACING, MAJOR_TICK_SPACING);
         viewer.setColumnHeaderView(columnHeader);
 
-        rowHeader = new StreamsViewerRowHeader(viewer);
+        rowHeader = new TransportStreamsViewerRowHeader(viewer);
         viewer.setRowHeaderView(rowHeader);
 
         toolbar = new JToolBar();
@@ -154,5 +230,228 @@ public class TransportStreamExplorer implements StreamExplorer {
 
         toolbar.add(new ZoomInAction(viewer));
         toolbar.add(new ZoomOutAction(viewer));
+        toolbar.add(new GoToTimeAction(viewer));
+        toolbar.add(new ShowBitratesAction(viewer));
+        toolbar.add(new JumpToErrorAction(viewer, false));
+        toolbar.add(new JumpToErrorAction(viewer, true));
+        toolbar.add(new SelectProgramsAction(viewer));
+        toolbar.add(new FilterPacketsAction(viewer));
+        toolbar.add(new FindPacketsAction(viewer, transportStream));
+        toolbar.add(new FindBytesAction(viewer, bitstream));
+        toolbar.add(new ExportPidsAction(viewer, transportStream));
+        toolbar.add(new RemuxAction(viewer, transportStream));
+        toolbar.add(new CompareAction(viewer, transportStream));
+        toolbar.add(new StatisticsAction(viewer, transportStream));
+
+        // rescan when the programs being looked at change
+        viewer.addPropertyChangeListener(TransportStreamsViewer.PID_FILTER_PROPERTY, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                startAnalysis((PidFilter) evt.getNewValue());
+            }
+        });
+
+        openPacketIndex();
+    }
+
+    /**
+     * Open (building it if necessary) the packet index in the background, and
+     * hand it to the viewer once it is ready so every PID gets a row up front.
+     * The PCR timeline is then built from the PCR packets the index lists,
+     * the PSI tables are read from the start of the stream, and finally the
+     * bitrates, continuity errors and elementary stream timestamps are found
+     * in one more pass.
+     */
+    private void openPacketIndex() {
+        if (sourceFile == null)
+            return;
+
+        Thread thread = new Thread("Packet index: " + sourceFile.getName()) {
+            public void run() {
+                final PacketIndex index;
+                try {
+                    index = PacketIndex.open(transportStream, sourceFile);
+                } catch (IOException e) {
+                    // the index is an optimisation; the viewer still discovers PIDs as it paints
+                    e.printStackTrace();
+                    return;
+                }
+
+                synchronized (TransportStreamExplorer.this) {
+                    if (sourceFile == null) {
+                        // closed while we were building it
+                        index.close();
+                        return;
+                    }
+                    packetIndex = index;
+                }
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        viewer.setPacketIndex(index);
+                    }
+                });
+
+                final PCRTimeline newTimeline;
+                final PsiCollector psi;
+                try {
+                    newTimeline = PCRTimeline.build(transportStream, index);
+                    psi = PsiCollector.collect(transportStream, PSI_SCAN_PACKETS);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                final int generation;
+                synchronized (TransportStreamExplorer.this) {
+                    timeline = newTimeline;
+                    TransportStreamExplorer.this.psi = psi;
+                    generation = ++analysisGeneration;
+                }
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        viewer.setTimeline(newTimeline);
+                        viewer.setPsi(psi);
+                    }
+                });
+
+                analyse(generation, null);
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Redo the bitrate and continuity analysis in the background, restricted
+     * to some PIDs. Any analysis already running is superseded.
+     *
+     * @param filter
+     *            The PIDs to analyse, or null for all of them.
+     */
+    private void startAnalysis(final PidFilter filter) {
+        final int generation;
+        synchronized (this) {
+            if (timeline == null) {
+                // programs cannot be selected before the initial analysis
+                // starts, so there is nothing to redo yet
+                return;
+            }
+            generation = ++analysisGeneration;
+
+            // stop the superseded scan rather than leave it reading the whole stream
+            if (analysisScanner != null)
+                analysisScanner.cancel();
+            analysisScanner = null;
+        }
+
+        Thread thread = new Thread("Stream analysis: " + transportStream) {
+            public void run() {
+                analyse(generation, filter);
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Find the bitrates (against a PCR PID within the filter), continuity
+     * errors, PTS/DTS of the elementary streams and video picture structure,
+     * and hand them to the viewer unless a newer analysis has been started in the meantime.
+     *
+     * @param generation
+     *            Value of analysisGeneration when this analysis was started.
+     * @param filter
+     *            The PIDs to analyse, or null for all of them.
+     */
+    private void analyse(final int generation, PidFilter filter) {
+        int pcrPid = timeline.getReferencePid();
+        if ((filter != null) && (pcrPid != -1) && !filter.accepts(pcrPid)) {
+            pcrPid = -1;
+            int[] pids = timeline.getPids();
+            for (int i = 0; i < pids.length; i++) {
+                if (filter.accepts(pids[i])) {
+                    pcrPid = pids[i];
+                    break;
+                }
+            }
+        }
+
+        // only index the elementary streams within the filter
+        int[] streamPids = filterPids(psi.getStreamPids(), filter);
+        int[] videoPids = filterPids(psi.getStreamPids(VIDEO_STREAM_TYPES), filter);
+        int[] avcPids = filterPids(psi.getStreamPids(AVC_STREAM_TYPES), filter);
+        int[] hevcPids = filterPids(psi.getStreamPids(HEVC_STREAM_TYPES), filter);
+        int[] mpegAudioPids = filterPids(psi.getStreamPids(MPEG_AUDIO_STREAM_TYPES), filter);
+        int[] ac3Pids = filterPids(psi.getStreamPids(AC3_STREAM_TYPES, AC3_DESCRIPTOR_TAGS), filter);
+        int[] adtsPids = filterPids(psi.getStreamPids(ADTS_STREAM_TYPES), filter);
+
+        ContinuityAnalyser continuity = new ContinuityAnalyser();
+        TimestampIndex timestamps = new TimestampIndex(transportStream.getBitstream(), streamPids);
+        MPEG2VideoIndex video = new MPEG2VideoIndex(videoPids);
+        NALIndex nals = new NALIndex(avcPids, hevcPids);
+        AudioFrameIndex audio = new AudioFrameIndex(mpegAudioPids, ac3Pids, adtsPids);
+        ChunkAnalyser[] analysers;
+        if (pcrPid != -1) {
+            analysers = new ChunkAnalyser[] { continuity, timestamps, video, nals, audio, new BitrateAnalyser(pcrPid) };
+        } else {
+            analysers = new ChunkAnalyser[] { continuity, timestamps, video, nals, audio };
+        }
+
+        TransportStreamScanner scanner = new TransportStreamScanner(transportStream);
+        scanner.setPidFilter(filter);
+        synchronized (this) {
+            if (generation != analysisGeneration)
+                return;
+            analysisScanner = scanner;
+        }
+
+        final CompositeAnalyser results;
+        try {
+            results = (CompositeAnalyser) scanner.scan(new CompositeAnalyser(analysers));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (scanner.isCancelled())
+            return;
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                synchronized (TransportStreamExplorer.this) {
+                    if (generation != analysisGeneration)
+                        return;
+                }
+
+                viewer.setContinuityErrors((ContinuityAnalyser) results.getAnalyser(0));
+                viewer.setTimestamps((TimestampIndex) results.getAnalyser(1));
+                viewer.setPictureIndexes(new PictureIndex[] { (MPEG2VideoIndex) results.getAnalyser(2), (NALIndex) results.getAnalyser(3) });
+                viewer.setAudioFrames((AudioFrameIndex) results.getAnalyser(4));
+                viewer.setBitrates((results.getAnalyserCount() > 5) ? (BitrateAnalyser) results.getAnalyser(5) : null);
+            }
+        });
+    }
+
+    /**
+     * Keep the PIDs a filter accepts.
+     *
+     * @param pids
+     *            The PIDs.
+     * @param filter
+     *            The filter, or null to keep them all.
+     * @return The PIDs kept.
+     */
+    private static int[] filterPids(int[] pids, PidFilter filter) {
+        if (filter == null)
+            return pids;
+
+        PidFilter tmp = new PidFilter();
+        for (int i = 0; i < pids.length; i++) {
+            if (filter.accepts(pids[i]))
+                tmp.add(pids[i]);
+        }
+        return tmp.getPids();
     }
 }
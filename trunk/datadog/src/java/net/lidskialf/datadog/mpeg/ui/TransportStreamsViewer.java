@@ -19,7 +19,9 @@ package net.lidskialf.datadog.mpeg.ui;
 
 import net.lidskialf.datadog.*;
 import net.lidskialf.datadog.ui.*;
+import net.lidskialf.datadog.mpeg.analysis.*;
 import net.lidskialf.datadog.mpeg.bitstream.*;
+import net.lidskialf.datadog.mpeg.psi.*;
 
 import java.util.*;
 import java.awt.*;
@@ -48,6 +50,26 @@ public class TransportStreamsViewer extends StreamsViewer {
      */
     public static final int UNIT_SCROLL_INCREMENT = 16;
 
+    /**
+     * Name of the bound property fired when the PID filter changes.
+     */
+    public static final String PID_FILTER_PROPERTY = "pidFilter";
+
+    /**
+     * Colour of the packets of I pictures.
+     */
+    public static final Color I_PICTURE_COLOUR = Color.orange;
+
+    /**
+     * Colour of the packets of P pictures.
+     */
+    public static final Color P_PICTURE_COLOUR = Color.cyan;
+
+    /**
+     * Colour of the packets of B pictures.
+     */
+    public static final Color B_PICTURE_COLOUR = new Color(0x80, 0xe0, 0x80);
+
 
 
     /**
@@ -60,7 +82,80 @@ public class TransportStreamsViewer extends StreamsViewer {
      */
     private Map pidToSubstream = Collections.synchronizedMap(new HashMap());
 
+    /**
+     * Index of the packets on each PID, or null if not available (yet).
+     */
+    private PacketIndex packetIndex;
+
+    /**
+     * PCR timeline of the stream, or null if not available (yet).
+     */
+    private PCRTimeline timeline;
+
+    /**
+     * The PCR PID used as the time reference.
+     */
+    private int timelinePid = -1;
+
+    /**
+     * Bitrates of the stream, or null if not available (yet).
+     */
+    private BitrateAnalyser bitrates;
+
+    /**
+     * Highest bitrate of each PID, used to scale the overlay.
+     */
+    private long[] maxBitrates;
+
+    /**
+     * Should the bitrate overlay be drawn?
+     */
+    private boolean showBitrates = true;
+
+    /**
+     * Continuity errors of the stream, or null if not available (yet).
+     */
+    private ContinuityAnalyser continuityErrors;
+
+    /**
+     * PTS/DTS of the elementary streams, or null if not available (yet).
+     */
+    private TimestampIndex timestamps;
+
+    /**
+     * The indexes of the video pictures.
+     */
+    private PictureIndex[] pictureIndexes = new PictureIndex[0];
+
+    /**
+     * Index of the audio frames, or null if not available (yet).
+     */
+    private AudioFrameIndex audioFrames;
+
+    /**
+     * Header fields of every packet, or null if not built (yet).
+     */
+    private PacketHeaderTable headerTable;
+
+    /**
+     * PSI tables of the stream, or null if not available (yet).
+     */
+    private PsiCollector psi;
+
+    /**
+     * program_numbers of the programs being shown (empty for all of them).
+     */
+    private int[] selectedPrograms = new int[0];
 
+    /**
+     * The PIDs being shown, or null for all of them.
+     */
+    private PidFilter pidFilter;
+
+    /**
+     * The packets being shown, or null for all of them.
+     */
+    private PacketFilter packetFilter;
 
     /**
      * Constructor.
@@ -84,12 +179,12 @@ public class TransportStreamsViewer extends StreamsViewer {
      * @see net.lidskialf.datadog.ui.StreamWidget#paintStreamsPanel(java.awt.Graphics,
      *      int, int, long, long)
      */
-    protected void paintStreamsPanel(Graphics g) {
+    protected void paintStreamsPanel(final Graphics g) {
 
         // calculate which area of the stream we need to redraw
         Rectangle clip = g.getClipBounds();
-        int minStreamIdx = panelYPositionToStreamIndex(clip.y);
-        int maxStreamIdx = panelYPositionToStreamIndex(clip.y + clip.height);
+        final int minStreamIdx = panelYPositionToStreamIndex(clip.y);
+        final int maxStreamIdx = panelYPositionToStreamIndex(clip.y + clip.height);
 
         try {
             long minStreamDrawPosition = panelXPositionToAbsolutePosition(clip.x);
@@ -98,28 +193,42 @@ public class TransportStreamsViewer extends StreamsViewer {
             maxStreamDrawPosition = stream.round(maxStreamDrawPosition, TransportStream.ROUND_UP);
 
             // render each packet
-            for (long curPos = minStreamDrawPosition; curPos <= maxStreamDrawPosition; curPos += Constants.TS_PACKET_LENGTH) {
-                // get the packet
-                TransportPacket packet = stream.getPacketAt(curPos);
-                if (packet == null)
-                    continue;
-
-                // find/create a row for the PID
-                TransportSubstream substream = getSubstreamForPid(packet.pid());
-                int index = substreams.indexOf(substream);
-
-                // draw it if it is within the bounds
-                if ((index >= minStreamIdx) && (index <= maxStreamIdx)) {
-                    int x = absolutePositionToPanelXPosition(curPos);
-                    int x2 = absolutePositionToPanelXPosition(curPos + Constants.TS_PACKET_LENGTH);
-                    int y = streamIndexToPanelYPosition(index);
-                    g.setColor(substream.getColour());
-                    g.fillRect(x+1, y+1, x2 - x - 1, panelRowHeight-1);
-                    g.setColor(Color.black);
-                    g.drawRect(x, y, x2 - x, panelRowHeight);
+            long packetCount = ((maxStreamDrawPosition - minStreamDrawPosition) / Constants.TS_PACKET_LENGTH) + 1;
+            if (packetFilter != null)
+                packetFilter.reset();
+            stream.readPackets(minStreamDrawPosition, packetCount, pidFilter, packetFilter, new PacketSink() {
+                public boolean packet(TransportPacket packet) {
+                    // find/create a row for the PID
+                    TransportSubstream substream = getSubstreamForPid(packet.pid());
+                    int index = substreams.indexOf(substream);
+
+                    // draw it if it is within the bounds
+                    if ((index >= minStreamIdx) && (index <= maxStreamIdx)) {
+                        long curPos = packet.getStreamPosition();
+                        int x = absolutePositionToPanelXPosition(curPos);
+                        int x2 = absolutePositionToPanelXPosition(curPos + Constants.TS_PACKET_LENGTH);
+                        int y = streamIndexToPanelYPosition(index);
+                        g.setColor(getPacketColour(substream, curPos));
+                        g.fillRect(x+1, y+1, x2 - x - 1, panelRowHeight-1);
+                        g.setColor(Color.black);
+                        g.drawRect(x, y, x2 - x, panelRowHeight);
+                    }
+                    return true;
+                }
+            });
+
+            // overlay the bitrates
+            if (showBitrates && (bitrates != null)) {
+                for (int index = minStreamIdx; (index <= maxStreamIdx) && (index < substreamsCount()); index++) {
+                    if (index >= 0)
+                        paintBitrate(g, index, minStreamDrawPosition, maxStreamDrawPosition);
                 }
             }
 
+            // mark the continuity errors
+            if (continuityErrors != null)
+                paintContinuityErrors(g, minStreamIdx, maxStreamIdx, minStreamDrawPosition, maxStreamDrawPosition);
+
             // draw the generic bits of the streams panel
             super.paintStreamsPanel(g, minStreamDrawPosition, maxStreamDrawPosition);
         } catch (IOException e) {
@@ -128,6 +237,501 @@ public class TransportStreamsViewer extends StreamsViewer {
         }
     }
 
+    /**
+     * Supply the packet index for the stream, creating a row for every PID in
+     * it straight away rather than as each PID is first painted.
+     *
+     * @param packetIndex
+     *            The index.
+     */
+    public void setPacketIndex(PacketIndex packetIndex) {
+        this.packetIndex = packetIndex;
+
+        int[] pids = packetIndex.getPids();
+        for (int i = 0; i < pids.length; i++) {
+            if (acceptsPid(pids[i]))
+                getSubstreamForPid(pids[i]);
+        }
+    }
+
+    /**
+     * Get the packet index for the stream.
+     *
+     * @return The index, or null if not available (yet).
+     */
+    public PacketIndex getPacketIndex() {
+        return packetIndex;
+    }
+
+    /**
+     * Supply the PSI tables for the stream, so programs can be selected.
+     *
+     * @param psi
+     *            The tables.
+     */
+    public void setPsi(PsiCollector psi) {
+        this.psi = psi;
+    }
+
+    /**
+     * Get the PSI tables for the stream.
+     *
+     * @return The tables, or null if not available (yet).
+     */
+    public PsiCollector getPsi() {
+        return psi;
+    }
+
+    /**
+     * Show only the PIDs of some programs.
+     *
+     * @param programNumbers
+     *            The program_numbers, or an empty array to show every PID.
+     */
+    public void setSelectedPrograms(int[] programNumbers) {
+        if ((programNumbers.length == 0) || (psi == null)) {
+            selectedPrograms = new int[0];
+            setPidFilter(null);
+        } else {
+            selectedPrograms = (int[]) programNumbers.clone();
+            setPidFilter(psi.getProgramFilter(programNumbers));
+        }
+    }
+
+    /**
+     * Get the programs being shown.
+     *
+     * @return The program_numbers (empty if every PID is being shown).
+     */
+    public int[] getSelectedPrograms() {
+        return (int[]) selectedPrograms.clone();
+    }
+
+    /**
+     * Show only some PIDs. Rows for other PIDs are removed, and their packets
+     * are skipped before being decoded when painting. Fires a
+     * PID_FILTER_PROPERTY change so scans can be restricted to match.
+     *
+     * @param filter
+     *            The PIDs to show, or null for all of them.
+     */
+    public void setPidFilter(PidFilter filter) {
+        PidFilter oldFilter = pidFilter;
+        pidFilter = (filter != null) ? new PidFilter(filter) : null;
+
+        // drop the rows of PIDs no longer wanted
+        for (int i = substreamsCount() - 1; i >= 0; i--) {
+            int pid = ((TransportSubstream) getSubstream(i)).getPid();
+            if (!acceptsPid(pid)) {
+                pidToSubstream.remove(new Integer(pid));
+                removeSubstream(i);
+            }
+        }
+
+        // and add rows for the ones now wanted
+        if (packetIndex != null) {
+            int[] pids = packetIndex.getPids();
+            for (int i = 0; i < pids.length; i++) {
+                if (acceptsPid(pids[i]))
+                    getSubstreamForPid(pids[i]);
+            }
+        }
+
+        repaint();
+        firePropertyChange(PID_FILTER_PROPERTY, oldFilter, pidFilter);
+    }
+
+    /**
+     * Get the PIDs being shown.
+     *
+     * @return The filter, or null if every PID is being shown.
+     */
+    public PidFilter getPidFilter() {
+        return pidFilter;
+    }
+
+    /**
+     * Show only the packets a PacketFilter accepts. Rows are not removed,
+     * the other packets are just not painted. As only the visible part of
+     * the stream is read when painting, cc_ok is only checked from the first
+     * packet of each PID on screen.
+     *
+     * @param filter
+     *            The filter, or null to show every packet.
+     */
+    public void setPacketFilter(PacketFilter filter) {
+        packetFilter = (filter != null) ? filter.copy() : null;
+        repaint();
+    }
+
+    /**
+     * Get the filter choosing the packets being shown.
+     *
+     * @return The filter (shared with the viewer, so copy() it before reading
+     *         packets with it), or null if every packet is being shown.
+     */
+    public PacketFilter getPacketFilter() {
+        return packetFilter;
+    }
+
+    /**
+     * Is a PID being shown?
+     *
+     * @param pid
+     *            The PID.
+     * @return True if it is.
+     */
+    public boolean acceptsPid(int pid) {
+        return (pidFilter == null) || pidFilter.accepts(pid);
+    }
+
+    /**
+     * Supply the PCR timeline for the stream so positions can be shown as
+     * times.
+     *
+     * @param timeline
+     *            The timeline.
+     */
+    public void setTimeline(PCRTimeline timeline) {
+        this.timeline = timeline;
+        this.timelinePid = timeline.getReferencePid();
+        if (timelinePid == -1)
+            this.timeline = null;
+
+        if (getColumnHeader() != null)
+            getColumnHeader().repaint();
+    }
+
+    /**
+     * Get the PCR timeline for the stream.
+     *
+     * @return The timeline, or null if not available (yet) or the stream has
+     *         no PCRs.
+     */
+    public PCRTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Convert a position to stream time using the reference PCR PID.
+     *
+     * @param position
+     *            The position.
+     * @return The time in 27MHz ticks, or Long.MIN_VALUE if there is no
+     *         timeline.
+     */
+    public long positionToTime(long position) {
+        if (timeline == null)
+            return Long.MIN_VALUE;
+        return timeline.positionToTime(timelinePid, position);
+    }
+
+    /**
+     * Move to the packet playing at a given stream time.
+     *
+     * @param time
+     *            The time in 27MHz ticks since the start of the stream.
+     * @return True if the time lies within the stream, false if not (or there
+     *         is no timeline).
+     */
+    public boolean jumpToTime(long time) {
+        if (timeline == null)
+            return false;
+
+        long target = timeline.timeToPosition(timelinePid, time);
+        if ((target < 0) || (target >= getStreamLength()))
+            return false;
+
+        showPosition((target / Constants.TS_PACKET_LENGTH) * Constants.TS_PACKET_LENGTH);
+        return true;
+    }
+
+    /**
+     * Supply the bitrates of the stream for the overlay.
+     *
+     * @param bitrates
+     *            The bitrates, or null for none.
+     */
+    public void setBitrates(BitrateAnalyser bitrates) {
+        long[] max = new long[Constants.PID_COUNT];
+        if (bitrates != null) {
+            int[] pids = bitrates.getPids();
+            for (int i = 0; i < pids.length; i++) {
+                max[pids[i]] = bitrates.getMaxBitrate(pids[i], 0, Long.MAX_VALUE, 0);
+            }
+        }
+
+        this.maxBitrates = max;
+        this.bitrates = bitrates;
+        panel.repaint();
+    }
+
+    /**
+     * Get the bitrates of the stream.
+     *
+     * @return The bitrates, or null if not available (yet).
+     */
+    public BitrateAnalyser getBitrates() {
+        return bitrates;
+    }
+
+    /**
+     * Choose whether the bitrate overlay is drawn.
+     *
+     * @param showBitrates
+     *            True to draw it.
+     */
+    public void setShowBitrates(boolean showBitrates) {
+        this.showBitrates = showBitrates;
+        panel.repaint();
+    }
+
+    /**
+     * Is the bitrate overlay drawn?
+     *
+     * @return True if it is.
+     */
+    public boolean getShowBitrates() {
+        return showBitrates;
+    }
+
+    /**
+     * Supply the continuity errors of the stream so they can be marked.
+     *
+     * @param continuityErrors
+     *            The errors.
+     */
+    public void setContinuityErrors(ContinuityAnalyser continuityErrors) {
+        this.continuityErrors = continuityErrors;
+        panel.repaint();
+    }
+
+    /**
+     * Get the continuity errors of the stream.
+     *
+     * @return The errors, or null if not available (yet).
+     */
+    public ContinuityAnalyser getContinuityErrors() {
+        return continuityErrors;
+    }
+
+    /**
+     * Move to the next or previous continuity error from the current
+     * position.
+     *
+     * @param forwards
+     *            True to move to the next error, false for the previous one.
+     * @return True if an error was found, false if there is none (or the
+     *         errors are not available yet).
+     */
+    public boolean jumpToContinuityError(boolean forwards) {
+        if (continuityErrors == null)
+            return false;
+
+        // skip errors on PIDs which are not being shown
+        long from = getCurrentPosition();
+        int count = continuityErrors.getErrorCount();
+        int i = continuityErrors.getErrorIndex(from);
+        if (forwards) {
+            for (i++; i < count; i++) {
+                if ((continuityErrors.getErrorPosition(i) > from) && acceptsPid(continuityErrors.getErrorPid(i)))
+                    break;
+            }
+            if (i >= count)
+                return false;
+        } else {
+            for (; i >= 0; i--) {
+                if ((continuityErrors.getErrorPosition(i) < from) && acceptsPid(continuityErrors.getErrorPid(i)))
+                    break;
+            }
+            if (i < 0)
+                return false;
+        }
+
+        showPosition(continuityErrors.getErrorPosition(i));
+        return true;
+    }
+
+    /**
+     * Supply the PTS/DTS index of the elementary streams.
+     *
+     * @param timestamps
+     *            The index, or null for none.
+     */
+    public void setTimestamps(TimestampIndex timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Get the PTS/DTS index of the elementary streams.
+     *
+     * @return The index, or null if not available (yet).
+     */
+    public TimestampIndex getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Move to the PES packet on a PID presenting at or just before a given
+     * PTS.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param pts
+     *            The PTS in 90kHz ticks; a value below 2^33 is unwrapped to
+     *            the nearest PTS to the current position.
+     * @return True if a PES packet was found, false if there is none (or no
+     *         index yet).
+     */
+    public boolean jumpToPTS(int pid, long pts) {
+        if ((timestamps == null) || (timestamps.getCount(pid) == 0))
+            return false;
+
+        if (pts < TimestampIndex.TIMESTAMP_MODULUS) {
+            long current = timestamps.getPTSAt(pid, getCurrentPosition());
+            if (current == Long.MIN_VALUE)
+                current = timestamps.getPTS(pid, 0);
+            pts = TimestampIndex.unwrap(current, pts);
+        }
+
+        int index = timestamps.getIndexForPTS(pid, pts);
+        if (index < 0)
+            return false;
+
+        showPosition(timestamps.getPosition(pid, index));
+        return true;
+    }
+
+    /**
+     * Supply the indexes of the video pictures; the packets of the pictures
+     * they cover are coloured by picture type.
+     *
+     * @param pictureIndexes
+     *            The indexes (may be empty).
+     */
+    public void setPictureIndexes(PictureIndex[] pictureIndexes) {
+        this.pictureIndexes = (PictureIndex[]) pictureIndexes.clone();
+        panel.repaint();
+    }
+
+    /**
+     * Get the indexes of the video pictures.
+     *
+     * @return The indexes (empty if not available yet).
+     */
+    public PictureIndex[] getPictureIndexes() {
+        return (PictureIndex[]) pictureIndexes.clone();
+    }
+
+    /**
+     * Find the index of the pictures on a PID.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @return The index, or null if there is none.
+     */
+    public PictureIndex getPictureIndex(int pid) {
+        PictureIndex[] indexes = pictureIndexes;
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i].hasPictures(pid))
+                return indexes[i];
+        }
+        return null;
+    }
+
+    /**
+     * Supply the index of the audio frames.
+     *
+     * @param audioFrames
+     *            The index, or null for none.
+     */
+    public void setAudioFrames(AudioFrameIndex audioFrames) {
+        this.audioFrames = audioFrames;
+    }
+
+    /**
+     * Get the index of the audio frames.
+     *
+     * @return The index, or null if not available (yet).
+     */
+    public AudioFrameIndex getAudioFrames() {
+        return audioFrames;
+    }
+
+    /**
+     * Supply the table of packet header fields.
+     *
+     * @param headerTable
+     *            The table, or null for none.
+     */
+    public void setHeaderTable(PacketHeaderTable headerTable) {
+        this.headerTable = headerTable;
+    }
+
+    /**
+     * Get the table of packet header fields.
+     *
+     * @return The table, or null if not built (yet).
+     */
+    public PacketHeaderTable getHeaderTable() {
+        return headerTable;
+    }
+
+    /**
+     * Move to the next or previous keyframe on a PID from the current
+     * position.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param forwards
+     *            True to move to the next keyframe, false for the previous
+     *            one.
+     * @return True if one was found, false if there is none (or no index
+     *         yet).
+     */
+    public boolean jumpToKeyframe(int pid, boolean forwards) {
+        PictureIndex index = getPictureIndex(pid);
+        if (index == null)
+            return false;
+
+        long target = index.findKeyframe(pid, getCurrentPosition(), forwards);
+        if (target < 0)
+            return false;
+
+        showPosition(target);
+        return true;
+    }
+
+    /**
+     * Move to the next or previous packet on a PID from the current position.
+     *
+     * @param pid
+     *            The PID concerned.
+     * @param forwards
+     *            True to move to the next packet, false for the previous one.
+     * @param pcrOnly
+     *            If true, only PCR bearing packets are considered.
+     * @return True if a packet was found, false if there is none (or no packet
+     *         index yet).
+     */
+    public boolean jumpToPacket(int pid, boolean forwards, boolean pcrOnly) {
+        if (packetIndex == null)
+            return false;
+
+        long from = getCurrentPosition();
+        long target;
+        if (forwards) {
+            target = packetIndex.nextPacketPosition(pid, from, pcrOnly);
+        } else {
+            target = packetIndex.previousPacketPosition(pid, from, pcrOnly);
+        }
+        if (target < 0)
+            return false;
+
+        showPosition(target);
+        return true;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -148,6 +752,114 @@ public class TransportStreamsViewer extends StreamsViewer {
         return UNIT_SCROLL_INCREMENT;
     }
 
+    /**
+     * Choose the colour to fill a packet with.
+     *
+     * @param substream
+     *            The row the packet is in.
+     * @param position
+     *            Position of the packet.
+     * @return The colour.
+     */
+    private Color getPacketColour(TransportSubstream substream, long position) {
+        PictureIndex index = getPictureIndex(substream.getPid());
+        if (index != null) {
+            switch (index.getPictureTypeAt(substream.getPid(), position)) {
+            case PictureIndex.PICTURE_TYPE_I:
+                return I_PICTURE_COLOUR;
+            case PictureIndex.PICTURE_TYPE_P:
+                return P_PICTURE_COLOUR;
+            case PictureIndex.PICTURE_TYPE_B:
+                return B_PICTURE_COLOUR;
+            }
+        }
+        return substream.getColour();
+    }
+
+    /**
+     * Draw the bitrate of a row's PID between each pair of samples, scaled so
+     * its peak fills the row.
+     *
+     * @param g
+     *            The Graphics to draw with.
+     * @param index
+     *            Index of the row.
+     * @param minStreamDrawPosition
+     *            First position being drawn.
+     * @param maxStreamDrawPosition
+     *            Last position being drawn.
+     */
+    private void paintBitrate(Graphics g, int index, long minStreamDrawPosition, long maxStreamDrawPosition) {
+        Substream substream = getSubstream(index);
+        if (!(substream instanceof TransportSubstream))
+            return;
+        int pid = ((TransportSubstream) substream).getPid();
+        long max = maxBitrates[pid];
+        if (max <= 0)
+            return;
+
+        int sampleCount = bitrates.getSampleCount();
+        int first = Math.max(bitrates.getSampleIndex(minStreamDrawPosition), 0) + 1;
+        int last = Math.min(bitrates.getSampleIndex(maxStreamDrawPosition) + 1, sampleCount - 1);
+
+        int bottom = streamIndexToPanelYPosition(index) + panelRowHeight - 1;
+        int prevY = -1;
+        g.setColor(Color.blue);
+        for (int i = first; i <= last; i++) {
+            long bitrate = bitrates.getBitrate(pid, i - 1, i);
+            if (bitrate < 0)
+                continue;
+
+            int x1 = absolutePositionToPanelXPosition(bitrates.getSamplePosition(i - 1));
+            int x2 = absolutePositionToPanelXPosition(bitrates.getSamplePosition(i));
+            int y = bottom - (int) ((bitrate * (panelRowHeight - 2)) / max);
+            if (prevY != -1)
+                g.drawLine(x1, prevY, x1, y);
+            g.drawLine(x1, y, x2, y);
+            prevY = y;
+        }
+    }
+
+    /**
+     * Outline the packets with continuity errors in red.
+     *
+     * @param g
+     *            The Graphics to draw with.
+     * @param minStreamIdx
+     *            First row being drawn.
+     * @param maxStreamIdx
+     *            Last row being drawn.
+     * @param minStreamDrawPosition
+     *            First position being drawn.
+     * @param maxStreamDrawPosition
+     *            Last position being drawn.
+     */
+    private void paintContinuityErrors(Graphics g, int minStreamIdx, int maxStreamIdx, long minStreamDrawPosition, long maxStreamDrawPosition) {
+        g.setColor(Color.red);
+
+        int count = continuityErrors.getErrorCount();
+        for (int i = Math.max(continuityErrors.getErrorIndex(minStreamDrawPosition - 1) + 1, 0); i < count; i++) {
+            long position = continuityErrors.getErrorPosition(i);
+            if (position > maxStreamDrawPosition)
+                break;
+
+            int pid = continuityErrors.getErrorPid(i);
+            if (!acceptsPid(pid))
+                continue;
+
+            int index = substreams.indexOf(getSubstreamForPid(pid));
+            if ((index < minStreamIdx) || (index > maxStreamIdx))
+                continue;
+
+            // at least 3 pixels wide so they stay visible when zoomed out
+            int x = absolutePositionToPanelXPosition(position);
+            int x2 = Math.max(absolutePositionToPanelXPosition(position + Constants.TS_PACKET_LENGTH), x + 2);
+            int y = streamIndexToPanelYPosition(index);
+            g.drawRect(x, y, x2 - x, panelRowHeight);
+            g.drawRect(x + 1, y + 1, x2 - x - 2, panelRowHeight - 2);
+        }
+    }
+
     /**
      * Find/allocate a substream for the specified PID.
      *
@@ -190,6 +902,7 @@ public class TransportStreamsViewer extends StreamsViewer {
          */
         public TransportSubstream(int pid) {
             super("", Color.green, "", false);
+            this.pid = pid;
 
             String tmp = Integer.toHexString(pid);
             while (tmp.length() < 4) {
@@ -199,5 +912,12 @@ public class TransportStreamsViewer extends StreamsViewer {
             setLabel("0x" + tmp);
             setDescription("0x" + tmp);
         }
+
+        /**
+         * @return Returns the PID.
+         */
+        public int getPid() {
+            return pid;
+        }
     }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import net.lidskialf.datadog.mpeg.analysis.PCRTimeline;
+import net.lidskialf.datadog.ui.*;
+
+/**
+ * Column Header for the TransportStreamsViewer, showing stream time alongside
+ * positions once the PCR timeline is available.
+ *
+ * @author Andrew de Quincey
+ */
+public class TransportStreamsViewerColumnHeader extends StreamsViewerColumnHeader {
+
+    /**
+     * Constructor.
+     *
+     * @param viewer                   the associated TransportStreamsViewer
+     * @param nominalMinorTickSpacing  spacing between minor ticks
+     * @param nominalMajorTickSpacing  spacing between major ticks
+     */
+    public TransportStreamsViewerColumnHeader(TransportStreamsViewer viewer, int nominalMinorTickSpacing, int nominalMajorTickSpacing) {
+        super(viewer, nominalMinorTickSpacing, nominalMajorTickSpacing);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.ui.StreamsViewerColumnHeader#renderStreamPosition(long)
+     */
+    protected String renderStreamPosition(long position) {
+        long time = ((TransportStreamsViewer) viewer).positionToTime(position);
+        if (time == Long.MIN_VALUE)
+            return super.renderStreamPosition(position);
+
+        return PCRTimeline.formatTime(time) + " (" + super.renderStreamPosition(position) + ")";
+    }
+}
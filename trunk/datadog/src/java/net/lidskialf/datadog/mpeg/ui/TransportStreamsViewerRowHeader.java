@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.mpeg.ui;
+
+import net.lidskialf.datadog.mpeg.analysis.AudioFrameIndex;
+import net.lidskialf.datadog.mpeg.analysis.TimestampIndex;
+import net.lidskialf.datadog.ui.*;
+
+/**
+ * Row Header for the TransportStreamsViewer, adding PID navigation to the
+ * generic substream popup menu.
+ *
+ * @author Andrew de Quincey
+ */
+public class TransportStreamsViewerRowHeader extends StreamsViewerRowHeader {
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The TransportStreamsViewer we are associated with.
+     */
+    public TransportStreamsViewerRowHeader(TransportStreamsViewer viewer) {
+        super(viewer);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.ui.StreamsViewerRowHeader#isActionEnabled(java.lang.String)
+     */
+    public boolean isActionEnabled(String action) {
+        if (action == "JumpToPacketAction") {
+            return (selectedSubstream instanceof TransportStreamsViewer.TransportSubstream) && (((TransportStreamsViewer) viewer).getPacketIndex() != null);
+        }
+
+        if (action == "GoToPTSAction") {
+            TimestampIndex timestamps = ((TransportStreamsViewer) viewer).getTimestamps();
+            return (selectedSubstream instanceof TransportStreamsViewer.TransportSubstream) && (timestamps != null)
+                    && (timestamps.getCount(((TransportStreamsViewer.TransportSubstream) selectedSubstream).getPid()) > 0);
+        }
+
+        if (action == "JumpToKeyframeAction") {
+            return (selectedSubstream instanceof TransportStreamsViewer.TransportSubstream)
+                    && (((TransportStreamsViewer) viewer).getPictureIndex(((TransportStreamsViewer.TransportSubstream) selectedSubstream).getPid()) != null);
+        }
+
+        if (action == "ShowAudioFramesAction") {
+            AudioFrameIndex audioFrames = ((TransportStreamsViewer) viewer).getAudioFrames();
+            return (selectedSubstream instanceof TransportStreamsViewer.TransportSubstream) && (audioFrames != null)
+                    && (audioFrames.getCodec(((TransportStreamsViewer.TransportSubstream) selectedSubstream).getPid()) != 0);
+        }
+
+        return super.isActionEnabled(action);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.ui.StreamsViewerRowHeader#createPopupMenus()
+     */
+    protected void createPopupMenus() {
+        if (substreamPopupMenu != null) return;
+        super.createPopupMenus();
+
+        TransportStreamsViewer transportViewer = (TransportStreamsViewer) viewer;
+        substreamPopupMenu.addSeparator();
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new JumpToPacketAction(transportViewer, this, false, false)));
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new JumpToPacketAction(transportViewer, this, true, false)));
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new JumpToPacketAction(transportViewer, this, false, true)));
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new JumpToPacketAction(transportViewer, this, true, true)));
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new JumpToKeyframeAction(transportViewer, this, false)));
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new JumpToKeyframeAction(transportViewer, this, true)));
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new GoToPTSAction(transportViewer, this)));
+        substreamPopupMenu.add(substreamPopupMenuActions.add(new ShowAudioFramesAction(transportViewer, this)));
+    }
+}
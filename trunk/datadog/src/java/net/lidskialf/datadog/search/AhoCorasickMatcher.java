@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.search;
+
+import java.util.Arrays;
+
+import net.lidskialf.datadog.util.IntArray;
+
+/**
+ * Finds several byte patterns in one pass using the Aho-Corasick algorithm.
+ * The patterns are built into a trie whose failure links are folded into a
+ * full transition table, so each data byte costs a single lookup however many
+ * patterns there are.
+ *
+ * @author Andrew de Quincey
+ */
+public class AhoCorasickMatcher extends PatternMatcher {
+
+    /**
+     * Next state, indexed by (state * 256) + data byte.
+     */
+    private int[] next;
+
+    /**
+     * Indexes of the patterns ending at each state, or null for none.
+     */
+    private int[][] matches;
+
+    /**
+     * Nearest state down the failure links from each state which has
+     * matches, or -1 for none.
+     */
+    private int[] matchLink;
+
+    /**
+     * Constructor.
+     *
+     * @param patterns
+     *            The patterns.
+     */
+    public AhoCorasickMatcher(byte[][] patterns) {
+        super(patterns);
+
+        int maxStates = 1;
+        for (int i = 0; i < patterns.length; i++)
+            maxStates += patterns[i].length;
+
+        // build the trie, using -1 for missing transitions
+        next = new int[maxStates * 256];
+        Arrays.fill(next, -1);
+        IntArray[] ends = new IntArray[maxStates];
+        int stateCount = 1;
+        for (int i = 0; i < patterns.length; i++) {
+            int state = 0;
+            for (int j = 0; j < patterns[i].length; j++) {
+                int index = (state * 256) + (patterns[i][j] & 0xff);
+                if (next[index] == -1)
+                    next[index] = stateCount++;
+                state = next[index];
+            }
+            if (ends[state] == null)
+                ends[state] = new IntArray(1);
+            ends[state].add(i);
+        }
+
+        matches = new int[stateCount][];
+        for (int i = 0; i < stateCount; i++) {
+            if (ends[i] != null)
+                matches[i] = ends[i].toArray();
+        }
+
+        // walk the trie breadth first, so each state's failure state is
+        // complete before it is needed
+        int[] fail = new int[stateCount];
+        matchLink = new int[stateCount];
+        matchLink[0] = -1;
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int b = 0; b < 256; b++) {
+            int child = next[b];
+            if (child == -1) {
+                next[b] = 0;
+            } else {
+                fail[child] = 0;
+                matchLink[child] = -1;
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int b = 0; b < 256; b++) {
+                int index = (state * 256) + b;
+                int child = next[index];
+                int failNext = next[(fail[state] * 256) + b];
+                if (child == -1) {
+                    next[index] = failNext;
+                } else {
+                    fail[child] = failNext;
+                    matchLink[child] = (matches[failNext] != null) ? failNext : matchLink[failNext];
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        if (stateCount < maxStates) {
+            int[] trimmed = new int[stateCount * 256];
+            System.arraycopy(next, 0, trimmed, 0, trimmed.length);
+            next = trimmed;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.search.PatternMatcher#search(byte[], int, int, int, long, net.lidskialf.datadog.search.SearchListener)
+     */
+    public void search(byte[] data, int length, int minEnd, int maxStart, long basePos, SearchListener listener) {
+        // no match ending before minEnd is reported, and none ending there
+        // can start before the longest pattern's length
+        int pos = Math.max(0, minEnd - maxLength + 1);
+        int end = Math.min(length, maxStart + maxLength - 1);
+
+        int state = 0;
+        while (pos < end) {
+            state = next[(state * 256) + (data[pos++] & 0xff)];
+            if (pos <= minEnd)
+                continue;
+
+            for (int cur = (matches[state] != null) ? state : matchLink[state]; cur != -1; cur = matchLink[cur]) {
+                int[] found = matches[cur];
+                for (int i = 0; i < found.length; i++) {
+                    int start = pos - patterns[found[i]].length;
+                    if (start < maxStart)
+                        listener.found(basePos + start, found[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.search;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.lidskialf.datadog.Bitstream;
+
+/**
+ * Searches a whole Bitstream (or a range of one) for byte patterns. The range
+ * is split into chunks which are searched in parallel on a ForkJoinPool; each
+ * chunk reads on past its end by one byte less than the longest pattern, so
+ * matches straddling a chunk boundary are found exactly once, by the chunk
+ * they start in. Matches are passed to a SearchListener as soon as they are
+ * found, and a search may be cancelled from any thread.
+ *
+ * @author Andrew de Quincey
+ */
+public class BitstreamSearch {
+
+    /**
+     * Default number of bytes in each chunk.
+     */
+    public static final long DEFAULT_CHUNK_SIZE = 0x1000000;
+
+    /**
+     * Number of bytes read from the bitstream at once.
+     */
+    private static final int BLOCK_SIZE = 0x100000;
+
+    /**
+     * The bitstream to search.
+     */
+    private Bitstream bitstream;
+
+    /**
+     * Finds the patterns.
+     */
+    private PatternMatcher matcher;
+
+    /**
+     * The pool to run chunks on.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Maximum number of bytes in a chunk.
+     */
+    private long chunkSize;
+
+    /**
+     * Set to stop the search.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Number of bytes searched so far.
+     */
+    private AtomicLong searched = new AtomicLong();
+
+    /**
+     * Constructor using the common ForkJoinPool and default chunk size.
+     *
+     * @param bitstream
+     *            The bitstream to search.
+     * @param matcher
+     *            Finds the patterns.
+     */
+    public BitstreamSearch(Bitstream bitstream, PatternMatcher matcher) {
+        this(bitstream, matcher, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bitstream
+     *            The bitstream to search.
+     * @param matcher
+     *            Finds the patterns.
+     * @param pool
+     *            The ForkJoinPool to run chunks on.
+     * @param chunkSize
+     *            Maximum number of bytes in a chunk.
+     */
+    public BitstreamSearch(Bitstream bitstream, PatternMatcher matcher, ForkJoinPool pool, long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+
+        this.bitstream = bitstream;
+        this.matcher = matcher;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Get the matcher.
+     *
+     * @return The PatternMatcher.
+     */
+    public PatternMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Stop the search as soon as possible. Chunks already being searched
+     * stop at the end of their current block.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Has the search been cancelled?
+     *
+     * @return True if it has.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the number of bytes searched so far, for progress reporting.
+     *
+     * @return The number.
+     */
+    public long getBytesSearched() {
+        return searched.get();
+    }
+
+    /**
+     * Search the whole bitstream, returning once it has all been searched or
+     * the search is cancelled.
+     *
+     * @param listener
+     *            Told about each match.
+     * @throws IOException
+     *             On error.
+     */
+    public void search(SearchListener listener) throws IOException {
+        search(listener, 0, bitstream.length());
+    }
+
+    /**
+     * Search a range of the bitstream, returning once it has all been
+     * searched or the search is cancelled. Matches must start within the
+     * range, but may run on past its end.
+     *
+     * @param listener
+     *            Told about each match.
+     * @param startPos
+     *            Position to start searching at.
+     * @param endPos
+     *            Position to stop searching at.
+     * @throws IOException
+     *             On error.
+     */
+    public void search(SearchListener listener, long startPos, long endPos) throws IOException {
+        if (endPos <= startPos)
+            return;
+
+        try {
+            pool.invoke(new SearchTask(listener, startPos, endPos));
+        } catch (SearchException e) {
+            // the pool may wrap the exception again when rethrowing it on
+            // another thread, so dig out the original
+            Throwable cause = e;
+            while (!(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw (IOException) cause;
+        }
+    }
+
+    /**
+     * Search a single chunk on the calling thread.
+     *
+     * @param listener
+     *            Told about each match.
+     * @param startPos
+     *            Position of the start of the chunk.
+     * @param endPos
+     *            Position of the end of the chunk.
+     * @throws IOException
+     *             On error.
+     */
+    private void searchChunk(SearchListener listener, long startPos, long endPos) throws IOException {
+        // keep the last (longest pattern - 1) bytes of each block, so
+        // matches straddling blocks are seen whole
+        int overlap = matcher.getMaxLength() - 1;
+        long readEnd = endPos + overlap;
+        byte[] data = new byte[overlap + (int) Math.min(BLOCK_SIZE, endPos - startPos)];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        long pos = startPos;
+        int kept = 0;
+        while ((pos < readEnd) && !cancelled) {
+            buffer.clear();
+            buffer.position(kept);
+            buffer.limit((int) Math.min(data.length, kept + (readEnd - pos)));
+            int read = bitstream.readAt(pos, buffer);
+            if (read <= 0)
+                break;
+
+            int length = kept + read;
+            long basePos = pos - kept;
+            matcher.search(data, length, kept, (int) Math.min(length, endPos - basePos), basePos, listener);
+
+            searched.addAndGet(Math.min(pos + read, endPos) - Math.min(pos, endPos));
+            pos += read;
+            kept = Math.min(overlap, length);
+            System.arraycopy(data, length - kept, data, 0, kept);
+        }
+    }
+
+    /**
+     * Recursively splits a range into halves until it is small enough to be
+     * searched as a single chunk.
+     */
+    private class SearchTask extends RecursiveAction {
+
+        private SearchListener listener;
+
+        private long startPos;
+
+        private long endPos;
+
+        /**
+         * Constructor.
+         *
+         * @param listener Told about each match.
+         * @param startPos Position of the start of the range.
+         * @param endPos Position of the end of the range.
+         */
+        SearchTask(SearchListener listener, long startPos, long endPos) {
+            this.listener = listener;
+            this.startPos = startPos;
+            this.endPos = endPos;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        protected void compute() {
+            if (cancelled)
+                return;
+
+            long length = endPos - startPos;
+            if (length <= chunkSize) {
+                try {
+                    searchChunk(listener, startPos, endPos);
+                } catch (IOException e) {
+                    throw new SearchException(e);
+                }
+                return;
+            }
+
+            long leftLength = ((length / chunkSize + 1) / 2) * chunkSize;
+            SearchTask left = new SearchTask(listener, startPos, startPos + leftLength);
+            SearchTask right = new SearchTask(listener, startPos + leftLength, endPos);
+            right.fork();
+            left.compute();
+            right.join();
+        }
+    }
+
+    /**
+     * Carries an IOException out of a ForkJoinTask.
+     */
+    private static class SearchException extends RuntimeException {
+
+        /**
+         * Constructor.
+         *
+         * @param cause The IOException.
+         */
+        SearchException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.search;
+
+/**
+ * Finds a single byte pattern using the Boyer-Moore-Horspool algorithm, which
+ * skips ahead by up to the pattern length on each mismatch.
+ *
+ * @author Andrew de Quincey
+ */
+public class HorspoolMatcher extends PatternMatcher {
+
+    /**
+     * The pattern.
+     */
+    private byte[] pattern;
+
+    /**
+     * Distance to skip, indexed by the data byte under the last byte of the
+     * pattern.
+     */
+    private int[] skip = new int[256];
+
+    /**
+     * Constructor.
+     *
+     * @param pattern
+     *            The pattern.
+     */
+    public HorspoolMatcher(byte[] pattern) {
+        super(new byte[][] { pattern });
+        this.pattern = pattern;
+
+        int last = pattern.length - 1;
+        for (int i = 0; i < 256; i++)
+            skip[i] = pattern.length;
+        for (int i = 0; i < last; i++)
+            skip[pattern[i] & 0xff] = last - i;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see net.lidskialf.datadog.search.PatternMatcher#search(byte[], int, int, int, long, net.lidskialf.datadog.search.SearchListener)
+     */
+    public void search(byte[] data, int length, int minEnd, int maxStart, long basePos, SearchListener listener) {
+        int last = pattern.length - 1;
+        int start = Math.max(0, minEnd - last);
+        int end = Math.min(length - pattern.length, maxStart - 1);
+
+        while (start <= end) {
+            byte b = data[start + last];
+            if (b == pattern[last]) {
+                int i = last - 1;
+                while ((i >= 0) && (data[start + i] == pattern[i]))
+                    i--;
+                if (i < 0)
+                    listener.found(basePos + start, 0);
+            }
+            start += skip[b & 0xff];
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.search;
+
+/**
+ * Finds one or more byte patterns in a block of data. Matchers hold no state
+ * between calls, so one instance can be shared by any number of threads.
+ *
+ * @author Andrew de Quincey
+ */
+public abstract class PatternMatcher {
+
+    /**
+     * The patterns.
+     */
+    protected byte[][] patterns;
+
+    /**
+     * Length of the longest pattern.
+     */
+    protected int maxLength;
+
+    /**
+     * Constructor.
+     *
+     * @param patterns
+     *            The patterns.
+     */
+    protected PatternMatcher(byte[][] patterns) {
+        if (patterns.length == 0)
+            throw new IllegalArgumentException("No patterns");
+
+        this.patterns = patterns;
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].length == 0)
+                throw new IllegalArgumentException("Empty pattern " + i);
+            maxLength = Math.max(maxLength, patterns[i].length);
+        }
+    }
+
+    /**
+     * Create the best matcher for a set of patterns: Boyer-Moore-Horspool for
+     * a single pattern, Aho-Corasick for several.
+     *
+     * @param patterns
+     *            The patterns.
+     * @return The matcher.
+     */
+    public static PatternMatcher create(byte[][] patterns) {
+        if (patterns.length == 1)
+            return new HorspoolMatcher(patterns[0]);
+        return new AhoCorasickMatcher(patterns);
+    }
+
+    /**
+     * Get the number of patterns.
+     *
+     * @return The number.
+     */
+    public int getPatternCount() {
+        return patterns.length;
+    }
+
+    /**
+     * Get a pattern.
+     *
+     * @param index
+     *            Index of the pattern.
+     * @return The pattern.
+     */
+    public byte[] getPattern(int index) {
+        return patterns[index];
+    }
+
+    /**
+     * Get the length of the longest pattern.
+     *
+     * @return The length.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Find the patterns in a block of data.
+     *
+     * @param data
+     *            The data.
+     * @param length
+     *            Number of bytes of data.
+     * @param minEnd
+     *            Only matches ending after this many bytes are reported (the
+     *            bytes before it were already searched with the previous
+     *            block).
+     * @param maxStart
+     *            Only matches starting before this offset are reported.
+     * @param basePos
+     *            Position in the bitstream of data[0].
+     * @param listener
+     *            Told about each match.
+     */
+    public abstract void search(byte[] data, int length, int minEnd, int maxStart, long basePos, SearchListener listener);
+}
@@ -287,6 +287,39 @@ public abstract class StreamsViewer extends JScrollPane {
         }
     }
 
+    /**
+     * Get the position of the selector.
+     *
+     * @return The absolute position, or -1 if there is no selector.
+     */
+    public long getSelectorPosition() {
+        return absoluteSelectorPos;
+    }
+
+    /**
+     * Get the position navigation should start from: the selector if there is
+     * one, otherwise the middle of the view.
+     *
+     * @return The absolute position.
+     */
+    public long getCurrentPosition() {
+        if (absoluteSelectorPos != -1)
+            return absoluteSelectorPos;
+
+        Rectangle viewRect = getViewport().getViewRect();
+        return panelXPositionToAbsolutePosition(viewRect.x + (viewRect.width/2));
+    }
+
+    /**
+     * Move the selector to a position and centre the view about it.
+     *
+     * @param position The absolute position.
+     */
+    public void showPosition(long position) {
+        setSelectorPosition(position);
+        centreView(position);
+    }
+
     /**
      * Centre the view about an absolute stream position.
      *
@@ -468,6 +501,18 @@ public abstract class StreamsViewer extends JScrollPane {
         fireChangeListeners(StreamsViewerChangeEvent.substreamAdded(this, index));
     }
 
+    /**
+     * Remove a substream from the list.
+     *
+     * @param index Index of the substream to remove.
+     */
+    public void removeSubstream(int index) {
+        substreams.remove(index);
+        updateDimensions();
+        panel.repaint();
+        fireChangeListeners(StreamsViewerChangeEvent.substreamRemoved(this, index));
+    }
+
     /**
      * Vertical space allocated to a substream.
      *
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.ui.actions;
+
+import java.awt.Color;
+import java.awt.event.*;
+import java.io.IOException;
+import java.util.StringTokenizer;
+
+import javax.swing.*;
+
+import net.lidskialf.datadog.*;
+import net.lidskialf.datadog.search.*;
+import net.lidskialf.datadog.ui.StreamsViewer;
+import net.lidskialf.datadog.util.*;
+
+/**
+ * An Action allowing the user to search a whole stream for one or more byte
+ * patterns in the background, bookmarking each match as it is found.
+ *
+ * @author Andrew de Quincey
+ */
+public class FindBytesAction extends AbstractAction {
+
+    /**
+     * The search stops once this many matches have been bookmarked.
+     */
+    private static final int MAX_MATCHES = 10000;
+
+    /**
+     * Milliseconds between passing new matches to the viewer.
+     */
+    private static final int UPDATE_INTERVAL = 250;
+
+    /**
+     * Colour of the bookmarks for matches.
+     */
+    private static final Color MATCH_COLOUR = Color.magenta;
+
+    private StreamsViewer viewer;
+    private Bitstream bitstream;
+
+    /**
+     * Constructor.
+     *
+     * @param viewer
+     *            The StreamsViewer concerned.
+     * @param bitstream
+     *            The bitstream it is showing.
+     */
+    public FindBytesAction(StreamsViewer viewer, Bitstream bitstream) {
+        this.viewer = viewer;
+        this.bitstream = bitstream;
+
+        putValue(Action.NAME, "Find bytes");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+     */
+    public void actionPerformed(ActionEvent arg0) {
+        String text = JOptionPane.showInputDialog(viewer, "Hex bytes to find (separate patterns with commas, e.g. 00 00 01 b3, 47 1f ff):", "Find bytes",
+                JOptionPane.QUESTION_MESSAGE);
+        if (text == null)
+            return;
+
+        final byte[][] patterns;
+        final long length;
+        try {
+            patterns = parsePatterns(text);
+            length = bitstream.length();
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(viewer, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(viewer, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        final BitstreamSearch search = new BitstreamSearch(bitstream, PatternMatcher.create(patterns));
+        final LongArray foundPositions = new LongArray();
+        final IntArray foundPatterns = new IntArray();
+        final int[] matched = new int[1];
+        final SearchListener listener = new SearchListener() {
+            public void found(long position, int patternIndex) {
+                // a common pattern can match millions of times between timer
+                // ticks, so the cap has to be enforced as matches arrive
+                synchronized (foundPositions) {
+                    if (matched[0] >= MAX_MATCHES)
+                        return;
+                    foundPositions.add(position);
+                    foundPatterns.add(patternIndex);
+                    if (++matched[0] < MAX_MATCHES)
+                        return;
+                }
+                search.cancel();
+            }
+        };
+
+        // matches arrive from the worker threads far too quickly to hand to
+        // the viewer one at a time, so pass them on in batches
+        final ProgressMonitor progress = new ProgressMonitor(viewer, "Searching for " + text.trim(), null, 0, 1000);
+        final int[] bookmarked = new int[1];
+        final String[] descriptions = new String[patterns.length];
+        for (int i = 0; i < patterns.length; i++)
+            descriptions[i] = "Match: " + toHex(patterns[i]);
+        final ActionListener update = new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                synchronized (foundPositions) {
+                    for (int i = 0; i < foundPositions.size(); i++, bookmarked[0]++)
+                        viewer.addBookmark(foundPositions.get(i), new StreamBookmark(descriptions[foundPatterns.get(i)], MATCH_COLOUR));
+                    foundPositions.clear();
+                    foundPatterns.clear();
+                }
+
+                if (progress.isCanceled())
+                    search.cancel();
+                if (length > 0)
+                    progress.setProgress((int) ((search.getBytesSearched() * 1000) / length));
+            }
+        };
+        final Timer timer = new Timer(UPDATE_INTERVAL, update);
+        timer.start();
+
+        Thread thread = new Thread("Find bytes: " + text.trim()) {
+            public void run() {
+                String error = null;
+                try {
+                    search.search(listener);
+                } catch (IOException e) {
+                    error = e.getMessage();
+                }
+
+                final String message = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        // one last pass to pick up the final matches
+                        timer.stop();
+                        update.actionPerformed(null);
+                        progress.close();
+
+                        if (message != null)
+                            JOptionPane.showMessageDialog(viewer, message, "Error", JOptionPane.ERROR_MESSAGE);
+                        else if (bookmarked[0] >= MAX_MATCHES)
+                            JOptionPane.showMessageDialog(viewer, "Stopped after " + MAX_MATCHES + " matches.", "Find bytes", JOptionPane.INFORMATION_MESSAGE);
+                        else if (!search.isCancelled())
+                            JOptionPane.showMessageDialog(viewer, bookmarked[0] + " matches found.", "Find bytes", JOptionPane.INFORMATION_MESSAGE);
+                    }
+                });
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Parse a list of hex byte patterns.
+     *
+     * @param text
+     *            Comma separated patterns, each made of hex digits which may
+     *            be split up by spaces.
+     * @return The patterns.
+     * @throws NumberFormatException
+     *             If the text is not valid.
+     */
+    private static byte[][] parsePatterns(String text) {
+        StringTokenizer tokens = new StringTokenizer(text, ",");
+        byte[][] patterns = new byte[tokens.countTokens()][];
+        if (patterns.length == 0)
+            throw new NumberFormatException("No patterns given");
+
+        for (int i = 0; i < patterns.length; i++) {
+            String token = tokens.nextToken();
+            StringBuffer digits = new StringBuffer();
+            for (int j = 0; j < token.length(); j++) {
+                char c = token.charAt(j);
+                if (!Character.isWhitespace(c))
+                    digits.append(c);
+            }
+            if ((digits.length() == 0) || ((digits.length() % 2) != 0))
+                throw new NumberFormatException("Invalid pattern: " + token.trim());
+
+            patterns[i] = new byte[digits.length() / 2];
+            for (int j = 0; j < patterns[i].length; j++) {
+                int hi = Character.digit(digits.charAt(j * 2), 16);
+                int lo = Character.digit(digits.charAt((j * 2) + 1), 16);
+                if ((hi == -1) || (lo == -1))
+                    throw new NumberFormatException("Invalid pattern: " + token.trim());
+                patterns[i][j] = (byte) ((hi << 4) | lo);
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * Format a pattern for display.
+     *
+     * @param pattern
+     *            The pattern.
+     * @return Space separated hex bytes.
+     */
+    private static String toHex(byte[] pattern) {
+        StringBuffer result = new StringBuffer();
+        for (int i = 0; i < pattern.length; i++) {
+            if (i > 0)
+                result.append(' ');
+            String hex = Integer.toHexString(pattern[i] & 0xff);
+            if (hex.length() < 2)
+                result.append('0');
+            result.append(hex);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.util;
+
+/**
+ * An immutable, compressed, sorted set of unsigned 32 bit integers (such as
+ * packet numbers) supporting fast next/prev/rank/select.
+ *
+ * Values are split on their top 16 bits into containers, roaring bitmap
+ * style. Sparse containers hold a sorted array of the low 16 bits (2 bytes per
+ * value); dense containers hold a 65536 bit bitmap (8Kb). Memory use is
+ * therefore proportional to the number of values, never the range they span.
+ *
+ * @author Andrew de Quincey
+ */
+public class CompressedIntSet {
+
+    /**
+     * Containers with more values than this are stored as bitmaps.
+     */
+    public static final int ARRAY_CONTAINER_MAX = 4096;
+
+    /**
+     * An empty set.
+     */
+    public static final CompressedIntSet EMPTY = new Builder().build();
+
+    /**
+     * Top 16 bits of the values in each container, ascending.
+     */
+    private int[] keys;
+
+    /**
+     * Array containers (null where the container is a bitmap).
+     */
+    private short[][] arrays;
+
+    /**
+     * Bitmap containers (null where the container is an array).
+     */
+    private long[][] bitmaps;
+
+    /**
+     * Number of values in all containers before each container, with one
+     * extra trailing entry holding the total.
+     */
+    private int[] cumulative;
+
+    /**
+     * Constructor.
+     *
+     * @param keys Container keys.
+     * @param arrays Array containers.
+     * @param bitmaps Bitmap containers.
+     * @param cumulative Cumulative cardinalities.
+     */
+    private CompressedIntSet(int[] keys, short[][] arrays, long[][] bitmaps, int[] cumulative) {
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitmaps = bitmaps;
+        this.cumulative = cumulative;
+    }
+
+    /**
+     * Number of values in the set.
+     *
+     * @return The count.
+     */
+    public int size() {
+        return cumulative[keys.length];
+    }
+
+    /**
+     * Does the set contain a value?
+     *
+     * @param value The value.
+     * @return True if it does.
+     */
+    public boolean contains(long value) {
+        int c = findContainer(value);
+        if (c < 0)
+            return false;
+
+        int low = (int) (value & 0xffff);
+        if (arrays[c] != null)
+            return searchArray(arrays[c], low) >= 0;
+        return (bitmaps[c][low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Find the smallest value greater than or equal to a value.
+     *
+     * @param value The value.
+     * @return The next value in the set, or -1 if there is none.
+     */
+    public long next(long value) {
+        if (value < 0)
+            value = 0;
+        if (value > 0xffffffffL)
+            return -1;
+
+        int c = containerIndexFor(value);
+        if ((c < keys.length) && (keys[c] == (int) (value >>> 16))) {
+            int low = nextInContainer(c, (int) (value & 0xffff));
+            if (low >= 0)
+                return ((long) keys[c] << 16) | low;
+            c++;
+        }
+
+        if (c >= keys.length)
+            return -1;
+        return ((long) keys[c] << 16) | nextInContainer(c, 0);
+    }
+
+    /**
+     * Find the largest value less than or equal to a value.
+     *
+     * @param value The value.
+     * @return The previous value in the set, or -1 if there is none.
+     */
+    public long prev(long value) {
+        if (value < 0)
+            return -1;
+        if (value > 0xffffffffL)
+            value = 0xffffffffL;
+
+        int c = containerIndexFor(value);
+        if ((c < keys.length) && (keys[c] == (int) (value >>> 16))) {
+            int low = prevInContainer(c, (int) (value & 0xffff));
+            if (low >= 0)
+                return ((long) keys[c] << 16) | low;
+        }
+
+        c--;
+        if (c < 0)
+            return -1;
+        return ((long) keys[c] << 16) | prevInContainer(c, 0xffff);
+    }
+
+    /**
+     * Count the values strictly less than a value.
+     *
+     * @param value The value.
+     * @return The count.
+     */
+    public int rank(long value) {
+        if (value <= 0)
+            return 0;
+        if (value > 0xffffffffL)
+            return size();
+
+        int c = containerIndexFor(value);
+        if ((c >= keys.length) || (keys[c] != (int) (value >>> 16)))
+            return cumulative[c];
+
+        int low = (int) (value & 0xffff);
+        if (arrays[c] != null) {
+            int pos = searchArray(arrays[c], low);
+            return cumulative[c] + ((pos >= 0) ? pos : (-pos - 1));
+        }
+
+        long[] bitmap = bitmaps[c];
+        int count = 0;
+        int word = low >>> 6;
+        for (int i = 0; i < word; i++) {
+            count += Long.bitCount(bitmap[i]);
+        }
+        count += Long.bitCount(bitmap[word] & ((1L << low) - 1));
+        return cumulative[c] + count;
+    }
+
+    /**
+     * Get the value with a given rank.
+     *
+     * @param index Rank of the value (0 .. size() - 1).
+     * @return The value.
+     */
+    public long select(int index) {
+        if ((index < 0) || (index >= size()))
+            throw new IndexOutOfBoundsException("Index " + index + " out of range");
+
+        // find the last container starting at or before index
+        int lowC = 0;
+        int highC = keys.length - 1;
+        while (lowC < highC) {
+            int mid = (lowC + highC + 1) >>> 1;
+            if (cumulative[mid] <= index) {
+                lowC = mid;
+            } else {
+                highC = mid - 1;
+            }
+        }
+        int c = lowC;
+        int remaining = index - cumulative[c];
+
+        if (arrays[c] != null)
+            return ((long) keys[c] << 16) | (arrays[c][remaining] & 0xffff);
+
+        long[] bitmap = bitmaps[c];
+        for (int i = 0; i < bitmap.length; i++) {
+            int count = Long.bitCount(bitmap[i]);
+            if (remaining < count) {
+                long word = bitmap[i];
+                for (int j = 0; j < remaining; j++) {
+                    word &= word - 1;
+                }
+                return ((long) keys[c] << 16) | (i << 6) | Long.numberOfTrailingZeros(word);
+            }
+            remaining -= count;
+        }
+
+        throw new IllegalStateException("Corrupt bitmap container");
+    }
+
+    /**
+     * Approximate memory used by the set's data.
+     *
+     * @return The size in bytes.
+     */
+    public long getSizeInBytes() {
+        long bytes = (keys.length * 4L) + (cumulative.length * 4L);
+        for (int c = 0; c < keys.length; c++) {
+            if (arrays[c] != null) {
+                bytes += arrays[c].length * 2L;
+            } else {
+                bytes += bitmaps[c].length * 8L;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Find the container holding a value.
+     *
+     * @param value The value.
+     * @return The container index, or -1 if no container covers the value.
+     */
+    private int findContainer(long value) {
+        if ((value < 0) || (value > 0xffffffffL))
+            return -1;
+
+        int c = containerIndexFor(value);
+        if ((c < keys.length) && (keys[c] == (int) (value >>> 16)))
+            return c;
+        return -1;
+    }
+
+    /**
+     * Find the first container whose key is greater than or equal to the
+     * value's key.
+     *
+     * @param value The value.
+     * @return The container index (keys.length if there is none).
+     */
+    private int containerIndexFor(long value) {
+        int key = (int) (value >>> 16);
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Smallest low value in a container greater than or equal to low.
+     *
+     * @param c The container.
+     * @param low The low 16 bits.
+     * @return The low value, or -1 if there is none.
+     */
+    private int nextInContainer(int c, int low) {
+        if (arrays[c] != null) {
+            short[] array = arrays[c];
+            int pos = searchArray(array, low);
+            if (pos < 0)
+                pos = -pos - 1;
+            return (pos < array.length) ? (array[pos] & 0xffff) : -1;
+        }
+
+        long[] bitmap = bitmaps[c];
+        int word = low >>> 6;
+        long bits = bitmap[word] & (-1L << low);
+        while (bits == 0) {
+            if (++word == bitmap.length)
+                return -1;
+            bits = bitmap[word];
+        }
+        return (word << 6) | Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Largest low value in a container less than or equal to low.
+     *
+     * @param c The container.
+     * @param low The low 16 bits.
+     * @return The low value, or -1 if there is none.
+     */
+    private int prevInContainer(int c, int low) {
+        if (arrays[c] != null) {
+            short[] array = arrays[c];
+            int pos = searchArray(array, low);
+            if (pos < 0)
+                pos = -pos - 2;
+            return (pos >= 0) ? (array[pos] & 0xffff) : -1;
+        }
+
+        long[] bitmap = bitmaps[c];
+        int word = low >>> 6;
+        long bits = bitmap[word] & (-1L >>> (63 - (low & 63)));
+        while (bits == 0) {
+            if (--word < 0)
+                return -1;
+            bits = bitmap[word];
+        }
+        return (word << 6) | (63 - Long.numberOfLeadingZeros(bits));
+    }
+
+    /**
+     * Binary search an array container.
+     *
+     * @param array The container.
+     * @param low The low 16 bits to find.
+     * @return Index of low if present, otherwise (-(insertion point) - 1).
+     */
+    private static int searchArray(short[] array, int low) {
+        int lowIdx = 0;
+        int highIdx = array.length - 1;
+        while (lowIdx <= highIdx) {
+            int mid = (lowIdx + highIdx) >>> 1;
+            int midVal = array[mid] & 0xffff;
+            if (midVal < low) {
+                lowIdx = mid + 1;
+            } else if (midVal > low) {
+                highIdx = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lowIdx + 1);
+    }
+
+    /**
+     * Builds a CompressedIntSet from values supplied in ascending order.
+     */
+    public static class Builder {
+
+        private IntArray keys = new IntArray();
+
+        private java.util.List arrays = new java.util.ArrayList();
+
+        private java.util.List bitmaps = new java.util.ArrayList();
+
+        private IntArray cumulative = new IntArray();
+
+        private int total = 0;
+
+        private int curKey = -1;
+
+        private short[] curValues = new short[ARRAY_CONTAINER_MAX];
+
+        private long[] curBitmap;
+
+        private int curCount = 0;
+
+        private long lastValue = -1;
+
+        /**
+         * Add a value. Values must be added in strictly ascending order.
+         *
+         * @param value The value (0 .. 2^32 - 1).
+         */
+        public void add(long value) {
+            if ((value <= lastValue) || (value > 0xffffffffL))
+                throw new IllegalArgumentException("Values must be ascending 32 bit unsigned integers");
+            lastValue = value;
+
+            int key = (int) (value >>> 16);
+            if (key != curKey) {
+                flush();
+                curKey = key;
+            }
+
+            int low = (int) (value & 0xffff);
+            if (curBitmap == null) {
+                if (curCount < ARRAY_CONTAINER_MAX) {
+                    curValues[curCount++] = (short) low;
+                    return;
+                }
+
+                // too many values for an array: switch to a bitmap
+                curBitmap = new long[1024];
+                for (int i = 0; i < curCount; i++) {
+                    int v = curValues[i] & 0xffff;
+                    curBitmap[v >>> 6] |= 1L << v;
+                }
+            }
+            curBitmap[low >>> 6] |= 1L << low;
+            curCount++;
+        }
+
+        /**
+         * Build the set.
+         *
+         * @return The CompressedIntSet.
+         */
+        public CompressedIntSet build() {
+            flush();
+            cumulative.add(total);
+
+            int count = keys.size();
+            short[][] a = new short[count][];
+            long[][] b = new long[count][];
+            for (int i = 0; i < count; i++) {
+                a[i] = (short[]) arrays.get(i);
+                b[i] = (long[]) bitmaps.get(i);
+            }
+            return new CompressedIntSet(keys.toArray(), a, b, cumulative.toArray());
+        }
+
+        /**
+         * Close off the current container.
+         */
+        private void flush() {
+            if (curCount == 0)
+                return;
+
+            keys.add(curKey);
+            cumulative.add(total);
+            if (curBitmap != null) {
+                arrays.add(null);
+                bitmaps.add(curBitmap);
+            } else {
+                short[] tmp = new short[curCount];
+                System.arraycopy(curValues, 0, tmp, 0, curCount);
+                arrays.add(tmp);
+                bitmaps.add(null);
+            }
+            total += curCount;
+
+            curBitmap = null;
+            curCount = 0;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.util;
+
+/**
+ * A growable array of primitive ints, for bulk results (packet numbers etc.)
+ * which would be far too large as collections of Integer objects.
+ *
+ * @author Andrew de Quincey
+ */
+public class IntArray {
+
+    /**
+     * The values.
+     */
+    private int[] values;
+
+    /**
+     * Number of values in use.
+     */
+    private int size = 0;
+
+    /**
+     * Constructor.
+     */
+    public IntArray() {
+        this(16);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Initial capacity.
+     */
+    public IntArray(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Number of values held.
+     *
+     * @return The number.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param index Index of the value.
+     * @return The value.
+     */
+    public int get(int index) {
+        if (index >= size)
+            throw new ArrayIndexOutOfBoundsException(index);
+        return values[index];
+    }
+
+    /**
+     * Replace a value.
+     *
+     * @param index Index of the value.
+     * @param value The new value.
+     */
+    public void set(int index, int value) {
+        if (index >= size)
+            throw new ArrayIndexOutOfBoundsException(index);
+        values[index] = value;
+    }
+
+    /**
+     * Append a value.
+     *
+     * @param value The value.
+     */
+    public void add(int value) {
+        if (size == values.length)
+            grow(size + 1);
+        values[size++] = value;
+    }
+
+    /**
+     * Append all the values from another IntArray.
+     *
+     * @param other The values to append.
+     */
+    public void addAll(IntArray other) {
+        if (size + other.size > values.length)
+            grow(size + other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Remove all values.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Remove values from the end.
+     *
+     * @param size The number of values to keep.
+     */
+    public void truncate(int size) {
+        if ((size < 0) || (size > this.size))
+            throw new IndexOutOfBoundsException("Invalid size " + size);
+        this.size = size;
+    }
+
+    /**
+     * Binary search for a value - the values must be ascending.
+     *
+     * @param value The value to find.
+     * @return The index of the last value less than or equal to value, or -1
+     *         if all values are greater.
+     */
+    public int floorIndex(int value) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Copy a range of the values out into an existing array.
+     *
+     * @param srcIndex Index of the first value to copy.
+     * @param dest Destination array.
+     * @param destIndex Index in dest to copy to.
+     * @param length Number of values to copy.
+     */
+    public void get(int srcIndex, int[] dest, int destIndex, int length) {
+        if (srcIndex + length > size)
+            throw new ArrayIndexOutOfBoundsException(srcIndex + length);
+        System.arraycopy(values, srcIndex, dest, destIndex, length);
+    }
+
+    /**
+     * Copy the values out into an array of exactly the right size.
+     *
+     * @return The array.
+     */
+    public int[] toArray() {
+        int[] tmp = new int[size];
+        System.arraycopy(values, 0, tmp, 0, size);
+        return tmp;
+    }
+
+    /**
+     * Enlarge the backing array.
+     *
+     * @param minCapacity The minimum capacity required.
+     */
+    private void grow(int minCapacity) {
+        int capacity = values.length * 2;
+        if (capacity < minCapacity)
+            capacity = minCapacity;
+        int[] tmp = new int[capacity];
+        System.arraycopy(values, 0, tmp, 0, size);
+        values = tmp;
+    }
+}
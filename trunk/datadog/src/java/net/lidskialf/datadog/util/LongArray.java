@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2005 Andrew de Quincey <adq_dvb@lidskialf.net>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.lidskialf.datadog.util;
+
+/**
+ * A growable array of primitive longs, for bulk results (positions, timestamps
+ * etc.) which would be far too large as collections of Long objects.
+ *
+ * @author Andrew de Quincey
+ */
+public class LongArray {
+
+    /**
+     * The values.
+     */
+    private long[] values;
+
+    /**
+     * Number of values in use.
+     */
+    private int size = 0;
+
+    /**
+     * Constructor.
+     */
+    public LongArray() {
+        this(16);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Initial capacity.
+     */
+    public LongArray(int capacity) {
+        values = new long[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Number of values held.
+     *
+     * @return The number.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param index Index of the value.
+     * @return The value.
+     */
+    public long get(int index) {
+        if (index >= size)
+            throw new ArrayIndexOutOfBoundsException(index);
+        return values[index];
+    }
+
+    /**
+     * Replace a value.
+     *
+     * @param index Index of the value.
+     * @param value The new value.
+     */
+    public void set(int index, long value) {
+        if (index >= size)
+            throw new ArrayIndexOutOfBoundsException(index);
+        values[index] = value;
+    }
+
+    /**
+     * Append a value.
+     *
+     * @param value The value.
+     */
+    public void add(long value) {
+        if (size == values.length)
+            grow(size + 1);
+        values[size++] = value;
+    }
+
+    /**
+     * Append all the values from another LongArray.
+     *
+     * @param other The values to append.
+     */
+    public void addAll(LongArray other) {
+        if (size + other.size > values.length)
+            grow(size + other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Remove all values.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Remove the first values, moving the rest down in place.
+     *
+     * @param count Number of values to remove (clipped to the size).
+     */
+    public void removeHead(int count) {
+        if (count >= size) {
+            size = 0;
+            return;
+        }
+        System.arraycopy(values, count, values, 0, size - count);
+        size -= count;
+    }
+
+    /**
+     * Binary search for a value - the values must be ascending.
+     *
+     * @param value The value to find.
+     * @return The index of the last value less than or equal to value, or -1
+     *         if all values are greater.
+     */
+    public int floorIndex(long value) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Copy the values out into an array of exactly the right size.
+     *
+     * @return The array.
+     */
+    public long[] toArray() {
+        long[] tmp = new long[size];
+        System.arraycopy(values, 0, tmp, 0, size);
+        return tmp;
+    }
+
+    /**
+     * Enlarge the backing array.
+     *
+     * @param minCapacity The minimum capacity required.
+     */
+    private void grow(int minCapacity) {
+        int capacity = values.length * 2;
+        if (capacity < minCapacity)
+            capacity = minCapacity;
+        long[] tmp = new long[capacity];
+        System.arraycopy(values, 0, tmp, 0, size);
+        values = tmp;
+    }
+}